@@ -0,0 +1,182 @@
+package ra.networkmanager;
+
+import ra.common.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed, reference-counted files named by the SHA-256 of their content.
+ *
+ * Storing content already held only takes a reference, so a payload shared by many held envelopes is
+ * written once and deleted when its last reference is released. Counts live in memory and are rebuilt
+ * by the owner on load with {@link #retain(String)}; {@link #sweep()} then deletes blobs orphaned by a
+ * crash between storing a blob and recording its reference.
+ */
+public class BlobStore {
+
+    private static final Logger LOG = Logger.getLogger(BlobStore.class.getName());
+
+    private static final int CACHE_SIZE = 64;
+
+    private final File dir;
+    private final Map<String,Integer> refs = new HashMap<>();
+    // Recently read content; a drain reads the same payload once per copy
+    private final Map<String,byte[]> cache = new LinkedHashMap<String,byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,byte[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private long writes = 0L;
+    private long deduped = 0L;
+
+    public BlobStore(File dir) {
+        this.dir = dir;
+        if(!dir.exists() && !dir.mkdirs()) {
+            LOG.severe("Unable to create blob directory: "+dir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Store the content, or take another reference to it if already held.
+     * @return hash of the content, null if it could not be written
+     */
+    public synchronized String put(byte[] content) {
+        String hash = hash(content);
+        Integer count = refs.get(hash);
+        if(count!=null) {
+            refs.put(hash, count + 1);
+            deduped++;
+            return hash;
+        }
+        if(!FileUtil.writeFile(content, new File(dir, hash).getAbsolutePath())) {
+            LOG.warning("Unable to write blob "+hash);
+            return null;
+        }
+        refs.put(hash, 1);
+        writes++;
+        return hash;
+    }
+
+    /**
+     * @return content, null if not held
+     */
+    public synchronized byte[] get(String hash) {
+        byte[] content = cache.get(hash);
+        if(content!=null) return content;
+        File f = new File(dir, hash);
+        if(!f.exists()) return null;
+        try {
+            content = FileUtil.readFile(f.getAbsolutePath());
+        } catch (IOException e) {
+            LOG.warning(e.getLocalizedMessage());
+            return null;
+        }
+        cache.put(hash, content);
+        return content;
+    }
+
+    /**
+     * Record a reference to a blob already on disk, e.g. while loading its referrers.
+     */
+    public synchronized void retain(String hash) {
+        refs.merge(hash, 1, Integer::sum);
+    }
+
+    /**
+     * Drop a reference, deleting the blob with its last one.
+     */
+    public synchronized void release(String hash) {
+        Integer count = refs.get(hash);
+        if(count==null) return;
+        if(count > 1) {
+            refs.put(hash, count - 1);
+            return;
+        }
+        refs.remove(hash);
+        cache.remove(hash);
+        File f = new File(dir, hash);
+        if(f.exists() && !f.delete()) {
+            LOG.warning("Unable to delete unreferenced blob: "+f.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Forget every reference, before they are rebuilt with {@link #retain(String)}.
+     */
+    public synchronized void clearRefs() {
+        refs.clear();
+        cache.clear();
+    }
+
+    /**
+     * Delete blobs on disk without a reference.
+     * @return number deleted
+     */
+    public synchronized int sweep() {
+        int deleted = 0;
+        File[] files = dir.listFiles();
+        if(files==null) return 0;
+        for(File f : files) {
+            if(!refs.containsKey(f.getName()) && f.delete()) {
+                deleted++;
+            }
+        }
+        if(deleted > 0) {
+            LOG.info("Deleted "+deleted+" unreferenced blobs.");
+        }
+        return deleted;
+    }
+
+    /**
+     * @return number of blobs held
+     */
+    public synchronized int size() {
+        return refs.size();
+    }
+
+    public synchronized int getRefs(String hash) {
+        Integer count = refs.get(hash);
+        return count==null ? 0 : count;
+    }
+
+    /**
+     * @return blobs written to disk
+     */
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return puts satisfied by a blob already held
+     */
+    public synchronized long getDeduped() {
+        return deduped;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for(byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
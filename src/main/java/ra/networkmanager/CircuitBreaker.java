@@ -0,0 +1,81 @@
+package ra.networkmanager;
+
+/**
+ * Circuit breaker for a network service fed by send outcomes and ack timeouts.
+ *
+ * CLOSED: traffic flows; consecutive failures reaching the threshold open the breaker.
+ * OPEN: no traffic until openMs has passed, then HALF_OPEN.
+ * HALF_OPEN: a single trial send is let through; success closes, failure re-opens.
+ * A trial without an outcome after openMs is replaced by another.
+ */
+public class CircuitBreaker {
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final int failureThreshold;
+    private final long openMs;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0L;
+    private long trialAt = -1L;
+
+    public CircuitBreaker(int failureThreshold, long openMs) {
+        this.failureThreshold = failureThreshold;
+        this.openMs = openMs;
+    }
+
+    /**
+     * Check whether a send may go through, claiming the trial send when HALF_OPEN.
+     */
+    public synchronized boolean allowRequest(long now) {
+        switch (state) {
+            case CLOSED: return true;
+            case OPEN: {
+                if(now - openedAt < openMs) return false;
+                state = State.HALF_OPEN;
+                trialAt = now;
+                return true;
+            }
+            default: {
+                if(trialAt >= 0 && now - trialAt < openMs) return false;
+                trialAt = now;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Check without claiming the trial send, e.g. when only ranking networks.
+     */
+    public synchronized boolean isAvailable(long now) {
+        switch (state) {
+            case CLOSED: return true;
+            case OPEN: return now - openedAt >= openMs;
+            default: return trialAt < 0 || now - trialAt >= openMs;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        trialAt = -1L;
+    }
+
+    public synchronized void recordFailure(long now) {
+        failures++;
+        if(state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = now;
+            trialAt = -1L;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+}
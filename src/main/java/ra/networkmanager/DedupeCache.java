@@ -0,0 +1,36 @@
+package ra.networkmanager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of recently seen ids; the least recently seen id is evicted once full.
+ */
+public class DedupeCache {
+
+    private final Map<String,Boolean> seen;
+
+    public DedupeCache(final int maxSize) {
+        seen = new LinkedHashMap<String,Boolean>(Math.min(maxSize, 1024), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return true if the id had not been seen
+     */
+    public synchronized boolean add(String id) {
+        return seen.put(id, Boolean.TRUE) == null;
+    }
+
+    public synchronized boolean contains(String id) {
+        return seen.containsKey(id);
+    }
+
+    public synchronized int size() {
+        return seen.size();
+    }
+}
@@ -1,69 +1,119 @@
 package ra.networkmanager;
 
 import ra.common.Envelope;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
 import ra.common.network.NetworkState;
 import ra.common.network.NetworkStatus;
 import ra.common.route.Route;
-import ra.common.FileUtil;
 import ra.common.tasks.BaseTask;
 import ra.common.tasks.TaskRunner;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
 
+/**
+ * Sends messages waiting in the {@link MessageHold} once they are due and their network is CONNECTED.
+ */
 public class DelayedSend extends BaseTask {
 
     private static final Logger LOG = Logger.getLogger(DelayedSend.class.getName());
 
     private NetworkManagerService service;
-    private File messageHold;
+    private MessageHold hold;
+    private int maxPerRun = 0;
 
-    public DelayedSend(NetworkManagerService service, TaskRunner taskRunner, File messageHold) {
+    public DelayedSend(NetworkManagerService service, TaskRunner taskRunner, MessageHold hold) {
         super(DelayedSend.class.getSimpleName(), taskRunner);
         this.service = service;
-        this.messageHold = messageHold;
+        this.hold = hold;
+    }
+
+    /**
+     * @param maxPerRun maximum messages attempted per run, 0 for no limit
+     */
+    public void setMaxPerRun(int maxPerRun) {
+        this.maxPerRun = maxPerRun;
     }
 
     @Override
     public Boolean execute() {
-        File[] messages = messageHold.listFiles();
-        List<NetworkState> networkStates = new ArrayList<>(service.networkStates.values());
-        for(File msg : messages) {
-            byte[] bytes = new byte[0];
-            try {
-                bytes = FileUtil.readFile(msg.getAbsolutePath());
-            } catch (IOException e) {
-                LOG.warning(e.getLocalizedMessage());
-                continue;
+        if(service.delayedSend!=this) {
+            return true; // Replaced by a restart
+        }
+        HoldDrainEvent event = Jfr.AVAILABLE ? new HoldDrainEvent() : null;
+        if(event!=null) event.begin();
+        long now = service.now();
+        List<Network> connected = new ArrayList<>();
+        for(NetworkState ns : service.getNetworkStates()) {
+            // Leave messages held while the network's circuit breaker is open
+            if(ns.networkStatus == NetworkStatus.CONNECTED && service.getCircuitBreaker(ns.network).isAvailable(now)) {
+                connected.add(ns.network);
             }
-            String json = new String(bytes);
-            Envelope e = Envelope.documentFactory();
-            e.fromJSON(json);
-            if(e.getValue("delay")!=null) {
-                long delay = Long.parseLong((String)e.getValue("delay"));
-                if(new Date().getTime() < delay) {
-                    continue; // Not ready yet
+        }
+        int sent = 0;
+        int failed = 0;
+        int dropped = 0;
+        List<MessageHold.HeldMessage> due = hold.due(now, connected, maxPerRun);
+        for(MessageHold.HeldMessage m : due) {
+            Envelope e = null;
+            boolean resent;
+            try {
+                e = hold.read(m);
+                if(e==null) {
+                    hold.unreadable(m);
+                    dropped++;
+                    continue;
                 }
+                // Counted if the resend fails after being accepted, e.g. in a bundle, and is held again
+                e.addNVP(NetworkManagerService.HOLD_ATTEMPTS, String.valueOf(m.getAttempts() + 1));
+                resent = resend(e);
+            } catch (Exception ex) {
+                // Already out of the schedule; reschedule it rather than strand it until a restart
+                LOG.warning("Unable to resend held message "+m.getName()+": "+ex.getLocalizedMessage());
+                resent = false;
             }
-            Route r = e.getDynamicRoutingSlip().peekAtNextRoute();
-            String serviceName = r.getService();
-            for(NetworkState ns : networkStates) {
-                if(serviceName.startsWith(ns.network.name().toLowerCase())) {
-                    if(ns.networkStatus == NetworkStatus.CONNECTED) {
-                        if(service.send(e)) {
-                            LOG.info("Delayed message sent successfully.");
-                            if(!msg.delete()) {
-                                LOG.warning("Message sent successfully but unable to delete its file: "+msg.getAbsolutePath());
-                            }
-                        }
-                    }
-                }
+            if(resent) {
+                hold.delivered(m);
+                sent++;
+            } else if(!hold.failed(m, now)) {
+                LOG.warning("Dropping held message after "+m.getAttempts()+" attempts: "+m.getName());
+                if(e!=null) service.deadLetter(e);
+                dropped++;
+            } else {
+                failed++;
             }
         }
+        if(sent > 0) {
+            LOG.fine(sent+" delayed messages sent successfully.");
+        }
+        if(event!=null) event.end();
+        if(event!=null && event.shouldCommit()) {
+            event.connected = connected.size();
+            event.due = due.size();
+            event.sent = sent;
+            event.failed = failed;
+            event.dropped = dropped;
+            event.remaining = hold.size();
+            event.commit();
+        }
         return true;
     }
+
+    private boolean resend(Envelope e) {
+        NetworkPeer np = NetworkManagerService.asNetworkPeer(e.getValue(NetworkPeer.class.getName()));
+        if(np!=null) {
+            // Select the External Route again as networks may have changed while held
+            return service.routeAndSend(np, e) == ResponseCodes.SENT;
+        }
+        Route r = e.getDynamicRoutingSlip().peekAtNextRoute();
+        Network network = r==null ? null : service.getNetworkFromService(r.getService());
+        if(network!=null && service.getCircuitBreaker(network).allowRequest(service.now())) {
+            boolean sent = service.send(e);
+            service.recordSendOutcome(network, sent);
+            return sent;
+        }
+        return false;
+    }
 }
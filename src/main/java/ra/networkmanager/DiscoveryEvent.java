@@ -0,0 +1,37 @@
+package ra.networkmanager;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Discovery probe sent or reply received.
+ */
+@Name("ra.networkmanager.Discovery")
+@Label("Discovery")
+@Category({"Resolving Architecture", "Network Manager"})
+@Description("Peer status probe sent to, or reply received from, a peer")
+public class DiscoveryEvent extends Event {
+
+    public static final String PROBE = "probe";
+    public static final String REPLY = "reply";
+
+    @Label("Type")
+    String type;
+
+    @Label("Network")
+    String network;
+
+    @Label("Peer Id")
+    String peerId;
+
+    @Label("Peers Shared")
+    int peers;
+
+    @Label("Ack Latency")
+    @Timespan(Timespan.MILLISECONDS)
+    long latencyMs = -1L;
+}
@@ -0,0 +1,23 @@
+package ra.networkmanager;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Handling of one document by operation.
+ */
+@Name("ra.networkmanager.Document")
+@Label("Document")
+@Category({"Resolving Architecture", "Network Manager"})
+@Description("Envelope handled by the Network Manager")
+public class DocumentEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Envelope Id")
+    String envelopeId;
+}
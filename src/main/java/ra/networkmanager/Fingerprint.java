@@ -0,0 +1,38 @@
+package ra.networkmanager;
+
+/**
+ * 64-bit fingerprints of peer ids and addresses used as primitive keys by the {@link PeerTable}.
+ *
+ * FNV-1a over the UTF-16 chars followed by a MurmurHash3 finalizer. Never returns 0.
+ */
+public final class Fingerprint {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Fingerprint() {}
+
+    public static long of(String s) {
+        return of(FNV_OFFSET, s);
+    }
+
+    /**
+     * Fingerprint scoped to a network, e.g. a peer id which may repeat across networks.
+     */
+    public static long of(int scope, String s) {
+        return of((FNV_OFFSET ^ scope) * FNV_PRIME, s);
+    }
+
+    private static long of(long h, String s) {
+        for(int i=0; i<s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+}
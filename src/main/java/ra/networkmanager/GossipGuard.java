@@ -0,0 +1,181 @@
+package ra.networkmanager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Guards ingestion of peer lists gossiped by other peers (PEER_STATUS_REPLY, UPDATE_PEERS).
+ *
+ * Envelopes already seen are dropped and each origin peer may contribute only as many peers as its
+ * token bucket allows, so a chatty or malicious peer cannot flood the Peer DB. Origins are claimed by the
+ * sender, so all origins also share a global bucket: one peer posing as many origins, each with a fresh
+ * bucket, is held to the global rate.
+ *
+ * Envelopes relayed on behalf of other peers are limited the same way, per origin and globally, in
+ * buckets of their own.
+ */
+public class GossipGuard {
+
+    private final Double peersPerSecond;
+    private final Double burst;
+    private final Integer maxOrigins;
+    private final TokenBucket global;
+    private final Double relaysPerSecond;
+    private final Double relayBurst;
+    private final TokenBucket relayGlobal;
+
+    private final DedupeCache seen;
+    private final Map<String,TokenBucket> buckets;
+    private final Map<String,TokenBucket> relayBuckets;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong peersOffered = new AtomicLong();
+    private final AtomicLong peersLimited = new AtomicLong();
+    private final AtomicLong relaysLimited = new AtomicLong();
+
+    public GossipGuard(Properties p) {
+        if(p.getProperty("ra.networkmanager.gossip.peersPerSecond")==null) {
+            peersPerSecond = 10.0;
+        } else {
+            peersPerSecond = Double.parseDouble(p.getProperty("ra.networkmanager.gossip.peersPerSecond"));
+        }
+        if(p.getProperty("ra.networkmanager.gossip.burst")==null) {
+            burst = 100.0;
+        } else {
+            burst = Double.parseDouble(p.getProperty("ra.networkmanager.gossip.burst"));
+        }
+        if(p.getProperty("ra.networkmanager.gossip.maxOrigins")==null) {
+            maxOrigins = 1000;
+        } else {
+            maxOrigins = Integer.parseInt(p.getProperty("ra.networkmanager.gossip.maxOrigins"));
+        }
+        double globalPeersPerSecond;
+        if(p.getProperty("ra.networkmanager.gossip.global.peersPerSecond")==null) {
+            globalPeersPerSecond = 100.0;
+        } else {
+            globalPeersPerSecond = Double.parseDouble(p.getProperty("ra.networkmanager.gossip.global.peersPerSecond"));
+        }
+        double globalBurst;
+        if(p.getProperty("ra.networkmanager.gossip.global.burst")==null) {
+            globalBurst = 1000.0;
+        } else {
+            globalBurst = Double.parseDouble(p.getProperty("ra.networkmanager.gossip.global.burst"));
+        }
+        global = new TokenBucket(globalBurst, globalPeersPerSecond, 0L);
+        if(p.getProperty("ra.networkmanager.relay.perSecond")==null) {
+            relaysPerSecond = 1.0;
+        } else {
+            relaysPerSecond = Double.parseDouble(p.getProperty("ra.networkmanager.relay.perSecond"));
+        }
+        if(p.getProperty("ra.networkmanager.relay.burst")==null) {
+            relayBurst = 10.0;
+        } else {
+            relayBurst = Double.parseDouble(p.getProperty("ra.networkmanager.relay.burst"));
+        }
+        double globalRelaysPerSecond;
+        if(p.getProperty("ra.networkmanager.relay.global.perSecond")==null) {
+            globalRelaysPerSecond = 10.0;
+        } else {
+            globalRelaysPerSecond = Double.parseDouble(p.getProperty("ra.networkmanager.relay.global.perSecond"));
+        }
+        double globalRelayBurst;
+        if(p.getProperty("ra.networkmanager.relay.global.burst")==null) {
+            globalRelayBurst = 100.0;
+        } else {
+            globalRelayBurst = Double.parseDouble(p.getProperty("ra.networkmanager.relay.global.burst"));
+        }
+        relayGlobal = new TokenBucket(globalRelayBurst, globalRelaysPerSecond, 0L);
+        if(p.getProperty("ra.networkmanager.gossip.dedupeSize")==null) {
+            seen = new DedupeCache(10000);
+        } else {
+            seen = new DedupeCache(Integer.parseInt(p.getProperty("ra.networkmanager.gossip.dedupeSize")));
+        }
+        buckets = new LinkedHashMap<String,TokenBucket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,TokenBucket> eldest) {
+                return size() > maxOrigins;
+            }
+        };
+        relayBuckets = new LinkedHashMap<String,TokenBucket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,TokenBucket> eldest) {
+                return size() > maxOrigins;
+            }
+        };
+    }
+
+    /**
+     * @return true the first time an envelope id is offered
+     */
+    public boolean firstSeen(String envelopeId) {
+        if(envelopeId==null || seen.add(envelopeId)) {
+            accepted.incrementAndGet();
+            return true;
+        }
+        duplicates.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @param origin id of the peer the list came from, null if from within this node (not limited)
+     * @return how many of the offered peers to ingest
+     */
+    public int allowance(String origin, int offered, long now) {
+        peersOffered.addAndGet(offered);
+        if(origin==null) {
+            return offered;
+        }
+        TokenBucket bucket;
+        synchronized (buckets) {
+            bucket = buckets.computeIfAbsent(origin, o -> new TokenBucket(burst, peersPerSecond, now));
+        }
+        int taken = bucket.take(offered, now);
+        int granted = taken > 0 ? global.take(taken, now) : 0;
+        // Not charged for what all origins together had no room for
+        bucket.give(taken - granted);
+        peersLimited.addAndGet(offered - granted);
+        return granted;
+    }
+
+    /**
+     * @param origin id of the peer asking for the relay
+     * @return true if the origin and all origins together are within their relay rates
+     */
+    public boolean allowRelay(String origin, long now) {
+        TokenBucket bucket;
+        synchronized (relayBuckets) {
+            bucket = relayBuckets.computeIfAbsent(origin, o -> new TokenBucket(relayBurst, relaysPerSecond, now));
+        }
+        if(bucket.take(1, now) == 1) {
+            if(relayGlobal.take(1, now) == 1) {
+                return true;
+            }
+            bucket.give(1);
+        }
+        relaysLimited.incrementAndGet();
+        return false;
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getPeersOffered() {
+        return peersOffered.get();
+    }
+
+    public long getPeersLimited() {
+        return peersLimited.get();
+    }
+
+    public long getRelaysLimited() {
+        return relaysLimited.get();
+    }
+}
@@ -0,0 +1,223 @@
+package ra.networkmanager;
+
+import ra.common.Envelope;
+import ra.common.Tuple2;
+import ra.common.network.NetworkPeer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Hedged multi-path delivery for latency-critical (SLA 1) SENDs.
+ *
+ * The envelope is sent on the fastest CONNECTED network the destination is reachable on. If no ack
+ * arrives within that network's p95 ack latency, a copy carrying the same dedupe id is sent on the
+ * next best network, up to maxCopies. The first ack wins; later acks are ignored and no further copies go out.
+ *
+ * Each copy travels inside an envelope for the remote Network Manager, which acks every copy it receives
+ * but delivers only the first carrying a given dedupe id.
+ */
+public class HedgedSender {
+
+    private static final Logger LOG = Logger.getLogger(HedgedSender.class.getName());
+
+    // Map of the hedged envelope carried by a copy
+    public static final String HEDGED = "ra.networkmanager.hedged";
+
+    private final NetworkManagerService service;
+    private final ScheduledExecutorService scheduler;
+
+    private final Boolean enabled;
+    private final Integer maxCopies;
+    private final Long minDelayMs;
+
+    private final Map<String,Hedge> pending = new ConcurrentHashMap<>();
+    private final DedupeCache received = new DedupeCache(10000);
+
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong copiesSent = new AtomicLong();
+    private final AtomicLong wonByCopy = new AtomicLong();
+
+    private static class Hedge {
+        private final String dedupeId;
+        private final Envelope envelope;
+        private final List<NetworkPeer> candidates;
+        private final long[] sentAt;
+        private int copies = 0;
+        private ScheduledFuture<?> timer;
+
+        private Hedge(String dedupeId, Envelope envelope, List<NetworkPeer> candidates) {
+            this.dedupeId = dedupeId;
+            this.envelope = envelope;
+            this.candidates = candidates;
+            this.sentAt = new long[candidates.size()];
+        }
+    }
+
+    public HedgedSender(NetworkManagerService service, ScheduledExecutorService scheduler, Properties p) {
+        this.service = service;
+        this.scheduler = scheduler;
+        enabled = "true".equalsIgnoreCase(p.getProperty("ra.networkmanager.hedge.enabled"));
+        if(p.getProperty("ra.networkmanager.hedge.maxCopies")==null) {
+            maxCopies = 2;
+        } else {
+            maxCopies = Integer.parseInt(p.getProperty("ra.networkmanager.hedge.maxCopies"));
+        }
+        if(p.getProperty("ra.networkmanager.hedge.minDelayMs")==null) {
+            minDelayMs = 50L;
+        } else {
+            minDelayMs = Long.parseLong(p.getProperty("ra.networkmanager.hedge.minDelayMs"));
+        }
+    }
+
+    /**
+     * Hedging applies to SLA 1 envelopes when enabled in config or requested on the envelope.
+     */
+    public boolean isHedged(Envelope e) {
+        Object sla = e.getValue(NetworkManagerService.SLA);
+        if(sla==null || !"1".equals(sla.toString())) {
+            return false;
+        }
+        return enabled || "true".equals(String.valueOf(e.getValue(NetworkManagerService.HEDGE)));
+    }
+
+    /**
+     * @param candidates destination peer per CONNECTED network, fastest first
+     */
+    public ResponseCodes send(Envelope e, List<NetworkPeer> candidates) {
+        String dedupeId = e.getId();
+        e.addNVP(NetworkManagerService.DEDUPE_ID, dedupeId);
+        Hedge hedge = new Hedge(dedupeId, e, candidates);
+        pending.put(dedupeId, hedge);
+        hedged.incrementAndGet();
+        ResponseCodes code = sendCopy(hedge, e);
+        if(code!=ResponseCodes.SENT) {
+            pending.remove(dedupeId);
+        }
+        return code;
+    }
+
+    /**
+     * Called on receipt of an ack. Only credited if from a peer a copy was sent to, on that copy's network.
+     * @param origin peer the ack came from
+     * @return true if this is the first ack for a hedged envelope
+     */
+    public boolean ack(String dedupeId, NetworkPeer origin) {
+        if(dedupeId==null || origin==null) {
+            return false;
+        }
+        Hedge hedge = pending.get(dedupeId);
+        if(hedge==null) {
+            return false; // Not hedged or a duplicate ack
+        }
+        synchronized (hedge) {
+            int copy = -1;
+            for(int i=0; i<hedge.copies; i++) {
+                if(NetworkManagerService.isSamePeer(origin, hedge.candidates.get(i))) {
+                    copy = i;
+                    break;
+                }
+            }
+            if(copy < 0) {
+                LOG.warning("Ignoring ack for hedged envelope "+dedupeId+" from a peer no copy was sent to.");
+                return false;
+            }
+            if(!pending.remove(dedupeId, hedge)) {
+                return false; // Duplicate ack
+            }
+            if(hedge.timer!=null) {
+                hedge.timer.cancel(false);
+            }
+            if(copy > 0) wonByCopy.incrementAndGet();
+            service.recordAck(hedge.candidates.get(copy), service.now() - hedge.sentAt[copy]);
+        }
+        return true;
+    }
+
+    /**
+     * Called on receipt of a hedged copy.
+     * @return true if this is the first copy received, so to be delivered
+     */
+    public boolean received(String dedupeId) {
+        return received.add(dedupeId);
+    }
+
+    public long getHedged() {
+        return hedged.get();
+    }
+
+    public long getCopiesSent() {
+        return copiesSent.get();
+    }
+
+    public long getWonByCopy() {
+        return wonByCopy.get();
+    }
+
+    private ResponseCodes sendCopy(Hedge hedge, Envelope e) {
+        int copy;
+        NetworkPeer np;
+        synchronized (hedge) {
+            copy = hedge.copies++;
+            np = hedge.candidates.get(copy);
+            hedge.sentAt[copy] = service.now();
+        }
+        // Not under the hedge's lock so a slow send does not hold up its ack
+        ResponseCodes code = send(np, e);
+        synchronized (hedge) {
+            if(!pending.containsKey(hedge.dedupeId)) {
+                return code; // Acked meanwhile
+            }
+            if(copy + 1 < hedge.candidates.size() && copy + 1 < maxCopies) {
+                long delay = Math.max(minDelayMs, service.hedgeDelayMs(np.getNetwork()));
+                hedge.timer = scheduler.schedule(() -> timeout(hedge), delay, TimeUnit.MILLISECONDS);
+            } else {
+                // Last copy; keep the hedge only long enough to credit a late ack
+                hedge.timer = scheduler.schedule(() -> pending.remove(hedge.dedupeId), 60, TimeUnit.SECONDS);
+            }
+        }
+        return code;
+    }
+
+    private ResponseCodes send(NetworkPeer np, Envelope e) {
+        RouteResolution rr = service.resolveRoute(np, service.networkStates);
+        Tuple2<Boolean,ResponseCodes> result = service.applyRoute(rr, e);
+        if(!result.first) {
+            return result.second;
+        }
+        Envelope out = Envelope.documentFactory();
+        out.addNVP(NetworkManagerService.DEDUPE_ID, e.getValue(NetworkManagerService.DEDUPE_ID));
+        out.addNVP(HEDGED, e.toMap());
+        // 2. Remote Network Manager acks and delivers the first copy
+        out.addExternalRoute(NetworkManagerService.class.getName(), NetworkManagerService.OPERATION_DELIVER_HEDGED,
+                rr.getOrigination(), rr.getDestination());
+        // 1. Send through the local network service
+        out.addRoute(rr.getService(), "SEND");
+        boolean sent = service.send(out);
+        service.recordSendOutcome(np.getNetwork(), sent);
+        return sent ? ResponseCodes.SENT : ResponseCodes.SEND_FAILED;
+    }
+
+    private void timeout(Hedge hedge) {
+        if(!pending.containsKey(hedge.dedupeId)) {
+            return; // Acked meanwhile
+        }
+        NetworkPeer late = hedge.candidates.get(hedge.copies - 1);
+        service.ackTimeout(late);
+        // Independent copy so re-routing does not touch the envelope already handed off
+        Envelope copy = Envelope.documentFactory();
+        copy.fromJSON(hedge.envelope.toJSON());
+        copiesSent.incrementAndGet();
+        ResponseCodes code = sendCopy(hedge, copy);
+        if(code!=ResponseCodes.SENT) {
+            LOG.warning("Hedged copy failed: "+code.name());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package ra.networkmanager;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One run of {@link DelayedSend} over the message hold.
+ */
+@Name("ra.networkmanager.HoldDrain")
+@Label("Message Hold Drain")
+@Category({"Resolving Architecture", "Network Manager"})
+@Description("Held messages attempted on one run of the delayed send task")
+public class HoldDrainEvent extends Event {
+
+    @Label("Connected Networks")
+    int connected;
+
+    @Label("Due")
+    int due;
+
+    @Label("Sent")
+    int sent;
+
+    @Label("Failed")
+    int failed;
+
+    @Label("Dropped")
+    int dropped;
+
+    @Label("Remaining")
+    int remaining;
+}
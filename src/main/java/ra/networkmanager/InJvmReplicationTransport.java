@@ -0,0 +1,39 @@
+package ra.networkmanager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Replication among Network Manager instances in one JVM: replicas joining the same named channel
+ * receive each other's deltas synchronously on the publishing thread.
+ */
+public class InJvmReplicationTransport implements ReplicationTransport {
+
+    private static final Map<String,InJvmReplicationTransport> channels = new ConcurrentHashMap<>();
+
+    private final Map<String,Consumer<PeerDelta>> replicas = new ConcurrentHashMap<>();
+
+    public static InJvmReplicationTransport channel(String name) {
+        return channels.computeIfAbsent(name, n -> new InJvmReplicationTransport());
+    }
+
+    @Override
+    public void publish(PeerDelta delta) {
+        for(Map.Entry<String,Consumer<PeerDelta>> replica : replicas.entrySet()) {
+            if(!replica.getKey().equals(delta.getOrigin())) {
+                replica.getValue().accept(delta);
+            }
+        }
+    }
+
+    @Override
+    public void join(String replicaId, Consumer<PeerDelta> receiver) {
+        replicas.put(replicaId, receiver);
+    }
+
+    @Override
+    public void leave(String replicaId) {
+        replicas.remove(replicaId);
+    }
+}
@@ -3,30 +3,38 @@ package ra.networkmanager;
 import ra.common.network.Network;
 import ra.common.network.NetworkGroup;
 import ra.common.network.NetworkPeer;
-import ra.common.RandomUtil;
 
 import java.util.*;
+import java.util.function.LongSupplier;
 import java.util.logging.Logger;
 
+/**
+ * Default PeerDB holding remote peers in a compact {@link PeerTable}.
+ */
 public class InMemoryPeerDB implements PeerDB {
 
     private static final Logger LOG = Logger.getLogger(InMemoryPeerDB.class.getName());
 
     private Properties properties;
+    private long demoteMs = 24 * 60 * 60 * 1000L;
+    private long expireMs = 30 * 24 * 60 * 60 * 1000L;
+    private double exploration = 0.1;
+    private PeerClassifier classifier;
+    private LongSupplier clock = System::currentTimeMillis;
 
     private final Map<Network,NetworkPeer> localPeerByNetwork = new HashMap<>();
-    private final Map<Network,Set<NetworkPeer>> seedPeersByNetwork = new HashMap<>();
+    private final Map<Network,List<NetworkPeer>> seedPeersByNetwork = new HashMap<>();
 
-    private final Map<String,NetworkPeer> peerById = new HashMap<>();
-    private final Map<String,NetworkPeer> peerByAddress = new HashMap<>();
-    private final Map<Network,Set<NetworkPeer>> peersByNetwork = new HashMap<>();
-    private final Map<String,Set<NetworkPeer>> peersByService = new HashMap<>();
+    private final PeerTable peers = new PeerTable();
+    // Service name to keys of the peers offering it, network then id, in order for paging
+    private final Map<String,TreeSet<String>> peersByService = new HashMap<>();
 
     private final Map<UUID,NetworkGroup> networkGroupsById = new HashMap<>();
 
     @Override
-    public Boolean savePeer(NetworkPeer p, Boolean local, RelType relType) {
-        LOG.info("Saving NetworkPeer...");
+    public synchronized Boolean savePeer(NetworkPeer p, Boolean local, RelType relType) {
+        PeerMutationEvent event = Jfr.AVAILABLE ? new PeerMutationEvent() : null;
+        if(event!=null) event.begin();
         if(p.getId()==null || p.getId().isEmpty()) {
             LOG.warning("NetworkPeer.id is empty. Must have an id for Network Peers to save.");
             return false;
@@ -39,101 +47,449 @@ public class InMemoryPeerDB implements PeerDB {
             LOG.warning("NetworkPeer.address is empty. Must have an address for Network Peers to save.");
             return false;
         }
+        boolean unchanged = false;
         if(local) {
             localPeerByNetwork.put(p.getNetwork(), p);
         } else {
-            peerById.put(p.getId(), p);
-            peerByAddress.put(p.getDid().getPublicKey().getAddress(), p);
-            if (peersByNetwork.get(p.getNetwork()) == null)
-                peersByNetwork.put(p.getNetwork(), new HashSet<>());
-            peersByNetwork.get(p.getNetwork()).add(p);
+            if(relType==RelType.Seed) {
+                saveSeed(p);
+            }
+            long unchangedBefore = peers.getUnchanged();
+            int slot = peers.put(p, relType);
+            if(slot==PeerTable.NO_SLOT) {
+                LOG.warning("Peer id fingerprint collides with a different stored peer; not saved.");
+                return false;
+            }
+            unchanged = peers.getUnchanged() != unchangedBefore;
+            if(peers.getLastSeen(slot)==0) {
+                // Newly learned peers start out live
+                peers.touch(slot, clock.getAsLong());
+            }
+        }
+        if(event!=null) event.end();
+        if(event!=null && event.shouldCommit()) {
+            event.mutation = local ? PeerMutationEvent.SAVE_LOCAL : PeerMutationEvent.SAVE;
+            event.network = p.getNetwork().name();
+            event.peerId = p.getId();
+            event.relType = relType==null ? null : relType.name();
+            event.unchanged = unchanged;
+            event.count = 1;
+            event.commit();
         }
         return true;
     }
 
     @Override
-    public NetworkPeer findPeer(NetworkPeer np) {
-        if(np.getId()!=null && peerById.get(np.getId())!=null)
-            return peerById.get(np.getId());
-        else if(np.getDid()!=null && np.getDid().getPublicKey()!=null && np.getDid().getPublicKey().getAddress()!=null && peerByAddress.get(np.getDid().getPublicKey().getAddress())!=null)
-            return peerByAddress.get(np.getDid().getPublicKey().getAddress());
-        else
-            return null;
+    public synchronized void peerSeen(NetworkPeer np) {
+        peers.touch(slotOf(np), clock.getAsLong());
+    }
+
+    @Override
+    public synchronized void peerAcked(NetworkPeer np, long latencyMs) {
+        int slot = slotOf(np);
+        peers.acked(slot, clock.getAsLong(), latencyMs);
+        if(classifier!=null) {
+            classifier.acked(peers, slot, latencyMs);
+        }
+    }
+
+    @Override
+    public synchronized void peerTimedOut(NetworkPeer np) {
+        int slot = slotOf(np);
+        peers.timedOut(slot);
+        if(classifier!=null) {
+            classifier.timedOut(peers, slot);
+        }
+    }
+
+    @Override
+    public synchronized NetworkPeer getRandomPeerByClass(Network network, RelType cls, RelType... also) {
+        return peers.get(peers.randomSlot(network, cls, also));
+    }
+
+    @Override
+    public synchronized long numberPeersByClass(Network network, RelType cls) {
+        return peers.count(network, cls);
+    }
+
+    private int slotOf(NetworkPeer np) {
+        if(np==null || np.getId()==null || np.getNetwork()==null) return PeerTable.NO_SLOT;
+        return peers.slotById(np.getNetwork(), np.getId());
+    }
+
+    /**
+     * Weighted by reliability, except for the exploration share drawn uniformly so new and
+     * rarely used peers still get a chance to prove themselves.
+     */
+    private int sampleSlot(Network network) {
+        if(exploration >= 1.0 || peers.random().nextDouble() < exploration) {
+            return peers.randomSlot(network);
+        }
+        return peers.weightedSlot(network);
+    }
+
+    @Override
+    public synchronized void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    protected long now() {
+        return clock.getAsLong();
+    }
+
+    /**
+     * Demote peers not seen within demoteMs and remove those not seen within expireMs.
+     */
+    @Override
+    public synchronized int sweep(long now) {
+        PeerMutationEvent event = Jfr.AVAILABLE ? new PeerMutationEvent() : null;
+        if(event!=null) event.begin();
+        int demoted = peers.demote(now - demoteMs);
+        int expired = peers.expire(now - expireMs);
+        if(demoted > 0 || expired > 0) {
+            LOG.fine("Demoted "+demoted+" and expired "+expired+" stale peers.");
+        }
+        if(event!=null) event.end();
+        if(event!=null && event.shouldCommit()) {
+            event.mutation = PeerMutationEvent.SWEEP;
+            event.count = demoted + expired;
+            event.commit();
+        }
+        return expired;
+    }
+
+    /**
+     * Save many remote peers under one lock, each with the relationship of its network.
+     */
+    @Override
+    public synchronized int savePeers(List<NetworkPeer> peers) {
+        int saved = 0;
+        for(NetworkPeer p : peers) {
+            if(p.getNetwork()!=null && savePeer(p, false, RelType.fromNetwork(p.getNetwork()))) {
+                saved++;
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * @return number of saves that found the peer already known and unchanged
+     */
+    public synchronized long getUnchangedSaves() {
+        return peers.getUnchanged();
+    }
+
+    protected PeerTable peerTable() {
+        return peers;
+    }
+
+    protected List<NetworkPeer> seeds(Network network) {
+        List<NetworkPeer> seeds = seedPeersByNetwork.get(network);
+        return seeds==null ? Collections.emptyList() : seeds;
+    }
+
+    private void saveSeed(NetworkPeer p) {
+        List<NetworkPeer> seeds = seedPeersByNetwork.computeIfAbsent(p.getNetwork(), k -> new ArrayList<>());
+        for(int i=0; i<seeds.size(); i++) {
+            if(p.getId().equals(seeds.get(i).getId())) {
+                seeds.set(i, p);
+                return;
+            }
+        }
+        seeds.add(p);
+    }
+
+    @Override
+    public synchronized NetworkPeer findPeer(NetworkPeer np) {
+        int slot = PeerTable.NO_SLOT;
+        if(np.getId()!=null) {
+            slot = np.getNetwork()!=null ? peers.slotById(np.getNetwork(), np.getId()) : peers.slotById(np.getId());
+        }
+        if(slot==PeerTable.NO_SLOT && np.getDid()!=null && np.getDid().getPublicKey()!=null && np.getDid().getPublicKey().getAddress()!=null) {
+            slot = peers.slotByAddress(np.getDid().getPublicKey().getAddress());
+        }
+        return slot==PeerTable.NO_SLOT ? null : peers.get(slot);
     }
 
     @Override
-    public long numberPeersByNetwork(Network network) {
-        if(peersByNetwork.get(network)==null) return 0;
-        return peersByNetwork.get(network).size();
+    public synchronized NetworkPeer findPeerByNetwork(String id, Network network) {
+        return peers.get(peers.slotById(network, id));
     }
 
     @Override
-    public long numberPeersByNetwork(String startingId, Network network) {
+    public synchronized long numberPeersByNetwork(Network network) {
+        return peers.count(network);
+    }
+
+    @Override
+    public synchronized long numberPeersByNetwork(String startingId, Network network) {
         return 0;
     }
 
     @Override
-    public long numberSeedPeersByNetwork(Network network) {
+    public synchronized long numberSeedPeersByNetwork(Network network) {
         if(seedPeersByNetwork.get(network)==null || seedPeersByNetwork.get(network).isEmpty()) return 0;
         return seedPeersByNetwork.get(network).size();
     }
 
     @Override
-    public NetworkPeer getLocalPeerByNetwork(Network network) {
+    public synchronized NetworkPeer getLocalPeerByNetwork(Network network) {
         return localPeerByNetwork.get(network);
     }
 
     @Override
-    public NetworkPeer getRandomSeedByNetwork(Network network) {
-        int random = RandomUtil.nextRandomInteger(0, seedPeersByNetwork.get(network).size());
-        return (NetworkPeer)seedPeersByNetwork.values().toArray()[random];
+    public synchronized NetworkPeer getRandomSeedByNetwork(Network network) {
+        List<NetworkPeer> seeds = seedPeersByNetwork.get(network);
+        if(seeds==null || seeds.isEmpty()) return null;
+        return seeds.get(peers.random().nextInt(seeds.size()));
     }
 
     @Override
-    public NetworkPeer getRandomPeerByNetwork(Network network) {
-        int random = RandomUtil.nextRandomInteger(0, peersByNetwork.get(network).size());
-        return (NetworkPeer)peersByNetwork.values().toArray()[random];
+    public synchronized NetworkPeer getRandomPeerByNetwork(Network network) {
+        return peers.get(sampleSlot(network));
     }
 
     @Override
-    public List<NetworkPeer> getRandomPeersToShareByNetwork(Network network, int numPeersShare) {
-        Map<String, NetworkPeer> nps = new HashMap<>();
+    public synchronized List<NetworkPeer> getRandomPeersToShareByNetwork(Network network, int numPeersShare) {
+        // Pick distinct slots first so only the chosen peers are materialized
+        Set<Integer> slots = new HashSet<>();
         int maxTries = numPeersShare * 2;
         for(int i=0; i<maxTries; i++) {
-            if(nps.size()==numPeersShare)
+            if(slots.size()==numPeersShare)
                 break;
-            NetworkPeer np = getRandomPeerByNetwork(network);
-            if(np==null)
+            int slot = sampleSlot(network);
+            if(slot==PeerTable.NO_SLOT)
                 break;
-            if(!nps.containsKey(np.getId()))
-                nps.put(np.getId(), np);
+            slots.add(slot);
+        }
+        List<NetworkPeer> nps = new ArrayList<>(slots.size());
+        for(int slot : slots) {
+            nps.add(peers.get(slot));
         }
-        return new ArrayList<>(nps.values());
+        return nps;
     }
 
     @Override
-    public Set<NetworkPeer> findPeersByService(String serviceName) {
-        return peersByService.get(serviceName);
+    public synchronized void savePeerService(NetworkPeer np, String serviceName) {
+        if(serviceName==null || slotOf(np)==PeerTable.NO_SLOT) {
+            return;
+        }
+        peersByService.computeIfAbsent(serviceName, k -> new TreeSet<>()).add(serviceKey(np.getNetwork(), np.getId()));
     }
 
     @Override
-    public NetworkPeer randomPeerWithInternetAccessAvailable(Network network) {
+    public synchronized Set<NetworkPeer> findPeersByService(String serviceName) {
+        TreeSet<String> keys = peersByService.get(serviceName);
+        if(keys==null) {
+            return null;
+        }
+        Set<NetworkPeer> found = new HashSet<>();
+        Iterator<String> i = keys.iterator();
+        while(i.hasNext()) {
+            int slot = serviceSlot(i.next());
+            if(slot==PeerTable.NO_SLOT) {
+                i.remove(); // Expired
+            } else {
+                found.add(peers.get(slot));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Page through the peer table network by network, each in id fingerprint order, seeking to the cursor in
+     * the network's fingerprint index, or the classification's when filtering on one.
+     * The cursor is the network and the last fingerprint returned, so unaffected by peers removed meanwhile.
+     */
+    @Override
+    public synchronized PeerPage findPeers(PeerQuery query) {
+        Network[] networks = query.getNetwork()==null ? Network.values() : new Network[]{query.getNetwork()};
+        int n = 0;
+        long after = Long.MIN_VALUE;
+        boolean inclusive = true;
+        if(query.getCursor()!=null) {
+            int dot = query.getCursor().indexOf('.');
+            if(dot < 0) {
+                throw new IllegalArgumentException("Invalid cursor: "+query.getCursor());
+            }
+            Network cursorNetwork = Network.valueOf(query.getCursor().substring(0, dot));
+            while(n < networks.length && networks[n]!=cursorNetwork) n++;
+            after = Long.parseLong(query.getCursor().substring(dot + 1));
+            inclusive = false;
+        }
+        RelType cls = indexedClass(query);
+        List<NetworkPeer> page = new ArrayList<>(query.getPageSize());
+        Network lastNetwork = null;
+        int last = PeerTable.NO_SLOT;
+        for(; n < networks.length; n++, after = Long.MIN_VALUE, inclusive = true) {
+            Iterator<Integer> slots = peers.slotsByIdFingerprint(networks[n], cls, after, inclusive);
+            while(slots.hasNext()) {
+                int slot = slots.next();
+                if(!matches(slot, query)) {
+                    continue;
+                }
+                if(page.size()==query.getPageSize()) {
+                    // Another match after a full page
+                    return new PeerPage(page, lastNetwork.name() + "." + peers.getIdFingerprint(last));
+                }
+                page.add(peers.get(slot));
+                lastNetwork = networks[n];
+                last = slot;
+            }
+        }
+        return new PeerPage(page, null);
+    }
+
+    /**
+     * Page through a service's peers ordered by network then id; the cursor is the last of those returned.
+     */
+    @Override
+    public synchronized PeerPage findPeersByService(String serviceName, PeerQuery query) {
+        TreeSet<String> keys = peersByService.get(serviceName);
+        if(keys==null) {
+            return new PeerPage(new ArrayList<>(), null);
+        }
+        SortedSet<String> from = keys;
+        if(query.getCursor()!=null) {
+            from = keys.tailSet(query.getCursor() + Character.MIN_VALUE);
+        } else if(query.getNetwork()!=null) {
+            from = keys.tailSet(query.getNetwork().name() + ".");
+        }
+        List<NetworkPeer> page = new ArrayList<>(query.getPageSize());
+        String last = null;
+        Iterator<String> i = from.iterator();
+        while(i.hasNext()) {
+            String key = i.next();
+            int slot = serviceSlot(key);
+            if(slot==PeerTable.NO_SLOT) {
+                i.remove(); // Expired
+                continue;
+            }
+            if(query.getNetwork()!=null && peers.getNetwork(slot)!=query.getNetwork()) {
+                if(key.compareTo(query.getNetwork().name() + ".") > 0) break; // Past the network's keys
+                continue;
+            }
+            if(!matches(slot, query)) {
+                continue;
+            }
+            if(page.size()==query.getPageSize()) {
+                return new PeerPage(page, last);
+            }
+            page.add(peers.get(slot));
+            last = key;
+        }
+        return new PeerPage(page, null);
+    }
+
+    private static String serviceKey(Network network, String id) {
+        return network.name() + "." + id;
+    }
+
+    private int serviceSlot(String key) {
+        int dot = key.indexOf('.');
+        return peers.slotById(Network.valueOf(key.substring(0, dot)), key.substring(dot + 1));
+    }
+
+    /**
+     * @return classification whose member lists hold every peer the query can match, null if none
+     */
+    private static RelType indexedClass(PeerQuery query) {
+        RelType rt = query.getRelType();
+        if(rt==RelType.Reliable || rt==RelType.LowLatency || rt==RelType.Banned) {
+            return rt;
+        }
+        return query.isReliableOnly() ? RelType.Reliable : null;
+    }
+
+    @Override
+    public synchronized List<NetworkPeer> getLocalPeers() {
+        return new ArrayList<>(localPeerByNetwork.values());
+    }
+
+    private boolean matches(int slot, PeerQuery query) {
+        if(!peers.isUsed(slot)) {
+            return false;
+        }
+        RelType rt = query.getRelType();
+        if(rt!=null) {
+            boolean classification = rt==RelType.Reliable || rt==RelType.LowLatency || rt==RelType.Banned;
+            if(classification ? !peers.hasClass(slot, rt) : peers.getRelType(slot)!=rt) {
+                return false;
+            }
+        }
+        return !query.isReliableOnly() || peers.hasClass(slot, RelType.Reliable);
+    }
+
+    @Override
+    public synchronized NetworkPeer randomPeerWithInternetAccessAvailable(Network network) {
         return null;
     }
 
     @Override
-    public NetworkPeer randomPeerWithSpecificNetworkAvailable(Network nonInternetNetworkDesired, Network availableNetworkWithinPeer) {
+    public synchronized NetworkPeer randomPeerWithSpecificNetworkAvailable(Network nonInternetNetworkDesired, Network availableNetworkWithinPeer) {
         return null;
     }
 
     @Override
     public boolean init(Properties p) {
         this.properties = p;
+        if(p.getProperty("ra.networkmanager.peerdb.randomSeed")!=null) {
+            // Reproducible peer selection, e.g. for simulations
+            peers.setRandom(new Random(Long.parseLong(p.getProperty("ra.networkmanager.peerdb.randomSeed"))));
+        }
+        if(p.getProperty("ra.networkmanager.peerdb.liveness.bucketMs")!=null) {
+            peers.setLivenessBucketMs(Long.parseLong(p.getProperty("ra.networkmanager.peerdb.liveness.bucketMs")));
+        }
+        if(p.getProperty("ra.networkmanager.peerdb.liveness.demoteMs")!=null) {
+            demoteMs = Long.parseLong(p.getProperty("ra.networkmanager.peerdb.liveness.demoteMs"));
+        }
+        if(p.getProperty("ra.networkmanager.peerdb.liveness.expireMs")!=null) {
+            expireMs = Long.parseLong(p.getProperty("ra.networkmanager.peerdb.liveness.expireMs"));
+        }
+        try {
+            classifier = new PeerClassifier(new Stats(p));
+        } catch (NumberFormatException | NullPointerException e) {
+            LOG.warning("Stats thresholds not configured; peers will not be classified.");
+        }
+        if(p.getProperty("ra.networkmanager.peerdb.sampling.exploration")!=null) {
+            exploration = Double.parseDouble(p.getProperty("ra.networkmanager.peerdb.sampling.exploration"));
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean reconfigure(Properties p) {
+        long nextDemoteMs = demoteMs;
+        long nextExpireMs = expireMs;
+        double nextExploration = exploration;
+        PeerClassifier nextClassifier = classifier;
+        try {
+            if(p.getProperty("ra.networkmanager.peerdb.liveness.demoteMs")!=null) {
+                nextDemoteMs = Long.parseLong(p.getProperty("ra.networkmanager.peerdb.liveness.demoteMs"));
+            }
+            if(p.getProperty("ra.networkmanager.peerdb.liveness.expireMs")!=null) {
+                nextExpireMs = Long.parseLong(p.getProperty("ra.networkmanager.peerdb.liveness.expireMs"));
+            }
+            if(p.getProperty("ra.networkmanager.peerdb.sampling.exploration")!=null) {
+                nextExploration = Double.parseDouble(p.getProperty("ra.networkmanager.peerdb.sampling.exploration"));
+            }
+            nextClassifier = new PeerClassifier(new Stats(p));
+        } catch (NumberFormatException | NullPointerException e) {
+            LOG.warning("Unable to reconfigure Peer DB: "+e.getMessage());
+            return false;
+        }
+        // Liveness bucket width is fixed once peers are filed
+        demoteMs = nextDemoteMs;
+        expireMs = nextExpireMs;
+        exploration = nextExploration;
+        classifier = nextClassifier;
+        properties = p;
         return true;
     }
 
     @Override
     public boolean teardown() {
+        peers.clear();
 
         return true;
     }
@@ -0,0 +1,23 @@
+package ra.networkmanager;
+
+/**
+ * Whether Java Flight Recorder is in the running JVM, checked once.
+ *
+ * The events extend jdk.jfr.Event, absent from Java 8 runtimes before 8u262, so they are only
+ * created when it is there and otherwise skipped.
+ */
+public final class Jfr {
+
+    public static final boolean AVAILABLE = available();
+
+    private Jfr() {}
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event", false, Jfr.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ra.networkmanager;
+
+import java.util.Arrays;
+
+/**
+ * Sliding window of the most recent ack latencies for percentile estimates.
+ */
+public class LatencyWindow {
+
+    private final long[] samples;
+    private int count;
+    private int next;
+    private long total;
+
+    public LatencyWindow(int size) {
+        samples = new long[size];
+    }
+
+    public synchronized void add(long latencyMs) {
+        if(count == samples.length) {
+            total -= samples[next];
+        } else {
+            count++;
+        }
+        samples[next] = latencyMs;
+        total += latencyMs;
+        next = (next + 1) % samples.length;
+    }
+
+    /**
+     * @param p percentile in (0,1]
+     * @return latency at the percentile or -1 if no samples
+     */
+    public synchronized long percentile(double p) {
+        if(count == 0) return -1L;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int idx = (int)Math.ceil(p * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, idx))];
+    }
+
+    public synchronized long average() {
+        return count == 0 ? -1L : total / count;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+}
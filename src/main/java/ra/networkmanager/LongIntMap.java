@@ -0,0 +1,144 @@
+package ra.networkmanager;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing map of primitive long keys to int values using linear probing.
+ *
+ * Key 0 is reserved as the empty marker; {@link Fingerprint} never produces it.
+ * Not thread safe.
+ */
+public class LongIntMap {
+
+    public static final int NO_VALUE = -1;
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int)(expected / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    public int get(long key) {
+        int idx = index(key);
+        long k;
+        while((k = keys[idx]) != 0) {
+            if(k == key)
+                return values[idx];
+            idx = (idx + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * @return previous value or NO_VALUE
+     */
+    public int put(long key, int value) {
+        if(key == 0) throw new IllegalArgumentException("Key 0 is reserved.");
+        int idx = index(key);
+        long k;
+        while((k = keys[idx]) != 0) {
+            if(k == key) {
+                int prev = values[idx];
+                values[idx] = value;
+                return prev;
+            }
+            idx = (idx + 1) & mask;
+        }
+        keys[idx] = key;
+        values[idx] = value;
+        if(++size >= resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return removed value or NO_VALUE
+     */
+    public int remove(long key) {
+        int idx = index(key);
+        long k;
+        while((k = keys[idx]) != 0) {
+            if(k == key) {
+                int prev = values[idx];
+                shiftBack(idx);
+                size--;
+                return prev;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return NO_VALUE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0L);
+        size = 0;
+    }
+
+    /**
+     * Backward-shift deletion keeps probe chains intact without tombstones.
+     */
+    private void shiftBack(int gap) {
+        int idx = gap;
+        for(;;) {
+            idx = (idx + 1) & mask;
+            long k = keys[idx];
+            if(k == 0) break;
+            int home = index(k);
+            // Move the entry into the gap if its home slot is not cyclically between gap and idx
+            if(((idx - home) & mask) >= ((idx - gap) & mask)) {
+                keys[gap] = k;
+                values[gap] = values[idx];
+                gap = idx;
+            }
+        }
+        keys[gap] = 0;
+    }
+
+    private int index(long key) {
+        return (int)(key ^ (key >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = (int)(capacity * LOAD_FACTOR);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for(int i=0; i<oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if(k != 0) {
+                int idx = index(k);
+                while(keys[idx] != 0) {
+                    idx = (idx + 1) & mask;
+                }
+                keys[idx] = k;
+                values[idx] = oldValues[i];
+            }
+        }
+    }
+}
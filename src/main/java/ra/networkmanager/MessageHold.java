@@ -0,0 +1,469 @@
+package ra.networkmanager;
+
+import ra.common.Envelope;
+import ra.common.FileUtil;
+import ra.common.JSONParser;
+import ra.common.network.Network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Envelopes waiting on a network, persisted one file per envelope with a small retry metadata sidecar.
+ *
+ * Held messages are scheduled in priority queues per network and SLA class ordered by next attempt time,
+ * so once a network is back, due messages drain SLA 1 first and a network still down costs nothing per tick.
+ * Failed attempts back off exponentially with jitter.
+ *
+ * With blobs.enabled, an envelope file is a manifest: top-level envelope fields of at least blobs.minBytes
+ * serialized, typically the payload, are stored in the {@link BlobStore} and referenced by hash, the rest,
+ * typically the routing slip, inline. Map fields such as the NVPs are split by entry, as the per-peer copies
+ * of a PUBLISH differ only in their destination peer entry; they then share one payload on disk, deleted once
+ * the last copy is delivered. Blob references are kept in the metadata sidecar. Manifests already held stay
+ * readable with blobs.enabled turned off as long as the blob store is supplied.
+ */
+public class MessageHold {
+
+    private static final Logger LOG = Logger.getLogger(MessageHold.class.getName());
+
+    public static final int MIN_SLA = 1;
+    public static final int MAX_SLA = 5;
+    public static final int DEFAULT_SLA = 3;
+
+    private static final String META = ".meta";
+    private static final String UNKNOWN_NETWORK = "";
+    private static final String MANIFEST = "ra.networkmanager.hold.manifest";
+    private static final String INLINE = "inline";
+    private static final String BLOBS = "blobs";
+    private static final String ENTRY_BLOBS = "entryBlobs";
+
+    private final File dir;
+    private final Long backoffBaseMs;
+    private final Long backoffMaxMs;
+    private final Integer maxAttempts;
+    private final BlobStore blobs;
+    private final boolean writeBlobs;
+    private final Integer blobMinBytes;
+
+    // Network name, queue per SLA
+    private final Map<String,PriorityQueue<HeldMessage>[]> queues = new HashMap<>();
+    private int size = 0;
+
+    private static final String[] NO_BLOBS = new String[0];
+
+    public static class HeldMessage {
+        final String name;
+        final int sla;
+        final Network network;
+        int attempts;
+        long nextAttempt;
+        String[] blobs = NO_BLOBS;
+        String envelopeId;
+
+        HeldMessage(String name, int sla, Network network, int attempts, long nextAttempt) {
+            this.name = name;
+            this.sla = sla;
+            this.network = network;
+            this.attempts = attempts;
+            this.nextAttempt = nextAttempt;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return id of the held envelope, null if held by an earlier version without it in the metadata
+         */
+        public String getEnvelopeId() {
+            return envelopeId;
+        }
+
+        public int getSla() {
+            return sla;
+        }
+
+        public Network getNetwork() {
+            return network;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getNextAttempt() {
+            return nextAttempt;
+        }
+    }
+
+    public MessageHold(File dir, Properties p) {
+        this(dir, null, p);
+    }
+
+    /**
+     * @param blobs store for envelope fields shared between held envelopes, written to only with blobs.enabled,
+     *              null to hold and read whole envelopes only
+     */
+    public MessageHold(File dir, BlobStore blobs, Properties p) {
+        this.dir = dir;
+        this.blobs = blobs;
+        writeBlobs = blobs!=null && "true".equalsIgnoreCase(p.getProperty("ra.networkmanager.hold.blobs.enabled"));
+        if(p.getProperty("ra.networkmanager.hold.backoff.baseMs")==null) {
+            backoffBaseMs = 60 * 1000L;
+        } else {
+            backoffBaseMs = Long.parseLong(p.getProperty("ra.networkmanager.hold.backoff.baseMs"));
+        }
+        if(p.getProperty("ra.networkmanager.hold.backoff.maxMs")==null) {
+            backoffMaxMs = 60 * 60 * 1000L;
+        } else {
+            backoffMaxMs = Long.parseLong(p.getProperty("ra.networkmanager.hold.backoff.maxMs"));
+        }
+        if(p.getProperty("ra.networkmanager.hold.maxAttempts")==null) {
+            maxAttempts = 0;
+        } else {
+            maxAttempts = Integer.parseInt(p.getProperty("ra.networkmanager.hold.maxAttempts"));
+        }
+        if(p.getProperty("ra.networkmanager.hold.blobs.minBytes")==null) {
+            blobMinBytes = 256;
+        } else {
+            blobMinBytes = Integer.parseInt(p.getProperty("ra.networkmanager.hold.blobs.minBytes"));
+        }
+    }
+
+    /**
+     * Rebuild the schedule from disk, e.g. after a restart.
+     * @return number of held messages
+     */
+    public synchronized int load() {
+        queues.clear();
+        size = 0;
+        if(blobs!=null) {
+            blobs.clearRefs();
+        }
+        File[] files = dir.listFiles();
+        if(files==null) return 0;
+        for(File f : files) {
+            if(f.getName().endsWith(META)) {
+                continue;
+            }
+            HeldMessage m = readMeta(f.getName());
+            if(m==null) {
+                m = new HeldMessage(f.getName(), DEFAULT_SLA, null, 0, 0L);
+                // Crashed before the sidecar was written; the manifest still holds its references
+                m.blobs = manifestBlobs(f);
+            }
+            if(blobs!=null) {
+                for(String hash : m.blobs) {
+                    blobs.retain(hash);
+                }
+            }
+            enqueue(m);
+        }
+        if(blobs!=null) {
+            blobs.sweep();
+        }
+        LOG.info("Loaded "+size+" held messages.");
+        return size;
+    }
+
+    /**
+     * Persist an envelope for later sending.
+     * @param network network it is waiting on, null if it must be routed on each attempt
+     * @param notBefore earliest time to attempt sending
+     */
+    public synchronized boolean hold(Envelope e, Network network, int sla, long notBefore) {
+        return hold(e, network, sla, notBefore, 0);
+    }
+
+    private boolean hold(Envelope e, Network network, int sla, long notBefore, int attempts) {
+        // Unique per hold as the same envelope id may be held many times, e.g. PUBLISH copies
+        String name = UUID.randomUUID().toString();
+        File envFile = new File(dir, name);
+        HeldMessage m = new HeldMessage(name, Math.max(MIN_SLA, Math.min(MAX_SLA, sla)), network, attempts, notBefore);
+        m.envelopeId = e.getId();
+        boolean written = writeBlobs ? writeManifest(e, m, envFile)
+                : FileUtil.writeFile(e.toJSON().getBytes(StandardCharsets.UTF_8), envFile.getAbsolutePath());
+        if(!written) {
+            LOG.warning("Unable to create file to persist Envelope waiting on network");
+            envFile.delete();
+            return false;
+        }
+        writeMeta(m);
+        enqueue(m);
+        return true;
+    }
+
+    /**
+     * Hold again an envelope whose resend was accepted then failed, e.g. in a bundle, backing off as for a failed attempt.
+     * @param attempts attempts made so far, including the one that failed
+     * @return false if the envelope has reached its max attempts or could not be persisted
+     */
+    public synchronized boolean requeue(Envelope e, Network network, int sla, int attempts, long now) {
+        if(maxAttempts > 0 && attempts >= maxAttempts) {
+            LOG.warning("Not holding message (id="+e.getId()+") again after "+attempts+" attempts.");
+            return false;
+        }
+        return hold(e, network, sla, now + backoff(attempts), attempts);
+    }
+
+    /**
+     * Remove and return messages due by now, SLA 1 first, only for the supplied networks plus those routed per attempt.
+     * @param max maximum to return, 0 for all
+     */
+    public synchronized List<HeldMessage> due(long now, Collection<Network> networks, int max) {
+        List<HeldMessage> due = new ArrayList<>();
+        List<PriorityQueue<HeldMessage>[]> candidates = new ArrayList<>();
+        for(Network n : networks) {
+            if(queues.containsKey(n.name())) candidates.add(queues.get(n.name()));
+        }
+        if(queues.containsKey(UNKNOWN_NETWORK)) candidates.add(queues.get(UNKNOWN_NETWORK));
+        for(int sla=MIN_SLA; sla<=MAX_SLA; sla++) {
+            for(PriorityQueue<HeldMessage>[] bySla : candidates) {
+                PriorityQueue<HeldMessage> q = bySla[sla - 1];
+                while(!q.isEmpty() && q.peek().nextAttempt <= now) {
+                    if(max > 0 && due.size() >= max) return due;
+                    due.add(q.poll());
+                    size--;
+                }
+            }
+        }
+        return due;
+    }
+
+    public Envelope read(HeldMessage m) {
+        try {
+            byte[] bytes = FileUtil.readFile(new File(dir, m.name).getAbsolutePath());
+            String json = new String(bytes, StandardCharsets.UTF_8);
+            Envelope e = Envelope.documentFactory();
+            if(!json.contains(MANIFEST)) {
+                // Whole envelope, held without a blob store
+                e.fromJSON(json);
+                return e;
+            }
+            Map<String,Object> manifest = (Map<String,Object>)JSONParser.parse(json);
+            if(!manifest.containsKey(MANIFEST)) {
+                e.fromMap(manifest);
+                return e;
+            }
+            Map<String,Object> map = new HashMap<>((Map<String,Object>)manifest.get(INLINE));
+            for(Map.Entry<String,Object> ref : ((Map<String,Object>)manifest.get(BLOBS)).entrySet()) {
+                byte[] content = blobs==null ? null : blobs.get((String)ref.getValue());
+                if(content==null) {
+                    LOG.warning("Held message "+m.name+" references missing blob "+ref.getValue());
+                    return null;
+                }
+                map.put(ref.getKey(), JSONParser.parse(new String(content, StandardCharsets.UTF_8)));
+            }
+            Map<String,Object> entryRefs = (Map<String,Object>)manifest.get(ENTRY_BLOBS);
+            if(entryRefs!=null) {
+                for(Map.Entry<String,Object> field : entryRefs.entrySet()) {
+                    Map<String,Object> entries = map.get(field.getKey()) instanceof Map
+                            ? new HashMap<>((Map<String,Object>)map.get(field.getKey())) : new HashMap<>();
+                    for(Map.Entry<String,Object> ref : ((Map<String,Object>)field.getValue()).entrySet()) {
+                        byte[] content = blobs==null ? null : blobs.get((String)ref.getValue());
+                        if(content==null) {
+                            LOG.warning("Held message "+m.name+" references missing blob "+ref.getValue());
+                            return null;
+                        }
+                        entries.put(ref.getKey(), JSONParser.parse(new String(content, StandardCharsets.UTF_8)));
+                    }
+                    map.put(field.getKey(), entries);
+                }
+            }
+            e.fromMap(map);
+            return e;
+        } catch (IOException ex) {
+            LOG.warning(ex.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Sent; remove from disk.
+     */
+    public synchronized void delivered(HeldMessage m) {
+        File envFile = new File(dir, m.name);
+        if(!envFile.delete()) {
+            LOG.warning("Message sent successfully but unable to delete its file: "+envFile.getAbsolutePath());
+        }
+        new File(dir, m.name + META).delete();
+        if(blobs!=null) {
+            for(String hash : m.blobs) {
+                blobs.release(hash);
+            }
+        }
+    }
+
+    /**
+     * Unable to read back, e.g. corrupt or missing a blob; retrying will not help, so remove from disk.
+     */
+    public synchronized void unreadable(HeldMessage m) {
+        LOG.warning("Dropping unreadable held message: "+m.name);
+        delivered(m);
+    }
+
+    /**
+     * Attempt failed; back off exponentially.
+     * @return false if the message exceeded its max attempts and was dropped
+     */
+    public synchronized boolean failed(HeldMessage m, long now) {
+        m.attempts++;
+        if(maxAttempts > 0 && m.attempts >= maxAttempts) {
+            delivered(m);
+            return false;
+        }
+        m.nextAttempt = now + backoff(m.attempts);
+        writeMeta(m);
+        enqueue(m);
+        return true;
+    }
+
+    private long backoff(int attempts) {
+        long backoff = backoffBaseMs << Math.min(attempts - 1, 30);
+        if(backoff <= 0 || backoff > backoffMaxMs) backoff = backoffMaxMs;
+        // Up to 20% jitter so messages failing together do not retry together
+        backoff += (long)(backoff * 0.2 * ThreadLocalRandom.current().nextDouble());
+        return backoff;
+    }
+
+    /**
+     * Not attempted; return to the schedule unchanged.
+     */
+    public synchronized void defer(HeldMessage m) {
+        enqueue(m);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void enqueue(HeldMessage m) {
+        String key = m.network==null ? UNKNOWN_NETWORK : m.network.name();
+        PriorityQueue<HeldMessage>[] bySla = queues.get(key);
+        if(bySla==null) {
+            bySla = new PriorityQueue[MAX_SLA];
+            for(int i=0; i<MAX_SLA; i++) {
+                bySla[i] = new PriorityQueue<>(Comparator.comparingLong(HeldMessage::getNextAttempt));
+            }
+            queues.put(key, bySla);
+        }
+        bySla[m.sla - 1].add(m);
+        size++;
+    }
+
+    /**
+     * Store the envelope's large fields, and large entries of its map fields, as blobs and write the manifest
+     * referencing them.
+     */
+    private boolean writeManifest(Envelope e, HeldMessage m, File envFile) {
+        Map<String,Object> inline = new HashMap<>();
+        Map<String,Object> refs = new HashMap<>();
+        Map<String,Object> entryRefs = new HashMap<>();
+        List<String> stored = new ArrayList<>();
+        for(Map.Entry<String,Object> field : e.toMap().entrySet()) {
+            if(field.getValue() instanceof Map) {
+                Map<String,Object> entries = new HashMap<>();
+                Map<String,Object> fieldRefs = new HashMap<>();
+                for(Map.Entry<String,Object> entry : ((Map<String,Object>)field.getValue()).entrySet()) {
+                    if(!store(entry, entries, fieldRefs, stored)) return false;
+                }
+                inline.put(field.getKey(), entries);
+                if(!fieldRefs.isEmpty()) {
+                    entryRefs.put(field.getKey(), fieldRefs);
+                }
+            } else if(!store(field, inline, refs, stored)) {
+                return false;
+            }
+        }
+        m.blobs = stored.toArray(new String[0]);
+        Map<String,Object> manifest = new HashMap<>();
+        manifest.put(MANIFEST, 1);
+        manifest.put(INLINE, inline);
+        manifest.put(BLOBS, refs);
+        manifest.put(ENTRY_BLOBS, entryRefs);
+        if(!FileUtil.writeFile(JSONParser.toString(manifest).getBytes(StandardCharsets.UTF_8), envFile.getAbsolutePath())) {
+            for(String hash : stored) {
+                blobs.release(hash);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Put the value in the blob store if at least blobMinBytes serialized, referencing it from refs, else in inline.
+     * @return false if it could not be stored, having released everything stored for the envelope so far
+     */
+    private boolean store(Map.Entry<String,Object> field, Map<String,Object> inline, Map<String,Object> refs, List<String> stored) {
+        String json = field.getValue()==null ? null : JSONParser.toString(field.getValue());
+        if(json==null || json.length() < blobMinBytes) {
+            inline.put(field.getKey(), field.getValue());
+            return true;
+        }
+        String hash = blobs.put(json.getBytes(StandardCharsets.UTF_8));
+        if(hash==null) {
+            for(String h : stored) {
+                blobs.release(h);
+            }
+            return false;
+        }
+        stored.add(hash);
+        refs.put(field.getKey(), hash);
+        return true;
+    }
+
+    private String[] manifestBlobs(File envFile) {
+        try {
+            String json = new String(FileUtil.readFile(envFile.getAbsolutePath()), StandardCharsets.UTF_8);
+            if(!json.contains(MANIFEST)) return NO_BLOBS;
+            Map<String,Object> manifest = (Map<String,Object>)JSONParser.parse(json);
+            List<String> hashes = new ArrayList<>();
+            for(Object hash : ((Map<String,Object>)manifest.get(BLOBS)).values()) {
+                hashes.add((String)hash);
+            }
+            Map<String,Object> entryRefs = (Map<String,Object>)manifest.get(ENTRY_BLOBS);
+            if(entryRefs!=null) {
+                for(Object fieldRefs : entryRefs.values()) {
+                    for(Object hash : ((Map<String,Object>)fieldRefs).values()) {
+                        hashes.add((String)hash);
+                    }
+                }
+            }
+            return hashes.toArray(new String[0]);
+        } catch (Exception e) {
+            LOG.warning("Unable to read held message manifest: "+e.getLocalizedMessage());
+            return NO_BLOBS;
+        }
+    }
+
+    private void writeMeta(HeldMessage m) {
+        String meta = m.sla + "," + m.attempts + "," + m.nextAttempt + "," + (m.network==null ? "" : m.network.name())
+                + "," + String.join(";", m.blobs) + "," + (m.envelopeId==null ? "" : m.envelopeId);
+        FileUtil.writeFile(meta.getBytes(StandardCharsets.UTF_8), new File(dir, m.name + META).getAbsolutePath());
+    }
+
+    private HeldMessage readMeta(String name) {
+        File metaFile = new File(dir, name + META);
+        if(!metaFile.exists()) return null;
+        try {
+            String[] fields = new String(FileUtil.readFile(metaFile.getAbsolutePath()), StandardCharsets.UTF_8).trim().split(",", -1);
+            Network network = fields.length > 3 && !fields[3].isEmpty() ? Network.valueOf(fields[3]) : null;
+            int sla = Math.max(MIN_SLA, Math.min(MAX_SLA, Integer.parseInt(fields[0])));
+            HeldMessage m = new HeldMessage(name, sla, network, Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+            if(fields.length > 4 && !fields[4].isEmpty()) {
+                m.blobs = fields[4].split(";");
+            }
+            if(fields.length > 5 && !fields[5].isEmpty()) {
+                m.envelopeId = fields[5];
+            }
+            return m;
+        } catch (Exception e) {
+            LOG.warning("Unable to read held message metadata: "+e.getLocalizedMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Vivaldi network coordinates per network, predicting the round trip to peers never measured.
+ *
+ * Each network has its own coordinate space: a point in three dimensions plus a height for the access
+ * link, so the predicted RTT between two nodes is the distance between their points plus both heights.
+ * The local coordinate moves along each ack round trip to a peer whose coordinate is known, weighted by
+ * the relative confidence of the two ends. Peer coordinates are learned from the peers themselves and
+ * the peers sharing them during discovery. A peer's own coordinate always replaces ours; one shared by a
+ * third party is only taken for a peer without one and is trusted no more than the peer sharing it.
+ */
+public class NetworkCoordinates {
+
+    public static final int DIMENSIONS = 3;
+
+    // Vector, height, error
+    private static final int HEIGHT = DIMENSIONS;
+    private static final int ERROR = DIMENSIONS + 1;
+    private static final int SIZE = DIMENSIONS + 2;
+
+    private static final double MIN_HEIGHT = 1.0;
+    private static final double MAX_ERROR = 1.5;
+    // Coordinates beyond this many ms from the origin are rejected as bogus
+    private static final double MAX_MAGNITUDE = 600000.0;
+
+    private final Double cc;
+    private final Double ce;
+    private final Integer maxPeers;
+
+    private final Map<Network,double[]> local = new EnumMap<>(Network.class);
+    private final Map<String,double[]> peers;
+
+    private long samples = 0L;
+
+    public NetworkCoordinates(Properties p) {
+        if(p.getProperty("ra.networkmanager.coordinates.cc")==null) {
+            cc = 0.25;
+        } else {
+            cc = Double.parseDouble(p.getProperty("ra.networkmanager.coordinates.cc"));
+        }
+        if(p.getProperty("ra.networkmanager.coordinates.ce")==null) {
+            ce = 0.25;
+        } else {
+            ce = Double.parseDouble(p.getProperty("ra.networkmanager.coordinates.ce"));
+        }
+        if(p.getProperty("ra.networkmanager.coordinates.maxPeers")==null) {
+            maxPeers = 10000;
+        } else {
+            maxPeers = Integer.parseInt(p.getProperty("ra.networkmanager.coordinates.maxPeers"));
+        }
+        peers = new LinkedHashMap<String,double[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,double[]> eldest) {
+                return size() > maxPeers;
+            }
+        };
+    }
+
+    /**
+     * Ack round trip to the peer; moves the local coordinate if the peer's is known.
+     */
+    public synchronized void observe(Network network, String peerId, long rttMs) {
+        if(peerId==null || rttMs <= 0) return;
+        double[] remote = peers.get(key(network, peerId));
+        if(remote==null) return;
+        double[] self = localCoordinate(network);
+        double rtt = rttMs;
+        double[] v = new double[DIMENSIONS];
+        double length = 0;
+        for(int i=0; i<DIMENSIONS; i++) {
+            v[i] = self[i] - remote[i];
+            length += v[i] * v[i];
+        }
+        length = Math.sqrt(length);
+        if(length < 1e-6) {
+            // Coincident points; push apart in a random direction
+            length = 0;
+            for(int i=0; i<DIMENSIONS; i++) {
+                v[i] = ThreadLocalRandom.current().nextDouble() - 0.5;
+                length += v[i] * v[i];
+            }
+            length = Math.sqrt(length);
+        }
+        double predicted = distance(self, remote);
+        double w = self[ERROR] / (self[ERROR] + remote[ERROR]);
+        double sampleError = Math.abs(predicted - rtt) / rtt;
+        self[ERROR] = Math.min(MAX_ERROR, sampleError * ce * w + self[ERROR] * (1 - ce * w));
+        double force = cc * w * (rtt - predicted);
+        double span = length + self[HEIGHT] + remote[HEIGHT];
+        for(int i=0; i<DIMENSIONS; i++) {
+            self[i] += force * v[i] / length;
+        }
+        self[HEIGHT] = Math.max(MIN_HEIGHT, self[HEIGHT] + force * (self[HEIGHT] + remote[HEIGHT]) / span);
+        samples++;
+    }
+
+    /**
+     * @return predicted round trip to the peer in ms, -1 if its coordinate is unknown
+     */
+    public synchronized long rttMs(Network network, String peerId) {
+        if(peerId==null) return -1L;
+        double[] remote = peers.get(key(network, peerId));
+        return remote==null ? -1L : Math.round(distance(localCoordinate(network), remote));
+    }
+
+    /**
+     * Coordinates learned during discovery.
+     * @param coordinates peer id to [x, y, z, height, error]
+     * @param origin id of the peer that sent them, whose own coordinate always replaces ours; those of
+     *               other peers are only taken if we have none, with at least the origin's error
+     * @return number accepted
+     */
+    public synchronized int learn(Network network, Map<String,?> coordinates, String origin) {
+        int accepted = 0;
+        double floor = MAX_ERROR;
+        if(origin!=null) {
+            double[] own = parse(coordinates.get(origin));
+            if(own!=null) {
+                peers.put(key(network, origin), own);
+                accepted++;
+            }
+            double[] known = peers.get(key(network, origin));
+            if(known!=null) {
+                floor = known[ERROR];
+            }
+        }
+        for(Map.Entry<String,?> c : coordinates.entrySet()) {
+            if(c.getKey().equals(origin)) continue;
+            double[] coordinate = parse(c.getValue());
+            if(coordinate==null) continue;
+            String key = key(network, c.getKey());
+            if(!peers.containsKey(key)) {
+                // Claims no more confidence than its source has
+                coordinate[ERROR] = Math.max(floor, coordinate[ERROR]);
+                peers.put(key, coordinate);
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * @param localPeerId id of the local peer on the network, null to share only the peers' coordinates
+     * @return coordinates of the local peer and the known ones of the peers, for {@link #learn(Network, Map, String)}
+     */
+    public synchronized Map<String,List<Double>> share(Network network, String localPeerId, List<NetworkPeer> shared) {
+        Map<String,List<Double>> coordinates = new HashMap<>();
+        if(localPeerId!=null) {
+            coordinates.put(localPeerId, toList(localCoordinate(network)));
+        }
+        for(NetworkPeer np : shared) {
+            double[] c = np.getId()==null ? null : peers.get(key(network, np.getId()));
+            if(c!=null) {
+                coordinates.put(np.getId(), toList(c));
+            }
+        }
+        return coordinates;
+    }
+
+    /**
+     * @return copy of the local coordinate on the network as [x, y, z, height, error]
+     */
+    public synchronized double[] getLocal(Network network) {
+        return localCoordinate(network).clone();
+    }
+
+    public synchronized int size() {
+        return peers.size();
+    }
+
+    /**
+     * @return round trips that moved a local coordinate
+     */
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    private double[] localCoordinate(Network network) {
+        return local.computeIfAbsent(network, n -> {
+            double[] c = new double[SIZE];
+            c[HEIGHT] = MIN_HEIGHT;
+            c[ERROR] = MAX_ERROR;
+            return c;
+        });
+    }
+
+    private static double distance(double[] a, double[] b) {
+        double sum = 0;
+        for(int i=0; i<DIMENSIONS; i++) {
+            double d = a[i] - b[i];
+            sum += d * d;
+        }
+        return Math.sqrt(sum) + a[HEIGHT] + b[HEIGHT];
+    }
+
+    private static double[] parse(Object value) {
+        if(!(value instanceof List) || ((List<?>)value).size() != SIZE) return null;
+        double[] c = new double[SIZE];
+        for(int i=0; i<SIZE; i++) {
+            Object n = ((List<?>)value).get(i);
+            if(!(n instanceof Number)) return null;
+            c[i] = ((Number)n).doubleValue();
+            if(Double.isNaN(c[i]) || Math.abs(c[i]) > MAX_MAGNITUDE) return null;
+        }
+        if(c[HEIGHT] < MIN_HEIGHT || c[ERROR] <= 0) return null;
+        c[ERROR] = Math.min(MAX_ERROR, c[ERROR]);
+        return c;
+    }
+
+    private static List<Double> toList(double[] c) {
+        List<Double> l = new ArrayList<>(SIZE);
+        for(double d : c) {
+            l.add(d);
+        }
+        return l;
+    }
+
+    private static String key(Network network, String peerId) {
+        return network.name() + ":" + peerId;
+    }
+}
@@ -0,0 +1,189 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Byte and throughput accounting per network and per peer, and the cost of sending a message over a network.
+ *
+ * Cost = pricePerMB * MB + timeWeight * expected seconds to deliver, where the expected time is the
+ * network's median ack latency plus the size over the bandwidth it has left: its nominal bytesPerSecond
+ * less the rate currently being sent over it, floored at a tenth of nominal.
+ * Rates are exponentially decayed bytes per second with a time constant of rateWindowMs.
+ */
+public class NetworkCost {
+
+    private final Map<Network,Double> pricePerMB = new EnumMap<>(Network.class);
+    private final Map<Network,Double> bytesPerSecond = new EnumMap<>(Network.class);
+    private final Boolean enabled;
+    private final Double timeWeight;
+    private final Long minBytes;
+    private final Long rateWindowMs;
+    private final Integer maxPeers;
+
+    private final Map<Network,Usage> networks = new EnumMap<>(Network.class);
+    private final Map<String,Usage> peers;
+
+    public static class Usage {
+        long bytes;
+        long messages;
+        double rate;
+        long lastAt;
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return decayed send rate in bytes per second as of the last send
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        private Usage copy() {
+            Usage u = new Usage();
+            u.bytes = bytes;
+            u.messages = messages;
+            u.rate = rate;
+            u.lastAt = lastAt;
+            return u;
+        }
+
+        private void add(long size, long now, long windowMs) {
+            rate = rateAt(now, windowMs) + size * 1000.0 / windowMs;
+            lastAt = now;
+            bytes += size;
+            messages++;
+        }
+
+        private double rateAt(long now, long windowMs) {
+            return lastAt == 0 ? 0 : rate * Math.exp(-(double)Math.max(0L, now - lastAt) / windowMs);
+        }
+    }
+
+    public NetworkCost(Properties p) {
+        for(Network n : Network.values()) {
+            String key = "ra.networkmanager.cost."+n.name().toLowerCase();
+            if(p.getProperty(key+".pricePerMB")==null) {
+                pricePerMB.put(n, defaultPricePerMB(n));
+            } else {
+                pricePerMB.put(n, Double.parseDouble(p.getProperty(key+".pricePerMB")));
+            }
+            if(p.getProperty(key+".bytesPerSecond")==null) {
+                bytesPerSecond.put(n, defaultBytesPerSecond(n));
+            } else {
+                bytesPerSecond.put(n, Double.parseDouble(p.getProperty(key+".bytesPerSecond")));
+            }
+        }
+        enabled = "true".equalsIgnoreCase(p.getProperty("ra.networkmanager.cost.enabled"));
+        if(p.getProperty("ra.networkmanager.cost.timeWeight")==null) {
+            timeWeight = 1.0;
+        } else {
+            timeWeight = Double.parseDouble(p.getProperty("ra.networkmanager.cost.timeWeight"));
+        }
+        if(p.getProperty("ra.networkmanager.cost.minBytes")==null) {
+            minBytes = 64 * 1024L;
+        } else {
+            minBytes = Long.parseLong(p.getProperty("ra.networkmanager.cost.minBytes"));
+        }
+        if(p.getProperty("ra.networkmanager.cost.rateWindowMs")==null) {
+            rateWindowMs = 10 * 1000L;
+        } else {
+            rateWindowMs = Long.parseLong(p.getProperty("ra.networkmanager.cost.rateWindowMs"));
+        }
+        if(p.getProperty("ra.networkmanager.cost.maxPeers")==null) {
+            maxPeers = 10000;
+        } else {
+            maxPeers = Integer.parseInt(p.getProperty("ra.networkmanager.cost.maxPeers"));
+        }
+        peers = new LinkedHashMap<String,Usage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Usage> eldest) {
+                return size() > maxPeers;
+            }
+        };
+    }
+
+    private static double defaultPricePerMB(Network n) {
+        switch (n) {
+            case Satellite: return 10.0;
+            case FSRadio: return 5.0;
+            default: return 0.0;
+        }
+    }
+
+    private static double defaultBytesPerSecond(Network n) {
+        switch (n) {
+            case HTTP: return 10_000_000;
+            case Tor: return 200_000;
+            case I2P: return 50_000;
+            case Bluetooth: return 250_000;
+            case WiFi: return 5_000_000;
+            case Satellite: return 50_000;
+            case FSRadio: return 1_000;
+            case LiFi: return 10_000_000;
+            default: return 100_000;
+        }
+    }
+
+    /**
+     * @return true if large messages are routed by cost; when off, sizes are not estimated either
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Messages smaller than this are routed by affinity and latency alone.
+     */
+    public boolean isCostRouted(long size) {
+        return enabled && size >= minBytes;
+    }
+
+    /**
+     * @param latencyMs median ack latency on the network, negative if not yet measured
+     */
+    public synchronized double cost(Network network, long size, long latencyMs, long now) {
+        double nominal = bytesPerSecond.get(network);
+        Usage u = networks.get(network);
+        double sending = u==null ? 0 : u.rateAt(now, rateWindowMs);
+        double available = Math.max(nominal - sending, nominal / 10);
+        double seconds = Math.max(0L, latencyMs) / 1000.0 + size / available;
+        return pricePerMB.get(network) * size / (1024 * 1024) + timeWeight * seconds;
+    }
+
+    /**
+     * Message of the size handed to the network's service for the peer.
+     */
+    public synchronized void sent(Network network, String peerId, long size, long now) {
+        networks.computeIfAbsent(network, n -> new Usage()).add(size, now, rateWindowMs);
+        if(peerId!=null) {
+            peers.computeIfAbsent(network.name()+":"+peerId, k -> new Usage()).add(size, now, rateWindowMs);
+        }
+    }
+
+    /**
+     * @return copy of the network's usage, null if nothing was sent over it
+     */
+    public synchronized Usage getNetworkUsage(Network network) {
+        Usage u = networks.get(network);
+        return u==null ? null : u.copy();
+    }
+
+    /**
+     * @return copy of the peer's usage on the network, null if nothing was sent to it
+     */
+    public synchronized Usage getPeerUsage(Network network, String peerId) {
+        Usage u = peers.get(network.name()+":"+peerId);
+        return u==null ? null : u.copy();
+    }
+}
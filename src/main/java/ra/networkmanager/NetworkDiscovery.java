@@ -1,6 +1,7 @@
 package ra.networkmanager;
 
 import ra.common.Envelope;
+import ra.common.network.Network;
 import ra.common.network.NetworkPeer;
 import ra.common.network.NetworkService;
 import ra.common.network.NetworkState;
@@ -9,9 +10,12 @@ import ra.common.tasks.BaseTask;
 import ra.common.tasks.TaskRunner;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 public class NetworkDiscovery extends BaseTask {
@@ -21,57 +25,246 @@ public class NetworkDiscovery extends BaseTask {
     private final NetworkManagerService service;
     private final PeerDB peerDB;
 
-    private final Integer maxPeersTotal;
-    private final Integer maxPeersPerNetwork;
-    private final Integer maxPeersI2P;
-    private final Integer maxPeersTor;
-    private final Integer maxPeersBluetooth;
-    private final Integer numPeersShare;
+    private volatile Settings settings;
+
+    // Peer id, probe sent
+    private final Map<String,Probe> pendingAcks = new ConcurrentHashMap<>();
+
+    // Ids of recent probe envelopes, to recognise one returned after its probe expired
+    private final DedupeCache sentProbes = new DedupeCache(1000);
+
+    /**
+     * Probe awaiting a reply and what it shared, so a reply the remote sends back in the probe envelope
+     * is not read as the remote's own peers and coordinates where it left ours in place.
+     */
+    public static class Probe {
+        private final NetworkPeer dest;
+        private final long start;
+        private final String sharedEncoded;
+        private final List<String> sharedIds;
+        private final Set<String> sharedCoordinates;
+
+        private Probe(NetworkPeer dest, long start, Envelope e) {
+            this.dest = dest;
+            this.start = start;
+            Object encoded = e.getValue(PeerCodec.PEERS);
+            this.sharedEncoded = encoded instanceof String ? (String)encoded : null;
+            this.sharedIds = ids(e.getValue("peers"));
+            Object coordinates = e.getValue(NetworkManagerService.COORDINATES);
+            this.sharedCoordinates = coordinates instanceof Map ? new HashSet<>(((Map<String,?>)coordinates).keySet()) : null;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return true if the reply's value for the key is what this probe sent
+         */
+        public boolean isEcho(String key, Object value) {
+            if(value==null) return false;
+            if(PeerCodec.PEERS.equals(key)) {
+                return value.equals(sharedEncoded);
+            } else if("peers".equals(key)) {
+                return sharedIds!=null && sharedIds.equals(ids(value));
+            } else if(NetworkManagerService.COORDINATES.equals(key)) {
+                return sharedCoordinates!=null && value instanceof Map && sharedCoordinates.equals(((Map<String,?>)value).keySet());
+            }
+            return false;
+        }
+
+        private static List<String> ids(Object peers) {
+            if(!(peers instanceof List)) return null;
+            List<String> ids = new ArrayList<>();
+            for(Object peer : (List<?>)peers) {
+                ids.add(peer instanceof Map ? String.valueOf(((Map<?,?>)peer).get("id")) : null);
+            }
+            return ids;
+        }
+    }
 
     public NetworkDiscovery(TaskRunner taskRunner, NetworkManagerService service, PeerDB peerDB, Properties p) {
         super(NetworkDiscovery.class.getSimpleName(), taskRunner);
         this.service = service;
         this.peerDB = peerDB;
-        if(p.getProperty("ra.networkmanager.discovery.maxPeers.total")==null) {
-            maxPeersTotal = 3000;
-        } else {
-            maxPeersTotal = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.maxPeers.total"));
+        this.settings = new Settings(p);
+    }
+
+    /**
+     * Discovery limits, swapped as a whole on reconfiguration.
+     */
+    public static class Settings {
+        private final Integer maxPeersTotal;
+        private final Integer maxPeersPerNetwork;
+        private final Integer maxPeersI2P;
+        private final Integer maxPeersTor;
+        private final Integer maxPeersBluetooth;
+        private final Integer numPeersShare;
+        private final Long ackTimeoutMs;
+        private final Boolean binaryPeers;
+        private final Long periodMs;
+        private final Integer probeChoices;
+
+        public Settings(Properties p) {
+            if(p.getProperty("ra.networkmanager.discovery.maxPeers.total")==null) {
+                maxPeersTotal = 3000;
+            } else {
+                maxPeersTotal = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.maxPeers.total"));
+            }
+            if(p.getProperty("ra.networkmanager.discovery.maxPeers.perNetwork")==null) {
+                maxPeersPerNetwork = 1500;
+            } else {
+                maxPeersPerNetwork = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.maxPeers.perNetwork"));
+            }
+            if(p.getProperty("ra.networkmanager.discovery.maxPeers.i2p")==null) {
+                maxPeersI2P = 1500;
+            } else {
+                maxPeersI2P = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.maxPeers.i2p"));
+            }
+            if(p.getProperty("ra.networkmanager.discovery.maxPeers.tor")==null) {
+                maxPeersTor = 1000;
+            } else {
+                maxPeersTor = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.maxPeers.tor"));
+            }
+            if(p.getProperty("ra.networkmanager.discovery.maxPeers.bluetooth")==null) {
+                maxPeersBluetooth = 20;
+            } else {
+                maxPeersBluetooth = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.maxPeers.bluetooth"));
+            }
+            if(p.getProperty("ra.networkmanager.discovery.numPeersShare")==null) {
+                numPeersShare = 8;
+            } else {
+                numPeersShare = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.numPeersShare"));
+            }
+            if(p.getProperty("ra.networkmanager.discovery.ackTimeoutMs")==null) {
+                ackTimeoutMs = 10 * 60 * 1000L;
+            } else {
+                ackTimeoutMs = Long.parseLong(p.getProperty("ra.networkmanager.discovery.ackTimeoutMs"));
+            }
+            if(p.getProperty("ra.networkmanager.discovery.binaryPeers")==null) {
+                binaryPeers = false;
+            } else {
+                binaryPeers = Boolean.parseBoolean(p.getProperty("ra.networkmanager.discovery.binaryPeers"));
+            }
+            if(p.getProperty("ra.networkmanager.discovery.periodMs")==null) {
+                periodMs = 60 * 1000L;
+            } else {
+                periodMs = Long.parseLong(p.getProperty("ra.networkmanager.discovery.periodMs"));
+            }
+            if(p.getProperty("ra.networkmanager.discovery.probeChoices")==null) {
+                probeChoices = 2;
+            } else {
+                probeChoices = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.probeChoices"));
+            }
         }
-        if(p.getProperty("ra.networkmanager.discovery.maxPeers.perNetwork")==null) {
-            maxPeersPerNetwork = 1500;
-        } else {
-            maxPeersPerNetwork = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.maxPeers.perNetwork"));
+
+        /**
+         * @return peers the network may still take on before reaching its own or the total cap
+         */
+        public long headroom(Network network, long onNetwork, long total) {
+            long cap = maxPeersPerNetwork;
+            switch (network) {
+                case I2P: cap = Math.min(cap, maxPeersI2P); break;
+                case Tor: cap = Math.min(cap, maxPeersTor); break;
+                case Bluetooth: cap = Math.min(cap, maxPeersBluetooth); break;
+                default: break;
+            }
+            return Math.max(0L, Math.min(cap - onNetwork, maxPeersTotal - total));
         }
-        if(p.getProperty("ra.networkmanager.discovery.maxPeers.i2p")==null) {
-            maxPeersI2P = 1500;
-        } else {
-            maxPeersI2P = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.maxPeers.i2p"));
+
+        public Long getPeriodMs() {
+            return periodMs;
         }
-        if(p.getProperty("ra.networkmanager.discovery.maxPeers.tor")==null) {
-            maxPeersTor = 1000;
-        } else {
-            maxPeersTor = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.maxPeers.tor"));
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Take the new limits from the next run; peers above a lowered cap are not evicted, the network
+     * just stops growing until liveness sweeps bring it back under.
+     */
+    public void configure(Settings settings) {
+        this.settings = settings;
+        setPeriodicity(settings.periodMs);
+    }
+
+    /**
+     * @return peers the network may still take on, counting only remote peers known to the Peer DB
+     */
+    public long headroom(Network network) {
+        long total = 0;
+        for(Network n : Network.values()) {
+            total += peerDB.numberPeersByNetwork(n);
         }
-        if(p.getProperty("ra.networkmanager.discovery.maxPeers.bluetooth")==null) {
-            maxPeersBluetooth = 20;
-        } else {
-            maxPeersBluetooth = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.maxPeers.bluetooth"));
+        return settings.headroom(network, peerDB.numberPeersByNetwork(network), total);
+    }
+
+    /**
+     * @return the probe to the peer answered or null if no probe pending
+     */
+    public Probe endAck(String peerId) {
+        return peerId==null ? null : pendingAcks.remove(peerId);
+    }
+
+    /**
+     * @return true if the envelope was sent as a probe, whether or not it is still pending
+     */
+    public boolean isProbe(String envelopeId) {
+        return envelopeId!=null && sentProbes.contains(envelopeId);
+    }
+
+    /**
+     * @return the peer with the lowest predicted round trip of the number of random peers drawn; peers
+     * without a coordinate are taken to be at the network's median ack latency
+     */
+    private NetworkPeer nearestRandomPeer(Network network, int choices) {
+        NetworkPeer nearest = peerDB.getRandomPeerByNetwork(network);
+        NetworkCoordinates coordinates = service.coordinates;
+        if(coordinates==null || choices <= 1) {
+            return nearest;
         }
-        if(p.getProperty("ra.networkmanager.discovery.numPeersShare")==null) {
-            numPeersShare = 8;
-        } else {
-            numPeersShare = Integer.parseInt(p.getProperty("ra.networkmanager.discovery.numPeersShare"));
+        long median = service.medianAckLatencyMs(network);
+        long nearestRtt = predictedRtt(coordinates, nearest, median);
+        for(int i=1; i<choices; i++) {
+            NetworkPeer candidate = peerDB.getRandomPeerByNetwork(network);
+            long rtt = predictedRtt(coordinates, candidate, median);
+            if(rtt < nearestRtt) {
+                nearest = candidate;
+                nearestRtt = rtt;
+            }
         }
+        return nearest;
+    }
+
+    private static long predictedRtt(NetworkCoordinates coordinates, NetworkPeer np, long median) {
+        if(np==null) return Long.MAX_VALUE;
+        long rtt = coordinates.rttMs(np.getNetwork(), np.getId());
+        return rtt < 0 ? (median < 0 ? Long.MAX_VALUE - 1 : median) : rtt;
     }
 
     @Override
     public Boolean execute() {
+        if(service.discovery!=this) {
+            return true; // Replaced by a restart
+        }
+        // Probes that never got a reply count against their peer
+        Settings settings = this.settings;
+        long expired = service.now() - settings.ackTimeoutMs;
+        pendingAcks.values().removeIf(probe -> {
+            if(probe.start >= expired) return false;
+            peerDB.peerTimedOut(probe.dest);
+            return true;
+        });
         List<NetworkState> networkStates = service.getNetworkStates();
         for(NetworkState ns : networkStates) { // Iterate through Networks that have reported to the Network Manager
             if(ns.networkStatus == NetworkStatus.CONNECTED) { // If that Network is reporting connected...
                 Envelope e = Envelope.documentFactory();
-                List<NetworkPeer> nps = peerDB.getRandomPeersToShareByNetwork(ns.network, numPeersShare);
-                if(!nps.isEmpty()) {
+                List<NetworkPeer> nps = peerDB.getRandomPeersToShareByNetwork(ns.network, settings.numPeersShare);
+                if(!nps.isEmpty() && settings.binaryPeers) {
+                    e.addNVP(PeerCodec.PEERS, PeerCodec.encodeBase64(nps));
+                } else if(!nps.isEmpty()) {
                     List<Map<String, Object>> mNps = new ArrayList<>();
                     for (NetworkPeer np : nps) {
                         mNps.add(np.toMap());
@@ -88,7 +281,15 @@ public class NetworkDiscovery extends BaseTask {
                     // Instruct Network Service to begin with provided seed
                     dest = peerDB.getRandomSeedByNetwork(ns.network);
                 } else {
-                    dest = peerDB.getRandomPeerByNetwork(ns.network);
+                    dest = nearestRandomPeer(ns.network, settings.probeChoices);
+                }
+                if(dest==null) {
+                    LOG.info("No peer to probe on "+ns.network.name()+".");
+                    continue;
+                }
+                NetworkCoordinates coordinates = service.coordinates;
+                if(coordinates!=null) {
+                    e.addNVP(NetworkManagerService.COORDINATES, coordinates.share(ns.network, orig==null ? null : orig.getId(), nps));
                 }
                 // 3. Return results to this service
                 e.addExternalRoute(NetworkManagerService.class.getName(),
@@ -102,8 +303,19 @@ public class NetworkDiscovery extends BaseTask {
                         dest);
                 // 1. Send to local specific Network Service requesting to send on this request.
                 e.addRoute(service.getNetworkServiceFromNetwork(ns.network),"SEND");
-//                p2PRelationship.startAck(dest.getId(), new Date().getTime());
+                if(dest.getId()!=null) {
+                    pendingAcks.put(dest.getId(), new Probe(dest, service.now(), e));
+                }
+                sentProbes.add(e.getId());
                 service.send(e);
+                DiscoveryEvent event = Jfr.AVAILABLE ? new DiscoveryEvent() : null;
+                if(event!=null && event.shouldCommit()) {
+                    event.type = DiscoveryEvent.PROBE;
+                    event.network = ns.network.name();
+                    event.peerId = dest.getId();
+                    event.peers = nps.size();
+                    event.commit();
+                }
             }
         }
         return true;
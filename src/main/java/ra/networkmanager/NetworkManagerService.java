@@ -17,6 +17,11 @@ import ra.common.tasks.TaskRunner;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 import java.util.logging.Logger;
 
 import static ra.common.JSONParser.parse;
@@ -57,9 +62,12 @@ public class NetworkManagerService extends BaseService {
     public static final String OPERATION_RANDOM_PEER_BY_NETWORK = "RANDOM_PEER_BY_NETWORK";
     public static final String OPERATION_RANDOM_PEERS_BY_NETWORK = "RANDOM_PEERS_BY_NETWORK";
     public static final String OPERATION_PEERS_BY_SERVICE = "PEERS_BY_SERVICE";
+    // Paginated by CURSOR and PAGE_SIZE, filtered by Network, REL_TYPE and RELIABLE_ONLY
+    public static final String OPERATION_PEERS = "PEERS";
 
     // Sent by each Network Service
     public static final String OPERATION_UPDATE_LOCAL_PEER = "UPDATE_LOCAL_PEER";
+    // With the services the peer offers, by name or list of names, in a Service NVP for PEERS_BY_SERVICE
     public static final String OPERATION_UPDATE_PEER = "UPDATE_PEER";
     public static final String OPERATION_UPDATE_PEERS = "UPDATE_PEERS";
 
@@ -69,12 +77,83 @@ public class NetworkManagerService extends BaseService {
     public static final String OPERATION_PEER_STATUS = "PEER_STATUS";
     public static final String OPERATION_PEER_STATUS_REPLY = "PEER_STATUS_REPLY";
 
+    // *** Delivery ***
+    // Sent back by a destination acknowledging an envelope carrying a dedupe id.
+    public static final String OPERATION_ACK = "ACK";
+    // Received by a relaying peer to forward an envelope along its RELAY_PATH towards the destination.
+    public static final String OPERATION_RELAY = "RELAY";
+    // Received with envelopes bundled by the sender's SendCoalescer; each continues along its own routing slip.
+    public static final String OPERATION_UNBUNDLE = "UNBUNDLE";
+    // Received with a copy of a hedged envelope; acked to the sender and delivered once per dedupe id.
+    public static final String OPERATION_DELIVER_HEDGED = "DELIVER_HEDGED";
+
+    // *** Administration ***
+    // Apply the configuration changes in the CONFIG NVP in place, keeping peers, held messages and relationships
+    public static final String OPERATION_RECONFIGURE = "RECONFIGURE";
+
+    // Envelope NVPs
+    // Peer queries: cursor of the next page, null when no more; page size; filters
+    public static final String CURSOR = "ra.networkmanager.cursor";
+    public static final String PAGE_SIZE = "ra.networkmanager.pageSize";
+    public static final String REL_TYPE = "ra.networkmanager.relType";
+    public static final String RELIABLE_ONLY = "ra.networkmanager.reliableOnly";
+    // Service Level Agreement 1-5 (see ra-network-manager.config)
+    public static final String SLA = "ra.networkmanager.sla";
+    // Request hedged multi-path delivery for an SLA 1 envelope
+    public static final String HEDGE = "ra.networkmanager.hedge";
+    // Shared by all copies of a hedged envelope and returned in its ack
+    public static final String DEDUPE_ID = "ra.networkmanager.dedupeId";
+    // Peers (as maps) an envelope is still to be relayed through, ending with its destination
+    public static final String RELAY_PATH = "ra.networkmanager.relayPath";
+    // Size in bytes of the envelope, saves estimating it for cost-based routing
+    public static final String SIZE = "ra.networkmanager.size";
+    // Let routing take the peer over a network other than the one it was addressed on, Tor and I2P included
+    public static final String REROUTE = "ra.networkmanager.reroute";
+    // Map of peer id to network coordinate [x, y, z, height, error] shared with discovery
+    public static final String COORDINATES = "ra.networkmanager.coordinates";
+    // Map of configuration keys to new values for RECONFIGURE
+    public static final String CONFIG = "ra.networkmanager.config";
+    // Attempts made so far at sending a held envelope, kept if it is held again after being resent
+    public static final String HOLD_ATTEMPTS = "ra.networkmanager.holdAttempts";
+
     // Network Name, Network
-    protected final Map<String, NetworkState> networkStates = new HashMap<>();
+    protected final Map<String, NetworkState> networkStates = new ConcurrentHashMap<>();
     protected File messageHold;
+    protected MessageHold hold;
+    protected BlobStore blobs;
     protected TaskRunner taskRunner;
     protected PeerDB peerDB;
-    protected Stats stats;
+    protected volatile Stats stats;
+    protected SendPipeline sendPipeline;
+    protected DelayedSend delayedSend;
+    protected NetworkDiscovery discovery;
+    protected ScheduledExecutorService scheduler;
+    protected HedgedSender hedgedSender;
+    protected final Map<Network,LatencyWindow> ackLatencies = new ConcurrentHashMap<>();
+    protected final Map<Network,CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    // Settings reconfigure cannot apply to a running service
+    private static final String[] NOT_LIVE = {
+            "ra.networkmanager.hold.backoff.",
+            "ra.networkmanager.hold.maxAttempts",
+            "ra.networkmanager.hold.blobs.",
+            "ra.networkmanager.replication."
+    };
+
+    protected int breakerFailureThreshold = 5;
+    protected long breakerOpenMs = 30 * 1000L;
+    protected PeerAffinity affinity;
+    protected PeerSweeper peerSweeper;
+    protected GossipGuard gossipGuard;
+    private final ThreadLocal<Set<Envelope>> batchDeadLetters = new ThreadLocal<>();
+    protected StateCoalescer stateCoalescer;
+    protected NetworkCost cost;
+    protected RelationshipGraph graph;
+    protected SendCoalescer coalescer;
+    protected NetworkCoordinates coordinates;
+    protected volatile TrafficRecorder recorder;
+    // Source of the current time in ms for backoff, ack latency, breakers, affinity, rate limits and liveness
+    private LongSupplier clock = System::currentTimeMillis;
+    private Properties startProperties;
 
     public NetworkManagerService() {
         super();
@@ -86,8 +165,29 @@ public class NetworkManagerService extends BaseService {
         taskRunner = new TaskRunner(1,1);
     }
 
+    /**
+     * Use a specific clock, e.g. a simulation's virtual one; set before start.
+     */
+    public void setClock(LongSupplier clock) {
+        this.clock = clock;
+        if(peerDB!=null) {
+            peerDB.setClock(clock);
+        }
+    }
+
+    /**
+     * @return current time in ms by the service's clock
+     */
+    public long now() {
+        return clock.getAsLong();
+    }
+
     @Override
     public void handleEvent(Envelope envelope) {
+        TrafficRecorder recorder = this.recorder;
+        if(recorder!=null) {
+            recorder.record(TrafficRecorder.EVENT, envelope);
+        }
         Route r = envelope.getDynamicRoutingSlip().getCurrentRoute();
         switch(r.getOperation()) {
             case OPERATION_UPDATE_NETWORK_STATE: {
@@ -100,7 +200,30 @@ public class NetworkManagerService extends BaseService {
 
     @Override
     public void handleDocument(Envelope e) {
+        TrafficRecorder recorder = this.recorder;
+        if(recorder!=null) {
+            recorder.record(TrafficRecorder.DOCUMENT, e);
+        }
+        processDocument(e);
+    }
+
+    private void processDocument(Envelope e) {
         Route r = e.getDynamicRoutingSlip().getCurrentRoute();
+        DocumentEvent event = Jfr.AVAILABLE ? new DocumentEvent() : null;
+        if(event!=null) event.begin();
+        try {
+            handleOperation(r, e);
+        } finally {
+            if(event!=null) event.end();
+            if(event!=null && event.shouldCommit()) {
+                event.operation = r.getOperation();
+                event.envelopeId = e.getId();
+                event.commit();
+            }
+        }
+    }
+
+    protected void handleOperation(Route r, Envelope e) {
         switch(r.getOperation()) {
             case OPERATION_SEND: {
                 if(e.getRoute()!=null && "ra.notification.NotificationService".equals(e.getRoute().getService())) {
@@ -108,41 +231,38 @@ public class NetworkManagerService extends BaseService {
                     producer.send(e);
                     break;
                 }
+                if(hedgedSender!=null && hedgedSender.isHedged(e) && e.getValue(NetworkPeer.class.getName()) instanceof NetworkPeer) {
+                    List<NetworkPeer> candidates = hedgeCandidates(e, (NetworkPeer)e.getValue(NetworkPeer.class.getName()));
+                    if(candidates.size() > 1) {
+                        sendComplete(e, hedgedSender.send(e, candidates));
+                        break;
+                    }
+                }
+                if(sendPipeline!=null && sendPipeline.submit(e)) {
+                    // Resolved, routed and dispatched asynchronously
+                    break;
+                }
                 if(e.getValue(NetworkPeer.class.getName())==null) {
                     LOG.warning("Unable to send to missing peer.");
                     deadLetter(e);
                     break;
                 }
                 NetworkPeer np = (NetworkPeer)e.getValue(NetworkPeer.class.getName());
-                Tuple2<Boolean,ResponseCodes> result = setExternalRoute(np, e);
-                if(result.first) {
-                    send(e);
-                } else {
-                    LOG.warning(result.second.name());
-                    deadLetter(e);
-                }
+                sendComplete(e, routeAndSend(np, e));
                 break;
             }
             case OPERATION_PUBLISH: {
-                if(e.getValue(NetworkPeer.class.getName())==null) {
+                if(sendPipeline!=null && sendPipeline.submit(e)) {
+                    break;
+                }
+                List<Tuple2<NetworkPeer,Envelope>> copies = fanOut(e);
+                if(copies==null) {
                     LOG.warning("Unable to publish to no peers.");
                     deadLetter(e);
                     break;
                 }
-                // Get peers
-                List<NetworkPeer> peers = (List<NetworkPeer>)e.getValue(NetworkPeer.class.getName());
-                for(NetworkPeer dp : peers) {
-                    Envelope eDp = Envelope.envelopeFactory(e);
-                    // Clear out list
-                    eDp.addNVP(NetworkPeer.class.getName(), null);
-                    // Ensure External Route is selected and set
-                    Tuple2<Boolean,ResponseCodes> result = setExternalRoute(dp, e);
-                    if(result.first) {
-                        send(e);
-                    } else {
-                        LOG.warning(result.second.name());
-                        deadLetter(e);
-                    }
+                for(Tuple2<NetworkPeer,Envelope> copy : copies) {
+                    sendComplete(copy.second, routeAndSend(copy.first, copy.second));
                 }
                 break;
             }
@@ -198,7 +318,47 @@ public class NetworkManagerService extends BaseService {
                 break;
             }
             case OPERATION_PEERS_BY_SERVICE: {
-                e.addNVP(NetworkPeer.class.getName(), peerDB.findPeersByService((String)e.getValue(Service.class.getName())));
+                PeerQuery query = peerQuery(e);
+                if(query!=null) {
+                    addPage(e, peerDB.findPeersByService((String)e.getValue(Service.class.getName()), query));
+                }
+                break;
+            }
+            case OPERATION_PEERS: {
+                PeerQuery query = peerQuery(e);
+                if(query!=null) {
+                    try {
+                        addPage(e, peerDB.findPeers(query));
+                    } catch (IllegalArgumentException ex) {
+                        LOG.warning("Invalid peer query cursor: "+query.getCursor());
+                        deadLetter(e);
+                    }
+                }
+                break;
+            }
+            case OPERATION_LOCAL_PEERS: {
+                e.addNVP(NetworkPeer.class.getName(), peerDB.getLocalPeers());
+                break;
+            }
+            case OPERATION_LOCAL_PEER_BY_NETWORK: {
+                Network network = networkParam(e);
+                if(network!=null) {
+                    e.addNVP(NetworkPeer.class.getName(), peerDB.getLocalPeerByNetwork(network));
+                }
+                break;
+            }
+            case OPERATION_RANDOM_PEER_BY_NETWORK: {
+                Network network = networkParam(e);
+                if(network!=null) {
+                    e.addNVP(NetworkPeer.class.getName(), peerDB.getRandomPeerByNetwork(network));
+                }
+                break;
+            }
+            case OPERATION_RANDOM_PEERS_BY_NETWORK: {
+                PeerQuery query = peerQuery(e);
+                if(query!=null && query.getNetwork()!=null) {
+                    e.addNVP(NetworkPeer.class.getName(), peerDB.getRandomPeersToShareByNetwork(query.getNetwork(), query.getPageSize()));
+                }
                 break;
             }
             case OPERATION_UPDATE_LOCAL_PEER: {
@@ -218,20 +378,31 @@ public class NetworkManagerService extends BaseService {
                     Object obj = e.getValue(NetworkPeer.class.getName());
                     if(obj instanceof NetworkPeer) {
                         NetworkPeer p = (NetworkPeer)obj;
-                        if(p.getNetwork()!=null) {
-                            peerDB.savePeer(p, false, RelType.fromNetwork(p.getNetwork()));
+                        if(p.getNetwork()!=null && peerDB.savePeer(p, false, RelType.fromNetwork(p.getNetwork()))) {
+                            savePeerServices(p, e.getValue(Service.class.getName()));
                         }
                     }
                 }
                 break;
             }
             case OPERATION_UPDATE_PEERS: {
+                if(!gossipGuard.firstSeen(e.getId())) {
+                    break;
+                }
                 Object peersObj = e.getValue(NetworkPeer.class.getName());
                 List<NetworkPeer> peers = null;
                 if(peersObj instanceof List) {
                     peers = (List<NetworkPeer>)peersObj;
+                } else if(peersObj instanceof String && !((String)peersObj).startsWith("[")) {
+                    try {
+                        peers = PeerCodec.decodeBase64((String)peersObj);
+                    } catch (IllegalArgumentException ex) {
+                        LOG.warning("Unable to decode peers list for updating: "+ex.getMessage());
+                        deadLetter(e);
+                        break;
+                    }
                 } else if(peersObj instanceof String) {
-                    List<Map<String,Object>> objects = (List<Map<String,Object>>) JSONParser.parse(peers);
+                    List<Map<String,Object>> objects = (List<Map<String,Object>>) JSONParser.parse((String)peersObj);
                     peers = new ArrayList<>();
                     for(Map<String,Object> m : objects) {
                         Network network = Network.valueOf((String)m.get("network"));
@@ -244,37 +415,159 @@ public class NetworkManagerService extends BaseService {
                     deadLetter(e);
                     break;
                 }
-                for(NetworkPeer p : peers) {
-                    if(p.getNetwork()!=null) {
-                        peerDB.savePeer(p, false, RelType.fromNetwork(p.getNetwork()));
-                    }
+                String origin = null;
+                if(e.getRoute() instanceof ExternalRoute && ((ExternalRoute)e.getRoute()).getOrigination()!=null) {
+                    origin = ((ExternalRoute)e.getRoute()).getOrigination().getId();
+                }
+                int allowed = gossipGuard.allowance(origin, peers.size(), now());
+                saveSharedPeers(origin, peers.subList(0, allowed));
+                if(!peers.isEmpty()) {
+                    learnCoordinates(e, peers.get(0).getNetwork(), origin, null);
                 }
                 break;
             }
             case OPERATION_PEER_STATUS_REPLY: {
                 Route route = e.getRoute();
-                if(route instanceof ExternalRoute) {
+                if(route instanceof ExternalRoute && gossipGuard.firstSeen(e.getId())) {
                     ExternalRoute extRoute = (ExternalRoute) route;
                     NetworkPeer orig = extRoute.getOrigination();
                     if(orig.getNetwork()!=null) {
                         peerDB.savePeer(orig, false, RelType.fromNetwork(orig.getNetwork()));
+                        peerDB.peerSeen(orig);
+                    }
+                    NetworkDiscovery.Probe probe = discovery==null ? null : discovery.endAck(orig.getId());
+                    Long latency = probe==null ? null : now() - probe.getStart();
+                    if(latency!=null) {
+                        recordAck(orig, latency);
+                    }
+                    // A probe envelope returned after its probe expired can no longer be told apart from ours
+                    boolean expiredProbe = probe==null && discovery!=null && discovery.isProbe(e.getId());
+                    List<NetworkPeer> sharedPeers = expiredProbe ? new ArrayList<>() : sharedPeers(e, probe);
+                    DiscoveryEvent event = Jfr.AVAILABLE ? new DiscoveryEvent() : null;
+                    if(event!=null && event.shouldCommit()) {
+                        event.type = DiscoveryEvent.REPLY;
+                        event.network = orig.getNetwork()==null ? null : orig.getNetwork().name();
+                        event.peerId = orig.getId();
+                        event.peers = sharedPeers.size();
+                        event.latencyMs = latency==null ? -1L : latency;
+                        event.commit();
+                    }
+                    int allowed = gossipGuard.allowance(orig.getId(), sharedPeers.size(), now());
+                    saveSharedPeers(orig.getId(), sharedPeers.subList(0, allowed));
+                    if(!expiredProbe) {
+                        learnCoordinates(e, orig.getNetwork(), orig.getId(), probe);
+                    }
+                }
+                break;
+            }
+            case OPERATION_ACK: {
+                Object dedupeId = e.getValue(DEDUPE_ID);
+                if(dedupeId!=null && hedgedSender!=null && r instanceof ExternalRoute) {
+                    hedgedSender.ack(dedupeId.toString(), ((ExternalRoute)r).getOrigination());
+                }
+                break;
+            }
+            case OPERATION_RECONFIGURE: {
+                Properties changes = new Properties();
+                if(e.getValue(CONFIG) instanceof Map) {
+                    for(Map.Entry<?,?> c : ((Map<?,?>)e.getValue(CONFIG)).entrySet()) {
+                        if(c.getKey()!=null && c.getValue()!=null) {
+                            changes.setProperty(c.getKey().toString(), c.getValue().toString());
+                        }
                     }
-                    LOG.info("Adding ack...");
-//                   p2PRelationship.addAck(orig.getId(), new Date().getTime() - p2PRelationship.getStart(orig.getId()));
-                    if(e.getValue("peers")!=null) {
-                       List<Map<String,Object>> peerMaps = (List<Map<String,Object>>)e.getValue("peers");
-                       for(Map<String,Object> peerMap : peerMaps) {
-                           Network network = Network.valueOf((String)peerMap.get("network"));
-                           NetworkPeer np = new NetworkPeer(network);
-                           np.fromMap(peerMap);
-                           if(np.getNetwork()!=null) {
-                               peerDB.savePeer(np, false, RelType.fromNetwork(np.getNetwork()));
-                           }
-                       }
+                }
+                e.addNVP(OPERATION_RECONFIGURE, reconfigure(changes));
+                break;
+            }
+            case OPERATION_RELAY: {
+                Object pathObj = e.getValue(RELAY_PATH);
+                Route current = e.getDynamicRoutingSlip().getCurrentRoute();
+                if(!(pathObj instanceof List) || ((List<?>)pathObj).isEmpty()) {
+                    // Destination reached; past its route to this node the envelope continues as if received directly
+                    Route delivery = e.getDynamicRoutingSlip().peekAtNextRoute();
+                    NetworkPeer local = delivery instanceof ExternalRoute ? ((ExternalRoute)delivery).getDestination() : null;
+                    if(local==null || local.getNetwork()==null) {
+                        local = current instanceof ExternalRoute ? ((ExternalRoute)current).getDestination() : null;
+                    }
+                    if(local==null || local.getNetwork()==null || !deliverLocally(e, local.getNetwork())) {
+                        deadLetter(e);
+                    }
+                    break;
+                }
+                List<Object> remaining = new ArrayList<>((List<?>)pathObj);
+                if(graph==null || remaining.size() > graph.getMaxHops()) {
+                    LOG.warning("Refusing to relay along a path of "+remaining.size()+" hops.");
+                    deadLetter(e);
+                    break;
+                }
+                NetworkPeer origin = current instanceof ExternalRoute ? ((ExternalRoute)current).getOrigination() : null;
+                if(!isKnownPeer(origin)) {
+                    LOG.warning("Refusing to relay for an unknown peer.");
+                    deadLetter(e);
+                    break;
+                }
+                NetworkPeer next = asNetworkPeer(remaining.remove(0));
+                if(!isKnownPeer(next)) {
+                    LOG.warning("Unable to relay to an unknown next hop.");
+                    deadLetter(e);
+                    break;
+                }
+                if(!gossipGuard.allowRelay(origin.getId(), now())) {
+                    LOG.fine("Relay rate exceeded by "+origin.getId());
+                    deadLetter(e);
+                    break;
+                }
+                sendComplete(e, forward(next, remaining, e));
+                break;
+            }
+            case OPERATION_UNBUNDLE: {
+                Object bundle = e.getValue(SendCoalescer.BUNDLE);
+                Route current = e.getDynamicRoutingSlip().getCurrentRoute();
+                NetworkPeer local = current instanceof ExternalRoute ? ((ExternalRoute)current).getDestination() : null;
+                if(!(bundle instanceof List) || local==null || local.getNetwork()==null) {
+                    deadLetter(e);
+                    break;
+                }
+                if(!isKnownPeer(((ExternalRoute)current).getOrigination())) {
+                    LOG.warning("Refusing a bundle from an unknown peer.");
+                    deadLetter(e);
+                    break;
+                }
+                for(Object member : (List<?>)bundle) {
+                    if(member instanceof Map) {
+                        Envelope m = Envelope.documentFactory();
+                        m.fromMap((Map<String,Object>)member);
+                        if(!deliverLocally(m, local.getNetwork())) {
+                            deadLetter(m);
+                        }
                     }
                 }
                 break;
             }
+            case OPERATION_DELIVER_HEDGED: {
+                Object member = e.getValue(HedgedSender.HEDGED);
+                Object dedupeId = e.getValue(DEDUPE_ID);
+                NetworkPeer origin = null;
+                if(e.getRoute() instanceof ExternalRoute) {
+                    origin = ((ExternalRoute)e.getRoute()).getOrigination();
+                }
+                if(!(member instanceof Map) || dedupeId==null || origin==null || origin.getNetwork()==null) {
+                    deadLetter(e);
+                    break;
+                }
+                // Ack every copy so the sender stops hedging even if the ack of an earlier one was lost
+                sendAck(dedupeId.toString(), origin);
+                if(!hedgedSender.received(dedupeId.toString())) {
+                    LOG.fine("Dropping duplicate hedged copy "+dedupeId);
+                    break;
+                }
+                Envelope m = Envelope.documentFactory();
+                m.fromMap((Map<String,Object>)member);
+                if(!deliverLocally(m, origin.getNetwork())) {
+                    deadLetter(e);
+                }
+                break;
+            }
             case OPERATION_NUMBER_PEERS_BY_NETWORK: {
                 Map<String,Object> m = new HashMap<>();
                 for(NetworkState ns : networkStates.values()) {
@@ -287,6 +580,256 @@ public class NetworkManagerService extends BaseService {
         }
     }
 
+    /**
+     * Save gossiped peers, taking on new ones only while their network is under the discovery caps,
+     * and note the origin as able to reach them for relaying.
+     */
+    private void saveSharedPeers(String origin, List<NetworkPeer> peers) {
+        Map<Network,Long> headroom = new HashMap<>();
+        long now = now();
+        for(NetworkPeer np : peers) {
+            Network n = np.getNetwork();
+            if(n==null) {
+                continue;
+            }
+            if(graph!=null && origin!=null && np.getId()!=null && !origin.equals(np.getId())) {
+                graph.link(origin, np.getId(), n, now);
+            }
+            long room = headroom.computeIfAbsent(n, k -> discovery==null ? Long.MAX_VALUE : discovery.headroom(k));
+            if(room <= 0 && (np.getId()==null || peerDB.findPeerByNetwork(np.getId(), n)==null)) {
+                continue; // At the cap: only refresh peers already known
+            }
+            long before = peerDB.numberPeersByNetwork(n);
+            peerDB.savePeer(np, false, RelType.fromNetwork(n));
+            if(peerDB.numberPeersByNetwork(n) > before) {
+                headroom.put(n, room - 1);
+            }
+        }
+    }
+
+    /**
+     * @return peers shared in a discovery reply, binary encoded or, from older peers, as maps, skipping
+     * those the probe sent that came back untouched in the reused probe envelope
+     */
+    private List<NetworkPeer> sharedPeers(Envelope e, NetworkDiscovery.Probe probe) {
+        List<NetworkPeer> peers = new ArrayList<>();
+        Object encoded = e.getValue(PeerCodec.PEERS);
+        Object maps = e.getValue("peers");
+        if(encoded instanceof String && (probe==null || !probe.isEcho(PeerCodec.PEERS, encoded))) {
+            try {
+                peers.addAll(PeerCodec.decodeBase64((String)encoded));
+            } catch (IllegalArgumentException ex) {
+                LOG.warning("Unable to decode shared peers: "+ex.getMessage());
+            }
+        } else if(maps instanceof List && (probe==null || !probe.isEcho("peers", maps))) {
+            for(Map<String,Object> peerMap : (List<Map<String,Object>>)maps) {
+                NetworkPeer np = asNetworkPeer(peerMap);
+                if(np!=null) {
+                    peers.add(np);
+                }
+            }
+        }
+        return peers;
+    }
+
+    private void learnCoordinates(Envelope e, Network network, String origin, NetworkDiscovery.Probe probe) {
+        Object shared = e.getValue(COORDINATES);
+        if(network!=null && shared instanceof Map && (probe==null || !probe.isEcho(COORDINATES, shared))) {
+            coordinates.learn(network, (Map<String,?>)shared, origin);
+        }
+    }
+
+    private Network networkParam(Envelope e) {
+        Object networkObj = e.getValue(Network.class.getName());
+        if(networkObj instanceof Network) {
+            return (Network)networkObj;
+        } else if(networkObj instanceof String) {
+            return Network.valueOf((String)networkObj);
+        }
+        return null;
+    }
+
+    /**
+     * @return query from the envelope's Network, RelType, reliability, cursor and page size NVPs, null if malformed
+     */
+    private PeerQuery peerQuery(Envelope e) {
+        PeerQuery query = new PeerQuery();
+        try {
+            query.setNetwork(networkParam(e));
+            if(e.getValue(REL_TYPE)!=null) {
+                query.setRelType(RelType.valueOf(e.getValue(REL_TYPE).toString()));
+            }
+            query.setReliableOnly("true".equals(String.valueOf(e.getValue(RELIABLE_ONLY))));
+            if(e.getValue(CURSOR)!=null) {
+                query.setCursor(e.getValue(CURSOR).toString());
+            }
+            if(e.getValue(PAGE_SIZE)!=null) {
+                query.setPageSize(Integer.parseInt(e.getValue(PAGE_SIZE).toString()));
+            }
+        } catch (IllegalArgumentException ex) {
+            LOG.warning("Invalid peer query: "+ex.getLocalizedMessage());
+            deadLetter(e);
+            return null;
+        }
+        return query;
+    }
+
+    private void addPage(Envelope e, PeerPage page) {
+        e.addNVP(NetworkPeer.class.getName(), page.getPeers());
+        e.addNVP(CURSOR, page.getNextCursor());
+    }
+
+    /**
+     * Handle many documents at once, in the order supplied.
+     *
+     * SENDs and PUBLISHes are routed against one snapshot of the network states, resolving the
+     * External Route once per destination peer, and consecutive peer updates are saved in one Peer DB call.
+     * Other operations are handled as by {@link #handleDocument(Envelope)}.
+     * @return result per envelope in the order supplied: READY if handled, DEAD_LETTERED if not,
+     * the send outcome for SENDs and PUBLISHes
+     */
+    public List<ResponseCodes> handleDocuments(List<Envelope> envelopes) {
+        TrafficRecorder recorder = this.recorder;
+        if(recorder!=null) {
+            recorder.record(envelopes);
+        }
+        ResponseCodes[] results = new ResponseCodes[envelopes.size()];
+        Map<String,NetworkState> snapshot = new HashMap<>(networkStates);
+        Map<String,RouteResolution> routes = new HashMap<>();
+        Set<Envelope> deadLetters = Collections.newSetFromMap(new IdentityHashMap<>());
+        batchDeadLetters.set(deadLetters);
+        try {
+            List<NetworkPeer> peers = new ArrayList<>();
+            List<Object> services = new ArrayList<>();
+            for(int i=0; i<envelopes.size(); i++) {
+                Envelope e = envelopes.get(i);
+                Route r = e.getDynamicRoutingSlip().getCurrentRoute();
+                String operation = r==null ? "" : r.getOperation();
+                if(OPERATION_UPDATE_PEER.equals(operation)) {
+                    Object obj = e.getValue(NetworkPeer.class.getName());
+                    if(obj instanceof NetworkPeer && ((NetworkPeer)obj).getNetwork()!=null) {
+                        peers.add((NetworkPeer)obj);
+                        services.add(e.getValue(Service.class.getName()));
+                        results[i] = ResponseCodes.READY;
+                    } else {
+                        results[i] = ResponseCodes.MISSING_PEER;
+                    }
+                    continue;
+                }
+                if(!peers.isEmpty()) {
+                    // Saved before anything after them runs
+                    savePeers(peers, services);
+                    peers = new ArrayList<>();
+                    services = new ArrayList<>();
+                }
+                switch (operation) {
+                    case OPERATION_SEND: {
+                        results[i] = batchSend(e, snapshot, routes);
+                        break;
+                    }
+                    case OPERATION_PUBLISH: {
+                        results[i] = batchPublish(e, snapshot, routes);
+                        break;
+                    }
+                    default: {
+                        if(r==null) {
+                            deadLetter(e);
+                        } else {
+                            processDocument(e);
+                        }
+                        results[i] = deadLetters.remove(e) ? ResponseCodes.DEAD_LETTERED : ResponseCodes.READY;
+                    }
+                }
+            }
+            if(!peers.isEmpty()) {
+                savePeers(peers, services);
+            }
+        } finally {
+            batchDeadLetters.remove();
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Save peers from a batch in one Peer DB call, then the services each offers.
+     */
+    private void savePeers(List<NetworkPeer> peers, List<Object> services) {
+        peerDB.savePeers(peers);
+        for(int i=0; i<peers.size(); i++) {
+            savePeerServices(peers.get(i), services.get(i));
+        }
+    }
+
+    /**
+     * @param services name or list of names of the services the peer offers, null if none given
+     */
+    private void savePeerServices(NetworkPeer np, Object services) {
+        if(services instanceof String) {
+            peerDB.savePeerService(np, (String)services);
+        } else if(services instanceof List) {
+            for(Object service : (List<?>)services) {
+                if(service instanceof String) {
+                    peerDB.savePeerService(np, (String)service);
+                }
+            }
+        }
+    }
+
+    /**
+     * Notes envelopes dead lettered while handling a batch, to report them in its results.
+     */
+    @Override
+    public boolean deadLetter(Envelope envelope) {
+        Set<Envelope> deadLetters = batchDeadLetters.get();
+        if(deadLetters!=null) {
+            deadLetters.add(envelope);
+        }
+        return super.deadLetter(envelope);
+    }
+
+    private ResponseCodes batchSend(Envelope e, Map<String,NetworkState> snapshot, Map<String,RouteResolution> routes) {
+        Object peerObj = e.getValue(NetworkPeer.class.getName());
+        if(e.getRoute()!=null && "ra.notification.NotificationService".equals(e.getRoute().getService())) {
+            // This is a notification from this service
+            return producer.send(e) ? ResponseCodes.SENT : ResponseCodes.SEND_FAILED;
+        }
+        if(!(peerObj instanceof NetworkPeer)) {
+            LOG.warning("Unable to send to missing peer.");
+            deadLetter(e);
+            return ResponseCodes.MISSING_PEER;
+        }
+        ResponseCodes code = null;
+        if(hedgedSender!=null && hedgedSender.isHedged(e)) {
+            List<NetworkPeer> candidates = hedgeCandidates(e, (NetworkPeer)peerObj);
+            if(candidates.size() > 1) {
+                code = hedgedSender.send(e, candidates);
+            }
+        }
+        if(code==null) {
+            code = routeAndSend((NetworkPeer)peerObj, e, snapshot, routes);
+        }
+        sendComplete(e, code);
+        return code;
+    }
+
+    private ResponseCodes batchPublish(Envelope e, Map<String,NetworkState> snapshot, Map<String,RouteResolution> routes) {
+        List<Tuple2<NetworkPeer,Envelope>> copies = fanOut(e);
+        if(copies==null) {
+            LOG.warning("Unable to publish to no peers.");
+            deadLetter(e);
+            return ResponseCodes.MISSING_PEER;
+        }
+        ResponseCodes result = ResponseCodes.SENT;
+        for(Tuple2<NetworkPeer,Envelope> copy : copies) {
+            ResponseCodes code = routeAndSend(copy.first, copy.second, snapshot, routes);
+            sendComplete(copy.second, code);
+            if(code!=ResponseCodes.SENT && result==ResponseCodes.SENT) {
+                result = code;
+            }
+        }
+        return result;
+    }
+
     protected void updateNetworkState(Envelope e) {
         if(!(e.getMessage() instanceof EventMessage)) {
             LOG.warning("Network State must be within an Event Message.");
@@ -354,12 +897,16 @@ public class NetworkManagerService extends BaseService {
                     LOG.warning("Network Status for network " + networkState.network.name() + " not being handled: " + networkState.networkStatus.name());
                 }
             }
-            // Send on to subscribers
-            e.addRoute("ra.notification.NotificationService","PUBLISH");
-            producer.send(e);
+            // Send on to subscribers once the network settles
+            stateCoalescer.submit(e, networkState);
         }
     }
 
+    protected void publishNetworkState(Envelope e) {
+        e.addRoute("ra.notification.NotificationService","PUBLISH");
+        producer.send(e);
+    }
+
     public Boolean isNetworkReady(Network network) {
         switch (network) {
             case HTTP: return NetworkStatus.CONNECTED == getNetworkStatus(Network.HTTP);
@@ -375,18 +922,32 @@ public class NetworkManagerService extends BaseService {
     }
 
     public Network firstAvailableNonInternetNetwork() {
-        if(getNetworkStatus(Network.Bluetooth)==NetworkStatus.CONNECTED)
-            return Network.Bluetooth;
-        else if(getNetworkStatus(Network.WiFi)==NetworkStatus.CONNECTED)
-            return Network.WiFi;
-        else if(getNetworkStatus(Network.Satellite)==NetworkStatus.CONNECTED)
-            return Network.Satellite;
-        else if(getNetworkStatus(Network.FSRadio)==NetworkStatus.CONNECTED)
-            return Network.FSRadio;
-        else if(getNetworkStatus(Network.LiFi)==NetworkStatus.CONNECTED)
-            return Network.LiFi;
-        else
-            return null;
+        return firstAvailableNonInternetNetwork(0L);
+    }
+
+    /**
+     * @return the CONNECTED non-internet network cheapest for a message of the size, ties going
+     * to Bluetooth, WiFi, Satellite, FSRadio then LiFi
+     */
+    public Network firstAvailableNonInternetNetwork(long size) {
+        Network cheapest = null;
+        double cheapestCost = Double.MAX_VALUE;
+        long now = now();
+        for(Network n : new Network[]{Network.Bluetooth, Network.WiFi, Network.Satellite, Network.FSRadio, Network.LiFi}) {
+            NetworkState ns = networkStates.get(n.name());
+            if(ns==null || ns.networkStatus!=NetworkStatus.CONNECTED) {
+                continue;
+            }
+            if(!cost.isEnabled()) {
+                return n;
+            }
+            double c = cost.cost(n, size, medianAckLatencyMs(n), now);
+            if(c < cheapestCost) {
+                cheapest = n;
+                cheapestCost = c;
+            }
+        }
+        return cheapest;
     }
 
     protected Network getNetworkFromService(String service) {
@@ -421,42 +982,593 @@ public class NetworkManagerService extends BaseService {
         }
     }
 
+    /**
+     * Ack an envelope carrying a dedupe id back to the peer it came from, over the network it came on.
+     */
+    protected boolean sendAck(String dedupeId, NetworkPeer origin) {
+        NetworkPeer local = peerDB.getLocalPeerByNetwork(origin.getNetwork());
+        String networkService = getNetworkServiceFromNetwork(origin.getNetwork());
+        if(local==null || networkService==null) {
+            LOG.fine("Unable to ack "+dedupeId+" on "+origin.getNetwork().name());
+            return false;
+        }
+        Envelope ack = Envelope.documentFactory();
+        ack.addNVP(DEDUPE_ID, dedupeId);
+        // 2. Sender's Network Manager credits the ack
+        ack.addExternalRoute(NetworkManagerService.class.getName(), OPERATION_ACK, local, origin);
+        // 1. Send through the local network service
+        ack.addRoute(networkService, "SEND");
+        return send(ack);
+    }
+
+    /**
+     * Continue an envelope that arrived inside another, as the network service would have on
+     * receiving it alone. Its next route must be the External Route to our local peer on the network.
+     */
+    protected boolean deliverLocally(Envelope m, Network network) {
+        Route next = m.getDynamicRoutingSlip().peekAtNextRoute();
+        if(!(next instanceof ExternalRoute) || !isLocalPeer(((ExternalRoute)next).getDestination(), network)) {
+            LOG.warning("Refusing to deliver an envelope not addressed to this node.");
+            return false;
+        }
+        m.getDynamicRoutingSlip().nextRoute();
+        return send(m);
+    }
+
+    private boolean isLocalPeer(NetworkPeer np, Network network) {
+        NetworkPeer local = peerDB.getLocalPeerByNetwork(network);
+        return np!=null && local!=null && np.getNetwork()==network && isSamePeer(np, local);
+    }
+
+    /**
+     * @return true if both are the same peer on the same network, by id or, lacking ids, by address
+     */
+    static boolean isSamePeer(NetworkPeer a, NetworkPeer b) {
+        if(a.getNetwork()!=b.getNetwork()) {
+            return false;
+        }
+        if(a.getId()!=null && b.getId()!=null) {
+            return a.getId().equals(b.getId());
+        }
+        String address = addressOf(a);
+        return address!=null && address.equals(addressOf(b));
+    }
+
+    private static String addressOf(NetworkPeer np) {
+        if(np.getDid()==null || np.getDid().getPublicKey()==null) {
+            return null;
+        }
+        return np.getDid().getPublicKey().getAddress();
+    }
+
     protected boolean sendToMessageHold(Envelope e) {
-        File envFile = new File(messageHold, e.getId());
-        try {
-            if(!envFile.createNewFile()) {
-                LOG.warning("Unable to create file to persist Envelope waiting on network");
+        long notBefore = 0L;
+        if(e.getValue("delay")!=null) {
+            notBefore = Long.parseLong(e.getValue("delay").toString());
+        }
+        Object attempts = e.getValue(HOLD_ATTEMPTS);
+        if(attempts!=null) {
+            // Resent from the hold then failed later, e.g. in a bundle; count it against max attempts
+            if(!hold.requeue(e, holdNetwork(e), getSla(e), Integer.parseInt(attempts.toString()), now())) {
                 return false;
             }
-        } catch (IOException ioException) {
-            LOG.warning(ioException.getLocalizedMessage());
+        } else if(!hold.hold(e, holdNetwork(e), getSla(e), notBefore)) {
             return false;
         }
-        FileUtil.writeFile(e.toJSON().getBytes(), envFile.getAbsolutePath());
-        LOG.info("Persisted message (id="+e.getId()+") to file for later sending.");
+        LOG.fine("Persisted message (id="+e.getId()+") to file for later sending.");
         return true;
     }
 
+    /**
+     * @return NetworkPeer from an NVP value which is a NetworkPeer or, once through JSON, its map
+     */
+    protected static NetworkPeer asNetworkPeer(Object obj) {
+        if(obj instanceof NetworkPeer) {
+            return (NetworkPeer)obj;
+        }
+        if(obj instanceof Map && ((Map<String,Object>)obj).get("network")!=null) {
+            Map<String,Object> m = (Map<String,Object>)obj;
+            NetworkPeer np = new NetworkPeer(Network.valueOf((String)m.get("network")));
+            np.fromMap(m);
+            return np;
+        }
+        return null;
+    }
+
+    /**
+     * @return SLA class 1-5 of the envelope, defaulting to 3
+     */
+    protected int getSla(Envelope e) {
+        Object sla = e.getValue(SLA);
+        if(sla==null) return MessageHold.DEFAULT_SLA;
+        try {
+            return Integer.parseInt(sla.toString());
+        } catch (NumberFormatException ex) {
+            return MessageHold.DEFAULT_SLA;
+        }
+    }
+
+    /**
+     * @return network the envelope is waiting on: its destination peer's network or else its next External Route's
+     */
+    protected Network holdNetwork(Envelope e) {
+        NetworkPeer np = asNetworkPeer(e.getValue(NetworkPeer.class.getName()));
+        if(np!=null) {
+            if(np.getNetwork()!=null) {
+                return np.getNetwork();
+            }
+            NetworkPeer npFound = peerDB.findPeer(np);
+            if(npFound!=null && npFound.getNetwork()!=null) {
+                return npFound.getNetwork();
+            }
+        }
+        Route r = e.getDynamicRoutingSlip().peekAtNextRoute();
+        return r==null ? null : getNetworkFromService(r.getService());
+    }
+
     List<NetworkState> getNetworkStates() {
         return new ArrayList<>(networkStates.values());
     }
 
+    /**
+     * Split a PUBLISH envelope into one envelope per destination peer.
+     * @return null if no peers were supplied
+     */
+    protected List<Tuple2<NetworkPeer,Envelope>> fanOut(Envelope e) {
+        Object peersObj = e.getValue(NetworkPeer.class.getName());
+        if(!(peersObj instanceof List)) {
+            return null;
+        }
+        List<NetworkPeer> peers = (List<NetworkPeer>)peersObj;
+        List<Tuple2<NetworkPeer,Envelope>> copies = new ArrayList<>(peers.size());
+        for(NetworkPeer dp : peers) {
+            Envelope eDp = Envelope.envelopeFactory(e);
+            // Replace list with this copy's peer
+            eDp.addNVP(NetworkPeer.class.getName(), dp);
+            copies.add(new Tuple2<>(dp, eDp));
+        }
+        return copies;
+    }
+
+    /**
+     * Ensure External Route is selected and set then send.
+     */
+    protected ResponseCodes routeAndSend(NetworkPeer np, Envelope e) {
+        return routeAndSend(np, e, networkStates, null);
+    }
+
+    /**
+     * @param states network states to route by, e.g. a snapshot taken once for a batch
+     * @param routes route resolutions by peer to reuse within a batch, null to resolve every time
+     */
+    protected ResponseCodes routeAndSend(NetworkPeer np, Envelope e, Map<String,NetworkState> states, Map<String,RouteResolution> routes) {
+        if(!(e.getDynamicRoutingSlip().peekAtNextRoute() instanceof ExternalRoute)) {
+            LOG.warning("Next route must be an ExternalRoute.");
+            return ResponseCodes.NEXT_ROUTE_MUST_BE_AN_EXTERNAL_ROUTE;
+        }
+        String key = routeKey(np);
+        long size = messageSize(e);
+        boolean reroute = isRerouteAllowed(e);
+        RouteResolution rr;
+        if(routes==null || key==null || reroute || cost.isCostRouted(size)) {
+            rr = resolveRoute(np, states, size, reroute);
+        } else {
+            rr = routes.get(key);
+            if(rr==null) {
+                rr = resolveRoute(np, states);
+                routes.put(key, rr);
+            }
+        }
+        Tuple2<Boolean,ResponseCodes> result = applyRoute(rr, e);
+        if(!result.first) {
+            if(result.second == ResponseCodes.UNABLE_TO_SELECT_PEER_NETWORK) {
+                // No local network reaches the peer; try through peers that do
+                ResponseCodes relayed = relay(np, e, states);
+                if(relayed!=null) {
+                    return relayed;
+                }
+            }
+            return result.second;
+        }
+        boolean sent;
+        Network network = routedNetwork(e);
+        int sla = getSla(e);
+        if(coalescer!=null && coalescer.offer(rr, e, size, sla, stats.slaAvgAckLatencyMs(sla) / 10)) {
+            // Bundled; the coalescer records the outcome and holds the envelope if the bundle fails,
+            // counting the attempt if it was resent from the hold
+            sent = true;
+        } else {
+            sent = send(e);
+            recordSendOutcome(network, sent);
+        }
+        if(sent && network!=null) {
+            cost.sent(network, np.getId(), size, now());
+        }
+        if(np.getId()!=null && network!=null) {
+            if(sent) {
+                affinity.sent(np.getId(), network, now());
+            } else {
+                affinity.failed(np.getId(), network);
+            }
+        }
+        return sent ? ResponseCodes.SENT : ResponseCodes.SEND_FAILED;
+    }
+
+    /**
+     * Send the envelope towards the peer through the lowest latency chain of relaying peers in the
+     * relationship graph whose first hop is on an available network.
+     * @return outcome of sending to the first hop, or null if there is no relay route
+     */
+    protected ResponseCodes relay(NetworkPeer np, Envelope e, Map<String,NetworkState> states) {
+        if(graph==null || np.getId()==null) {
+            return null;
+        }
+        long now = now();
+        // Hops stay on the network the peer was addressed on unless rerouting is allowed
+        Network pinned = isRerouteAllowed(e) ? null : np.getNetwork();
+        boolean[] usable = new boolean[Network.values().length];
+        for(NetworkState ns : states.values()) {
+            usable[ns.network.ordinal()] = (pinned==null || pinned==ns.network)
+                    && ns.networkStatus == NetworkStatus.CONNECTED
+                    && getCircuitBreaker(ns.network).isAvailable(now)
+                    && peerDB.getLocalPeerByNetwork(ns.network)!=null;
+        }
+        List<RelationshipGraph.Hop> path = graph.path(RelationshipGraph.LOCAL, np.getId(), usable, now);
+        if(path==null) {
+            return null;
+        }
+        List<Object> hops = new ArrayList<>(path.size());
+        for(RelationshipGraph.Hop hop : path) {
+            NetworkPeer hp = hop.getNetwork()==np.getNetwork() && hop.getPeerId().equals(np.getId())
+                    ? np : peerDB.findPeerByNetwork(hop.getPeerId(), hop.getNetwork());
+            if(hp==null) {
+                return null;
+            }
+            hops.add(hp.toMap());
+        }
+        NetworkPeer first = asNetworkPeer(hops.remove(0));
+        LOG.fine("Relaying to "+np.getId()+" through "+path.size()+" hops.");
+        return forward(first, hops, e);
+    }
+
+    /**
+     * @return true if the peer is in the Peer DB on the network it claims
+     */
+    private boolean isKnownPeer(NetworkPeer np) {
+        return np!=null && np.getId()!=null && np.getNetwork()!=null
+                && peerDB.findPeerByNetwork(np.getId(), np.getNetwork())!=null;
+    }
+
+    /**
+     * Send a copy of the envelope to the next hop whose Network Manager relays it along the remaining
+     * path. The envelope itself is left as it was, so a held one is routed afresh when retried.
+     */
+    protected ResponseCodes forward(NetworkPeer next, List<Object> remaining, Envelope e) {
+        NetworkPeer lp = peerDB.getLocalPeerByNetwork(next.getNetwork());
+        String service = getNetworkServiceFromNetwork(next.getNetwork());
+        if(lp==null || service==null) {
+            return ResponseCodes.LOCAL_PEER_FOR_NETWORK_NOT_AVAILABLE;
+        }
+        if(!getCircuitBreaker(next.getNetwork()).allowRequest(now())) {
+            return ResponseCodes.UNABLE_TO_SELECT_PEER_NETWORK;
+        }
+        Envelope relayed = Envelope.documentFactory();
+        relayed.fromMap(e.toMap());
+        relayed.addNVP(RELAY_PATH, remaining);
+        // 2. Next hop's Network Manager relays onwards
+        relayed.addExternalRoute(NetworkManagerService.class.getName(), OPERATION_RELAY, lp, next);
+        // 1. Send through the local network service
+        relayed.addRoute(service, "SEND");
+        boolean sent = send(relayed);
+        recordSendOutcome(next.getNetwork(), sent);
+        return sent ? ResponseCodes.SENT : ResponseCodes.SEND_FAILED;
+    }
+
+    /**
+     * @return size of the envelope in bytes from its SIZE NVP, else estimated from its JSON form when
+     * cost routing or send coalescing needs it, else 0
+     */
+    protected long messageSize(Envelope e) {
+        Object size = e.getValue(SIZE);
+        if(size!=null) {
+            try {
+                return Long.parseLong(size.toString());
+            } catch (NumberFormatException ex) {
+                LOG.fine("Ignoring invalid size: "+size);
+            }
+        }
+        if(!cost.isEnabled() && coalescer==null) {
+            return 0L;
+        }
+        String json = e.toJSON();
+        return json==null ? 0L : json.length();
+    }
+
+    /**
+     * @return median ack latency on the network, -1 if none measured yet
+     */
+    protected long medianAckLatencyMs(Network network) {
+        LatencyWindow window = ackLatencies.get(network);
+        return window==null ? -1L : window.percentile(0.5);
+    }
+
+    /**
+     * @return round trip to the peer predicted by its network coordinate, else its network's median ack latency
+     */
+    protected long expectedAckLatencyMs(NetworkPeer np) {
+        long rtt = coordinates==null ? -1L : coordinates.rttMs(np.getNetwork(), np.getId());
+        return rtt < 0 ? medianAckLatencyMs(np.getNetwork()) : rtt;
+    }
+
+    /**
+     * @return the peer on the available network where a message of the size costs least, or null
+     */
+    protected NetworkPeer cheapestPeer(NetworkPeer np, long size, Map<String,NetworkState> states) {
+        NetworkPeer cheapest = null;
+        double cheapestCost = Double.MAX_VALUE;
+        long now = now();
+        for(NetworkState ns : states.values()) {
+            if(ns.networkStatus != NetworkStatus.CONNECTED
+                    || !getCircuitBreaker(ns.network).isAvailable(now)
+                    || peerDB.getLocalPeerByNetwork(ns.network)==null) {
+                continue;
+            }
+            NetworkPeer peer = null;
+            if(ns.network == np.getNetwork()) {
+                peer = np;
+            } else if(np.getId()!=null) {
+                peer = peerDB.findPeerByNetwork(np.getId(), ns.network);
+            }
+            if(peer==null) {
+                continue;
+            }
+            double c = cost.cost(ns.network, size, expectedAckLatencyMs(peer), now);
+            if(c < cheapestCost) {
+                cheapest = peer;
+                cheapestCost = c;
+            }
+        }
+        if(cheapest==null || !getCircuitBreaker(cheapest.getNetwork()).allowRequest(now)) {
+            return null;
+        }
+        return cheapest;
+    }
+
+    /**
+     * @return network of the envelope's External Route
+     */
+    protected Network routedNetwork(Envelope e) {
+        Route r = e.getRoute();
+        Network network = r==null ? null : getNetworkFromService(r.getService());
+        if(network==null) {
+            r = e.getDynamicRoutingSlip().peekAtNextRoute();
+            network = r==null ? null : getNetworkFromService(r.getService());
+        }
+        return network;
+    }
+
+    /**
+     * CONNECTED and its circuit breaker lets a send through.
+     */
+    protected boolean isNetworkAvailable(Network network, Map<String,NetworkState> states) {
+        NetworkState ns = states.get(network.name());
+        return ns!=null
+                && ns.networkStatus == NetworkStatus.CONNECTED
+                && getCircuitBreaker(network).allowRequest(now());
+    }
+
+    /**
+     * @return the peer on another available network it is known on, or null
+     */
+    protected NetworkPeer failoverPeer(NetworkPeer np, Network unavailable, Map<String,NetworkState> states) {
+        if(np.getId()==null) {
+            return null;
+        }
+        long now = now();
+        for(NetworkState ns : states.values()) {
+            if(ns.network == unavailable
+                    || ns.networkStatus != NetworkStatus.CONNECTED
+                    || !getCircuitBreaker(ns.network).isAvailable(now)
+                    || peerDB.getLocalPeerByNetwork(ns.network)==null) {
+                continue;
+            }
+            NetworkPeer alternate = peerDB.findPeerByNetwork(np.getId(), ns.network);
+            if(alternate!=null && getCircuitBreaker(ns.network).allowRequest(now)) {
+                return alternate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the peer on the network it last took delivery on while that network stays healthy,
+     * on an alternative network when a re-probe is due, else null to select the network from scratch
+     */
+    protected NetworkPeer affinityPeer(NetworkPeer np, Map<String,NetworkState> states) {
+        if(np.getId()==null) {
+            return null;
+        }
+        long now = now();
+        Network sticky = affinity.preferred(np.getId(), now);
+        if(sticky==null) {
+            return null;
+        }
+        if(affinity.reprobe(np.getId(), now)) {
+            NetworkPeer alternate = failoverPeer(np, sticky, states);
+            if(alternate!=null) {
+                return alternate;
+            }
+        }
+        if(!isNetworkAvailable(sticky, states)) {
+            return null;
+        }
+        return sticky==np.getNetwork() ? np : peerDB.findPeerByNetwork(np.getId(), sticky);
+    }
+
+    protected CircuitBreaker getCircuitBreaker(Network network) {
+        return breakers.computeIfAbsent(network, n -> new CircuitBreaker(breakerFailureThreshold, breakerOpenMs));
+    }
+
+    protected void recordSendOutcome(Network network, boolean sent) {
+        if(network==null) return;
+        if(sent) {
+            getCircuitBreaker(network).recordSuccess();
+        } else {
+            getCircuitBreaker(network).recordFailure(now());
+        }
+    }
+
+    /**
+     * Called once per SEND/PUBLISH envelope when it has either been handed to its network service or failed.
+     */
+    protected void sendComplete(Envelope e, ResponseCodes code) {
+        switch (code) {
+            case SENT: return;
+            case UNABLE_TO_SELECT_PEER_NETWORK:
+            case LOCAL_PEER_FOR_NETWORK_NOT_AVAILABLE:
+            case SEND_FAILED: {
+                // Network not available; hold until it is
+                if(holdNetwork(e)!=null && sendToMessageHold(e)) {
+                    return;
+                }
+            }
+            default: {
+                LOG.warning(code.name());
+                deadLetter(e);
+            }
+        }
+    }
+
+    /**
+     * Record an ack round trip from a remote peer.
+     */
+    protected void recordAck(NetworkPeer np, long latencyMs) {
+        if(np==null || np.getNetwork()==null) return;
+        ackLatencies.computeIfAbsent(np.getNetwork(), n -> new LatencyWindow(256)).add(latencyMs);
+        coordinates.observe(np.getNetwork(), np.getId(), latencyMs);
+        if(graph!=null && np.getId()!=null) {
+            graph.observe(RelationshipGraph.LOCAL, np.getId(), np.getNetwork(), latencyMs, now());
+        }
+        getCircuitBreaker(np.getNetwork()).recordSuccess();
+        if(np.getId()!=null) {
+            affinity.acked(np.getId(), np.getNetwork(), latencyMs, now());
+            peerDB.peerAcked(np, latencyMs);
+        }
+    }
+
+    /**
+     * An expected ack from the peer did not arrive in time.
+     */
+    protected void ackTimeout(NetworkPeer np) {
+        if(np==null || np.getNetwork()==null) return;
+        LOG.fine("Ack timed out on "+np.getNetwork().name());
+        getCircuitBreaker(np.getNetwork()).recordFailure(now());
+        peerDB.peerTimedOut(np);
+    }
+
+    /**
+     * @return how long to wait for an ack on the network before hedging: its p95 ack latency, else the SLA 1 target
+     */
+    protected long hedgeDelayMs(Network network) {
+        LatencyWindow window = ackLatencies.get(network);
+        long p95 = window==null ? -1 : window.percentile(0.95);
+        return p95 > 0 ? p95 : stats.sla1AvgAckLatencyMs;
+    }
+
+    /**
+     * As with routing, only the network the peer was addressed on unless the envelope allows rerouting,
+     * and never a clearnet network for a Tor or I2P destination.
+     * @return the destination peer on each CONNECTED network it may be sent on, lowest p95 ack latency first
+     */
+    protected List<NetworkPeer> hedgeCandidates(Envelope e, NetworkPeer np) {
+        List<NetworkPeer> candidates = new ArrayList<>();
+        boolean reroute = isRerouteAllowed(e);
+        boolean anonymous = isAnonymous(np.getNetwork());
+        long now = now();
+        for(NetworkState ns : networkStates.values()) {
+            if(ns.networkStatus != NetworkStatus.CONNECTED
+                    || !getCircuitBreaker(ns.network).isAvailable(now)
+                    || peerDB.getLocalPeerByNetwork(ns.network)==null
+                    || (!reroute && ns.network != np.getNetwork())
+                    || (anonymous && !isAnonymous(ns.network))) {
+                continue;
+            }
+            NetworkPeer peer = null;
+            if(ns.network == np.getNetwork()) {
+                peer = np;
+            } else if(np.getId()!=null) {
+                peer = peerDB.findPeerByNetwork(np.getId(), ns.network);
+            }
+            if(peer!=null) {
+                candidates.add(peer);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(p -> {
+            LatencyWindow window = ackLatencies.get(p.getNetwork());
+            long p95 = window==null ? -1 : window.percentile(0.95);
+            return p95 < 0 ? Long.MAX_VALUE : p95;
+        }));
+        return candidates;
+    }
+
     protected Tuple2<Boolean, ResponseCodes> setExternalRoute(NetworkPeer np, Envelope e) {
-        // Get preferred Network service
+        return setExternalRoute(np, e, networkStates);
+    }
+
+    protected Tuple2<Boolean, ResponseCodes> setExternalRoute(NetworkPeer np, Envelope e, Map<String,NetworkState> states) {
+        return setExternalRoute(np, e, states, 0L);
+    }
+
+    protected Tuple2<Boolean, ResponseCodes> setExternalRoute(NetworkPeer np, Envelope e, Map<String,NetworkState> states, long size) {
         Route nextRoute = e.getDynamicRoutingSlip().peekAtNextRoute();
-        Network preferredNetwork = null;
-        if(nextRoute instanceof ExternalRoute) {
-            preferredNetwork = getNetworkFromService(nextRoute.getService());
-        } else {
+        if(!(nextRoute instanceof ExternalRoute)) {
             LOG.warning("Next route must be an ExternalRoute.");
             return new Tuple2<>(false,ResponseCodes.NEXT_ROUTE_MUST_BE_AN_EXTERNAL_ROUTE);
         }
-        if(preferredNetwork!=null) {
-            NetworkState networkState = networkStates.get(preferredNetwork.name());
-            if (networkState == null || networkState.networkStatus != NetworkStatus.CONNECTED) {
-                preferredNetwork = null;
-            }
+        return applyRoute(resolveRoute(np, states, size, isRerouteAllowed(e)), e);
+    }
+
+    private static boolean isAnonymous(Network network) {
+        return network==Network.Tor || network==Network.I2P;
+    }
+
+    /**
+     * @return true if the envelope's REROUTE NVP lets routing leave the peer's network
+     */
+    protected boolean isRerouteAllowed(Envelope e) {
+        Object reroute = e.getValue(REROUTE);
+        return reroute!=null && Boolean.parseBoolean(reroute.toString());
+    }
+
+    protected RouteResolution resolveRoute(NetworkPeer np, Map<String,NetworkState> states) {
+        return resolveRoute(np, states, 0L, false);
+    }
+
+    /**
+     * Select the network, network service and local peer to reach the peer through.
+     * The network the peer was addressed on, or the Tor or I2P one it is known on, is kept unless
+     * rerouting is allowed; otherwise cost, affinity and failover may pick another it is known on.
+     * @param size bytes to send; messages at or above the cost threshold go to the cheapest network
+     * @param reroute true to let routing take another network than the peer's
+     */
+    protected RouteResolution resolveRoute(NetworkPeer np, Map<String,NetworkState> states, long size, boolean reroute) {
+        RouteEvent event = Jfr.AVAILABLE ? new RouteEvent() : null;
+        if(event!=null) event.begin();
+        RouteResolution rr = selectRoute(np, states, size, reroute);
+        if(event!=null) event.end();
+        if(event!=null && event.shouldCommit()) {
+            event.peerId = np.getId();
+            event.requestedNetwork = np.getNetwork()==null ? null : np.getNetwork().name();
+            event.network = rr.isResolved() && rr.getDestination().getNetwork()!=null ? rr.getDestination().getNetwork().name() : null;
+            event.service = rr.getService();
+            event.code = rr.getCode().name();
+            event.size = size;
+            event.commit();
         }
+        return rr;
+    }
+
+    private RouteResolution selectRoute(NetworkPeer np, Map<String,NetworkState> states, long size, boolean reroute) {
         Network peerNetwork = np.getNetwork();
         if(peerNetwork==null) {
             if(np.getDid()!=null && np.getDid().getPublicKey()!=null && np.getDid().getPublicKey().getAddress()!=null) {
@@ -464,52 +1576,98 @@ public class NetworkManagerService extends BaseService {
                 NetworkPeer npFound = peerDB.findPeer(np);
                 if (npFound != null && npFound.getNetwork() != null) {
                     peerNetwork = npFound.getNetwork();
-                    NetworkState networkState = networkStates.get(peerNetwork.name());
-                    if (networkState == null || networkState.networkStatus != NetworkStatus.CONNECTED) {
-                        peerNetwork = null;
-                    }
                 }
             }
-        } else {
-            NetworkState ns = networkStates.get(peerNetwork.name());
-            if(ns==null || ns.networkStatus != NetworkStatus.CONNECTED) {
+        }
+        boolean pinned = !reroute && (np.getNetwork()!=null || isAnonymous(peerNetwork));
+        NetworkPeer sticky = null;
+        if(!pinned) {
+            sticky = cost.isCostRouted(size) ? cheapestPeer(np, size, states) : null;
+            if(sticky==null) {
+                sticky = affinityPeer(np, states);
+            }
+        }
+        if(sticky!=null) {
+            // Already checked available
+            np = sticky;
+            peerNetwork = sticky.getNetwork();
+        }
+        if(sticky==null && peerNetwork!=null && !isNetworkAvailable(peerNetwork, states)) {
+            // Fail over to another network the peer is known on
+            NetworkPeer alternate = pinned ? null : failoverPeer(np, peerNetwork, states);
+            if(alternate!=null) {
+                np = alternate;
+                peerNetwork = alternate.getNetwork();
+            } else {
                 peerNetwork = null;
             }
         }
         if(peerNetwork==null) {
-            return new Tuple2<>(false, ResponseCodes.UNABLE_TO_SELECT_PEER_NETWORK);
+            return RouteResolution.failed(ResponseCodes.UNABLE_TO_SELECT_PEER_NETWORK);
         }
         String service = getNetworkServiceFromNetwork(peerNetwork);
         if(service==null) {
-            return new Tuple2<>(false, ResponseCodes.SERVICE_NOT_FOUND_FOR_NETWORK);
+            return RouteResolution.failed(ResponseCodes.SERVICE_NOT_FOUND_FOR_NETWORK);
         }
         NetworkPeer lp = peerDB.getLocalPeerByNetwork(peerNetwork);
-        nextRoute = e.getRoute();
         if (lp == null) {
-            return new Tuple2<>(false, ResponseCodes.LOCAL_PEER_FOR_NETWORK_NOT_AVAILABLE);
-        } else if(nextRoute==null) {
-            e.addExternalRoute(service, "SEND", lp, np);
+            return RouteResolution.failed(ResponseCodes.LOCAL_PEER_FOR_NETWORK_NOT_AVAILABLE);
+        }
+        return RouteResolution.resolved(service, lp, np);
+    }
+
+    /**
+     * Set the envelope's External Route to the resolved one.
+     */
+    protected Tuple2<Boolean, ResponseCodes> applyRoute(RouteResolution rr, Envelope e) {
+        if(!rr.isResolved()) {
+            return new Tuple2<>(false, rr.getCode());
+        }
+        Route nextRoute = e.getRoute();
+        if(nextRoute==null) {
+            e.addExternalRoute(rr.getService(), "SEND", rr.getOrigination(), rr.getDestination());
             return new Tuple2<>(true, ResponseCodes.READY);
         } else if(nextRoute instanceof SimpleExternalRoute) {
             BaseRoute baseRoute = (BaseRoute) nextRoute;
-            baseRoute.setService(service);
+            baseRoute.setService(rr.getService());
             baseRoute.setOperation("SEND"); // Ensure it is sending
             SimpleExternalRoute extRoute = (SimpleExternalRoute) nextRoute;
-            extRoute.setOrigination(lp);
-            extRoute.setDestination(np);
+            extRoute.setOrigination(rr.getOrigination());
+            extRoute.setDestination(rr.getDestination());
             return new Tuple2<>(true, ResponseCodes.READY);
         }
         return new Tuple2<>(false, ResponseCodes.UNABLE_TO_DETERMINE_EXTERNAL_ROUTE);
     }
 
+    /**
+     * @return key identifying the peer within a batch, null if it has neither id nor address
+     */
+    static String routeKey(NetworkPeer np) {
+        String network = np.getNetwork()==null ? "" : np.getNetwork().name();
+        if(np.getId()!=null) {
+            return network + ":" + np.getId();
+        }
+        if(np.getDid()!=null && np.getDid().getPublicKey()!=null && np.getDid().getPublicKey().getAddress()!=null) {
+            return network + "@" + np.getDid().getPublicKey().getAddress();
+        }
+        return null;
+    }
+
     @Override
     public boolean start(Properties p) {
         super.start(p);
         LOG.info("Initializing...");
         updateStatus(ServiceStatus.INITIALIZING);
         try {
+            startProperties = p;
             config = Config.loadAll(p, "ra-network-manager.config");
             stats = new Stats(config);
+            if(config.getProperty("ra.networkmanager.breaker.failureThreshold")!=null) {
+                breakerFailureThreshold = Integer.parseInt(config.getProperty("ra.networkmanager.breaker.failureThreshold"));
+            }
+            if(config.getProperty("ra.networkmanager.breaker.openMs")!=null) {
+                breakerOpenMs = Long.parseLong(config.getProperty("ra.networkmanager.breaker.openMs"));
+            }
         } catch (Exception e) {
             LOG.severe(e.getLocalizedMessage());
             return false;
@@ -520,34 +1678,276 @@ public class NetworkManagerService extends BaseService {
             LOG.severe("Unable to create message hold directory.");
             return false;
         }
+        // Always opened so messages held while blobs were enabled can still be read
+        blobs = new BlobStore(new File(getServiceDirectory(), "blob"));
+        hold = new MessageHold(messageHold, blobs, config);
+        hold.load();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "NetworkManager-Scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        hedgedSender = new HedgedSender(this, scheduler, config);
+        affinity = new PeerAffinity(config);
+        gossipGuard = new GossipGuard(config);
+        stateCoalescer = new StateCoalescer(scheduler, this::publishNetworkState, clock, config);
+        cost = new NetworkCost(config);
+        coordinates = new NetworkCoordinates(config);
+        if(SendCoalescer.isEnabled(config)) {
+            coalescer = new SendCoalescer(this, scheduler, config);
+        }
+        recorder = openRecorder(config);
+        if("true".equals(config.getProperty("ra.networkmanager.relay.enabled"))) {
+            graph = new RelationshipGraph(config);
+        }
+        // Scheduled whether or not relaying is enabled as reconfiguring may enable it
+        scheduler.scheduleWithFixedDelay(() -> {
+            RelationshipGraph g = graph;
+            int pruned = g==null ? 0 : g.prune(now() - g.getEdgeTtlMs());
+            if(pruned > 0) {
+                LOG.fine("Pruned "+pruned+" stale relationships.");
+            }
+        }, 5, 5, TimeUnit.MINUTES);
 
         initPeerDB();
+        initSendPipeline();
         initDelayedSend();
         initDiscovery();
+        initPeerSweeper();
 
         updateStatus(ServiceStatus.RUNNING);
         return true;
     }
 
     protected boolean initPeerDB() {
-        this.peerDB = new InMemoryPeerDB(); // Default
+        if("true".equals(config.getProperty("ra.networkmanager.replication.enabled"))) {
+            this.peerDB = new ReplicatedPeerDB();
+        } else {
+            this.peerDB = new InMemoryPeerDB(); // Default
+        }
+        this.peerDB.setClock(clock);
         return this.peerDB.init(config);
     }
 
+    /**
+     * @return recorder if enabled in the config, else or if the trace cannot be created null
+     */
+    private TrafficRecorder openRecorder(Properties p) {
+        if(!TrafficRecorder.isEnabled(p)) {
+            return null;
+        }
+        File trace = p.getProperty("ra.networkmanager.recorder.file")==null
+                ? new File(getServiceDirectory(), "traffic-" + System.currentTimeMillis() + ".trace")
+                : new File(p.getProperty("ra.networkmanager.recorder.file"));
+        try {
+            return new TrafficRecorder(trace, p);
+        } catch (IOException ex) {
+            LOG.warning("Unable to record traffic: "+ex.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    protected void initSendPipeline() {
+        if(SendPipeline.isEnabled(config)) {
+            sendPipeline = new SendPipeline(this, config);
+            sendPipeline.start();
+        }
+    }
+
     protected void initDelayedSend() {
-        DelayedSend del = new DelayedSend(this, taskRunner, messageHold);
-        del.setDelayed(true);
-        del.setDelayTimeMS(10 *1000L); // Delay by 10 seconds
-        del.setPeriodicity(60 * 1000L); // Check every minute
-        taskRunner.addTask(del);
+        delayedSend = new DelayedSend(this, taskRunner, hold);
+        delayedSend.setDelayed(true);
+        delayedSend.setDelayTimeMS(10 *1000L); // Delay by 10 seconds
+        delayedSend.setPeriodicity(periodMs(config, "ra.networkmanager.hold.sendPeriodMs"));
+        if(config.getProperty("ra.networkmanager.hold.maxPerRun")!=null) {
+            delayedSend.setMaxPerRun(Integer.parseInt(config.getProperty("ra.networkmanager.hold.maxPerRun")));
+        }
+        taskRunner.addTask(delayedSend);
     }
 
     protected void initDiscovery() {
-        NetworkDiscovery overlay = new NetworkDiscovery(taskRunner, this, peerDB, config);
-        overlay.setDelayed(true);
-        overlay.setDelayTimeMS(40 * 1000L); // Delay for 40 seconds to start 30 seconds after DelaySend task
-        overlay.setPeriodicity(60 * 1000L); // Check every minute
-        taskRunner.addTask(overlay);
+        discovery = new NetworkDiscovery(taskRunner, this, peerDB, config);
+        discovery.setDelayed(true);
+        discovery.setDelayTimeMS(40 * 1000L); // Delay for 40 seconds to start 30 seconds after DelaySend task
+        discovery.setPeriodicity(discovery.getSettings().getPeriodMs());
+        taskRunner.addTask(discovery);
+    }
+
+    protected void initPeerSweeper() {
+        peerSweeper = new PeerSweeper(taskRunner, this, peerDB, clock);
+        peerSweeper.setDelayed(true);
+        peerSweeper.setDelayTimeMS(5 * 60 * 1000L); // Let discovery refresh peers first after a restart
+        peerSweeper.setPeriodicity(periodMs(config, "ra.networkmanager.peerdb.liveness.sweepPeriodMs"));
+        taskRunner.addTask(peerSweeper);
+    }
+
+    /**
+     * @return task period under the key, every minute by default
+     */
+    private static long periodMs(Properties p, String key) {
+        if(p.getProperty(key)==null) {
+            return 60 * 1000L;
+        }
+        return Long.parseLong(p.getProperty(key));
+    }
+
+    /**
+     * Apply configuration changes in place: Stats thresholds, discovery limits and caps, task periods
+     * and the Peer DB's liveness and sampling settings directly; breakers, hedging, affinity, gossip and relay
+     * limits, state and send coalescing, cost, coordinates, the send pipeline, recording and the relationship
+     * graph by rebuilding the component whose settings changed. Peers and held messages are kept; a rebuilt
+     * component starts without the state it learned, e.g. open breakers or relationships.
+     * Settings of the message hold's retries and blobs and of replication only apply on a stop and start,
+     * so changing them is rejected, listing the keys.
+     * Everything is parsed before anything is applied so a bad value leaves the running configuration as is.
+     * Lowered caps stop growth rather than evicting peers, and peers are reclassified as their acks arrive.
+     */
+    public synchronized boolean reconfigure(Properties changes) {
+        Properties next = new Properties();
+        next.putAll(config);
+        next.putAll(changes);
+        Set<String> changed = new TreeSet<>();
+        for(String key : next.stringPropertyNames()) {
+            if(!next.getProperty(key).equals(config.getProperty(key))) {
+                changed.add(key);
+            }
+        }
+        List<String> notLive = new ArrayList<>();
+        for(String key : changed) {
+            if(startsWithAny(key, NOT_LIVE)) {
+                notLive.add(key);
+            }
+        }
+        if(!notLive.isEmpty()) {
+            LOG.warning("Reconfiguration rejected; only applied on a stop and start: "+notLive);
+            return false;
+        }
+        Stats nextStats;
+        NetworkDiscovery.Settings nextDiscovery;
+        long sendPeriodMs;
+        int maxPerRun;
+        long sweepPeriodMs;
+        int nextFailureThreshold;
+        long nextOpenMs;
+        HedgedSender nextHedgedSender = hedgedSender;
+        PeerAffinity nextAffinity = affinity;
+        GossipGuard nextGossipGuard = gossipGuard;
+        StateCoalescer nextStateCoalescer = stateCoalescer;
+        NetworkCost nextCost = cost;
+        NetworkCoordinates nextCoordinates = coordinates;
+        RelationshipGraph nextGraph = graph;
+        boolean rebuildCoalescer = anyStartsWith(changed, "ra.networkmanager.coalesce.");
+        boolean rebuildPipeline = anyStartsWith(changed, "ra.networkmanager.pipeline.");
+        boolean rebuildRecorder = anyStartsWith(changed, "ra.networkmanager.recorder.");
+        try {
+            nextStats = new Stats(next);
+            nextDiscovery = new NetworkDiscovery.Settings(next);
+            sendPeriodMs = periodMs(next, "ra.networkmanager.hold.sendPeriodMs");
+            maxPerRun = next.getProperty("ra.networkmanager.hold.maxPerRun")==null ? 0
+                    : Integer.parseInt(next.getProperty("ra.networkmanager.hold.maxPerRun"));
+            sweepPeriodMs = periodMs(next, "ra.networkmanager.peerdb.liveness.sweepPeriodMs");
+            nextFailureThreshold = next.getProperty("ra.networkmanager.breaker.failureThreshold")==null ? breakerFailureThreshold
+                    : Integer.parseInt(next.getProperty("ra.networkmanager.breaker.failureThreshold"));
+            nextOpenMs = next.getProperty("ra.networkmanager.breaker.openMs")==null ? breakerOpenMs
+                    : Long.parseLong(next.getProperty("ra.networkmanager.breaker.openMs"));
+            if(anyStartsWith(changed, "ra.networkmanager.hedge.")) {
+                nextHedgedSender = new HedgedSender(this, scheduler, next);
+            }
+            if(anyStartsWith(changed, "ra.networkmanager.affinity.")) {
+                nextAffinity = new PeerAffinity(next);
+            }
+            if(anyStartsWith(changed, "ra.networkmanager.gossip.") || anyStartsWith(changed, "ra.networkmanager.relay.")) {
+                nextGossipGuard = new GossipGuard(next);
+            }
+            if(anyStartsWith(changed, "ra.networkmanager.stateCoalesce.")) {
+                nextStateCoalescer = new StateCoalescer(scheduler, this::publishNetworkState, clock, next);
+            }
+            if(anyStartsWith(changed, "ra.networkmanager.cost.")) {
+                nextCost = new NetworkCost(next);
+            }
+            if(anyStartsWith(changed, "ra.networkmanager.coordinates.")) {
+                nextCoordinates = new NetworkCoordinates(next);
+            }
+            if(anyStartsWith(changed, "ra.networkmanager.relay.")) {
+                nextGraph = "true".equals(next.getProperty("ra.networkmanager.relay.enabled")) ? new RelationshipGraph(next) : null;
+            }
+            if(rebuildCoalescer && SendCoalescer.isEnabled(next)) {
+                new SendCoalescer(this, scheduler, next);
+            }
+            if(rebuildPipeline && SendPipeline.isEnabled(next)) {
+                new SendPipeline(this, next);
+            }
+            if(rebuildRecorder) {
+                for(String key : new String[]{"ra.networkmanager.recorder.maxBytes", "ra.networkmanager.recorder.queueSize"}) {
+                    if(next.getProperty(key)!=null) Long.parseLong(next.getProperty(key));
+                }
+            }
+        } catch (NumberFormatException | NullPointerException ex) {
+            LOG.warning("Reconfiguration rejected: "+ex.getMessage());
+            return false;
+        }
+        if(!peerDB.reconfigure(next)) {
+            LOG.warning("Reconfiguration rejected by the Peer DB.");
+            return false;
+        }
+        stats = nextStats;
+        discovery.configure(nextDiscovery);
+        delayedSend.setPeriodicity(sendPeriodMs);
+        delayedSend.setMaxPerRun(maxPerRun);
+        peerSweeper.setPeriodicity(sweepPeriodMs);
+        if(nextFailureThreshold!=breakerFailureThreshold || nextOpenMs!=breakerOpenMs) {
+            breakerFailureThreshold = nextFailureThreshold;
+            breakerOpenMs = nextOpenMs;
+            breakers.clear();
+        }
+        hedgedSender = nextHedgedSender;
+        affinity = nextAffinity;
+        gossipGuard = nextGossipGuard;
+        stateCoalescer = nextStateCoalescer;
+        cost = nextCost;
+        coordinates = nextCoordinates;
+        graph = nextGraph;
+        config = next;
+        if(rebuildCoalescer) {
+            SendCoalescer previous = coalescer;
+            coalescer = SendCoalescer.isEnabled(next) ? new SendCoalescer(this, scheduler, next) : null;
+            if(previous!=null) {
+                previous.flushAll();
+            }
+        }
+        if(rebuildPipeline) {
+            SendPipeline previous = sendPipeline;
+            sendPipeline = null;
+            initSendPipeline();
+            if(previous!=null) {
+                // Hands what it still has queued to the hold
+                previous.shutdown();
+            }
+        }
+        if(rebuildRecorder) {
+            TrafficRecorder previous = recorder;
+            recorder = openRecorder(next);
+            if(previous!=null) {
+                previous.close();
+            }
+        }
+        LOG.info("Reconfigured "+changed.size()+" settings.");
+        return true;
+    }
+
+    private static boolean anyStartsWith(Set<String> keys, String prefix) {
+        for(String key : keys) {
+            if(key.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    private static boolean startsWithAny(String key, String[] prefixes) {
+        for(String prefix : prefixes) {
+            if(key.startsWith(prefix)) return true;
+        }
+        return false;
     }
 
     @Override
@@ -565,8 +1965,24 @@ public class NetworkManagerService extends BaseService {
     @Override
     public boolean restart() {
         LOG.info("Restarting...");
-        gracefulShutdown();
-        start(config);
+        if(scheduler==null) {
+            // Not running, so nothing to apply in place: start afresh; tasks left on the TaskRunner by
+            // an earlier start stand down once replaced
+            shutdown();
+            return start(startProperties==null ? new Properties() : startProperties);
+        }
+        // Re-read the config and apply it in place; stopping and starting again would register the
+        // tasks on the TaskRunner a second time and empty the Peer DB
+        Properties reloaded;
+        try {
+            reloaded = Config.loadAll(startProperties, "ra-network-manager.config");
+        } catch (Exception e) {
+            LOG.severe(e.getLocalizedMessage());
+            return false;
+        }
+        if(!reconfigure(reloaded)) {
+            return false;
+        }
         LOG.info("Restarted.");
         return true;
     }
@@ -574,6 +1990,26 @@ public class NetworkManagerService extends BaseService {
     @Override
     public boolean shutdown() {
         LOG.info("Shutting down...");
+        if(recorder!=null) {
+            recorder.close();
+            recorder = null;
+        }
+        if(coalescer!=null) {
+            coalescer.flushAll();
+            coalescer = null;
+        }
+        if(sendPipeline!=null) {
+            sendPipeline.shutdown();
+            sendPipeline = null;
+        }
+        if(scheduler!=null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if(peerDB!=null) {
+            // A replicated Peer DB leaves its channel and stops flushing
+            peerDB.teardown();
+        }
 
         updateStatus(ServiceStatus.SHUTDOWN);
         LOG.info("Shutdown.");
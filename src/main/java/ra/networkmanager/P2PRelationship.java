@@ -3,6 +3,7 @@ package ra.networkmanager;
 import ra.common.JSONSerializable;
 import ra.common.JSONParser;
 import ra.common.JSONPretty;
+import ra.common.network.Network;
 import ra.common.network.NetworkPeer;
 
 import java.util.*;
@@ -39,7 +40,7 @@ public class P2PRelationship implements JSONSerializable {
     }
 
     public Long getAvgAckLatencyMS() {
-        if(ackTimes==null) return 0L;
+        if(ackTimes==null || ackTimes.isEmpty()) return 0L;
         long sum = 0L;
         for (long ts : ackTimes) {
             sum += ts;
@@ -48,8 +49,8 @@ public class P2PRelationship implements JSONSerializable {
     }
 
     public Long getMedAckLatencyMS() {
-        if(ackTimes==null) return 0L;
-        ackTimes.sort((t1, t2) -> (int)(t1 - t2));
+        if(ackTimes==null || ackTimes.isEmpty()) return 0L;
+        ackTimes.sort(Long::compare);
         return ackTimes.get(ackTimes.size() / 2);
     }
 
@@ -74,6 +75,34 @@ public class P2PRelationship implements JSONSerializable {
         return getAvgAckLatencyMS() < 1000 && getMedAckLatencyMS() < 1000;
     }
 
+    public Boolean isReliable(Stats stats, Network network) {
+        return getTotalAcks() >= stats.reliableTotalAcks
+                && acksWithin(stats.reliableMedAckLatencyMs(network)) >= stats.reliableLatencyThresholdAcks
+                && getAvgAckLatencyMS() <= stats.reliableAvgAckLatencyMs(network)
+                && getMedAckLatencyMS() <= stats.reliableMedAckLatencyMs(network);
+    }
+
+    public Boolean isSuperReliable(Stats stats, Network network) {
+        return getTotalAcks() >= stats.superReliableTotalAcks
+                && acksWithin(stats.superReliableMedAckLatencyMs(network)) >= stats.superReliableLatencyThresholdAcks
+                && getAvgAckLatencyMS() <= stats.superReliableAvgAckLatencyMs(network)
+                && getMedAckLatencyMS() <= stats.superReliableMedAckLatencyMs(network);
+    }
+
+    public Boolean isRealTime(Stats stats) {
+        return getTotalAcks() >= stats.lowLatencyMinAcks
+                && getAvgAckLatencyMS() <= stats.sla1AvgAckLatencyMs
+                && getMedAckLatencyMS() <= stats.sla1MedAckLatencyMs;
+    }
+
+    private int acksWithin(long latencyMs) {
+        int within = 0;
+        for(long ts : ackTimes) {
+            if(ts <= latencyMs) within++;
+        }
+        return within;
+    }
+
     public Map<String, Object> toMap() {
         Map<String, Object> m = new HashMap<>();
 
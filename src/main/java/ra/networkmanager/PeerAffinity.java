@@ -0,0 +1,148 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Bounded, least-recently-used table of the network each peer last took delivery on and its ack latency.
+ *
+ * The router sticks to that network while it stays healthy, i.e. it delivered within healthyMs,
+ * and every reprobeMs lets one send try an alternative so a faster network can take over.
+ */
+public class PeerAffinity {
+
+    private final Integer maxPeers;
+    private final Long healthyMs;
+    private final Long reprobeMs;
+
+    private final Map<String,Affinity> affinities;
+
+    public static class Affinity {
+        Network network;
+        long latencyMs = -1L;
+        long lastSuccess;
+        long lastProbe;
+
+        public Network getNetwork() {
+            return network;
+        }
+
+        /**
+         * @return last ack latency on the network, -1 if only hand-offs have been seen
+         */
+        public long getLatencyMs() {
+            return latencyMs;
+        }
+
+        public long getLastSuccess() {
+            return lastSuccess;
+        }
+    }
+
+    public PeerAffinity(Properties p) {
+        if(p.getProperty("ra.networkmanager.affinity.maxPeers")==null) {
+            maxPeers = 10000;
+        } else {
+            maxPeers = Integer.parseInt(p.getProperty("ra.networkmanager.affinity.maxPeers"));
+        }
+        if(p.getProperty("ra.networkmanager.affinity.healthyMs")==null) {
+            healthyMs = 10 * 60 * 1000L;
+        } else {
+            healthyMs = Long.parseLong(p.getProperty("ra.networkmanager.affinity.healthyMs"));
+        }
+        if(p.getProperty("ra.networkmanager.affinity.reprobeMs")==null) {
+            reprobeMs = 5 * 60 * 1000L;
+        } else {
+            reprobeMs = Long.parseLong(p.getProperty("ra.networkmanager.affinity.reprobeMs"));
+        }
+        affinities = new LinkedHashMap<String,Affinity>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Affinity> eldest) {
+                return size() > maxPeers;
+            }
+        };
+    }
+
+    /**
+     * @return network to stick to for the peer, or null if none is known or it is no longer healthy
+     */
+    public synchronized Network preferred(String peerId, long now) {
+        Affinity a = affinities.get(peerId);
+        if(a==null || now - a.lastSuccess > healthyMs) {
+            return null;
+        }
+        return a.network;
+    }
+
+    /**
+     * Claim a re-probe of alternative networks for the peer if one is due.
+     */
+    public synchronized boolean reprobe(String peerId, long now) {
+        Affinity a = affinities.get(peerId);
+        if(a==null || now - a.lastProbe < reprobeMs) {
+            return false;
+        }
+        a.lastProbe = now;
+        return true;
+    }
+
+    /**
+     * Envelope for the peer handed off to the network's service.
+     */
+    public synchronized void sent(String peerId, Network network, long now) {
+        Affinity a = affinities.get(peerId);
+        if(a==null) {
+            a = new Affinity();
+            a.network = network;
+            a.lastProbe = now;
+            affinities.put(peerId, a);
+        } else if(a.network != network) {
+            // A hand-off alone only moves the peer off a network that stopped delivering
+            if(now - a.lastSuccess <= healthyMs) return;
+            a.network = network;
+            a.latencyMs = -1L;
+        }
+        a.lastSuccess = now;
+    }
+
+    /**
+     * Ack from the peer received over the network.
+     */
+    public synchronized void acked(String peerId, Network network, long latencyMs, long now) {
+        Affinity a = affinities.get(peerId);
+        if(a==null) {
+            a = new Affinity();
+            a.lastProbe = now;
+            affinities.put(peerId, a);
+        } else if(a.network != network
+                && a.latencyMs >= 0
+                && latencyMs >= a.latencyMs
+                && now - a.lastSuccess <= healthyMs) {
+            return; // Current network is healthy and at least as fast
+        }
+        a.network = network;
+        a.latencyMs = latencyMs;
+        a.lastSuccess = now;
+    }
+
+    /**
+     * Send to the peer failed on the network; forget it if it is the one we stick to.
+     */
+    public synchronized void failed(String peerId, Network network) {
+        Affinity a = affinities.get(peerId);
+        if(a!=null && a.network == network) {
+            affinities.remove(peerId);
+        }
+    }
+
+    public synchronized Affinity get(String peerId) {
+        return affinities.get(peerId);
+    }
+
+    public synchronized int size() {
+        return affinities.size();
+    }
+}
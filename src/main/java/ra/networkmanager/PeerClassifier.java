@@ -0,0 +1,53 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+
+/**
+ * Classifies peers as Reliable, LowLatency or Banned from their ack history using the thresholds in {@link Stats},
+ * keeping the {@link PeerTable} membership lists current as each ack or timeout arrives.
+ *
+ * Medians are checked by counting acks within the median threshold: the median is within it
+ * once at least half of all acks are.
+ */
+public class PeerClassifier {
+
+    private final Stats stats;
+
+    public PeerClassifier(Stats stats) {
+        this.stats = stats;
+    }
+
+    public void acked(PeerTable peers, int slot, long latencyMs) {
+        if(!peers.isUsed(slot))
+            return;
+        Network n = peers.getNetwork(slot);
+        peers.ackedWithin(slot,
+                latencyMs <= stats.reliableMedAckLatencyMs(n),
+                latencyMs <= stats.sla1MedAckLatencyMs);
+        reclassify(peers, slot);
+    }
+
+    public void timedOut(PeerTable peers, int slot) {
+        if(!peers.isUsed(slot))
+            return;
+        reclassify(peers, slot);
+    }
+
+    public void reclassify(PeerTable peers, int slot) {
+        Network n = peers.getNetwork(slot);
+        int acks = peers.getAcks(slot);
+        int timeouts = peers.getTimeouts(slot);
+        long avg = peers.getAvgAckLatencyMs(slot);
+        int reliableAcks = peers.getReliableAcks(slot);
+        int lowLatencyAcks = peers.getLowLatencyAcks(slot);
+        peers.setClass(slot, RelType.Reliable, acks >= stats.reliableTotalAcks
+                && reliableAcks >= stats.reliableLatencyThresholdAcks
+                && reliableAcks * 2 >= acks
+                && avg <= stats.reliableAvgAckLatencyMs(n));
+        peers.setClass(slot, RelType.LowLatency, acks >= stats.lowLatencyMinAcks
+                && lowLatencyAcks * 2 >= acks
+                && avg <= stats.sla1AvgAckLatencyMs);
+        peers.setClass(slot, RelType.Banned, timeouts >= stats.bannedMinTimeouts
+                && acks * 100 < (acks + timeouts) * stats.bannedMaxAckPercent);
+    }
+}
@@ -0,0 +1,272 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary encoding of peer lists for the discovery exchange and the {@link PeerTable} records.
+ *
+ * Layout: version byte, string table (count, then length-prefixed UTF-8 strings), peer count, then each
+ * peer's {@link NetworkPeer#toMap()} tree as tagged values. Every string, key or value, is written once in
+ * the table and referenced by index, so network names, service names and map keys repeated across a list
+ * cost a byte or two each. Counts, lengths, indices and integers are varints.
+ * Decoding reads the tree straight into the map handed to {@link NetworkPeer#fromMap(Map)}.
+ */
+public class PeerCodec {
+
+    public static final byte VERSION = 1;
+
+    /**
+     * NVP carrying a peer list encoded with {@link #encodeBase64(List)}; the map form travels under "peers".
+     */
+    public static final String PEERS = "ra.networkmanager.peers.bin";
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte TRUE = 5;
+    private static final byte FALSE = 6;
+    private static final byte MAP = 7;
+    private static final byte LIST = 8;
+
+    private static final int MAX_DEPTH = 32;
+
+    public static byte[] encode(NetworkPeer peer) {
+        return encode(Collections.singletonList(peer));
+    }
+
+    public static byte[] encode(List<NetworkPeer> peers) {
+        Map<String,Integer> table = new LinkedHashMap<>();
+        Bytes body = new Bytes();
+        body.varint(peers.size());
+        for(NetworkPeer p : peers) {
+            value(body, p.toMap(), table);
+        }
+        Bytes out = new Bytes();
+        out.write(VERSION);
+        out.varint(table.size());
+        for(String s : table.keySet()) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            out.varint(utf8.length);
+            out.write(utf8, 0, utf8.length);
+        }
+        out.append(body);
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a peer list of a known version
+     */
+    public static List<NetworkPeer> decode(byte[] bytes) {
+        Reader in = new Reader(bytes);
+        int version = in.readByte();
+        if(version != VERSION) {
+            throw new IllegalArgumentException("Unsupported peer codec version: "+version);
+        }
+        String[] table = new String[in.varint()];
+        for(int i=0; i<table.length; i++) {
+            table[i] = in.string();
+        }
+        int count = in.varint();
+        List<NetworkPeer> peers = new ArrayList<>(Math.min(count, bytes.length));
+        for(int i=0; i<count; i++) {
+            Object v = in.value(table, 0);
+            if(!(v instanceof Map)) {
+                throw new IllegalArgumentException("Peer "+i+" is not a map");
+            }
+            Map<String,Object> m = (Map<String,Object>)v;
+            if(!(m.get("network") instanceof String)) {
+                throw new IllegalArgumentException("Peer "+i+" has no network");
+            }
+            NetworkPeer np = new NetworkPeer(Network.valueOf((String)m.get("network")));
+            np.fromMap(m);
+            peers.add(np);
+        }
+        return peers;
+    }
+
+    /**
+     * @return the single peer encoded with {@link #encode(NetworkPeer)}
+     */
+    public static NetworkPeer decodePeer(byte[] bytes) {
+        List<NetworkPeer> peers = decode(bytes);
+        return peers.isEmpty() ? null : peers.get(0);
+    }
+
+    public static String encodeBase64(List<NetworkPeer> peers) {
+        return Base64.getEncoder().encodeToString(encode(peers));
+    }
+
+    public static List<NetworkPeer> decodeBase64(String encoded) {
+        return decode(Base64.getDecoder().decode(encoded));
+    }
+
+    private static void value(Bytes out, Object v, Map<String,Integer> table) {
+        if(v==null) {
+            out.write(NULL);
+        } else if(v instanceof Boolean) {
+            out.write((Boolean)v ? TRUE : FALSE);
+        } else if(v instanceof Integer || v instanceof Short || v instanceof Byte) {
+            out.write(INT);
+            out.varint(zigzag(((Number)v).longValue()));
+        } else if(v instanceof Long) {
+            out.write(LONG);
+            out.varint(zigzag((Long)v));
+        } else if(v instanceof Number) {
+            out.write(DOUBLE);
+            long bits = Double.doubleToLongBits(((Number)v).doubleValue());
+            for(int i=56; i>=0; i-=8) out.write((byte)(bits >>> i));
+        } else if(v instanceof Map) {
+            // Sorted so equal peers encode to equal bytes
+            Map<String,Object> sorted = new TreeMap<>();
+            for(Map.Entry<?,?> e : ((Map<?,?>)v).entrySet()) {
+                sorted.put(String.valueOf(e.getKey()), e.getValue());
+            }
+            out.write(MAP);
+            out.varint(sorted.size());
+            for(Map.Entry<String,Object> e : sorted.entrySet()) {
+                out.varint(intern(e.getKey(), table));
+                value(out, e.getValue(), table);
+            }
+        } else if(v instanceof Collection) {
+            Collection<?> c = (Collection<?>)v;
+            out.write(LIST);
+            out.varint(c.size());
+            for(Object o : c) {
+                value(out, o, table);
+            }
+        } else {
+            // Strings, enums and anything else toMap() hands over is carried as its string form
+            out.write(STRING);
+            out.varint(intern(v.toString(), table));
+        }
+    }
+
+    private static int intern(String s, Map<String,Integer> table) {
+        Integer index = table.get(s);
+        if(index==null) {
+            index = table.size();
+            table.put(s, index);
+        }
+        return index;
+    }
+
+    private static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static class Bytes extends ByteArrayOutputStream {
+        void varint(long n) {
+            while((n & ~0x7FL) != 0) {
+                write((int)((n & 0x7F) | 0x80));
+                n >>>= 7;
+            }
+            write((int)n);
+        }
+
+        void append(Bytes other) {
+            write(other.buf, 0, other.count);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int pos = 0;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int readByte() {
+            if(pos >= bytes.length) {
+                throw new IllegalArgumentException("Truncated peer list");
+            }
+            return bytes[pos++];
+        }
+
+        long varlong() {
+            long n = 0;
+            for(int shift=0; shift<64; shift+=7) {
+                int b = readByte();
+                n |= (long)(b & 0x7F) << shift;
+                if((b & 0x80) == 0) return n;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        int varint() {
+            long n = varlong();
+            if(n < 0 || n > bytes.length) {
+                // No count or length can exceed the bytes that remain to hold it
+                throw new IllegalArgumentException("Invalid length: "+n);
+            }
+            return (int)n;
+        }
+
+        String string() {
+            int length = varint();
+            if(pos + length > bytes.length) {
+                throw new IllegalArgumentException("Truncated peer list");
+            }
+            String s = new String(bytes, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        String ref(String[] table) {
+            int index = varint();
+            if(index >= table.length) {
+                throw new IllegalArgumentException("Invalid string reference: "+index);
+            }
+            return table[index];
+        }
+
+        Object value(String[] table, int depth) {
+            if(depth > MAX_DEPTH) {
+                throw new IllegalArgumentException("Peer nested too deeply");
+            }
+            int tag = readByte();
+            switch (tag) {
+                case NULL: return null;
+                case STRING: return ref(table);
+                case INT: return (int)unzigzag(varlong());
+                case LONG: return unzigzag(varlong());
+                case DOUBLE: {
+                    long bits = 0;
+                    for(int i=0; i<8; i++) bits = (bits << 8) | (readByte() & 0xFF);
+                    return Double.longBitsToDouble(bits);
+                }
+                case TRUE: return Boolean.TRUE;
+                case FALSE: return Boolean.FALSE;
+                case MAP: {
+                    int size = varint();
+                    Map<String,Object> m = new HashMap<>(size * 2);
+                    for(int i=0; i<size; i++) {
+                        String key = ref(table);
+                        m.put(key, value(table, depth + 1));
+                    }
+                    return m;
+                }
+                case LIST: {
+                    int size = varint();
+                    List<Object> l = new ArrayList<>(size);
+                    for(int i=0; i<size; i++) {
+                        l.add(value(table, depth + 1));
+                    }
+                    return l;
+                }
+                default: throw new IllegalArgumentException("Unknown value tag: "+tag);
+            }
+        }
+
+        private static long unzigzag(long n) {
+            return (n >>> 1) ^ -(n & 1);
+        }
+    }
+}
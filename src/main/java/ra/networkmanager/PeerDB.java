@@ -6,13 +6,31 @@ import ra.common.network.NetworkPeer;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.function.LongSupplier;
 
 public interface PeerDB {
 
     Boolean savePeer(NetworkPeer p, Boolean local, RelType relType);
 
+    int savePeers(List<NetworkPeer> peers);
+
+    void peerSeen(NetworkPeer np);
+
+    void peerAcked(NetworkPeer np, long latencyMs);
+
+    void peerTimedOut(NetworkPeer np);
+
+    int sweep(long now);
+
+    /**
+     * Source of the current time in ms for when peers are seen and acked.
+     */
+    void setClock(LongSupplier clock);
+
     NetworkPeer findPeer(NetworkPeer np);
 
+    NetworkPeer findPeerByNetwork(String id, Network network);
+
     long numberPeersByNetwork(Network network);
 
     long numberPeersByNetwork(String startingId, Network network);
@@ -25,15 +43,35 @@ public interface PeerDB {
 
     NetworkPeer getRandomPeerByNetwork(Network network);
 
+    NetworkPeer getRandomPeerByClass(Network network, RelType cls, RelType... also);
+
+    long numberPeersByClass(Network network, RelType cls);
+
     List<NetworkPeer> getRandomPeersToShareByNetwork(Network network, int numPeersShare);
 
+    /**
+     * Note a known remote peer as offering the named service, for {@link #findPeersByService(String)}.
+     */
+    void savePeerService(NetworkPeer np, String serviceName);
+
     Set<NetworkPeer> findPeersByService(String serviceName);
 
+    PeerPage findPeers(PeerQuery query);
+
+    PeerPage findPeersByService(String serviceName, PeerQuery query);
+
+    List<NetworkPeer> getLocalPeers();
+
     NetworkPeer randomPeerWithInternetAccessAvailable(Network network);
 
     NetworkPeer randomPeerWithSpecificNetworkAvailable(Network nonInternetNetworkDesired, Network availableNetworkWithinPeer);
 
     boolean init(Properties p);
 
+    /**
+     * Apply changed settings in place keeping all peers; false leaves the current settings untouched.
+     */
+    boolean reconfigure(Properties p);
+
     boolean teardown();
 }
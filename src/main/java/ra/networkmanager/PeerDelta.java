@@ -0,0 +1,100 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Peer changes from one replica since its last delta.
+ *
+ * Peer records merge last-writer-wins by (version, origin); seeds form a grow-only set.
+ * Records are carried in their serialized {@link PeerTable} form.
+ */
+public class PeerDelta {
+
+    private final String origin;
+    private boolean syncRequest = false;
+    private final List<Entry> peers = new ArrayList<>();
+    private final List<Entry> seeds = new ArrayList<>();
+
+    public static class Entry {
+        final Network network;
+        final String id;
+        final RelType relType;
+        final byte[] record;
+        final long version;
+        final String writer;
+
+        public Entry(Network network, String id, RelType relType, byte[] record, long version, String writer) {
+            this.network = network;
+            this.id = id;
+            this.relType = relType;
+            this.record = record;
+            this.version = version;
+            this.writer = writer;
+        }
+
+        public Network getNetwork() {
+            return network;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public RelType getRelType() {
+            return relType;
+        }
+
+        public byte[] getRecord() {
+            return record;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public String getWriter() {
+            return writer;
+        }
+
+        /**
+         * @return true if this write wins over the one with the supplied version and writer
+         */
+        public boolean supersedes(long otherVersion, String otherWriter) {
+            return version > otherVersion || (version == otherVersion && writer.compareTo(otherWriter) > 0);
+        }
+    }
+
+    public PeerDelta(String origin) {
+        this.origin = origin;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Sent on joining; replicas reply with their full state so a late joiner catches up.
+     */
+    public boolean isSyncRequest() {
+        return syncRequest;
+    }
+
+    public void setSyncRequest(boolean syncRequest) {
+        this.syncRequest = syncRequest;
+    }
+
+    public List<Entry> getPeers() {
+        return peers;
+    }
+
+    public List<Entry> getSeeds() {
+        return seeds;
+    }
+
+    public boolean isEmpty() {
+        return peers.isEmpty() && seeds.isEmpty();
+    }
+}
@@ -0,0 +1,39 @@
+package ra.networkmanager;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Change to the Peer DB.
+ */
+@Name("ra.networkmanager.PeerMutation")
+@Label("Peer Mutation")
+@Category({"Resolving Architecture", "Network Manager"})
+@Description("Peer saved, swept or reclassified in the Peer DB")
+public class PeerMutationEvent extends Event {
+
+    public static final String SAVE = "save";
+    public static final String SAVE_LOCAL = "saveLocal";
+    public static final String SWEEP = "sweep";
+
+    @Label("Mutation")
+    String mutation;
+
+    @Label("Network")
+    String network;
+
+    @Label("Peer Id")
+    String peerId;
+
+    @Label("Relationship")
+    String relType;
+
+    @Label("Unchanged")
+    boolean unchanged;
+
+    @Label("Peers Affected")
+    int count;
+}
@@ -0,0 +1,31 @@
+package ra.networkmanager;
+
+import ra.common.network.NetworkPeer;
+
+import java.util.List;
+
+/**
+ * One page of a peer query and the cursor to request the next, null when there are no more.
+ */
+public class PeerPage {
+
+    private final List<NetworkPeer> peers;
+    private final String nextCursor;
+
+    public PeerPage(List<NetworkPeer> peers, String nextCursor) {
+        this.peers = peers;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<NetworkPeer> getPeers() {
+        return peers;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
@@ -0,0 +1,72 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+
+/**
+ * Filters and position for a paginated peer query.
+ */
+public class PeerQuery {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private Network network;
+    private RelType relType;
+    private boolean reliableOnly = false;
+    private String cursor;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    /**
+     * @param network only peers on this network, null for all
+     */
+    public PeerQuery setNetwork(Network network) {
+        this.network = network;
+        return this;
+    }
+
+    public Network getNetwork() {
+        return network;
+    }
+
+    /**
+     * @param relType only peers with this relationship, null for any
+     */
+    public PeerQuery setRelType(RelType relType) {
+        this.relType = relType;
+        return this;
+    }
+
+    public RelType getRelType() {
+        return relType;
+    }
+
+    public PeerQuery setReliableOnly(boolean reliableOnly) {
+        this.reliableOnly = reliableOnly;
+        return this;
+    }
+
+    public boolean isReliableOnly() {
+        return reliableOnly;
+    }
+
+    /**
+     * @param cursor next cursor of the previous page, null for the first page
+     */
+    public PeerQuery setCursor(String cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public PeerQuery setPageSize(int pageSize) {
+        this.pageSize = Math.max(1, Math.min(MAX_PAGE_SIZE, pageSize));
+        return this;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+}
@@ -0,0 +1,32 @@
+package ra.networkmanager;
+
+import ra.common.tasks.BaseTask;
+import ra.common.tasks.TaskRunner;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Periodically demotes, then expires, peers not heard from in a while.
+ */
+public class PeerSweeper extends BaseTask {
+
+    private final NetworkManagerService service;
+    private final PeerDB peerDB;
+    private final LongSupplier clock;
+
+    public PeerSweeper(TaskRunner taskRunner, NetworkManagerService service, PeerDB peerDB, LongSupplier clock) {
+        super(PeerSweeper.class.getSimpleName(), taskRunner);
+        this.service = service;
+        this.peerDB = peerDB;
+        this.clock = clock;
+    }
+
+    @Override
+    public Boolean execute() {
+        if(service.peerSweeper!=this) {
+            return true; // Replaced by a restart
+        }
+        peerDB.sweep(clock.getAsLong());
+        return true;
+    }
+}
@@ -0,0 +1,707 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compact, slot-based table of remote Network Peers.
+ *
+ * Peers are keyed by 64-bit fingerprints of their id (scoped by network) and address in primitive
+ * open-addressing maps. Attributes live in dense arrays indexed by slot and the peer itself is kept
+ * as a single {@link PeerCodec} record, materialized into a {@link NetworkPeer} only when requested.
+ * Each network keeps a dense list of its slots for O(1) counts, random selection and removal.
+ * Last seen and last ack times are kept per slot and slots are filed by last seen in {@link TimeBuckets}
+ * so stale peers can be demoted, then expired, without scanning the table.
+ * Each network also keeps a {@link WeightedSampler} over its slot list, weighting peers by ack success,
+ * ack latency and liveness, and dense member lists per classification (Reliable, LowLatency, Banned)
+ * for O(1) membership changes and picks. Slots of each network, and of each classification within it, are
+ * also kept sorted by id fingerprint so queries can page from a cursor in O(log n).
+ * The id is kept per slot and checked on every id lookup so a fingerprint collision, chance or crafted,
+ * never returns or overwrites another peer; address hits are checked against the record.
+ *
+ * Not thread safe; callers synchronize.
+ */
+public class PeerTable {
+
+    public static final int NO_SLOT = LongIntMap.NO_VALUE;
+
+    private static final byte FREE = -1;
+    private static final Network[] NETWORKS = Network.values();
+    private static final RelType[] REL_TYPES = RelType.values();
+    private static final int LIVE_TRIES = 4;
+    private static final RelType[] CLASSES = {RelType.Reliable, RelType.LowLatency, RelType.Banned};
+    // Weighting: latency at which a peer's weight halves, weight kept by stale peers, smoothing of ack latency
+    private static final double LATENCY_SCALE_MS = 2000.0;
+    private static final double STALE_FACTOR = 0.1;
+    private static final float LATENCY_ALPHA = 0.2f;
+
+    private byte[] network;
+    private byte[] relType;
+    private long[] idFp;
+    private String[] ids;
+    private long[] addressFp;
+    private byte[][] record;
+    private int[] networkPos;
+    private long[] lastSeen;
+    private long[] lastAck;
+    private boolean[] stale;
+    private int[] acks;
+    private int[] timeouts;
+    private float[] ackLatencyMs;
+    private long[] ackLatencySum;
+    private int[] reliableAcks;
+    private int[] lowLatencyAcks;
+    private byte[] classes;
+    private int[][] classPos;
+
+    private int[] freeSlots;
+    private int freeCount;
+    private int highWater;
+    private int size;
+
+    private final int[][] networkSlots = new int[NETWORKS.length][];
+    private final int[] networkCount = new int[NETWORKS.length];
+    private final WeightedSampler[] samplers = new WeightedSampler[NETWORKS.length];
+    private final int[][][] classSlots = new int[CLASSES.length][NETWORKS.length][];
+    private final int[][] classCount = new int[CLASSES.length][NETWORKS.length];
+    // Id fingerprint to slot per network, and per classification and network
+    private final TreeMap<Long,Integer>[] networkOrder = new TreeMap[NETWORKS.length];
+    private final TreeMap<Long,Integer>[][] classOrder = new TreeMap[CLASSES.length][NETWORKS.length];
+
+    private final LongIntMap idIndex;
+    private final LongIntMap addressIndex;
+
+    private Random random;
+    private long unchanged;
+    private long collisions;
+
+    private TimeBuckets liveness = new TimeBuckets(60 * 1000L);
+    private long demotedThrough = Long.MIN_VALUE;
+
+    public PeerTable() {
+        this(1024);
+    }
+
+    public PeerTable(int expected) {
+        int capacity = Math.max(16, expected);
+        network = new byte[capacity];
+        Arrays.fill(network, FREE);
+        relType = new byte[capacity];
+        idFp = new long[capacity];
+        ids = new String[capacity];
+        addressFp = new long[capacity];
+        record = new byte[capacity][];
+        networkPos = new int[capacity];
+        lastSeen = new long[capacity];
+        lastAck = new long[capacity];
+        stale = new boolean[capacity];
+        acks = new int[capacity];
+        timeouts = new int[capacity];
+        ackLatencyMs = new float[capacity];
+        ackLatencySum = new long[capacity];
+        reliableAcks = new int[capacity];
+        lowLatencyAcks = new int[capacity];
+        classes = new byte[capacity];
+        classPos = new int[CLASSES.length][capacity];
+        for(int c=0; c<CLASSES.length; c++) {
+            for(int i=0; i<NETWORKS.length; i++) {
+                classSlots[c][i] = new int[16];
+                classOrder[c][i] = new TreeMap<>();
+            }
+        }
+        freeSlots = new int[16];
+        for(int i=0; i<NETWORKS.length; i++) {
+            networkSlots[i] = new int[16];
+            samplers[i] = new WeightedSampler();
+            networkOrder[i] = new TreeMap<>();
+        }
+        idIndex = new LongIntMap(capacity);
+        addressIndex = new LongIntMap(capacity);
+    }
+
+    /**
+     * Insert or update a peer. Peer must have an id, network and address.
+     * An update carrying nothing new writes nothing.
+     * @return slot of the peer, NO_SLOT if its id fingerprint collides with another peer's
+     */
+    public int put(NetworkPeer p, RelType rt) {
+        int n = p.getNetwork().ordinal();
+        long idKey = fingerprint(n, p.getId());
+        String address = p.getDid().getPublicKey().getAddress();
+        long addressKey = fingerprint(address);
+        int slot = idIndex.get(idKey);
+        if(slot != NO_SLOT && !ids[slot].equals(p.getId())) {
+            collisions++;
+            return NO_SLOT;
+        }
+        byte rtOrdinal = (byte)(rt == null ? RelType.Unknown : rt).ordinal();
+        byte[] encoded = encode(p);
+        if(slot != NO_SLOT
+                && addressFp[slot] == addressKey
+                && relType[slot] == rtOrdinal
+                && Arrays.equals(record[slot], encoded)) {
+            unchanged++;
+            return slot;
+        }
+        if(slot == NO_SLOT) {
+            slot = allocate(n);
+            idFp[slot] = idKey;
+            ids[slot] = p.getId();
+            idIndex.put(idKey, slot);
+            networkOrder[n].put(idKey, slot);
+        } else if(addressFp[slot] != addressKey) {
+            unindexAddress(slot);
+        }
+        addressFp[slot] = addressKey;
+        int holder = addressIndex.get(addressKey);
+        if(holder == NO_SLOT || holder == slot || address.equals(addressOf(holder))) {
+            addressIndex.put(addressKey, slot);
+        } else {
+            // Another address with the same fingerprint keeps the index; this peer is found by id only
+            collisions++;
+        }
+        relType[slot] = rtOrdinal;
+        record[slot] = encoded;
+        return slot;
+    }
+
+    public int slotById(Network n, String id) {
+        int slot = idIndex.get(fingerprint(n.ordinal(), id));
+        return slot != NO_SLOT && ids[slot].equals(id) ? slot : NO_SLOT;
+    }
+
+    /**
+     * Look up an id across all networks.
+     */
+    public int slotById(String id) {
+        for(Network n : NETWORKS) {
+            int slot = slotById(n, id);
+            if(slot != NO_SLOT)
+                return slot;
+        }
+        return NO_SLOT;
+    }
+
+    public int slotByAddress(String address) {
+        int slot = addressIndex.get(fingerprint(address));
+        return slot != NO_SLOT && address.equals(addressOf(slot)) ? slot : NO_SLOT;
+    }
+
+    /**
+     * @return number of puts that found the peer already stored unchanged
+     */
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return number of puts whose id or address fingerprint matched a different peer's
+     */
+    public long getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * @return id of the peer in the slot
+     */
+    public String getId(int slot) {
+        return isUsed(slot) ? ids[slot] : null;
+    }
+
+    /**
+     * @return fingerprint of the peer's id, unique within its network and unchanged by other peers coming
+     * and going, so an ordering that pages stay stable in
+     */
+    public long getIdFingerprint(int slot) {
+        return idFp[slot];
+    }
+
+    /**
+     * Peer heard from at the time.
+     */
+    public void touch(int slot, long time) {
+        if(!isUsed(slot) || time < lastSeen[slot])
+            return;
+        long previous = lastSeen[slot];
+        lastSeen[slot] = time;
+        if(stale[slot]) {
+            stale[slot] = false;
+            reweigh(slot);
+        }
+        if(previous == 0 || liveness.keyOf(previous) != liveness.keyOf(time)) {
+            liveness.add(time, slot);
+        }
+    }
+
+    /**
+     * Peer acknowledged us at the time.
+     */
+    public void acked(int slot, long time, long latencyMs) {
+        if(!isUsed(slot))
+            return;
+        lastAck[slot] = Math.max(lastAck[slot], time);
+        acks[slot]++;
+        ackLatencySum[slot] += latencyMs;
+        ackLatencyMs[slot] = ackLatencyMs[slot] < 0 ? latencyMs : ackLatencyMs[slot] + LATENCY_ALPHA * (latencyMs - ackLatencyMs[slot]);
+        reweigh(slot);
+        touch(slot, time);
+    }
+
+    /**
+     * Peer did not acknowledge us in time.
+     */
+    public void timedOut(int slot) {
+        if(!isUsed(slot))
+            return;
+        timeouts[slot]++;
+        reweigh(slot);
+    }
+
+    /**
+     * Count the last ack as within the reliable and/or low latency thresholds of the peer's network.
+     */
+    public void ackedWithin(int slot, boolean reliable, boolean lowLatency) {
+        if(!isUsed(slot))
+            return;
+        if(reliable) reliableAcks[slot]++;
+        if(lowLatency) lowLatencyAcks[slot]++;
+    }
+
+    public int getReliableAcks(int slot) {
+        return isUsed(slot) ? reliableAcks[slot] : 0;
+    }
+
+    public int getLowLatencyAcks(int slot) {
+        return isUsed(slot) ? lowLatencyAcks[slot] : 0;
+    }
+
+    /**
+     * @return mean ack latency, -1 if never acked
+     */
+    public long getAvgAckLatencyMs(int slot) {
+        return isUsed(slot) && acks[slot] > 0 ? ackLatencySum[slot] / acks[slot] : -1L;
+    }
+
+    /**
+     * @param cls Reliable, LowLatency or Banned
+     */
+    public boolean hasClass(int slot, RelType cls) {
+        return isUsed(slot) && (classes[slot] & (1 << classIndex(cls))) != 0;
+    }
+
+    /**
+     * Add the peer to, or remove it from, its network's member list of the classification.
+     */
+    public void setClass(int slot, RelType cls, boolean member) {
+        if(!isUsed(slot) || hasClass(slot, cls) == member)
+            return;
+        int c = classIndex(cls);
+        int n = network[slot];
+        if(member) {
+            if(classCount[c][n] == classSlots[c][n].length) {
+                classSlots[c][n] = Arrays.copyOf(classSlots[c][n], classCount[c][n] << 1);
+            }
+            classPos[c][slot] = classCount[c][n];
+            classSlots[c][n][classCount[c][n]++] = slot;
+            classes[slot] |= (1 << c);
+            classOrder[c][n].put(idFp[slot], slot);
+        } else {
+            int last = classSlots[c][n][--classCount[c][n]];
+            int pos = classPos[c][slot];
+            classSlots[c][n][pos] = last;
+            classPos[c][last] = pos;
+            classes[slot] &= ~(1 << c);
+            classOrder[c][n].remove(idFp[slot]);
+        }
+        if(cls == RelType.Banned) {
+            reweigh(slot);
+        }
+    }
+
+    /**
+     * @return slot at position i of the network's member list of the classification, i &lt; count(n, cls)
+     */
+    public int classSlotAt(Network n, RelType cls, int i) {
+        return classSlots[classIndex(cls)][n.ordinal()][i];
+    }
+
+    public int count(Network n, RelType cls) {
+        return classCount[classIndex(cls)][n.ordinal()];
+    }
+
+    /**
+     * @return random member of the network's classification, preferring one also in the other classifications
+     * supplied, e.g. a Reliable peer that is also LowLatency; NO_SLOT if the classification is empty
+     */
+    public int randomSlot(Network n, RelType cls, RelType... also) {
+        int c = classIndex(cls);
+        int count = classCount[c][n.ordinal()];
+        if(count == 0)
+            return NO_SLOT;
+        // Draw from the smallest of the member lists for the best odds of a peer in all of them
+        int from = c;
+        for(RelType other : also) {
+            int o = classIndex(other);
+            if(classCount[o][n.ordinal()] > 0 && classCount[o][n.ordinal()] < classCount[from][n.ordinal()]) {
+                from = o;
+            }
+        }
+        count = classCount[from][n.ordinal()];
+        int slot = NO_SLOT;
+        for(int i=0; i<LIVE_TRIES; i++) {
+            slot = classSlots[from][n.ordinal()][random().nextInt(count)];
+            boolean all = !stale[slot] && hasClass(slot, cls);
+            for(RelType other : also) {
+                all &= hasClass(slot, other);
+            }
+            if(all)
+                break;
+        }
+        if(!hasClass(slot, cls)) {
+            // None found in all; any member of the requested classification
+            slot = classSlots[c][n.ordinal()][random().nextInt(classCount[c][n.ordinal()])];
+        }
+        return slot;
+    }
+
+    public int getAcks(int slot) {
+        return isUsed(slot) ? acks[slot] : 0;
+    }
+
+    public int getTimeouts(int slot) {
+        return isUsed(slot) ? timeouts[slot] : 0;
+    }
+
+    /**
+     * @return smoothed ack latency, -1 if never acked
+     */
+    public float getAckLatencyMs(int slot) {
+        return isUsed(slot) ? ackLatencyMs[slot] : -1f;
+    }
+
+    /**
+     * Sampling weight from ack success (Laplace smoothed), ack latency and liveness.
+     */
+    public double weight(int slot) {
+        double success = (acks[slot] + 1.0) / (acks[slot] + timeouts[slot] + 2.0);
+        double latency = ackLatencyMs[slot] < 0 ? LATENCY_SCALE_MS : ackLatencyMs[slot];
+        if((classes[slot] & (1 << classIndex(RelType.Banned))) != 0) {
+            return 0.0;
+        }
+        double w = success * LATENCY_SCALE_MS / (LATENCY_SCALE_MS + latency);
+        return stale[slot] ? w * STALE_FACTOR : w;
+    }
+
+    public long getLastSeen(int slot) {
+        return isUsed(slot) ? lastSeen[slot] : 0L;
+    }
+
+    public long getLastAck(int slot) {
+        return isUsed(slot) ? lastAck[slot] : 0L;
+    }
+
+    public boolean isStale(int slot) {
+        return isUsed(slot) && stale[slot];
+    }
+
+    /**
+     * Mark peers not seen since the time as stale.
+     * @return number demoted
+     */
+    public int demote(long before) {
+        final int[] demoted = {0};
+        demotedThrough = liveness.visit(demotedThrough, before, (key, slot) -> {
+            if(current(key, slot) && !stale[slot]) {
+                stale[slot] = true;
+                reweigh(slot);
+                demoted[0]++;
+            }
+        });
+        return demoted[0];
+    }
+
+    /**
+     * Remove peers not seen since the time, except seeds which are only demoted.
+     * @return number removed
+     */
+    public int expire(long before) {
+        final int[] expired = {0};
+        liveness.expire(before, (key, slot) -> {
+            if(!current(key, slot)) {
+                return;
+            }
+            if(relType[slot] == RelType.Seed.ordinal()) {
+                if(!stale[slot]) {
+                    stale[slot] = true;
+                    reweigh(slot);
+                }
+            } else if(remove(slot)) {
+                expired[0]++;
+            }
+        });
+        return expired[0];
+    }
+
+    /**
+     * Width of the last seen buckets; set before peers are added.
+     */
+    public void setLivenessBucketMs(long bucketMs) {
+        liveness = new TimeBuckets(bucketMs);
+        demotedThrough = Long.MIN_VALUE;
+    }
+
+    public NetworkPeer get(int slot) {
+        if(!isUsed(slot))
+            return null;
+        return decode(NETWORKS[network[slot]], record[slot]);
+    }
+
+    /**
+     * @return the peer's serialized record, as from {@link #encode(NetworkPeer)}
+     */
+    public byte[] getRecord(int slot) {
+        return isUsed(slot) ? record[slot] : null;
+    }
+
+    public Network getNetwork(int slot) {
+        return isUsed(slot) ? NETWORKS[network[slot]] : null;
+    }
+
+    public RelType getRelType(int slot) {
+        return isUsed(slot) ? REL_TYPES[relType[slot]] : null;
+    }
+
+    public boolean remove(int slot) {
+        if(!isUsed(slot))
+            return false;
+        for(RelType cls : CLASSES) {
+            setClass(slot, cls, false);
+        }
+        int n = network[slot];
+        // Swap-remove from the network's slot list
+        int last = networkSlots[n][--networkCount[n]];
+        int pos = networkPos[slot];
+        networkSlots[n][pos] = last;
+        networkPos[last] = pos;
+        samplers[n].swapRemove(pos);
+        if(idIndex.get(idFp[slot]) == slot) {
+            idIndex.remove(idFp[slot]);
+        }
+        networkOrder[n].remove(idFp[slot]);
+        unindexAddress(slot);
+        network[slot] = FREE;
+        ids[slot] = null;
+        record[slot] = null;
+        if(freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount << 1);
+        }
+        freeSlots[freeCount++] = slot;
+        size--;
+        return true;
+    }
+
+    public int count(Network n) {
+        return networkCount[n.ordinal()];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return slot at position i of the network's slot list, i &lt; count(n)
+     */
+    public int slotAt(Network n, int i) {
+        return networkSlots[n.ordinal()][i];
+    }
+
+    /**
+     * @param cls classification whose members to return, null for all the network's slots
+     * @param inclusive true to start at the fingerprint, false just after it
+     * @return slots in id fingerprint order from the fingerprint, O(log n) to seek; not to be used across changes
+     */
+    public Iterator<Integer> slotsByIdFingerprint(Network n, RelType cls, long from, boolean inclusive) {
+        TreeMap<Long,Integer> order = cls == null ? networkOrder[n.ordinal()] : classOrder[classIndex(cls)][n.ordinal()];
+        return Collections.unmodifiableCollection(order.tailMap(from, inclusive).values()).iterator();
+    }
+
+    /**
+     * Random slot of the network, favoring peers that are neither stale nor banned.
+     */
+    public int randomSlot(Network n) {
+        int count = networkCount[n.ordinal()];
+        if(count == 0)
+            return NO_SLOT;
+        int slot = NO_SLOT;
+        for(int i=0; i<LIVE_TRIES; i++) {
+            slot = networkSlots[n.ordinal()][random().nextInt(count)];
+            if(!stale[slot] && !hasClass(slot, RelType.Banned))
+                break;
+        }
+        return slot;
+    }
+
+    /**
+     * Random slot of the network drawn in proportion to peer weight, O(log n).
+     */
+    public int weightedSlot(Network n) {
+        WeightedSampler sampler = samplers[n.ordinal()];
+        double total = sampler.total();
+        if(networkCount[n.ordinal()] == 0 || total <= 0.0)
+            return randomSlot(n);
+        return networkSlots[n.ordinal()][sampler.sample(random().nextDouble() * total)];
+    }
+
+    /**
+     * Use a specific source of randomness, e.g. seeded for reproducible simulations.
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    public Random random() {
+        return random==null ? ThreadLocalRandom.current() : random;
+    }
+
+    public boolean isUsed(int slot) {
+        return slot >= 0 && slot < highWater && network[slot] != FREE;
+    }
+
+    public void clear() {
+        Arrays.fill(network, FREE);
+        Arrays.fill(ids, null);
+        Arrays.fill(record, null);
+        Arrays.fill(networkCount, 0);
+        for(WeightedSampler sampler : samplers) {
+            sampler.clear();
+        }
+        for(int[] counts : classCount) {
+            Arrays.fill(counts, 0);
+        }
+        for(TreeMap<Long,Integer> order : networkOrder) {
+            order.clear();
+        }
+        for(TreeMap<Long,Integer>[] orders : classOrder) {
+            for(TreeMap<Long,Integer> order : orders) {
+                order.clear();
+            }
+        }
+        idIndex.clear();
+        addressIndex.clear();
+        liveness.clear();
+        demotedThrough = Long.MIN_VALUE;
+        freeCount = 0;
+        highWater = 0;
+        size = 0;
+    }
+
+    private int allocate(int n) {
+        int slot;
+        if(freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if(highWater == network.length) {
+                grow(network.length << 1);
+            }
+            slot = highWater++;
+        }
+        network[slot] = (byte)n;
+        lastSeen[slot] = 0L;
+        lastAck[slot] = 0L;
+        stale[slot] = false;
+        acks[slot] = 0;
+        timeouts[slot] = 0;
+        ackLatencyMs[slot] = -1f;
+        ackLatencySum[slot] = 0L;
+        reliableAcks[slot] = 0;
+        lowLatencyAcks[slot] = 0;
+        classes[slot] = 0;
+        if(networkCount[n] == networkSlots[n].length) {
+            networkSlots[n] = Arrays.copyOf(networkSlots[n], networkCount[n] << 1);
+        }
+        networkPos[slot] = networkCount[n];
+        networkSlots[n][networkCount[n]++] = slot;
+        samplers[n].append(weight(slot));
+        size++;
+        return slot;
+    }
+
+    private String addressOf(int slot) {
+        NetworkPeer p = get(slot);
+        return p==null || p.getDid()==null || p.getDid().getPublicKey()==null ? null : p.getDid().getPublicKey().getAddress();
+    }
+
+    private void unindexAddress(int slot) {
+        if(addressIndex.get(addressFp[slot]) == slot) {
+            addressIndex.remove(addressFp[slot]);
+        }
+    }
+
+    private void grow(int capacity) {
+        int old = network.length;
+        network = Arrays.copyOf(network, capacity);
+        Arrays.fill(network, old, capacity, FREE);
+        relType = Arrays.copyOf(relType, capacity);
+        idFp = Arrays.copyOf(idFp, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        addressFp = Arrays.copyOf(addressFp, capacity);
+        record = Arrays.copyOf(record, capacity);
+        networkPos = Arrays.copyOf(networkPos, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        lastAck = Arrays.copyOf(lastAck, capacity);
+        stale = Arrays.copyOf(stale, capacity);
+        acks = Arrays.copyOf(acks, capacity);
+        timeouts = Arrays.copyOf(timeouts, capacity);
+        ackLatencyMs = Arrays.copyOf(ackLatencyMs, capacity);
+        ackLatencySum = Arrays.copyOf(ackLatencySum, capacity);
+        reliableAcks = Arrays.copyOf(reliableAcks, capacity);
+        lowLatencyAcks = Arrays.copyOf(lowLatencyAcks, capacity);
+        classes = Arrays.copyOf(classes, capacity);
+        for(int c=0; c<CLASSES.length; c++) {
+            classPos[c] = Arrays.copyOf(classPos[c], capacity);
+        }
+    }
+
+    private static int classIndex(RelType cls) {
+        switch (cls) {
+            case Reliable: return 0;
+            case LowLatency: return 1;
+            case Banned: return 2;
+            default: throw new IllegalArgumentException("Not a classification: "+cls.name());
+        }
+    }
+
+    private void reweigh(int slot) {
+        samplers[network[slot]].set(networkPos[slot], weight(slot));
+    }
+
+    /**
+     * Entry filed under the key still reflects the slot's last seen time.
+     */
+    private boolean current(long key, int slot) {
+        return isUsed(slot) && lastSeen[slot] != 0 && liveness.keyOf(lastSeen[slot]) == key;
+    }
+
+    protected long fingerprint(int scope, String s) {
+        return Fingerprint.of(scope, s);
+    }
+
+    protected long fingerprint(String s) {
+        return Fingerprint.of(s);
+    }
+
+    static byte[] encode(NetworkPeer p) {
+        return PeerCodec.encode(p);
+    }
+
+    static NetworkPeer decode(Network n, byte[] bytes) {
+        return PeerCodec.decodePeer(bytes);
+    }
+}
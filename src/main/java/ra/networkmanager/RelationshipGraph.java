@@ -0,0 +1,378 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+
+import java.util.*;
+
+/**
+ * Directed graph of {@link P2PRelationship}s: an edge per start peer, end peer and network, weighted by
+ * the measured ack latency between them, for finding relay routes to peers no local network reaches.
+ *
+ * Edges from this node ({@link #LOCAL}) are measured from acks; edges between remote peers are learned
+ * from the peers they share and weigh unmeasuredLatencyMs until measured. Edges not refreshed within
+ * edgeTtlMs are skipped by path queries and removed by {@link #prune(long)}. A vertex is reclaimed once
+ * its last edge, in or out, is removed, so the vertices never outnumber twice maxEdges.
+ * Vertices and edges live in primitive arrays and path queries run Dijkstra over a binary heap reusing
+ * its buffers, stopping once the target is settled, so queries stay fast on graphs of 100k edges.
+ */
+public class RelationshipGraph {
+
+    public static final String LOCAL = "";
+
+    private static final Network[] NETWORKS = Network.values();
+
+    private final Integer maxEdges;
+    private final Long edgeTtlMs;
+    private final Long unmeasuredLatencyMs;
+    private final Integer maxHops;
+
+    // Vertices
+    private final Map<String,Integer> vertexIds = new HashMap<>();
+    private String[] vertexNames = new String[64];
+    private int[][] adjacency = new int[64][];
+    private int[] degree = new int[64];
+    private int[] inDegree = new int[64];
+    private int[] freeVertices = new int[16];
+    private int freeVertexCount;
+    private int vertexHighWater;
+    private int vertices;
+
+    // Edges
+    private final LongIntMap edgeIndex;
+    private int[] from;
+    private int[] to;
+    private byte[] network;
+    private float[] latencyMs;
+    private long[] updated;
+    private int[] free;
+    private int freeCount;
+    private int edgeHighWater;
+    private int edges;
+
+    // Search buffers, by state: vertex * (maxHops + 1) + hops taken to reach it
+    private double[] dist;
+    private int[] prevEdge;
+    private int[] stamp;
+    private int generation;
+    private int[] heapVertex = new int[256];
+    private double[] heapDist = new double[256];
+    private int heapSize;
+
+    public static class Hop {
+        private final String peerId;
+        private final Network network;
+        private final long latencyMs;
+
+        private Hop(String peerId, Network network, long latencyMs) {
+            this.peerId = peerId;
+            this.network = network;
+            this.latencyMs = latencyMs;
+        }
+
+        public String getPeerId() {
+            return peerId;
+        }
+
+        /**
+         * @return network the hop is reached on from the previous one
+         */
+        public Network getNetwork() {
+            return network;
+        }
+
+        public long getLatencyMs() {
+            return latencyMs;
+        }
+    }
+
+    public RelationshipGraph(Properties p) {
+        if(p.getProperty("ra.networkmanager.relay.maxEdges")==null) {
+            maxEdges = 200000;
+        } else {
+            maxEdges = Integer.parseInt(p.getProperty("ra.networkmanager.relay.maxEdges"));
+        }
+        if(p.getProperty("ra.networkmanager.relay.edgeTtlMs")==null) {
+            edgeTtlMs = 60 * 60 * 1000L;
+        } else {
+            edgeTtlMs = Long.parseLong(p.getProperty("ra.networkmanager.relay.edgeTtlMs"));
+        }
+        if(p.getProperty("ra.networkmanager.relay.unmeasuredLatencyMs")==null) {
+            unmeasuredLatencyMs = 5000L;
+        } else {
+            unmeasuredLatencyMs = Long.parseLong(p.getProperty("ra.networkmanager.relay.unmeasuredLatencyMs"));
+        }
+        if(p.getProperty("ra.networkmanager.relay.maxHops")==null) {
+            maxHops = 3;
+        } else {
+            maxHops = Integer.parseInt(p.getProperty("ra.networkmanager.relay.maxHops"));
+        }
+        int capacity = Math.min(maxEdges, 1024);
+        edgeIndex = new LongIntMap(capacity);
+        from = new int[capacity];
+        to = new int[capacity];
+        network = new byte[capacity];
+        latencyMs = new float[capacity];
+        updated = new long[capacity];
+        free = new int[16];
+        dist = new double[64 * (maxHops + 1)];
+        prevEdge = new int[64 * (maxHops + 1)];
+        stamp = new int[64 * (maxHops + 1)];
+    }
+
+    public Integer getMaxHops() {
+        return maxHops;
+    }
+
+    public Long getEdgeTtlMs() {
+        return edgeTtlMs;
+    }
+
+    /**
+     * Ack latency measured from the start peer to the end peer over the network.
+     */
+    public synchronized void observe(String startPeer, String endPeer, Network n, long latency, long now) {
+        int edge = edge(startPeer, endPeer, n, now);
+        if(edge < 0) return;
+        // Exponentially weighted so one slow ack does not reroute everything
+        latencyMs[edge] = latencyMs[edge] < 0 ? latency : 0.8f * latencyMs[edge] + 0.2f * latency;
+        updated[edge] = now;
+    }
+
+    /**
+     * The start peer is known to reach the end peer over the network, latency unknown.
+     */
+    public synchronized void link(String startPeer, String endPeer, Network n, long now) {
+        int edge = edge(startPeer, endPeer, n, now);
+        if(edge >= 0) {
+            updated[edge] = now;
+        }
+    }
+
+    /**
+     * Remove edges not refreshed since the supplied time.
+     * @return number of edges removed
+     */
+    public synchronized int prune(long olderThan) {
+        int removed = 0;
+        for(int e=0; e<edgeHighWater; e++) {
+            if(from[e] >= 0 && updated[e] < olderThan) {
+                remove(e);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return edges;
+    }
+
+    public synchronized int getVertexCount() {
+        return vertices;
+    }
+
+    /**
+     * Lowest latency path from source to target of at most maxHops hops. A vertex is searched once per
+     * hop count, as a slower route with fewer hops to it may be the only one to reach the target in time.
+     * @param firstHop networks usable for the first hop, indexed by ordinal; null for any
+     * @return hops after the source ending with the target, or null if there is none
+     */
+    public synchronized List<Hop> path(String source, String target, boolean[] firstHop, long now) {
+        Integer s = vertexIds.get(source);
+        Integer t = vertexIds.get(target);
+        if(s==null || t==null || s.equals(t)) return null;
+        long stale = now - edgeTtlMs;
+        if(++generation == 0) {
+            Arrays.fill(stamp, 0);
+            generation = 1;
+        }
+        int layers = maxHops + 1;
+        heapSize = 0;
+        visit(s * layers, 0.0, -1);
+        push(s * layers, 0.0);
+        while(heapSize > 0) {
+            int u = heapVertex[0];
+            double d = heapDist[0];
+            pop();
+            if(d > dist[u]) continue; // Superseded entry
+            int v = u / layers;
+            int h = u % layers;
+            if(v == t) return trace(u);
+            if(h >= maxHops) continue;
+            for(int i=0; i<degree[v]; i++) {
+                int e = adjacency[v][i];
+                if(updated[e] < stale) continue;
+                if(v == s && firstHop!=null && !firstHop[network[e]]) continue;
+                double nd = d + (latencyMs[e] < 0 ? unmeasuredLatencyMs : latencyMs[e]);
+                int w = to[e];
+                if(!dominated(w * layers, h + 1, nd)) {
+                    visit(w * layers + h + 1, nd, e);
+                    push(w * layers + h + 1, nd);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the vertex was already reached as fast in as few or fewer hops
+     */
+    private boolean dominated(int vertexState, int hopCount, double d) {
+        for(int h=0; h<=hopCount; h++) {
+            int u = vertexState + h;
+            if(stamp[u] == generation && dist[u] <= d) return true;
+        }
+        return false;
+    }
+
+    private List<Hop> trace(int target) {
+        int layers = maxHops + 1;
+        LinkedList<Hop> path = new LinkedList<>();
+        for(int u = target, e = prevEdge[u]; e >= 0; u = from[e] * layers + u % layers - 1, e = prevEdge[u]) {
+            long latency = latencyMs[e] < 0 ? unmeasuredLatencyMs : (long)latencyMs[e];
+            path.addFirst(new Hop(vertexNames[to[e]], NETWORKS[network[e]], latency));
+        }
+        return new ArrayList<>(path);
+    }
+
+    private void visit(int u, double d, int edge) {
+        stamp[u] = generation;
+        dist[u] = d;
+        prevEdge[u] = edge;
+    }
+
+    private void push(int v, double d) {
+        if(heapSize == heapVertex.length) {
+            heapVertex = Arrays.copyOf(heapVertex, heapSize * 2);
+            heapDist = Arrays.copyOf(heapDist, heapSize * 2);
+        }
+        int i = heapSize++;
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(heapDist[parent] <= d) break;
+            heapVertex[i] = heapVertex[parent];
+            heapDist[i] = heapDist[parent];
+            i = parent;
+        }
+        heapVertex[i] = v;
+        heapDist[i] = d;
+    }
+
+    private void pop() {
+        int last = --heapSize;
+        if(last == 0) return;
+        int v = heapVertex[last];
+        double d = heapDist[last];
+        int i = 0;
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= last) break;
+            if(child + 1 < last && heapDist[child + 1] < heapDist[child]) child++;
+            if(heapDist[child] >= d) break;
+            heapVertex[i] = heapVertex[child];
+            heapDist[i] = heapDist[child];
+            i = child;
+        }
+        heapVertex[i] = v;
+        heapDist[i] = d;
+    }
+
+    /**
+     * @return index of the edge, added if new, or -1 if the graph is full
+     */
+    private int edge(String startPeer, String endPeer, Network n, long now) {
+        Integer known = vertexIds.get(startPeer);
+        Integer knownEnd = vertexIds.get(endPeer);
+        if(known!=null && knownEnd!=null) {
+            int e = edgeIndex.get(key(known, knownEnd, n));
+            if(e != LongIntMap.NO_VALUE) return e;
+        }
+        // Full; checked before adding vertices so peers that get no edge do not take one
+        if(edges >= maxEdges) return -1;
+        int s = vertex(startPeer);
+        int t = vertex(endPeer);
+        long key = key(s, t, n);
+        int e = freeCount > 0 ? free[--freeCount] : edgeHighWater++;
+        if(e == from.length) {
+            int capacity = Math.min(maxEdges, from.length * 2);
+            from = Arrays.copyOf(from, capacity);
+            to = Arrays.copyOf(to, capacity);
+            network = Arrays.copyOf(network, capacity);
+            latencyMs = Arrays.copyOf(latencyMs, capacity);
+            updated = Arrays.copyOf(updated, capacity);
+        }
+        from[e] = s;
+        to[e] = t;
+        network[e] = (byte)n.ordinal();
+        latencyMs[e] = -1f;
+        updated[e] = now;
+        edgeIndex.put(key, e);
+        if(adjacency[s]==null) {
+            adjacency[s] = new int[4];
+        } else if(degree[s] == adjacency[s].length) {
+            adjacency[s] = Arrays.copyOf(adjacency[s], degree[s] * 2);
+        }
+        adjacency[s][degree[s]++] = e;
+        inDegree[t]++;
+        edges++;
+        return e;
+    }
+
+    private void remove(int e) {
+        int s = from[e];
+        edgeIndex.remove(key(s, to[e], NETWORKS[network[e]]));
+        for(int i=0; i<degree[s]; i++) {
+            if(adjacency[s][i] == e) {
+                adjacency[s][i] = adjacency[s][--degree[s]];
+                break;
+            }
+        }
+        int t = to[e];
+        inDegree[t]--;
+        from[e] = -1;
+        if(freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = e;
+        edges--;
+        removeIfUnlinked(s);
+        removeIfUnlinked(t);
+    }
+
+    private void removeIfUnlinked(int v) {
+        if(vertexNames[v]==null || degree[v] > 0 || inDegree[v] > 0) return;
+        vertexIds.remove(vertexNames[v]);
+        vertexNames[v] = null;
+        adjacency[v] = null;
+        if(freeVertexCount == freeVertices.length) {
+            freeVertices = Arrays.copyOf(freeVertices, freeVertexCount * 2);
+        }
+        freeVertices[freeVertexCount++] = v;
+        vertices--;
+    }
+
+    private int vertex(String peerId) {
+        Integer v = vertexIds.get(peerId);
+        if(v!=null) return v;
+        v = freeVertexCount > 0 ? freeVertices[--freeVertexCount] : vertexHighWater++;
+        vertices++;
+        if(v == vertexNames.length) {
+            int capacity = v * 2;
+            vertexNames = Arrays.copyOf(vertexNames, capacity);
+            adjacency = Arrays.copyOf(adjacency, capacity);
+            degree = Arrays.copyOf(degree, capacity);
+            inDegree = Arrays.copyOf(inDegree, capacity);
+            dist = Arrays.copyOf(dist, capacity * (maxHops + 1));
+            prevEdge = Arrays.copyOf(prevEdge, capacity * (maxHops + 1));
+            stamp = Arrays.copyOf(stamp, capacity * (maxHops + 1));
+        }
+        vertexNames[v] = peerId;
+        vertexIds.put(peerId, v);
+        return v;
+    }
+
+    private static long key(int s, int t, Network n) {
+        // Never 0, which LongIntMap reserves
+        return ((long)(s + 1) << 36) | ((long)(t + 1) << 8) | n.ordinal();
+    }
+}
@@ -0,0 +1,219 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * {@link InMemoryPeerDB} kept in sync with the other replicas on its channel through {@link PeerDelta}s.
+ *
+ * Remote peer records are last-writer-wins registers stamped with a hybrid logical clock and the writer's
+ * replica id, so concurrent writes converge on every replica regardless of delivery order.
+ * Seeds are a grow-only set. Local peers, ack and liveness statistics stay per replica, and peers
+ * expired by the sweeper are only dropped locally as there are no tombstones.
+ */
+public class ReplicatedPeerDB extends InMemoryPeerDB {
+
+    private static final Logger LOG = Logger.getLogger(ReplicatedPeerDB.class.getName());
+
+    private String replicaId;
+    private ReplicationTransport transport;
+    private ScheduledExecutorService flusher;
+
+    private final Map<String,Long> versions = new HashMap<>();
+    private final Map<String,String> writers = new HashMap<>();
+    private PeerDelta pending;
+    private long clock = 0L;
+    private boolean applying = false;
+
+    private long published = 0L;
+    private long applied = 0L;
+    private long superseded = 0L;
+
+    @Override
+    public synchronized Boolean savePeer(NetworkPeer p, Boolean local, RelType relType) {
+        long unchangedBefore = getUnchangedSaves();
+        Boolean saved = super.savePeer(p, local, relType);
+        if(!saved || local || applying || transport==null || getUnchangedSaves() != unchangedBefore) {
+            return saved;
+        }
+        int slot = peerTable().slotById(p.getNetwork(), p.getId());
+        String key = key(p.getNetwork(), p.getId());
+        long version = tick();
+        versions.put(key, version);
+        writers.put(key, replicaId);
+        PeerDelta.Entry entry = new PeerDelta.Entry(p.getNetwork(), p.getId(), peerTable().getRelType(slot),
+                peerTable().getRecord(slot), version, replicaId);
+        pending.getPeers().add(entry);
+        if(relType==RelType.Seed) {
+            pending.getSeeds().add(entry);
+        }
+        return saved;
+    }
+
+    /**
+     * Publish the writes made since the last flush.
+     */
+    public void flush() {
+        PeerDelta delta;
+        synchronized (this) {
+            if(transport==null || pending.isEmpty()) return;
+            delta = pending;
+            pending = new PeerDelta(replicaId);
+            published += delta.getPeers().size();
+        }
+        // Outside the lock: delivery may run the other replicas' receive on this thread
+        transport.publish(delta);
+    }
+
+    void receive(PeerDelta delta) {
+        if(delta.isSyncRequest()) {
+            ReplicationTransport t = transport;
+            if(t!=null) {
+                t.publish(snapshot());
+            }
+            return;
+        }
+        synchronized (this) {
+            applying = true;
+            try {
+                for(PeerDelta.Entry e : delta.getPeers()) {
+                    clock = Math.max(clock, e.getVersion());
+                    String key = key(e.getNetwork(), e.getId());
+                    Long current = versions.get(key);
+                    if(current!=null && !e.supersedes(current, writers.get(key))) {
+                        superseded++;
+                        continue;
+                    }
+                    if(super.savePeer(PeerTable.decode(e.getNetwork(), e.getRecord()), false, e.getRelType())) {
+                        versions.put(key, e.getVersion());
+                        writers.put(key, e.getWriter());
+                        applied++;
+                    }
+                }
+                for(PeerDelta.Entry e : delta.getSeeds()) {
+                    super.savePeer(PeerTable.decode(e.getNetwork(), e.getRecord()), false, RelType.Seed);
+                }
+            } finally {
+                applying = false;
+            }
+        }
+    }
+
+    /**
+     * @return every replicated record and seed held, for a replica catching up
+     */
+    synchronized PeerDelta snapshot() {
+        PeerDelta delta = new PeerDelta(replicaId);
+        PeerTable table = peerTable();
+        for(Map.Entry<String,Long> v : versions.entrySet()) {
+            int sep = v.getKey().indexOf(':');
+            Network network = Network.valueOf(v.getKey().substring(0, sep));
+            String id = v.getKey().substring(sep + 1);
+            int slot = table.slotById(network, id);
+            if(slot==PeerTable.NO_SLOT) continue; // Expired locally
+            delta.getPeers().add(new PeerDelta.Entry(network, id, table.getRelType(slot), table.getRecord(slot),
+                    v.getValue(), writers.get(v.getKey())));
+        }
+        for(Network network : Network.values()) {
+            for(NetworkPeer seed : seeds(network)) {
+                delta.getSeeds().add(new PeerDelta.Entry(network, seed.getId(), RelType.Seed,
+                        PeerTable.encode(seed), 0L, replicaId));
+            }
+        }
+        return delta;
+    }
+
+    public String getReplicaId() {
+        return replicaId;
+    }
+
+    public synchronized long getPublished() {
+        return published;
+    }
+
+    public synchronized long getApplied() {
+        return applied;
+    }
+
+    /**
+     * @return remote writes ignored for losing to the local version
+     */
+    public synchronized long getSuperseded() {
+        return superseded;
+    }
+
+    /**
+     * Hybrid logical clock: wall time unless a remote write has already been seen at or past it.
+     */
+    private long tick() {
+        clock = Math.max(clock + 1, now());
+        return clock;
+    }
+
+    private static String key(Network network, String id) {
+        return network.name() + ":" + id;
+    }
+
+    @Override
+    public boolean init(Properties p) {
+        if(!super.init(p)) {
+            return false;
+        }
+        String channel;
+        if(p.getProperty("ra.networkmanager.replication.channel")==null) {
+            channel = "default";
+        } else {
+            channel = p.getProperty("ra.networkmanager.replication.channel");
+        }
+        if(p.getProperty("ra.networkmanager.replication.replicaId")==null) {
+            replicaId = UUID.randomUUID().toString();
+        } else {
+            replicaId = p.getProperty("ra.networkmanager.replication.replicaId");
+        }
+        long flushMs;
+        if(p.getProperty("ra.networkmanager.replication.flushMs")==null) {
+            flushMs = 1000L;
+        } else {
+            flushMs = Long.parseLong(p.getProperty("ra.networkmanager.replication.flushMs"));
+        }
+        synchronized (this) {
+            pending = new PeerDelta(replicaId);
+            transport = InJvmReplicationTransport.channel(channel);
+        }
+        transport.join(replicaId, this::receive);
+        PeerDelta sync = new PeerDelta(replicaId);
+        sync.setSyncRequest(true);
+        transport.publish(sync);
+        if(flushMs > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "PeerDBReplication-" + replicaId);
+                t.setDaemon(true);
+                return t;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, flushMs, flushMs, TimeUnit.MILLISECONDS);
+        }
+        LOG.info("Peer DB replica "+replicaId+" joined channel "+channel);
+        return true;
+    }
+
+    @Override
+    public boolean teardown() {
+        if(flusher!=null) {
+            flusher.shutdownNow();
+        }
+        if(transport!=null) {
+            flush();
+            transport.leave(replicaId);
+        }
+        synchronized (this) {
+            transport = null;
+        }
+        return super.teardown();
+    }
+}
@@ -0,0 +1,21 @@
+package ra.networkmanager;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries {@link PeerDelta}s among co-located Peer DB replicas.
+ */
+public interface ReplicationTransport {
+
+    /**
+     * Deliver the delta to every other replica joined.
+     */
+    void publish(PeerDelta delta);
+
+    /**
+     * Join as the replica to receive deltas published by the others.
+     */
+    void join(String replicaId, Consumer<PeerDelta> receiver);
+
+    void leave(String replicaId);
+}
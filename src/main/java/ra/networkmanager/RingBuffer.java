@@ -0,0 +1,183 @@
+package ra.networkmanager;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free ring buffer connecting the stages of the {@link SendPipeline}.
+ *
+ * Each slot carries a sequence number so producers and consumers only contend on their own cursor.
+ * Intended for a single producer feeding one or more consumers although concurrent producers are safe.
+ * Capacity is rounded up to the next power of two.
+ *
+ * The non-blocking offer and poll never take a lock; the timed variants block on a monitor that is only
+ * signalled while some thread is waiting, so idle stages sleep rather than spin.
+ */
+public class RingBuffer<T> {
+
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to consume
+    private final AtomicLong tail = new AtomicLong(); // next slot to produce
+    private final Object monitor = new Object();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public RingBuffer(int capacity) {
+        if(capacity < 2) capacity = 2;
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        buffer = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for(int i=0; i<size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    public boolean offer(T t) {
+        long pos = tail.get();
+        for(;;) {
+            long diff = sequences.get((int)pos & mask) - pos;
+            if(diff == 0) {
+                if(tail.compareAndSet(pos, pos + 1))
+                    break;
+                pos = tail.get();
+            } else if(diff < 0) {
+                return false; // Full
+            } else {
+                pos = tail.get();
+            }
+        }
+        int idx = (int)pos & mask;
+        buffer[idx] = t;
+        // A full store so the check for waiters cannot be reordered before publishing the slot
+        sequences.set(idx, pos + 1);
+        signal();
+        return true;
+    }
+
+    /**
+     * @return next element or null if the buffer is empty
+     */
+    public T poll() {
+        long pos = head.get();
+        for(;;) {
+            long diff = sequences.get((int)pos & mask) - (pos + 1);
+            if(diff == 0) {
+                if(head.compareAndSet(pos, pos + 1))
+                    break;
+                pos = head.get();
+            } else if(diff < 0) {
+                return null; // Empty
+            } else {
+                pos = head.get();
+            }
+        }
+        int idx = (int)pos & mask;
+        T t = (T)buffer[idx];
+        buffer[idx] = null;
+        sequences.set(idx, pos + mask + 1);
+        signal();
+        return t;
+    }
+
+    /**
+     * Waits up to the timeout for space.
+     * @return false if the buffer stayed full
+     */
+    public boolean offer(T t, long timeout, TimeUnit unit) throws InterruptedException {
+        if(offer(t)) return true;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiting.incrementAndGet();
+        try {
+            synchronized (monitor) {
+                while(!offer(t)) {
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0) return false;
+                    TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+                }
+                return true;
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Waits up to the timeout for an element.
+     * @return next element or null if the buffer stayed empty
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T t = poll();
+        if(t!=null) return t;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiting.incrementAndGet();
+        try {
+            synchronized (monitor) {
+                while((t = poll())==null) {
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0) return null;
+                    TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+                }
+                return t;
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wake all waiting threads, e.g. on shutdown.
+     */
+    public void wakeAll() {
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * @return threads blocked in a timed offer or poll
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * Moves up to max elements into the supplied list.
+     * @return number of elements drained
+     */
+    public int drainTo(List<T> batch, int max) {
+        int drained = 0;
+        T t;
+        while(drained < max && (t = poll()) != null) {
+            batch.add(t);
+            drained++;
+        }
+        return drained;
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        return size < 0 ? 0 : (int)Math.min(size, buffer.length);
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private void signal() {
+        if(waiting.get() > 0) {
+            wakeAll();
+        }
+    }
+}
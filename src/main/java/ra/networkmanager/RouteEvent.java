@@ -0,0 +1,37 @@
+package ra.networkmanager;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * External Route selection for an envelope.
+ */
+@Name("ra.networkmanager.Route")
+@Label("Route Selection")
+@Category({"Resolving Architecture", "Network Manager"})
+@Description("Network, service and peer selected to reach a destination peer")
+public class RouteEvent extends Event {
+
+    @Label("Peer Id")
+    String peerId;
+
+    @Label("Requested Network")
+    String requestedNetwork;
+
+    @Label("Selected Network")
+    String network;
+
+    @Label("Service")
+    String service;
+
+    @Label("Result")
+    String code;
+
+    @Label("Size")
+    @DataAmount
+    long size;
+}
@@ -0,0 +1,50 @@
+package ra.networkmanager;
+
+import ra.common.network.NetworkPeer;
+
+/**
+ * Outcome of selecting the External Route to a peer: the network service to send through and
+ * the origination and destination peers on that network, or the code for why none could be selected.
+ */
+public class RouteResolution {
+
+    private final ResponseCodes code;
+    private final String service;
+    private final NetworkPeer origination;
+    private final NetworkPeer destination;
+
+    private RouteResolution(ResponseCodes code, String service, NetworkPeer origination, NetworkPeer destination) {
+        this.code = code;
+        this.service = service;
+        this.origination = origination;
+        this.destination = destination;
+    }
+
+    public static RouteResolution resolved(String service, NetworkPeer origination, NetworkPeer destination) {
+        return new RouteResolution(ResponseCodes.READY, service, origination, destination);
+    }
+
+    public static RouteResolution failed(ResponseCodes code) {
+        return new RouteResolution(code, null, null, null);
+    }
+
+    public boolean isResolved() {
+        return code == ResponseCodes.READY;
+    }
+
+    public ResponseCodes getCode() {
+        return code;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public NetworkPeer getOrigination() {
+        return origination;
+    }
+
+    public NetworkPeer getDestination() {
+        return destination;
+    }
+}
@@ -0,0 +1,231 @@
+package ra.networkmanager;
+
+import ra.common.Envelope;
+import ra.common.network.Network;
+
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Opt-in bundling of small routed SENDs to the same destination and network on high-latency networks.
+ *
+ * The first message for a destination opens a bundle that is sent when its window closes, when it reaches
+ * maxBytes or maxMessages, whichever is first. The window is windowMs, shortened to a tenth of the SLA's
+ * average ack latency target of the most urgent message in it; SLA 1 and hedged messages are never held.
+ * A bundle of one goes out as the message itself; larger ones as one envelope carrying the messages in
+ * its {@link #BUNDLE} NVP for the remote Network Manager to UNBUNDLE.
+ */
+public class SendCoalescer {
+
+    private static final Logger LOG = Logger.getLogger(SendCoalescer.class.getName());
+
+    public static final String BUNDLE = "ra.networkmanager.bundle";
+
+    private final NetworkManagerService service;
+    private final ScheduledExecutorService scheduler;
+
+    private final Long windowMs;
+    private final Long maxBytes;
+    private final Integer maxMessages;
+    private final Set<Network> networks = EnumSet.noneOf(Network.class);
+
+    private final Map<String,Bundle> open = new HashMap<>();
+
+    private final AtomicLong bundles = new AtomicLong();
+    private final AtomicLong bundled = new AtomicLong();
+    private final AtomicLong single = new AtomicLong();
+
+    private static class Bundle {
+        private final String key;
+        private final RouteResolution route;
+        private final List<Envelope> envelopes = new ArrayList<>();
+        private long bytes;
+        private long deadline;
+        private ScheduledFuture<?> timer;
+
+        private Bundle(String key, RouteResolution route) {
+            this.key = key;
+            this.route = route;
+        }
+    }
+
+    public SendCoalescer(NetworkManagerService service, ScheduledExecutorService scheduler, Properties p) {
+        this.service = service;
+        this.scheduler = scheduler;
+        if(p.getProperty("ra.networkmanager.coalesce.windowMs")==null) {
+            windowMs = 200L;
+        } else {
+            windowMs = Long.parseLong(p.getProperty("ra.networkmanager.coalesce.windowMs"));
+        }
+        if(p.getProperty("ra.networkmanager.coalesce.maxBytes")==null) {
+            maxBytes = 32 * 1024L;
+        } else {
+            maxBytes = Long.parseLong(p.getProperty("ra.networkmanager.coalesce.maxBytes"));
+        }
+        if(p.getProperty("ra.networkmanager.coalesce.maxMessages")==null) {
+            maxMessages = 32;
+        } else {
+            maxMessages = Integer.parseInt(p.getProperty("ra.networkmanager.coalesce.maxMessages"));
+        }
+        if(p.getProperty("ra.networkmanager.coalesce.networks")==null) {
+            networks.add(Network.Tor);
+            networks.add(Network.I2P);
+        } else {
+            for(String n : p.getProperty("ra.networkmanager.coalesce.networks").split(",")) {
+                if(!n.trim().isEmpty()) {
+                    networks.add(Network.valueOf(n.trim()));
+                }
+            }
+        }
+    }
+
+    public static boolean isEnabled(Properties p) {
+        return "true".equalsIgnoreCase(p.getProperty("ra.networkmanager.coalesce.enabled"));
+    }
+
+    /**
+     * Hold the routed envelope for bundling if it qualifies.
+     * @param maxDelayMs longest the envelope's SLA lets it wait
+     * @return false if the envelope should be sent now
+     */
+    public boolean offer(RouteResolution route, Envelope e, long size, int sla, long maxDelayMs) {
+        Network network = route.getDestination().getNetwork();
+        if(sla <= 1
+                || network==null
+                || !networks.contains(network)
+                || size >= maxBytes
+                || e.getValue(NetworkManagerService.DEDUPE_ID)!=null
+                || route.getDestination().getId()==null) {
+            return false;
+        }
+        long now = service.now();
+        long delay = Math.min(windowMs, maxDelayMs);
+        if(delay <= 0) {
+            return false;
+        }
+        String key = network.name() + ":" + route.getDestination().getId();
+        Bundle full = null;
+        synchronized (open) {
+            Bundle b = open.get(key);
+            boolean unscheduled = false;
+            if(b==null) {
+                b = new Bundle(key, route);
+                b.deadline = now + delay;
+                b.timer = schedule(b, delay);
+                if(b.timer==null) {
+                    // Shutting down; send now
+                    return false;
+                }
+                open.put(key, b);
+            } else if(now + delay < b.deadline) {
+                // More urgent than what is already waiting
+                ScheduledFuture<?> timer = schedule(b, delay);
+                if(timer==null) {
+                    unscheduled = true;
+                } else {
+                    b.timer.cancel(false);
+                    b.deadline = now + delay;
+                    b.timer = timer;
+                }
+            }
+            b.envelopes.add(e);
+            b.bytes += size;
+            if(unscheduled || b.bytes >= maxBytes || b.envelopes.size() >= maxMessages) {
+                b.timer.cancel(false);
+                open.remove(key);
+                full = b;
+            }
+        }
+        if(full!=null) {
+            send(full);
+        }
+        return true;
+    }
+
+    /**
+     * Send every open bundle now, e.g. on shutdown.
+     */
+    public void flushAll() {
+        List<Bundle> flushing;
+        synchronized (open) {
+            flushing = new ArrayList<>(open.values());
+            open.clear();
+        }
+        for(Bundle b : flushing) {
+            b.timer.cancel(false);
+            send(b);
+        }
+    }
+
+    public long getBundles() {
+        return bundles.get();
+    }
+
+    public long getBundled() {
+        return bundled.get();
+    }
+
+    /**
+     * @return windows that closed with a single message, sent as is
+     */
+    public long getSingle() {
+        return single.get();
+    }
+
+    /**
+     * @return null if the scheduler is shut down
+     */
+    private ScheduledFuture<?> schedule(Bundle b, long delayMs) {
+        try {
+            return scheduler.schedule(() -> close(b), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            LOG.fine("Unable to schedule bundle to "+b.key+": "+ex.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private void close(Bundle b) {
+        synchronized (open) {
+            // Already sent when full
+            if(open.get(b.key)!=b) return;
+            open.remove(b.key);
+        }
+        send(b);
+    }
+
+    private void send(Bundle b) {
+        Network network = b.route.getDestination().getNetwork();
+        Envelope out;
+        if(b.envelopes.size()==1) {
+            out = b.envelopes.get(0);
+            single.incrementAndGet();
+        } else {
+            out = Envelope.documentFactory();
+            List<Map<String,Object>> members = new ArrayList<>(b.envelopes.size());
+            for(Envelope e : b.envelopes) {
+                members.add(e.toMap());
+            }
+            out.addNVP(BUNDLE, members);
+            // 2. Remote Network Manager unbundles
+            out.addExternalRoute(NetworkManagerService.class.getName(), NetworkManagerService.OPERATION_UNBUNDLE,
+                    b.route.getOrigination(), b.route.getDestination());
+            // 1. Send through the local network service
+            out.addRoute(b.route.getService(), "SEND");
+            bundles.incrementAndGet();
+            bundled.addAndGet(b.envelopes.size());
+        }
+        boolean sent = service.send(out);
+        service.recordSendOutcome(network, sent);
+        if(!sent) {
+            LOG.fine("Bundle of "+b.envelopes.size()+" to "+b.key+" failed.");
+            for(Envelope e : b.envelopes) {
+                service.sendComplete(e, ResponseCodes.SEND_FAILED);
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package ra.networkmanager;
+
+import ra.common.Envelope;
+import ra.common.Tuple2;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Staged, asynchronous send pipeline between the Network Manager and its Message Producer.
+ *
+ * SEND and PUBLISH envelopes move through two stages connected by bounded {@link RingBuffer}s:
+ * resolve (destination peers, PUBLISH fan-out) and dispatch. Dispatch is served by a pool of workers
+ * each draining a batch, routing it against one snapshot of the network states with the External Route
+ * resolved once per destination peer, and sending through the coalescer when enabled, so a slow network
+ * service only holds up a dispatch worker, not intake. Each worker has its own buffer, sharded by
+ * destination peer, so sends to a peer keep their order. Idle stages block until work arrives.
+ * Completion of each envelope is reported back to {@link NetworkManagerService#sendComplete(Envelope, ResponseCodes)},
+ * including those still queued at shutdown, reported as failed so they are held.
+ */
+public class SendPipeline {
+
+    private static final Logger LOG = Logger.getLogger(SendPipeline.class.getName());
+
+    // Upper bound on a blocked stage noticing shutdown should it miss the wake up
+    private static final long IDLE_WAIT_MS = 100;
+
+    private final NetworkManagerService service;
+
+    private final RingBuffer<Envelope> resolveBuffer;
+    private final RingBuffer<Tuple2<NetworkPeer,Envelope>>[] dispatchBuffers;
+
+    private final Integer capacity;
+    private final Integer dispatchers;
+    private final Integer batchSize;
+
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = false;
+    // Submits hold the read lock so none can slip in once shutdown has stopped intake
+    private final ReadWriteLock intake = new ReentrantReadWriteLock();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public SendPipeline(NetworkManagerService service, Properties p) {
+        this.service = service;
+        if(p.getProperty("ra.networkmanager.pipeline.capacity")==null) {
+            capacity = 1024;
+        } else {
+            capacity = Integer.parseInt(p.getProperty("ra.networkmanager.pipeline.capacity"));
+        }
+        if(p.getProperty("ra.networkmanager.pipeline.dispatchers")==null) {
+            dispatchers = 4;
+        } else {
+            dispatchers = Integer.parseInt(p.getProperty("ra.networkmanager.pipeline.dispatchers"));
+        }
+        if(p.getProperty("ra.networkmanager.pipeline.batchSize")==null) {
+            batchSize = 32;
+        } else {
+            batchSize = Integer.parseInt(p.getProperty("ra.networkmanager.pipeline.batchSize"));
+        }
+        resolveBuffer = new RingBuffer<>(capacity);
+        dispatchBuffers = new RingBuffer[Math.max(1, dispatchers)];
+        for(int i=0; i<dispatchBuffers.length; i++) {
+            dispatchBuffers[i] = new RingBuffer<>(Math.max(batchSize, capacity / dispatchBuffers.length));
+        }
+    }
+
+    public static boolean isEnabled(Properties p) {
+        return "true".equalsIgnoreCase(p.getProperty("ra.networkmanager.pipeline.enabled"));
+    }
+
+    /**
+     * Queue a SEND or PUBLISH envelope.
+     * @return false if the pipeline is not running or intake is full; the caller is expected to handle the envelope inline
+     */
+    public boolean submit(Envelope e) {
+        intake.readLock().lock();
+        try {
+            if(!running || !resolveBuffer.offer(e)) {
+                return false;
+            }
+        } finally {
+            intake.readLock().unlock();
+        }
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    public void start() {
+        if(running) return;
+        running = true;
+        threads.add(newThread("Resolve", this::resolve));
+        for(int i=0; i<dispatchBuffers.length; i++) {
+            RingBuffer<Tuple2<NetworkPeer,Envelope>> shard = dispatchBuffers[i];
+            threads.add(newThread("Dispatch-"+i, () -> dispatch(shard)));
+        }
+        for(Thread t : threads) {
+            t.start();
+        }
+        LOG.info("Send pipeline started with "+dispatchBuffers.length+" dispatchers.");
+    }
+
+    public void shutdown() {
+        intake.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            intake.writeLock().unlock();
+        }
+        resolveBuffer.wakeAll();
+        for(RingBuffer<Tuple2<NetworkPeer,Envelope>> shard : dispatchBuffers) {
+            shard.wakeAll();
+        }
+        for(Thread t : threads) {
+            try {
+                t.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        threads.clear();
+        // Whatever the stages did not get to in time goes to the hold rather than being lost
+        int abandoned = 0;
+        Envelope e;
+        while((e = resolveBuffer.poll())!=null) {
+            for(Tuple2<NetworkPeer,Envelope> t : resolve(e)) {
+                complete(t.second, ResponseCodes.SEND_FAILED);
+                abandoned++;
+            }
+        }
+        for(RingBuffer<Tuple2<NetworkPeer,Envelope>> shard : dispatchBuffers) {
+            Tuple2<NetworkPeer,Envelope> t;
+            while((t = shard.poll())!=null) {
+                complete(t.second, ResponseCodes.SEND_FAILED);
+                abandoned++;
+            }
+        }
+        if(abandoned > 0) {
+            LOG.warning(abandoned+" envelopes still queued at shutdown reported as failed.");
+        }
+        LOG.info("Send pipeline stopped: submitted="+submitted.get()+", sent="+sent.get()+", failed="+failed.get()+", batches="+batches.get());
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return batches dispatched
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public int getBacklog() {
+        int backlog = resolveBuffer.size();
+        for(RingBuffer<Tuple2<NetworkPeer,Envelope>> shard : dispatchBuffers) {
+            backlog += shard.size();
+        }
+        return backlog;
+    }
+
+    /**
+     * Stage 1: resolve destination peers, fanning PUBLISH out into one envelope per peer.
+     */
+    private void resolve() {
+        try {
+            while(running || !resolveBuffer.isEmpty()) {
+                Envelope e = resolveBuffer.poll(IDLE_WAIT_MS, TimeUnit.MILLISECONDS);
+                if(e==null) {
+                    continue;
+                }
+                for(Tuple2<NetworkPeer,Envelope> t : resolve(e)) {
+                    put(t);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return one destination peer and envelope per copy to send, none if completed as missing its peer
+     */
+    private List<Tuple2<NetworkPeer,Envelope>> resolve(Envelope e) {
+        String operation = e.getDynamicRoutingSlip().getCurrentRoute().getOperation();
+        if(NetworkManagerService.OPERATION_PUBLISH.equals(operation)) {
+            List<Tuple2<NetworkPeer,Envelope>> copies = service.fanOut(e);
+            if(copies==null) {
+                complete(e, ResponseCodes.MISSING_PEER);
+                return Collections.emptyList();
+            }
+            return copies;
+        }
+        Object obj = e.getValue(NetworkPeer.class.getName());
+        if(!(obj instanceof NetworkPeer)) {
+            complete(e, ResponseCodes.MISSING_PEER);
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new Tuple2<>((NetworkPeer)obj, e));
+    }
+
+    /**
+     * Stage 2: route and hand off to the network services in batches.
+     */
+    private void dispatch(RingBuffer<Tuple2<NetworkPeer,Envelope>> shard) {
+        List<Tuple2<NetworkPeer,Envelope>> batch = new ArrayList<>(batchSize);
+        try {
+            while(running || !resolveBuffer.isEmpty() || !shard.isEmpty()) {
+                Tuple2<NetworkPeer,Envelope> first = shard.poll(IDLE_WAIT_MS, TimeUnit.MILLISECONDS);
+                if(first==null) {
+                    continue;
+                }
+                batch.add(first);
+                shard.drainTo(batch, batchSize - 1);
+                Map<String,NetworkState> snapshot = new HashMap<>(service.networkStates);
+                Map<String,RouteResolution> routes = new HashMap<>();
+                for(Tuple2<NetworkPeer,Envelope> t : batch) {
+                    ResponseCodes code;
+                    try {
+                        code = service.routeAndSend(t.first, t.second, snapshot, routes);
+                    } catch (Exception ex) {
+                        LOG.warning(ex.getLocalizedMessage());
+                        code = ResponseCodes.SEND_FAILED;
+                    }
+                    complete(t.second, code);
+                }
+                batches.incrementAndGet();
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void complete(Envelope e, ResponseCodes code) {
+        if(code==ResponseCodes.SENT) {
+            sent.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        service.sendComplete(e, code);
+    }
+
+    /**
+     * Resolve blocks when the peer's dispatch shard is full; back pressure ultimately surfaces as a failed submit().
+     * Once shut down and the shard is still full, the envelope is reported as failed instead.
+     */
+    private void put(Tuple2<NetworkPeer,Envelope> t) throws InterruptedException {
+        String key = NetworkManagerService.routeKey(t.first);
+        RingBuffer<Tuple2<NetworkPeer,Envelope>> shard = dispatchBuffers[key==null ? 0 : Math.floorMod(key.hashCode(), dispatchBuffers.length)];
+        while(!shard.offer(t, IDLE_WAIT_MS, TimeUnit.MILLISECONDS)) {
+            if(!running) {
+                complete(t.second, ResponseCodes.SEND_FAILED);
+                return;
+            }
+        }
+    }
+
+    private Thread newThread(String name, Runnable r) {
+        Thread t = new Thread(r, "NetworkManager-"+name);
+        t.setDaemon(true);
+        return t;
+    }
+}
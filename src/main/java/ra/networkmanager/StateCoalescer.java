@@ -0,0 +1,173 @@
+package ra.networkmanager;
+
+import ra.common.Envelope;
+import ra.common.messaging.EventMessage;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Coalesces rapid network state changes per network before they are published to subscribers.
+ *
+ * The first change after a quiet period is published at once and opens a window. Changes within the
+ * window replace each other; when it closes, the latest state is published if it differs from the one
+ * last published. Every published notification carries the transitions it covers in the
+ * {@link #TRANSITIONS} NVP for consumers that need each one.
+ *
+ * A window that flapped back to the state last published is, by stateCoalesce.flaps:
+ * queue - not published, its transitions carried into the next notification (default);
+ * publish - published anyway marked {@link #FLAPPED}, for consumers that must see each flap as it happens,
+ * others skipping notifications so marked;
+ * drop - not published, its transitions discarded.
+ */
+public class StateCoalescer {
+
+    public static final String TRANSITIONS = "ra.networkmanager.transitions";
+    // Set on a notification of a window that flapped back to the state last published
+    public static final String FLAPPED = "ra.networkmanager.flapped";
+
+    public static final String FLAPS_QUEUE = "queue";
+    public static final String FLAPS_PUBLISH = "publish";
+    public static final String FLAPS_DROP = "drop";
+
+    // Queued transitions kept per network, oldest discarded first
+    private static final int MAX_QUEUED = 1000;
+
+    private final ScheduledExecutorService scheduler;
+    private final Consumer<Envelope> publisher;
+    private final LongSupplier clock;
+    private final Long windowMs;
+    private final String flaps;
+
+    private final Map<String,Window> windows = new HashMap<>();
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong merged = new AtomicLong();
+    private final AtomicLong flapped = new AtomicLong();
+
+    private static class Window {
+        private Envelope pending;
+        private NetworkStatus lastPublished;
+        private List<Map<String,Object>> transitions = new ArrayList<>();
+        private boolean open = false;
+    }
+
+    public StateCoalescer(ScheduledExecutorService scheduler, Consumer<Envelope> publisher, LongSupplier clock, Properties p) {
+        this.scheduler = scheduler;
+        this.publisher = publisher;
+        this.clock = clock;
+        if(p.getProperty("ra.networkmanager.stateCoalesce.windowMs")==null) {
+            windowMs = 1000L;
+        } else {
+            windowMs = Long.parseLong(p.getProperty("ra.networkmanager.stateCoalesce.windowMs"));
+        }
+        if(p.getProperty("ra.networkmanager.stateCoalesce.flaps")==null) {
+            flaps = FLAPS_QUEUE;
+        } else {
+            flaps = p.getProperty("ra.networkmanager.stateCoalesce.flaps").trim().toLowerCase();
+        }
+    }
+
+    /**
+     * @param e envelope carrying the changed state, published as is or merged into the network's window
+     */
+    public void submit(Envelope e, NetworkState state) {
+        Map<String,Object> transition = new HashMap<>();
+        transition.put("status", state.networkStatus.name());
+        transition.put("time", clock.getAsLong());
+        Envelope publish = null;
+        synchronized (windows) {
+            Window w = windows.computeIfAbsent(state.network.name(), n -> new Window());
+            w.transitions.add(transition);
+            if(w.transitions.size() > MAX_QUEUED) {
+                w.transitions.remove(0);
+            }
+            if(windowMs <= 0 || !w.open) {
+                publish = take(w, e, state.networkStatus);
+                if(windowMs > 0) {
+                    w.open = schedule(state.network.name());
+                }
+            } else {
+                if(w.pending!=null) {
+                    merged.incrementAndGet();
+                }
+                w.pending = e;
+            }
+        }
+        if(publish!=null) {
+            publisher.accept(publish);
+        }
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getMerged() {
+        return merged.get();
+    }
+
+    /**
+     * @return windows that flapped back to the state last published, whether queued, published or dropped
+     */
+    public long getFlapped() {
+        return flapped.get();
+    }
+
+    private void close(String network) {
+        Envelope publish = null;
+        synchronized (windows) {
+            Window w = windows.get(network);
+            if(w.pending==null) {
+                w.open = false;
+                return;
+            }
+            NetworkState latest = (NetworkState)((EventMessage)w.pending.getMessage()).getMessage();
+            if(latest.networkStatus == w.lastPublished) {
+                // Flapped back to where subscribers already are
+                flapped.incrementAndGet();
+                if(!FLAPS_PUBLISH.equals(flaps)) {
+                    if(FLAPS_DROP.equals(flaps)) {
+                        w.transitions = new ArrayList<>();
+                    }
+                    w.pending = null;
+                    w.open = false;
+                    return;
+                }
+                w.pending.addNVP(FLAPPED, true);
+            }
+            publish = take(w, w.pending, latest.networkStatus);
+            // Keep the window open so a network still flapping is published at most once per window
+            w.open = schedule(network);
+        }
+        publisher.accept(publish);
+    }
+
+    /**
+     * @return false if the scheduler is shut down, leaving the window closed so later changes publish at once
+     */
+    private boolean schedule(String network) {
+        try {
+            scheduler.schedule(() -> close(network), windowMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private Envelope take(Window w, Envelope e, NetworkStatus status) {
+        e.addNVP(TRANSITIONS, w.transitions);
+        w.transitions = new ArrayList<>();
+        w.pending = null;
+        w.lastPublished = status;
+        published.incrementAndGet();
+        return e;
+    }
+}
@@ -1,5 +1,7 @@
 package ra.networkmanager;
 
+import ra.common.network.Network;
+
 import java.util.Properties;
 
 public class Stats {
@@ -24,6 +26,13 @@ public class Stats {
     public final int superReliableBluetoothAvgAckLatencyMs;
     public final int superReliableBluetoothMedAckLatencyMs;
 
+    // Low Latency
+    public final int lowLatencyMinAcks;
+
+    // Banned
+    public final int bannedMinTimeouts;
+    public final int bannedMaxAckPercent;
+
     // SLAs
     public final int sla1AvgAckLatencyMs;
     public final int sla1MedAckLatencyMs;
@@ -55,6 +64,11 @@ public class Stats {
         superReliableBluetoothAvgAckLatencyMs = Integer.parseInt(p.getProperty("ra.networkmanager.stats.superreliable.bluetooth.avgAckLatencyMs"));
         superReliableBluetoothMedAckLatencyMs = Integer.parseInt(p.getProperty("ra.networkmanager.stats.superreliable.bluetooth.medAckLatencyMs"));
 
+        lowLatencyMinAcks = Integer.parseInt(p.getProperty("ra.networkmanager.stats.lowlatency.minAcks"));
+
+        bannedMinTimeouts = Integer.parseInt(p.getProperty("ra.networkmanager.stats.banned.minTimeouts"));
+        bannedMaxAckPercent = Integer.parseInt(p.getProperty("ra.networkmanager.stats.banned.maxAckPercent"));
+
         sla1AvgAckLatencyMs = Integer.parseInt(p.getProperty("ra.networkmanager.stats.sla.1.avgAckLatencyMs"));
         sla1MedAckLatencyMs = Integer.parseInt(p.getProperty("ra.networkmanager.stats.sla.1.medAckLatencyMs"));
         sla2AvgAckLatencyMs = Integer.parseInt(p.getProperty("ra.networkmanager.stats.sla.2.avgAckLatencyMs"));
@@ -67,4 +81,52 @@ public class Stats {
         sla5MedAckLatencyMs = Integer.parseInt(p.getProperty("ra.networkmanager.stats.sla.5.medAckLatencyMs"));
     }
 
+    /**
+     * Reliable average ack latency threshold for the network; networks without their own use Tor's.
+     */
+    public int reliableAvgAckLatencyMs(Network network) {
+        switch (network) {
+            case I2P: return reliableI2PAvgAckLatencyMs;
+            case Bluetooth: return reliableBluetoothAvgAckLatencyMs;
+            default: return reliableTorAvgAckLatencyMs;
+        }
+    }
+
+    public int reliableMedAckLatencyMs(Network network) {
+        switch (network) {
+            case I2P: return reliableI2PMedAckLatencyMs;
+            case Bluetooth: return reliableBluetoothMedAckLatencyMs;
+            default: return reliableTorMedAckLatencyMs;
+        }
+    }
+
+    public int superReliableAvgAckLatencyMs(Network network) {
+        switch (network) {
+            case I2P: return superReliableI2PAvgAckLatencyMs;
+            case Bluetooth: return superReliableBluetoothAvgAckLatencyMs;
+            default: return superReliableTorAvgAckLatencyMs;
+        }
+    }
+
+    public int superReliableMedAckLatencyMs(Network network) {
+        switch (network) {
+            case I2P: return superReliableI2PMedAckLatencyMs;
+            case Bluetooth: return superReliableBluetoothMedAckLatencyMs;
+            default: return superReliableTorMedAckLatencyMs;
+        }
+    }
+
+    /**
+     * @param sla SLA class 1-5
+     */
+    public int slaAvgAckLatencyMs(int sla) {
+        switch (sla) {
+            case 1: return sla1AvgAckLatencyMs;
+            case 2: return sla2AvgAckLatencyMs;
+            case 3: return sla3AvgAckLatencyMs;
+            case 4: return sla4AvgAckLatencyMs;
+            default: return sla5AvgAckLatencyMs;
+        }
+    }
+
 }
@@ -0,0 +1,91 @@
+package ra.networkmanager;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Slots filed into fixed-width time buckets, oldest first.
+ *
+ * A slot is filed again whenever its time moves to a later bucket and its earlier entries are left
+ * behind; visitors check an entry against the slot's current time. Every entry is visited a bounded
+ * number of times before it is dropped, so sweeping costs amortized O(1) per slot expired.
+ *
+ * Not thread safe; callers synchronize.
+ */
+public class TimeBuckets {
+
+    private final long bucketMs;
+    private final TreeMap<Long,Bucket> buckets = new TreeMap<>();
+
+    private static class Bucket {
+        private int[] slots = new int[8];
+        private int size;
+    }
+
+    public TimeBuckets(long bucketMs) {
+        this.bucketMs = bucketMs;
+    }
+
+    public long keyOf(long time) {
+        return time / bucketMs;
+    }
+
+    public void add(long time, int slot) {
+        Bucket b = buckets.computeIfAbsent(keyOf(time), k -> new Bucket());
+        if(b.size == b.slots.length) {
+            b.slots = Arrays.copyOf(b.slots, b.size << 1);
+        }
+        b.slots[b.size++] = slot;
+    }
+
+    /**
+     * Visit the entries of buckets after fromKey that lie entirely before the time, leaving them in place.
+     * @return key of the last bucket visited, fromKey if none
+     */
+    public long visit(long fromKey, long before, BucketVisitor visitor) {
+        long last = fromKey;
+        for(Map.Entry<Long,Bucket> entry : buckets.tailMap(fromKey, false).entrySet()) {
+            if(entry.getKey() >= keyOf(before)) {
+                break;
+            }
+            Bucket b = entry.getValue();
+            for(int i=0; i<b.size; i++) {
+                visitor.visit(entry.getKey(), b.slots[i]);
+            }
+            last = entry.getKey();
+        }
+        return last;
+    }
+
+    /**
+     * Remove the buckets lying entirely before the time, visiting their entries.
+     */
+    public void expire(long before, BucketVisitor visitor) {
+        Iterator<Map.Entry<Long,Bucket>> it = buckets.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Long,Bucket> entry = it.next();
+            if(entry.getKey() >= keyOf(before)) {
+                break;
+            }
+            it.remove();
+            Bucket b = entry.getValue();
+            for(int i=0; i<b.size; i++) {
+                visitor.visit(entry.getKey(), b.slots[i]);
+            }
+        }
+    }
+
+    public int buckets() {
+        return buckets.size();
+    }
+
+    public void clear() {
+        buckets.clear();
+    }
+
+    public interface BucketVisitor {
+        void visit(long key, int slot);
+    }
+}
@@ -0,0 +1,45 @@
+package ra.networkmanager;
+
+/**
+ * Token bucket refilled continuously at a fixed rate up to its capacity.
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double refillPerMs;
+
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double capacity, double refillPerSecond, long now) {
+        this.capacity = capacity;
+        this.refillPerMs = refillPerSecond / 1000.0;
+        this.tokens = capacity;
+        this.lastRefill = now;
+    }
+
+    /**
+     * Take up to the requested tokens.
+     * @return number of tokens granted, 0 if the bucket is empty
+     */
+    public synchronized int take(int requested, long now) {
+        if(now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerMs);
+            lastRefill = now;
+        }
+        int granted = (int)Math.min(requested, Math.floor(tokens));
+        tokens -= granted;
+        return granted;
+    }
+
+    /**
+     * Return tokens taken but not used, up to the capacity.
+     */
+    public synchronized void give(int unused) {
+        tokens = Math.min(capacity, tokens + unused);
+    }
+
+    public synchronized double available() {
+        return tokens;
+    }
+}
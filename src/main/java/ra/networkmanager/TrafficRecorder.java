@@ -0,0 +1,287 @@
+package ra.networkmanager;
+
+import ra.common.Envelope;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opt-in recording of the envelopes handed to handleEvent, handleDocument and handleDocuments, with their
+ * timing, to a trace file for offline replay.
+ *
+ * The calling thread only snapshots the envelope as JSON, before handling changes it, and offers it to a
+ * bounded queue; a daemon thread writes the trace, so a full queue drops records rather than blocking.
+ * Recording stops once maxBytes of envelope JSON have been written.
+ *
+ * Trace layout, gzipped: magic, version byte, wall clock start in ms, then per record the varint micros
+ * since the previous one, the kind, for batches the varint envelope count, and each envelope as a varint
+ * length and UTF-8 JSON.
+ */
+public class TrafficRecorder {
+
+    private static final Logger LOG = Logger.getLogger(TrafficRecorder.class.getName());
+
+    public static final int MAGIC = 0x52415452; // RATR
+    public static final byte VERSION = 1;
+
+    public static final byte EVENT = 0;
+    public static final byte DOCUMENT = 1;
+    public static final byte BATCH = 2;
+
+    private final File file;
+    private final Long maxBytes;
+    private final BlockingQueue<Record> queue;
+    private final Thread writer;
+    private final long startNanos = System.nanoTime();
+
+    private volatile boolean recording = true;
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // Writer thread only
+    private long written = 0L;
+    private long lastMicros = 0L;
+
+    public static class Record {
+        private final long nanos;
+        private final byte kind;
+        private final List<String> envelopes;
+
+        private Record(long nanos, byte kind, List<String> envelopes) {
+            this.nanos = nanos;
+            this.kind = kind;
+            this.envelopes = envelopes;
+        }
+
+        /**
+         * @return micros since the start of the trace
+         */
+        public long getOffsetMicros() {
+            return nanos / 1000;
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+
+        /**
+         * @return envelopes as JSON, one unless a batch
+         */
+        public List<String> getEnvelopes() {
+            return envelopes;
+        }
+    }
+
+    public TrafficRecorder(File file, Properties p) throws IOException {
+        this.file = file;
+        if(p.getProperty("ra.networkmanager.recorder.maxBytes")==null) {
+            maxBytes = 256 * 1024 * 1024L;
+        } else {
+            maxBytes = Long.parseLong(p.getProperty("ra.networkmanager.recorder.maxBytes"));
+        }
+        int queueSize;
+        if(p.getProperty("ra.networkmanager.recorder.queueSize")==null) {
+            queueSize = 10000;
+        } else {
+            queueSize = Integer.parseInt(p.getProperty("ra.networkmanager.recorder.queueSize"));
+        }
+        queue = new ArrayBlockingQueue<>(queueSize);
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        writer = new Thread(() -> write(out), "NetworkManager-TrafficRecorder");
+        writer.setDaemon(true);
+        writer.start();
+        LOG.info("Recording traffic to "+file.getAbsolutePath());
+    }
+
+    public static boolean isEnabled(Properties p) {
+        return "true".equalsIgnoreCase(p.getProperty("ra.networkmanager.recorder.enabled"));
+    }
+
+    public void record(byte kind, Envelope e) {
+        if(!recording) return;
+        offer(new Record(System.nanoTime() - startNanos, kind, Collections.singletonList(e.toJSON())));
+    }
+
+    public void record(List<Envelope> batch) {
+        if(!recording) return;
+        List<String> envelopes = new ArrayList<>(batch.size());
+        for(Envelope e : batch) {
+            envelopes.add(e.toJSON());
+        }
+        offer(new Record(System.nanoTime() - startNanos, BATCH, envelopes));
+    }
+
+    private void offer(Record r) {
+        if(queue.offer(r)) {
+            recorded.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop recording, write what is queued and close the trace.
+     */
+    public void close() {
+        recording = false;
+        writer.interrupt();
+        try {
+            writer.join(10 * 1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOG.info("Recorded "+recorded.get()+" inputs to "+file.getAbsolutePath()+"; "+dropped.get()+" dropped.");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * @return inputs not recorded as the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void write(DataOutputStream out) {
+        try {
+            while(true) {
+                Record r;
+                if(recording) {
+                    r = queue.poll(1, TimeUnit.SECONDS);
+                    if(r==null) {
+                        out.flush();
+                        continue;
+                    }
+                } else {
+                    r = queue.poll();
+                    if(r==null) break;
+                }
+                // Threads racing to the queue can land slightly out of order
+                long micros = r.nanos / 1000;
+                varint(out, Math.max(0L, micros - lastMicros));
+                lastMicros = Math.max(lastMicros, micros);
+                out.writeByte(r.kind);
+                if(r.kind==BATCH) {
+                    varint(out, r.envelopes.size());
+                }
+                for(String json : r.envelopes) {
+                    byte[] utf8 = (json==null ? "" : json).getBytes(StandardCharsets.UTF_8);
+                    varint(out, utf8.length);
+                    out.write(utf8);
+                    written += utf8.length;
+                }
+                if(written >= maxBytes && recording) {
+                    LOG.warning("Traffic trace reached "+maxBytes+" bytes; recording stopped.");
+                    recording = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closing; fall through to write what is queued
+            recording = false;
+            write(out);
+            return;
+        } catch (IOException e) {
+            LOG.warning("Unable to write traffic trace: "+e.getLocalizedMessage());
+            recording = false;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.warning(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Reads a trace record by record.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final long startMillis;
+        private long nanos = 0L;
+
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)), 64 * 1024));
+            if(in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Not a traffic trace: "+file.getAbsolutePath());
+            }
+            byte version = in.readByte();
+            if(version != VERSION) {
+                in.close();
+                throw new IOException("Unsupported traffic trace version: "+version);
+            }
+            startMillis = in.readLong();
+        }
+
+        /**
+         * @return wall clock time recording started
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return next record, null at the end of the trace
+         */
+        public Record next() throws IOException {
+            try {
+                nanos += readVarint(in) * 1000;
+                byte kind = in.readByte();
+                int count = kind==BATCH ? (int)readVarint(in) : 1;
+                List<String> envelopes = new ArrayList<>(count);
+                for(int i=0; i<count; i++) {
+                    byte[] utf8 = new byte[(int)readVarint(in)];
+                    in.readFully(utf8);
+                    envelopes.add(new String(utf8, StandardCharsets.UTF_8));
+                }
+                return new Record(nanos, kind, envelopes);
+            } catch (EOFException e) {
+                // End of the trace, or the last record of one cut short by a crash
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static void varint(DataOutputStream out, long n) throws IOException {
+        while((n & ~0x7FL) != 0) {
+            out.writeByte((int)((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        out.writeByte((int)n);
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long n = 0;
+        for(int shift=0; shift<64; shift+=7) {
+            int b = in.readUnsignedByte();
+            n |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0) return n;
+        }
+        throw new IOException("Malformed varint in traffic trace");
+    }
+}
@@ -0,0 +1,109 @@
+package ra.networkmanager;
+
+import java.util.Arrays;
+
+/**
+ * Weights by position kept in a Fenwick tree: O(log n) updates and O(log n) weighted sampling.
+ *
+ * Positions mirror a dense list; removal moves the last position's weight into the removed one.
+ *
+ * Not thread safe; callers synchronize.
+ */
+public class WeightedSampler {
+
+    private double[] weights;
+    private double[] tree; // 1-indexed
+    private int size;
+
+    public WeightedSampler() {
+        this(16);
+    }
+
+    public WeightedSampler(int capacity) {
+        weights = new double[Math.max(1, capacity)];
+        tree = new double[weights.length + 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double get(int pos) {
+        return weights[pos];
+    }
+
+    public void append(double weight) {
+        if(size == weights.length) {
+            weights = Arrays.copyOf(weights, size << 1);
+            rebuild();
+        }
+        size++;
+        set(size - 1, weight);
+    }
+
+    public void set(int pos, double weight) {
+        double delta = weight - weights[pos];
+        weights[pos] = weight;
+        for(int i = pos + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Remove the position, moving the last position's weight into it.
+     */
+    public void swapRemove(int pos) {
+        int last = size - 1;
+        double lastWeight = weights[last];
+        set(last, 0.0);
+        if(pos != last) {
+            set(pos, lastWeight);
+        }
+        size--;
+    }
+
+    public double total() {
+        double sum = 0.0;
+        for(int i = size; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * @param target in [0, total())
+     * @return position whose cumulative weight range contains the target
+     */
+    public int sample(double target) {
+        int pos = 0;
+        for(int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+            int next = pos + step;
+            if(next < tree.length && tree[next] <= target) {
+                target -= tree[next];
+                pos = next;
+            }
+        }
+        // Guard against rounding drift past the last weighted position
+        return Math.min(pos, size - 1);
+    }
+
+    public void clear() {
+        Arrays.fill(weights, 0.0);
+        Arrays.fill(tree, 0.0);
+        size = 0;
+    }
+
+    /**
+     * Recompute the tree from the weights, e.g. after growing or to shed accumulated rounding error.
+     */
+    public void rebuild() {
+        tree = new double[weights.length + 1];
+        for(int i = 1; i < tree.length; i++) {
+            tree[i] += weights[i - 1];
+            int parent = i + (i & -i);
+            if(parent < tree.length) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000L);
+        breaker.recordFailure(0L);
+        breaker.recordFailure(1L);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // A success resets the count
+        breaker.recordSuccess();
+        breaker.recordFailure(2L);
+        breaker.recordFailure(3L);
+        Assert.assertTrue(breaker.allowRequest(4L));
+        breaker.recordFailure(5L);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.isAvailable(6L));
+        Assert.assertFalse(breaker.allowRequest(1004L));
+    }
+
+    @Test
+    public void halfOpenLetsOneTrialThrough() {
+        CircuitBreaker breaker = open(1000L);
+        // Ranking does not claim the trial
+        Assert.assertTrue(breaker.isAvailable(1000L));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertTrue(breaker.allowRequest(1000L));
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest(1001L));
+        Assert.assertFalse(breaker.isAvailable(1001L));
+        breaker.recordSuccess();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertEquals(0, breaker.getFailures());
+        Assert.assertTrue(breaker.allowRequest(1002L));
+    }
+
+    @Test
+    public void failedTrialReopens() {
+        CircuitBreaker breaker = open(1000L);
+        Assert.assertTrue(breaker.allowRequest(1000L));
+        breaker.recordFailure(1500L);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        // Open period restarts from the failed trial
+        Assert.assertFalse(breaker.allowRequest(2400L));
+        Assert.assertTrue(breaker.allowRequest(2500L));
+    }
+
+    @Test
+    public void abandonedTrialIsReplaced() {
+        CircuitBreaker breaker = open(1000L);
+        Assert.assertTrue(breaker.allowRequest(1000L));
+        // No outcome for the trial within openMs
+        Assert.assertFalse(breaker.allowRequest(1999L));
+        Assert.assertTrue(breaker.allowRequest(2000L));
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    private static CircuitBreaker open(long openMs) {
+        CircuitBreaker breaker = new CircuitBreaker(1, openMs);
+        breaker.recordFailure(0L);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
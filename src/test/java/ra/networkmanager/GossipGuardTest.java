@@ -0,0 +1,84 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Properties;
+
+public class GossipGuardTest {
+
+    @Test
+    public void limitsEachOrigin() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.gossip.peersPerSecond", "10");
+        p.setProperty("ra.networkmanager.gossip.burst", "100");
+        GossipGuard guard = new GossipGuard(p);
+        Assert.assertEquals(100, guard.allowance("a", 150, 1000L));
+        Assert.assertEquals(0, guard.allowance("a", 10, 1000L));
+        Assert.assertEquals(10, guard.allowance("a", 50, 2000L));
+        // Other origins have their own bucket; from within this node is not limited
+        Assert.assertEquals(50, guard.allowance("b", 50, 2000L));
+        Assert.assertEquals(500, guard.allowance(null, 500, 2000L));
+        Assert.assertEquals(100, guard.getPeersLimited());
+    }
+
+    @Test
+    public void limitsOriginsTogether() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.gossip.burst", "100");
+        p.setProperty("ra.networkmanager.gossip.global.peersPerSecond", "100");
+        p.setProperty("ra.networkmanager.gossip.global.burst", "1000");
+        GossipGuard guard = new GossipGuard(p);
+        // One peer claiming a fresh origin per envelope
+        int granted = 0;
+        for(int i=0; i<50; i++) {
+            granted += guard.allowance("forged-"+i, 100, 1000L);
+        }
+        Assert.assertEquals(1000, granted);
+        Assert.assertEquals(0, guard.allowance("forged-50", 100, 1000L));
+        Assert.assertEquals(100, guard.allowance("forged-51", 100, 2000L));
+    }
+
+    @Test
+    public void originKeepsTokensGlobalRefused() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.gossip.peersPerSecond", "10");
+        p.setProperty("ra.networkmanager.gossip.burst", "100");
+        p.setProperty("ra.networkmanager.gossip.global.peersPerSecond", "1000");
+        p.setProperty("ra.networkmanager.gossip.global.burst", "100");
+        GossipGuard guard = new GossipGuard(p);
+        Assert.assertEquals(100, guard.allowance("forged", 100, 1000L));
+        // All origins together are out, so the honest origin is granted nothing and charged nothing
+        Assert.assertEquals(0, guard.allowance("a", 100, 1000L));
+        Assert.assertEquals(100, guard.allowance("a", 100, 1100L));
+    }
+
+    @Test
+    public void dropsDuplicates() {
+        GossipGuard guard = new GossipGuard(new Properties());
+        Assert.assertTrue(guard.firstSeen("e1"));
+        Assert.assertFalse(guard.firstSeen("e1"));
+        Assert.assertTrue(guard.firstSeen(null));
+        Assert.assertEquals(1, guard.getDuplicates());
+    }
+
+    @Test
+    public void limitsRelays() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.relay.perSecond", "1");
+        p.setProperty("ra.networkmanager.relay.burst", "2");
+        p.setProperty("ra.networkmanager.relay.global.perSecond", "1");
+        p.setProperty("ra.networkmanager.relay.global.burst", "3");
+        GossipGuard guard = new GossipGuard(p);
+        Assert.assertTrue(guard.allowRelay("a", 1000L));
+        Assert.assertTrue(guard.allowRelay("a", 1000L));
+        Assert.assertFalse(guard.allowRelay("a", 1000L));
+        // Another origin has its own bucket but all share the global one
+        Assert.assertTrue(guard.allowRelay("b", 1000L));
+        Assert.assertFalse(guard.allowRelay("c", 1000L));
+        Assert.assertTrue(guard.allowRelay("a", 2000L));
+        Assert.assertEquals(2, guard.getRelaysLimited());
+        // Relays do not draw on the gossip buckets
+        Assert.assertEquals(50, guard.allowance("a", 50, 2000L));
+    }
+}
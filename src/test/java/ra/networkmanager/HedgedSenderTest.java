@@ -0,0 +1,213 @@
+package ra.networkmanager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+import ra.common.route.ExternalRoute;
+import ra.common.route.Route;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class HedgedSenderTest {
+
+    private static class CapturingProducer extends MockProducer {
+        private final List<Envelope> envelopes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public boolean send(Envelope envelope) {
+            envelopes.add(envelope);
+            return super.send(envelope);
+        }
+    }
+
+    private NetworkManagerService sender;
+    private NetworkManagerService receiver;
+    private CapturingProducer senderProducer;
+    private CapturingProducer receiverProducer;
+
+    @Before
+    public void init() {
+        Logger.getLogger("ra.networkmanager").setLevel(Level.SEVERE);
+        Properties props = new Properties();
+        props.setProperty("ra.networkmanager.hedge.enabled", "true");
+        props.setProperty("ra.networkmanager.stats.sla.1.avgAckLatencyMs", "100");
+        senderProducer = new CapturingProducer();
+        sender = new NetworkManagerService(senderProducer, null);
+        Assert.assertTrue(sender.start(props));
+        receiverProducer = new CapturingProducer();
+        receiver = new NetworkManagerService(receiverProducer, null);
+        Assert.assertTrue(receiver.start(new Properties()));
+        for(Network network : new Network[]{Network.Tor, Network.I2P}) {
+            connect(sender, network, "alice");
+            connect(receiver, network, "bob");
+            // The sender knows bob on both networks, Tor first
+            sender.peerDB.savePeer(peer(network, "bob"), false, RelType.fromNetwork(network));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        sender.gracefulShutdown();
+        receiver.gracefulShutdown();
+    }
+
+    @Test
+    public void ackCancelsFurtherCopies() throws Exception {
+        sender.handleDocument(hedgedEnvelope());
+        Assert.assertEquals(1, senderProducer.envelopes.size());
+        Envelope copy = senderProducer.envelopes.get(0);
+        Assert.assertEquals(NetworkManagerService.OPERATION_DELIVER_HEDGED, remote(copy).getOperation());
+
+        receiver.handleDocument(transmit(copy));
+        // Ack back to alice and the hedged envelope on to the application
+        Assert.assertEquals(2, receiverProducer.envelopes.size());
+        Envelope ack = receiverProducer.envelopes.get(0);
+        Envelope delivered = receiverProducer.envelopes.get(1);
+        Assert.assertEquals(copy.getValue(NetworkManagerService.DEDUPE_ID), ack.getValue(NetworkManagerService.DEDUPE_ID));
+        Route next = delivered.getDynamicRoutingSlip().nextRoute();
+        Assert.assertEquals("ra.app.Inbox", next.getService());
+
+        sender.handleDocument(transmit(ack));
+        Thread.sleep(300);
+        Assert.assertEquals(1, senderProducer.envelopes.size());
+        Assert.assertEquals(0, sender.hedgedSender.getCopiesSent());
+    }
+
+    @Test
+    public void copiesDeliveredOnce() throws Exception {
+        sender.handleDocument(hedgedEnvelope());
+        long deadline = System.currentTimeMillis() + 5000;
+        while(senderProducer.envelopes.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, senderProducer.envelopes.size());
+        Assert.assertEquals(1, sender.hedgedSender.getCopiesSent());
+        Envelope first = senderProducer.envelopes.get(0);
+        Envelope second = senderProducer.envelopes.get(1);
+        Assert.assertEquals(Network.Tor, remote(first).getDestination().getNetwork());
+        Assert.assertEquals(Network.I2P, remote(second).getDestination().getNetwork());
+
+        receiver.handleDocument(transmit(second));
+        receiver.handleDocument(transmit(first));
+        // Both copies acked, only the first to arrive delivered
+        Assert.assertEquals(3, receiverProducer.envelopes.size());
+        int acks = 0;
+        for(Envelope e : receiverProducer.envelopes) {
+            ExternalRoute remote = remote(e);
+            if(remote!=null && NetworkManagerService.OPERATION_ACK.equals(remote.getOperation())) {
+                acks++;
+            }
+        }
+        Assert.assertEquals(2, acks);
+
+        // The I2P copy won
+        Assert.assertTrue(sender.hedgedSender.ack(first.getValue(NetworkManagerService.DEDUPE_ID).toString(), peer(Network.I2P, "bob")));
+        Assert.assertFalse(sender.hedgedSender.ack(first.getValue(NetworkManagerService.DEDUPE_ID).toString(), peer(Network.Tor, "bob")));
+        Assert.assertEquals(1, sender.hedgedSender.getWonByCopy());
+    }
+
+    @Test
+    public void ignoresAckFromPeerNotSentTo() {
+        sender.handleDocument(hedgedEnvelope());
+        String dedupeId = senderProducer.envelopes.get(0).getValue(NetworkManagerService.DEDUPE_ID).toString();
+        // Carol was sent nothing, bob nothing on I2P yet
+        Assert.assertFalse(sender.hedgedSender.ack(dedupeId, peer(Network.Tor, "carol")));
+        Assert.assertFalse(sender.hedgedSender.ack(dedupeId, peer(Network.I2P, "bob")));
+        Assert.assertTrue(sender.hedgedSender.ack(dedupeId, peer(Network.Tor, "bob")));
+        Assert.assertFalse(sender.hedgedSender.ack(dedupeId, peer(Network.Tor, "bob")));
+    }
+
+    @Test
+    public void refusesCopyForAnotherNode() {
+        sender.handleDocument(hedgedEnvelope());
+        Envelope copy = senderProducer.envelopes.get(0);
+        // Carol is not bob
+        connect(receiver, Network.Tor, "carol");
+        receiver.handleDocument(transmit(copy));
+        Assert.assertTrue(receiverProducer.deadLettered);
+    }
+
+    @Test
+    public void keepsAddressedAndAnonymousNetworks() {
+        // Bob is also known on clearnet
+        connect(sender, Network.HTTP, "alice");
+        sender.peerDB.savePeer(peer(Network.HTTP, "bob"), false, RelType.fromNetwork(Network.HTTP));
+
+        Envelope pinned = hedgedEnvelope();
+        pinned.addNVP(NetworkManagerService.REROUTE, false);
+        List<NetworkPeer> candidates = sender.hedgeCandidates(pinned, peer(Network.Tor, "bob"));
+        Assert.assertEquals(1, candidates.size());
+        Assert.assertEquals(Network.Tor, candidates.get(0).getNetwork());
+        sender.handleDocument(pinned);
+        Assert.assertEquals(1, senderProducer.envelopes.size());
+        // Sent as is, not as a hedged copy
+        ExternalRoute route = (ExternalRoute)senderProducer.envelopes.get(0).getDynamicRoutingSlip().peekAtNextRoute();
+        Assert.assertEquals(Network.Tor, route.getDestination().getNetwork());
+        Assert.assertEquals(0, sender.hedgedSender.getCopiesSent());
+
+        // Rerouting a Tor destination may hedge on I2P, never on HTTP
+        candidates = sender.hedgeCandidates(hedgedEnvelope(), peer(Network.Tor, "bob"));
+        Assert.assertEquals(2, candidates.size());
+        for(NetworkPeer candidate : candidates) {
+            Assert.assertNotEquals(Network.HTTP, candidate.getNetwork());
+        }
+    }
+
+    /**
+     * As the network services would: the sender's pops the route to it, the receiver's the next.
+     */
+    private static Envelope transmit(Envelope e) {
+        Envelope received = Envelope.documentFactory();
+        received.fromJSON(e.toJSON());
+        received.getDynamicRoutingSlip().nextRoute();
+        received.getDynamicRoutingSlip().nextRoute();
+        return received;
+    }
+
+    /**
+     * @return route beneath the one to the local network service
+     */
+    private static ExternalRoute remote(Envelope e) {
+        Envelope copy = Envelope.documentFactory();
+        copy.fromJSON(e.toJSON());
+        copy.getDynamicRoutingSlip().nextRoute();
+        return (ExternalRoute)copy.getDynamicRoutingSlip().peekAtNextRoute();
+    }
+
+    private static Envelope hedgedEnvelope() {
+        NetworkPeer bob = peer(Network.Tor, "bob");
+        Envelope e = Envelope.documentFactory();
+        e.addNVP(NetworkManagerService.SLA, 1);
+        e.addNVP(NetworkManagerService.REROUTE, true);
+        e.addNVP(NetworkPeer.class.getName(), bob);
+        e.addRoute("ra.app.Inbox", "RECEIVE");
+        e.addExternalRoute("ra.tor.TORClientService", "SEND", null, bob);
+        e.addRoute(NetworkManagerService.class, NetworkManagerService.OPERATION_SEND);
+        return e;
+    }
+
+    private static void connect(NetworkManagerService service, Network network, String localId) {
+        NetworkState ns = new NetworkState();
+        ns.network = network;
+        ns.networkStatus = NetworkStatus.CONNECTED;
+        service.networkStates.put(network.name(), ns);
+        service.peerDB.savePeer(peer(network, localId), true, RelType.fromNetwork(network));
+    }
+
+    private static NetworkPeer peer(Network network, String id) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-"+network.name());
+        return np;
+    }
+}
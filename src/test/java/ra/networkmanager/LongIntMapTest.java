@@ -0,0 +1,55 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class LongIntMapTest {
+
+    @Test
+    public void matchesHashMapThroughGrowthAndRemoval() {
+        LongIntMap map = new LongIntMap(4);
+        Map<Long,Integer> expected = new HashMap<>();
+        Random random = new Random(7);
+        for(int i=0; i<200000; i++) {
+            // Small key range so puts overwrite and removes hit
+            long key = 1 + random.nextInt(20000);
+            if(random.nextInt(3) == 0) {
+                Integer prev = expected.remove(key);
+                Assert.assertEquals(prev==null ? LongIntMap.NO_VALUE : prev, map.remove(key));
+            } else {
+                Integer prev = expected.put(key, i);
+                Assert.assertEquals(prev==null ? LongIntMap.NO_VALUE : prev, map.put(key, i));
+            }
+        }
+        Assert.assertEquals(expected.size(), map.size());
+        for(long key=1; key<=20000; key++) {
+            Integer value = expected.get(key);
+            Assert.assertEquals(value==null ? LongIntMap.NO_VALUE : value, map.get(key));
+        }
+    }
+
+    @Test
+    public void probeChainsSurviveRemoval() {
+        LongIntMap map = new LongIntMap(16);
+        // Keys sharing a home slot, as index() folds the high half onto the low
+        long a = 1L;
+        long b = (1L << 32) | 0L;
+        long c = (2L << 32) | 3L;
+        map.put(a, 1);
+        map.put(b, 2);
+        map.put(c, 3);
+        Assert.assertEquals(1, map.remove(a));
+        Assert.assertEquals(2, map.get(b));
+        Assert.assertEquals(3, map.get(c));
+        Assert.assertFalse(map.containsKey(a));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsReservedKey() {
+        new LongIntMap().put(0L, 1);
+    }
+}
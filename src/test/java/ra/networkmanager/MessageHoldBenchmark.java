@@ -0,0 +1,249 @@
+package ra.networkmanager;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ra.common.Client;
+import ra.common.Envelope;
+import ra.common.messaging.MessageProducer;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+
+import java.io.File;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Soak and crash-recovery benchmark for the message hold (sendToMessageHold and DelayedSend).
+ *
+ * Fills the hold during a simulated outage, recovers networks one at a time and drains, once cleanly
+ * and once with the process "killed" mid-drain and restarted on the same hold directory.
+ * Reports drain throughput, p99 time-to-delivery after reconnect, disk bytes per message
+ * and duplicate/lost deliveries.
+ *
+ * Run with: mvn -B test -Pbenchmark [-Dra.networkmanager.bench.messages=100000]
+ */
+public class MessageHoldBenchmark {
+
+    private static final Logger LOG = Logger.getLogger(MessageHoldBenchmark.class.getName());
+
+    private static final Network[] NETWORKS = {Network.Tor, Network.I2P, Network.Bluetooth, Network.WiFi};
+    private static final int PAYLOAD_BYTES = 512;
+
+    private static int messages;
+    private static NetworkManagerService service;
+    private static BenchProducer producer;
+
+    @BeforeClass
+    public static void init() {
+        Logger.getLogger("ra.networkmanager").setLevel(Level.WARNING);
+        messages = Integer.parseInt(System.getProperty("ra.networkmanager.bench.messages", "100000"));
+        producer = new BenchProducer();
+        service = new NetworkManagerService(producer, null);
+        Assert.assertTrue(service.start(blobsEnabled()));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        service.gracefulShutdown();
+    }
+
+    @Test
+    public void cleanDrain() {
+        Result result = fillAndDrain(messages, -1);
+        LOG.warning("Clean drain: "+result);
+        Assert.assertEquals(0, result.lost);
+        Assert.assertEquals(0, result.duplicates);
+    }
+
+    @Test
+    public void crashMidDrain() {
+        Result result = fillAndDrain(messages, messages / 2);
+        LOG.warning("Crash mid-drain: "+result);
+        Assert.assertEquals(0, result.lost);
+    }
+
+    /**
+     * @param crashAfter number of hand-offs after which the draining process dies, -1 for none
+     */
+    private Result fillAndDrain(int count, int crashAfter) {
+        clearHold();
+        producer.reset();
+        Result result = new Result();
+        result.messages = count;
+
+        // Outage
+        for(Network n : NETWORKS) {
+            setStatus(n, NetworkStatus.DISCONNECTED);
+        }
+        long start = System.nanoTime();
+        Set<String> ids = new HashSet<>(count);
+        for(int i=0; i<count; i++) {
+            Envelope e = envelope(NETWORKS[i % NETWORKS.length]);
+            ids.add(e.getId());
+            Assert.assertTrue(service.sendToMessageHold(e));
+        }
+        result.fillMs = (System.nanoTime() - start) / 1000000;
+        result.diskBytes = holdBytes();
+
+        // Recover networks one at a time, draining after each
+        producer.crashAfter = crashAfter;
+        start = System.nanoTime();
+        for(Network n : NETWORKS) {
+            producer.reconnected = System.nanoTime();
+            setStatus(n, NetworkStatus.CONNECTED);
+            if(!drain()) {
+                // Restart: a fresh DelayedSend picks up whatever is left in the same hold
+                result.restarts++;
+                service.blobs = new BlobStore(service.blobs.getDir());
+                service.hold = new MessageHold(service.messageHold, service.blobs, blobsEnabled());
+                service.hold.load();
+                service.delayedSend = new DelayedSend(service, service.taskRunner, service.hold);
+                drain();
+            }
+        }
+        result.drainMs = (System.nanoTime() - start) / 1000000;
+
+        for(String id : ids) {
+            Integer deliveries = producer.deliveries.get(id);
+            if(deliveries==null) result.lost++;
+            else if(deliveries > 1) result.duplicates += deliveries - 1;
+        }
+        result.p99TimeToDeliveryMs = percentile(producer.timeToDeliveryNanos, 0.99) / 1000000.0;
+        return result;
+    }
+
+    /**
+     * @return false if the process was killed mid-drain
+     */
+    private boolean drain() {
+        try {
+            service.delayedSend.execute();
+            return true;
+        } catch (ProcessKilled k) {
+            LOG.warning("Process killed mid-drain after "+producer.handOffs+" hand-offs.");
+            return false;
+        }
+    }
+
+    private Envelope envelope(Network network) {
+        NetworkPeer dest = new NetworkPeer(network);
+        Envelope e = Envelope.documentFactory();
+        char[] payload = new char[PAYLOAD_BYTES];
+        Arrays.fill(payload, 'x');
+        e.addNVP("payload", new String(payload));
+        e.addExternalRoute(service.getNetworkServiceFromNetwork(network), "SEND", null, dest);
+        return e;
+    }
+
+    private static Properties blobsEnabled() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.hold.blobs.enabled", "true");
+        return p;
+    }
+
+    private void setStatus(Network network, NetworkStatus status) {
+        NetworkState ns = new NetworkState();
+        ns.network = network;
+        ns.networkStatus = status;
+        service.networkStates.put(network.name(), ns);
+    }
+
+    private long holdBytes() {
+        long bytes = 0;
+        for(File dir : new File[]{service.messageHold, service.blobs.getDir()}) {
+            File[] held = dir.listFiles();
+            if(held!=null) {
+                for(File f : held) bytes += f.length();
+            }
+        }
+        return bytes;
+    }
+
+    private void clearHold() {
+        File[] held = service.messageHold.listFiles();
+        if(held!=null) {
+            for(File f : held) {
+                if(!f.delete()) LOG.warning("Unable to delete "+f.getAbsolutePath());
+            }
+        }
+        service.hold.load();
+    }
+
+    private static long percentile(List<Long> samples, double p) {
+        if(samples.isEmpty()) return 0;
+        List<Long> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        return sorted.get(Math.min(sorted.size()-1, (int)Math.ceil(p * sorted.size()) - 1));
+    }
+
+    private static class ProcessKilled extends RuntimeException {}
+
+    private static class BenchProducer implements MessageProducer {
+
+        private final Map<String,Integer> deliveries = new HashMap<>();
+        private final List<Long> timeToDeliveryNanos = new ArrayList<>();
+        private long reconnected;
+        private int handOffs;
+        private int crashAfter = -1;
+
+        private void reset() {
+            deliveries.clear();
+            timeToDeliveryNanos.clear();
+            handOffs = 0;
+            crashAfter = -1;
+        }
+
+        @Override
+        public boolean send(Envelope envelope) {
+            Integer n = deliveries.get(envelope.getId());
+            deliveries.put(envelope.getId(), n==null ? 1 : n + 1);
+            if(n==null) {
+                timeToDeliveryNanos.add(System.nanoTime() - reconnected);
+            }
+            if(++handOffs == crashAfter) {
+                // Killed after hand-off but before the held file is removed
+                throw new ProcessKilled();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean send(Envelope envelope, Client client) {
+            return send(envelope);
+        }
+
+        @Override
+        public boolean deadLetter(Envelope envelope) {
+            return true;
+        }
+    }
+
+    private static class Result {
+        int messages;
+        long fillMs;
+        long drainMs;
+        long diskBytes;
+        double p99TimeToDeliveryMs;
+        int restarts;
+        int lost;
+        int duplicates;
+
+        @Override
+        public String toString() {
+            return "messages="+messages
+                    +" fillMs="+fillMs
+                    +" drainMs="+drainMs
+                    +" drainPerSecond="+(drainMs==0 ? 0 : messages * 1000L / drainMs)
+                    +" p99TimeToDeliveryMs="+String.format("%.1f", p99TimeToDeliveryMs)
+                    +" diskBytesPerMessage="+(messages==0 ? 0 : diskBytes / messages)
+                    +" restarts="+restarts
+                    +" lost="+lost
+                    +" duplicates="+duplicates;
+        }
+    }
+}
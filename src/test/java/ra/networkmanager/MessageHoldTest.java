@@ -0,0 +1,264 @@
+package ra.networkmanager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.JSONParser;
+import ra.common.Tuple2;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+
+public class MessageHoldTest {
+
+    private File dir;
+    private File blobDir;
+
+    @Before
+    public void init() throws Exception {
+        dir = Files.createTempDirectory("hold").toFile();
+        blobDir = Files.createTempDirectory("blob").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for(File d : new File[]{dir, blobDir}) {
+            File[] files = d.listFiles();
+            if(files!=null) {
+                for(File f : files) f.delete();
+            }
+            d.delete();
+        }
+    }
+
+    @Test
+    public void dueBySlaThenNextAttempt() {
+        MessageHold hold = new MessageHold(dir, new Properties());
+        Assert.assertTrue(hold.hold(envelope("a"), Network.Tor, 3, 0L));
+        Assert.assertTrue(hold.hold(envelope("b"), Network.Tor, 1, 50L));
+        Assert.assertTrue(hold.hold(envelope("c"), Network.Tor, 1, 10L));
+        Assert.assertTrue(hold.hold(envelope("d"), Network.I2P, 1, 0L));
+        Assert.assertTrue(hold.hold(envelope("e"), null, 5, 0L));
+        Assert.assertEquals(5, hold.size());
+        // Only Tor and messages routed per attempt; b not yet due
+        List<MessageHold.HeldMessage> due = hold.due(20L, Collections.singletonList(Network.Tor), 0);
+        Assert.assertEquals(Arrays.asList("c", "a", "e"), contents(hold, due));
+        Assert.assertEquals(2, hold.size());
+        Assert.assertEquals(1, hold.due(100L, Arrays.asList(Network.Tor, Network.I2P), 1).size());
+    }
+
+    @Test
+    public void survivesRestartWithBackoffAndAttempts() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.hold.backoff.baseMs", "1000");
+        p.setProperty("ra.networkmanager.hold.backoff.maxMs", "4000");
+        MessageHold hold = new MessageHold(dir, p);
+        hold.hold(envelope("a"), Network.Tor, 2, 0L);
+        hold.hold(envelope("a"), Network.Tor, 2, 0L); // Same id held twice, e.g. PUBLISH copies
+        hold.hold(envelope("b"), Network.I2P, 4, 0L);
+        MessageHold.HeldMessage m = hold.due(0L, Collections.singletonList(Network.Tor), 1).get(0);
+        Assert.assertTrue(hold.failed(m, 0L));
+        for(MessageHold.HeldMessage h : hold.due(10000L, Collections.singletonList(Network.Tor), 0)) {
+            if(h.getAttempts() > 0) {
+                Assert.assertTrue(hold.failed(h, 10000L));
+            } else {
+                hold.defer(h);
+            }
+        }
+
+        // Crash: a fresh hold over the same directory rebuilds the schedule
+        MessageHold restarted = new MessageHold(dir, p);
+        Assert.assertEquals(3, restarted.load());
+        List<MessageHold.HeldMessage> due = restarted.due(Long.MAX_VALUE, Arrays.asList(Network.Tor, Network.I2P), 0);
+        Assert.assertEquals(3, due.size());
+        int retried = 0;
+        for(MessageHold.HeldMessage h : due) {
+            if(h.getAttempts() > 0) {
+                retried++;
+                // Second failure backs off 2s plus up to 20% jitter
+                Assert.assertTrue(h.getNextAttempt() >= 12000L && h.getNextAttempt() <= 12400L);
+                Assert.assertEquals(2, h.getSla());
+            }
+        }
+        Assert.assertEquals(1, retried);
+        for(MessageHold.HeldMessage h : due) {
+            restarted.delivered(h);
+        }
+        Assert.assertEquals(0, new MessageHold(dir, p).load());
+        Assert.assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void holdsSameEnvelopeIdManyTimes() {
+        MessageHold hold = new MessageHold(dir, new Properties());
+        Envelope e = envelope("a");
+        for(int i=0; i<150; i++) {
+            Assert.assertTrue(hold.hold(e, Network.Tor, 1, 0L));
+        }
+        MessageHold restarted = new MessageHold(dir, new Properties());
+        Assert.assertEquals(150, restarted.load());
+        for(MessageHold.HeldMessage m : restarted.due(0L, Collections.singletonList(Network.Tor), 0)) {
+            Assert.assertEquals(e.getId(), m.getEnvelopeId());
+        }
+    }
+
+    @Test
+    public void loadsMessagesWhoseMetadataWasNeverWritten() throws Exception {
+        MessageHold hold = new MessageHold(dir, new Properties());
+        hold.hold(envelope("a"), Network.Tor, 1, 0L);
+        for(File f : dir.listFiles()) {
+            if(f.getName().endsWith(".meta")) {
+                Assert.assertTrue(f.delete());
+            }
+        }
+        MessageHold restarted = new MessageHold(dir, new Properties());
+        Assert.assertEquals(1, restarted.load());
+        // Defaults to SLA 3 routed on each attempt
+        MessageHold.HeldMessage m = restarted.due(0L, Collections.<Network>emptyList(), 0).get(0);
+        Assert.assertEquals(MessageHold.DEFAULT_SLA, m.getSla());
+        Assert.assertNull(m.getNetwork());
+        Assert.assertEquals("a", restarted.read(m).getValue("content"));
+    }
+
+    @Test
+    public void dropsUnreadableMessages() {
+        MessageHold hold = new MessageHold(dir, new Properties());
+        hold.hold(envelope("a"), Network.Tor, 1, 0L);
+        MessageHold.HeldMessage m = hold.due(0L, Collections.singletonList(Network.Tor), 0).get(0);
+        Assert.assertTrue(new File(dir, m.getName()).delete());
+        Assert.assertNull(hold.read(m));
+        hold.unreadable(m);
+        Assert.assertEquals(0, hold.size());
+        Assert.assertEquals(0, dir.listFiles().length);
+        Assert.assertEquals(0, new MessageHold(dir, new Properties()).load());
+    }
+
+    @Test
+    public void publishCopiesSharePayloadBlob() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.hold.blobs.enabled", "true");
+        BlobStore blobs = new BlobStore(blobDir);
+        MessageHold hold = new MessageHold(dir, blobs, p);
+        String payload = payload();
+        Envelope e = envelope(payload);
+        List<NetworkPeer> peers = Arrays.asList(peer("bob"), peer("carol"), peer("dave"));
+        e.addNVP(NetworkPeer.class.getName(), peers);
+        e.addRoute(NetworkManagerService.class, NetworkManagerService.OPERATION_PUBLISH);
+        List<Tuple2<NetworkPeer,Envelope>> copies = new NetworkManagerService(new MockProducer(), null).fanOut(e);
+        for(Tuple2<NetworkPeer,Envelope> copy : copies) {
+            Assert.assertTrue(hold.hold(copy.second, Network.Tor, 1, 0L));
+        }
+        // Copies differ in their peer NVP, yet store the payload NVP once
+        String payloadHash = BlobStore.hash(JSONParser.toString(payload).getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(3, blobs.getRefs(payloadHash));
+
+        MessageHold restarted = new MessageHold(dir, blobs, p);
+        Assert.assertEquals(3, restarted.load());
+        List<MessageHold.HeldMessage> due = restarted.due(0L, Collections.singletonList(Network.Tor), 0);
+        List<String> ids = new ArrayList<>();
+        for(MessageHold.HeldMessage m : due) {
+            Envelope read = restarted.read(m);
+            Assert.assertEquals(payload, read.getValue("content"));
+            ids.add(NetworkManagerService.asNetworkPeer(read.getValue(NetworkPeer.class.getName())).getId());
+            restarted.delivered(m);
+        }
+        Collections.sort(ids);
+        Assert.assertEquals(Arrays.asList("bob", "carol", "dave"), ids);
+        Assert.assertEquals(0, blobs.size());
+    }
+
+    @Test
+    public void readsBlobsOnceDisabled() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.hold.blobs.enabled", "true");
+        MessageHold hold = new MessageHold(dir, new BlobStore(blobDir), p);
+        hold.hold(envelope(payload()), Network.Tor, 1, 0L);
+
+        // Restarted with blobs disabled, the default
+        BlobStore blobs = new BlobStore(blobDir);
+        MessageHold restarted = new MessageHold(dir, blobs, new Properties());
+        Assert.assertEquals(1, restarted.load());
+        Assert.assertEquals(1, blobs.size());
+        restarted.hold(envelope(payload()), Network.Tor, 1, 0L);
+        Assert.assertEquals(0, blobs.getWrites() + blobs.getDeduped());
+        List<MessageHold.HeldMessage> due = restarted.due(0L, Collections.singletonList(Network.Tor), 0);
+        Assert.assertEquals(Arrays.asList(payload(), payload()), contents(restarted, due));
+        for(MessageHold.HeldMessage m : due) {
+            restarted.delivered(m);
+        }
+        Assert.assertEquals(0, blobs.size());
+    }
+
+    @Test
+    public void reschedulesMessagesWhoseResendThrew() {
+        NetworkManagerService service = new NetworkManagerService(new MockProducer(), null) {
+            @Override
+            protected ResponseCodes routeAndSend(NetworkPeer np, Envelope e) {
+                throw new RejectedExecutionException("Shutting down");
+            }
+        };
+        Assert.assertTrue(service.start(new Properties()));
+        try {
+            NetworkState ns = new NetworkState();
+            ns.network = Network.Tor;
+            ns.networkStatus = NetworkStatus.CONNECTED;
+            service.networkStates.put(Network.Tor.name(), ns);
+            for(String content : new String[]{"a", "b"}) {
+                Envelope e = envelope(content);
+                e.addNVP(NetworkPeer.class.getName(), peer("bob"));
+                Assert.assertTrue(service.hold.hold(e, Network.Tor, 1, 0L));
+            }
+            service.delayedSend.execute();
+            // Both back in the schedule with an attempt counted
+            Assert.assertEquals(2, service.hold.size());
+            List<MessageHold.HeldMessage> due = service.hold.due(Long.MAX_VALUE, Collections.singletonList(Network.Tor), 0);
+            Assert.assertEquals(2, due.size());
+            for(MessageHold.HeldMessage m : due) {
+                Assert.assertEquals(1, m.getAttempts());
+                service.hold.delivered(m);
+            }
+        } finally {
+            service.gracefulShutdown();
+        }
+    }
+
+    private static String payload() {
+        char[] payload = new char[1024];
+        Arrays.fill(payload, 'x');
+        return new String(payload);
+    }
+
+    private static NetworkPeer peer(String id) {
+        NetworkPeer np = new NetworkPeer(Network.Tor);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-Tor");
+        return np;
+    }
+
+    private static Envelope envelope(String content) {
+        Envelope e = Envelope.documentFactory();
+        e.addNVP("content", content);
+        return e;
+    }
+
+    private static List<String> contents(MessageHold hold, List<MessageHold.HeldMessage> held) {
+        String[] contents = new String[held.size()];
+        for(int i=0; i<held.size(); i++) {
+            contents[i] = (String)hold.read(held.get(i)).getValue("content");
+        }
+        return Arrays.asList(contents);
+    }
+}
@@ -4,6 +4,8 @@ import ra.common.Client;
 import ra.common.Envelope;
 import ra.common.messaging.MessageProducer;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class MockProducer implements MessageProducer {
@@ -12,25 +14,37 @@ public class MockProducer implements MessageProducer {
 
     public boolean received = false;
     public boolean deadLettered = false;
+    public final AtomicLong sent = new AtomicLong();
+    public final AtomicLong deadLetters = new AtomicLong();
 
     @Override
     public boolean send(Envelope envelope) {
-        LOG.info(envelope.toJSON());
+        log(envelope);
         received = true;
+        sent.incrementAndGet();
         return true;
     }
 
     @Override
     public boolean send(Envelope envelope, Client client) {
-        LOG.info(envelope.toJSON());
+        log(envelope);
         received = true;
+        sent.incrementAndGet();
         return true;
     }
 
     @Override
     public boolean deadLetter(Envelope envelope) {
-        LOG.info(envelope.toJSON());
+        log(envelope);
         deadLettered = true;
+        deadLetters.incrementAndGet();
         return true;
     }
+
+    private static void log(Envelope envelope) {
+        // Skips serializing when quiet, e.g. under replay
+        if(LOG.isLoggable(Level.INFO)) {
+            LOG.info(envelope.toJSON());
+        }
+    }
 }
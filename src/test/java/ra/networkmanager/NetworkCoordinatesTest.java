@@ -0,0 +1,90 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.*;
+
+public class NetworkCoordinatesTest {
+
+    @Test
+    public void predictsUnmeasuredPairs() {
+        int n = 60;
+        Random random = new Random(1);
+        double[][] position = new double[n][2];
+        double[] access = new double[n];
+        NetworkCoordinates[] nodes = new NetworkCoordinates[n];
+        for(int i=0; i<n; i++) {
+            position[i][0] = random.nextDouble() * 300;
+            position[i][1] = random.nextDouble() * 300;
+            access[i] = 5 + random.nextDouble() * 20;
+            nodes[i] = new NetworkCoordinates(new Properties());
+        }
+        // Each node only measures random pairs, learning the other's coordinate first as in discovery
+        for(int s=0; s<30000; s++) {
+            int i = random.nextInt(n);
+            int j = random.nextInt(n);
+            if(i==j) continue;
+            exchange(nodes, i, j);
+            nodes[i].observe(Network.Tor, String.valueOf(j), Math.round(rtt(position, access, i, j)));
+        }
+        double error = 0;
+        int pairs = 0;
+        for(int i=0; i<n; i++) {
+            for(int j=0; j<n; j++) {
+                if(i==j) continue;
+                exchange(nodes, i, j);
+                double actual = rtt(position, access, i, j);
+                error += Math.abs(nodes[i].rttMs(Network.Tor, String.valueOf(j)) - actual) / actual;
+                pairs++;
+            }
+        }
+        Assert.assertTrue("Mean relative error "+error / pairs, error / pairs < 0.1);
+    }
+
+    @Test
+    public void rejectsBogusCoordinates() {
+        NetworkCoordinates coordinates = new NetworkCoordinates(new Properties());
+        Map<String,Object> shared = new HashMap<>();
+        shared.put("nan", Arrays.asList(Double.NaN, 0.0, 0.0, 1.0, 0.5));
+        shared.put("far", Arrays.asList(1e9, 0.0, 0.0, 1.0, 0.5));
+        shared.put("short", Arrays.asList(1.0, 2.0));
+        shared.put("ok", Arrays.asList(100.0, 0.0, 0.0, 10.0, 0.5));
+        Assert.assertEquals(1, coordinates.learn(Network.I2P, shared, null));
+        Assert.assertEquals(-1L, coordinates.rttMs(Network.I2P, "far"));
+        Assert.assertEquals(111L, coordinates.rttMs(Network.I2P, "ok"));
+        // Coordinates are per network
+        Assert.assertEquals(-1L, coordinates.rttMs(Network.Tor, "ok"));
+    }
+
+    @Test
+    public void thirdPartiesCannotOverwriteCoordinates() {
+        NetworkCoordinates coordinates = new NetworkCoordinates(new Properties());
+        coordinates.learn(Network.I2P, Collections.singletonMap("victim", Arrays.asList(100.0, 0.0, 0.0, 10.0, 0.5)), "victim");
+        Map<String,Object> shared = new HashMap<>();
+        shared.put("attacker", Arrays.asList(0.0, 0.0, 0.0, 1.0, 0.8));
+        shared.put("victim", Arrays.asList(5000.0, 0.0, 0.0, 1.0, 0.01));
+        shared.put("fresh", Arrays.asList(200.0, 0.0, 0.0, 1.0, 0.01));
+        Assert.assertEquals(2, coordinates.learn(Network.I2P, shared, "attacker"));
+        Assert.assertEquals(111L, coordinates.rttMs(Network.I2P, "victim"));
+        // Taken for a peer without one, but trusted no more than the attacker
+        NetworkPeer fresh = new NetworkPeer(Network.I2P);
+        fresh.setId("fresh");
+        List<Double> learned = coordinates.share(Network.I2P, null, Collections.singletonList(fresh)).get("fresh");
+        Assert.assertEquals(0.8, learned.get(4), 1e-9);
+        // The peer itself still replaces it
+        Assert.assertEquals(1, coordinates.learn(Network.I2P, Collections.singletonMap("victim", Arrays.asList(300.0, 0.0, 0.0, 10.0, 0.5)), "victim"));
+        Assert.assertEquals(311L, coordinates.rttMs(Network.I2P, "victim"));
+    }
+
+    private static void exchange(NetworkCoordinates[] nodes, int i, int j) {
+        Map<String,Object> shared = new HashMap<>(nodes[j].share(Network.Tor, String.valueOf(j), Collections.emptyList()));
+        nodes[i].learn(Network.Tor, shared, String.valueOf(j));
+    }
+
+    private static double rtt(double[][] position, double[] access, int i, int j) {
+        return Math.hypot(position[i][0] - position[j][0], position[i][1] - position[j][1]) + access[i] + access[j];
+    }
+}
@@ -0,0 +1,98 @@
+package ra.networkmanager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class NetworkCostTest {
+
+    private static final long LARGE = 1024 * 1024L;
+
+    private NetworkManagerService service;
+
+    @After
+    public void tearDown() {
+        if(service!=null) {
+            service.gracefulShutdown();
+        }
+    }
+
+    @Test
+    public void disabledByDefault() {
+        start(false);
+        Assert.assertFalse(service.cost.isCostRouted(LARGE));
+        // No size estimated unless given
+        Envelope e = Envelope.documentFactory();
+        Assert.assertEquals(0L, service.messageSize(e));
+        e.addNVP(NetworkManagerService.SIZE, 1234L);
+        Assert.assertEquals(1234L, service.messageSize(e));
+        // Large messages to bob stay on the network he was addressed on
+        Assert.assertEquals(Network.Tor, network(service.resolveRoute(peer(Network.Tor, "bob"), service.networkStates, LARGE, true)));
+    }
+
+    @Test
+    public void costRoutesOnlyWhenAllowed() {
+        start(true);
+        Assert.assertTrue(service.messageSize(Envelope.documentFactory()) > 0);
+        NetworkPeer bob = peer(Network.Tor, "bob");
+        // WiFi is cheaper but bob was addressed on Tor
+        Assert.assertEquals(Network.Tor, network(service.resolveRoute(bob, service.networkStates, LARGE, false)));
+        Assert.assertEquals(Network.WiFi, network(service.resolveRoute(bob, service.networkStates, LARGE, true)));
+        // Known on Tor only by address: kept on Tor too
+        NetworkPeer byAddress = new NetworkPeer((Network)null);
+        byAddress.getDid().getPublicKey().setAddress("bob-Tor");
+        Assert.assertEquals(Network.Tor, network(service.resolveRoute(byAddress, service.networkStates, LARGE, false)));
+    }
+
+    @Test
+    public void noFailoverOffPinnedNetwork() {
+        start(true);
+        service.networkStates.get(Network.Tor.name()).networkStatus = NetworkStatus.DISCONNECTED;
+        NetworkPeer bob = peer(Network.Tor, "bob");
+        RouteResolution pinned = service.resolveRoute(bob, service.networkStates, 0L, false);
+        Assert.assertFalse(pinned.isResolved());
+        Assert.assertEquals(ResponseCodes.UNABLE_TO_SELECT_PEER_NETWORK, pinned.getCode());
+        Assert.assertEquals(Network.WiFi, network(service.resolveRoute(bob, service.networkStates, 0L, true)));
+        Envelope e = Envelope.documentFactory();
+        Assert.assertFalse(service.isRerouteAllowed(e));
+        e.addNVP(NetworkManagerService.REROUTE, "true");
+        Assert.assertTrue(service.isRerouteAllowed(e));
+    }
+
+    private void start(boolean costEnabled) {
+        Logger.getLogger("ra.networkmanager").setLevel(Level.SEVERE);
+        Properties props = new Properties();
+        props.setProperty("ra.networkmanager.cost.enabled", String.valueOf(costEnabled));
+        service = new NetworkManagerService(new MockProducer(), null);
+        Assert.assertTrue(service.start(props));
+        for(Network network : new Network[]{Network.Tor, Network.WiFi}) {
+            NetworkState ns = new NetworkState();
+            ns.network = network;
+            ns.networkStatus = NetworkStatus.CONNECTED;
+            service.networkStates.put(network.name(), ns);
+            service.peerDB.savePeer(peer(network, "alice"), true, RelType.fromNetwork(network));
+            service.peerDB.savePeer(peer(network, "bob"), false, RelType.fromNetwork(network));
+        }
+    }
+
+    private Network network(RouteResolution rr) {
+        Assert.assertTrue(rr.getCode().name(), rr.isResolved());
+        return service.getNetworkFromService(rr.getService());
+    }
+
+    private static NetworkPeer peer(Network network, String id) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-"+network.name());
+        return np;
+    }
+}
@@ -0,0 +1,154 @@
+package ra.networkmanager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+import ra.common.route.ExternalRoute;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class NetworkDiscoveryTest {
+
+    private static class CapturingProducer extends MockProducer {
+        private final List<Envelope> envelopes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public boolean send(Envelope envelope) {
+            envelopes.add(envelope);
+            return super.send(envelope);
+        }
+    }
+
+    private NetworkManagerService service;
+    private CapturingProducer producer;
+
+    @After
+    public void tearDown() {
+        if(service!=null) {
+            service.gracefulShutdown();
+        }
+    }
+
+    @Test
+    public void echoedPeersIgnored() {
+        start(false);
+        Envelope reply = probeReply();
+        service.handleDocument(reply);
+        assertNothingLearned(reply, 1);
+    }
+
+    @Test
+    public void echoedBinaryPeersIgnored() {
+        start(true);
+        Envelope reply = probeReply();
+        Assert.assertNotNull(reply.getValue(PeerCodec.PEERS));
+        service.handleDocument(reply);
+        assertNothingLearned(reply, 1);
+    }
+
+    @Test
+    public void replacedPeersLearned() {
+        start(false);
+        Envelope reply = probeReply();
+        String origin = origin(reply);
+        // The remote answers in the probe envelope, replacing what we shared with its own
+        List<Map<String,Object>> shared = new ArrayList<>();
+        shared.add(peer(Network.Tor, "erin").toMap());
+        shared.add(peer(Network.Tor, "frank").toMap());
+        reply.addNVP("peers", shared);
+        Map<String,Object> coordinates = new HashMap<>();
+        coordinates.put(origin, Arrays.asList(50.0, 0.0, 0.0, 5.0, 0.5));
+        reply.addNVP(NetworkManagerService.COORDINATES, coordinates);
+        service.handleDocument(reply);
+        Assert.assertEquals(5, service.peerDB.numberPeersByNetwork(Network.Tor));
+        // The measured link to the origin and the origin's to the two peers it shared
+        Assert.assertEquals(3, service.graph.size());
+        Assert.assertEquals(1, service.coordinates.size());
+    }
+
+    @Test
+    public void expiredProbeEchoIgnored() {
+        start(false);
+        Envelope reply = probeReply();
+        Assert.assertNotNull(service.discovery.endAck(origin(reply)));
+        service.handleDocument(reply);
+        assertNothingLearned(reply, 0);
+    }
+
+    @Test
+    public void noPeerToProbe() {
+        start(false);
+        NetworkState ns = new NetworkState();
+        ns.network = Network.I2P;
+        ns.networkStatus = NetworkStatus.CONNECTED;
+        service.networkStates.put(Network.I2P.name(), ns);
+        service.peerDB.savePeer(peer(Network.I2P, "alice"), true, RelType.fromNetwork(Network.I2P));
+        // No I2P peers or seeds: bootstrapping stops without probing
+        Assert.assertFalse(service.discovery.execute());
+    }
+
+    private void start(boolean binaryPeers) {
+        Logger.getLogger("ra.networkmanager").setLevel(Level.SEVERE);
+        Properties props = new Properties();
+        props.setProperty("ra.networkmanager.relay.enabled", "true");
+        props.setProperty("ra.networkmanager.discovery.binaryPeers", String.valueOf(binaryPeers));
+        producer = new CapturingProducer();
+        service = new NetworkManagerService(producer, null);
+        Assert.assertTrue(service.start(props));
+        NetworkState ns = new NetworkState();
+        ns.network = Network.Tor;
+        ns.networkStatus = NetworkStatus.CONNECTED;
+        service.networkStates.put(Network.Tor.name(), ns);
+        service.peerDB.savePeer(peer(Network.Tor, "alice"), true, RelType.fromNetwork(Network.Tor));
+        for(String id : new String[]{"bob", "carol", "dave"}) {
+            service.peerDB.savePeer(peer(Network.Tor, id), false, RelType.fromNetwork(Network.Tor));
+        }
+    }
+
+    /**
+     * @return the probe as the remote would return it, reusing the probe envelope with what we shared
+     * left in place: the local network service pops its route, the remote's the next and the reply
+     * route is left for the Network Manager
+     */
+    private Envelope probeReply() {
+        Assert.assertTrue(service.discovery.execute());
+        Assert.assertEquals(1, producer.envelopes.size());
+        Envelope reply = Envelope.documentFactory();
+        reply.fromJSON(producer.envelopes.get(0).toJSON());
+        reply.getDynamicRoutingSlip().nextRoute();
+        reply.getDynamicRoutingSlip().nextRoute();
+        reply.getDynamicRoutingSlip().nextRoute();
+        Assert.assertEquals(NetworkManagerService.OPERATION_PEER_STATUS_REPLY, reply.getRoute().getOperation());
+        Assert.assertNotNull(reply.getValue(NetworkManagerService.COORDINATES));
+        return reply;
+    }
+
+    /**
+     * @param links relationships expected, the measured one to the origin if the probe was still pending
+     */
+    private void assertNothingLearned(Envelope reply, int links) {
+        Assert.assertEquals(3, service.peerDB.numberPeersByNetwork(Network.Tor));
+        Assert.assertEquals(links, service.graph.size());
+        Assert.assertEquals(0, service.coordinates.size());
+        Assert.assertNull(service.discovery.endAck(origin(reply)));
+    }
+
+    private static String origin(Envelope reply) {
+        return ((ExternalRoute)reply.getRoute()).getOrigination().getId();
+    }
+
+    private static NetworkPeer peer(Network network, String id) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-"+network.name());
+        return np;
+    }
+}
@@ -7,7 +7,11 @@ import org.junit.Test;
 import ra.common.Envelope;
 import ra.common.network.Network;
 import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
@@ -42,6 +46,92 @@ public class NetworkManagerServiceTest {
         Assert.assertTrue(ready);
     }
 
+    @Test
+    public void reconfigureTest() {
+        Properties bad = new Properties();
+        bad.setProperty("ra.networkmanager.discovery.maxPeers.tor", "many");
+        Assert.assertFalse(service.reconfigure(bad));
+        Properties changes = new Properties();
+        changes.setProperty("ra.networkmanager.discovery.maxPeers.tor", "0");
+        Assert.assertTrue(service.reconfigure(changes));
+        Assert.assertEquals(0, service.discovery.headroom(Network.Tor));
+    }
+
+    @Test
+    public void reconfigureRebuildsComponentsTest() {
+        NetworkManagerService running = new NetworkManagerService(new MockProducer(), null);
+        Assert.assertTrue(running.start(new Properties()));
+        HedgedSender hedgedSender = running.hedgedSender;
+        GossipGuard gossipGuard = running.gossipGuard;
+        Properties bad = new Properties();
+        bad.setProperty("ra.networkmanager.hedge.maxCopies", "many");
+        Assert.assertFalse(running.reconfigure(bad));
+        Assert.assertSame(hedgedSender, running.hedgedSender);
+
+        Properties changes = new Properties();
+        changes.setProperty("ra.networkmanager.hedge.maxCopies", "3");
+        changes.setProperty("ra.networkmanager.breaker.failureThreshold", "2");
+        changes.setProperty("ra.networkmanager.relay.enabled", "true");
+        Assert.assertTrue(running.reconfigure(changes));
+        Assert.assertNotSame(hedgedSender, running.hedgedSender);
+        Assert.assertNotSame(gossipGuard, running.gossipGuard);
+        Assert.assertEquals(2, running.breakerFailureThreshold);
+        Assert.assertNotNull(running.graph);
+
+        // Hold retries are only applied on a stop and start
+        Properties notLive = new Properties();
+        notLive.setProperty("ra.networkmanager.hold.maxAttempts", "1");
+        notLive.setProperty("ra.networkmanager.hedge.maxCopies", "2");
+        hedgedSender = running.hedgedSender;
+        Assert.assertFalse(running.reconfigure(notLive));
+        Assert.assertSame(hedgedSender, running.hedgedSender);
+        running.gracefulShutdown();
+    }
+
+    @Test
+    public void restartWhenShutDownTest() {
+        NetworkManagerService stopped = new NetworkManagerService(new MockProducer(), null);
+        Assert.assertTrue(stopped.start(new Properties()));
+        NetworkDiscovery replaced = stopped.discovery;
+        Assert.assertTrue(stopped.shutdown());
+        Assert.assertTrue(stopped.restart());
+        Assert.assertNotNull(stopped.scheduler);
+        Assert.assertNotSame(replaced, stopped.discovery);
+        // Running again, so a further restart reloads in place
+        NetworkDiscovery current = stopped.discovery;
+        Assert.assertTrue(stopped.restart());
+        Assert.assertSame(current, stopped.discovery);
+        stopped.gracefulShutdown();
+    }
+
+    @Test
+    public void handleDocumentsInOrderTest() {
+        NetworkState ns = new NetworkState();
+        ns.network = Network.I2P;
+        service.networkStates.putIfAbsent(Network.I2P.name(), ns);
+        Envelope query = Envelope.documentFactory();
+        query.addRoute(NetworkManagerService.class, NetworkManagerService.OPERATION_NUMBER_PEERS_BY_NETWORK);
+        Envelope unknown = Envelope.documentFactory();
+        unknown.addRoute(NetworkManagerService.class, "NO_SUCH_OPERATION");
+        List<ResponseCodes> results = service.handleDocuments(Arrays.asList(
+                updatePeer("batch-1"), query, updatePeer("batch-2"), unknown, Envelope.documentFactory()));
+        Assert.assertEquals(Arrays.asList(ResponseCodes.READY, ResponseCodes.READY, ResponseCodes.READY,
+                ResponseCodes.DEAD_LETTERED, ResponseCodes.DEAD_LETTERED), results);
+        // The query ran after the first update and before the second
+        long before = service.peerDB.numberPeersByNetwork(Network.I2P);
+        Assert.assertEquals(before - 1, ((Number)((Map<?,?>)query.getValue(NetworkManagerService.OPERATION_NUMBER_PEERS_BY_NETWORK)).get(Network.I2P.name())).longValue());
+    }
+
+    private static Envelope updatePeer(String id) {
+        NetworkPeer np = new NetworkPeer(Network.I2P);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-address");
+        Envelope e = Envelope.documentFactory();
+        e.addNVP(NetworkPeer.class.getName(), np);
+        e.addRoute(NetworkManagerService.class, NetworkManagerService.OPERATION_UPDATE_PEER);
+        return e;
+    }
+
     public void test2() {
         Envelope e = Envelope.documentFactory();
         NetworkPeer np = new NetworkPeer(Network.I2P, "Anon", "1234");
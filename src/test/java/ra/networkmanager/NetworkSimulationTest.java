@@ -0,0 +1,76 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ra.common.network.Network;
+
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class NetworkSimulationTest {
+
+    private static final Logger LOG = Logger.getLogger(NetworkSimulationTest.class.getName());
+
+    private static final int VIRTUAL_PEERS = 10000;
+    private static final long SIX_HOURS = 6 * 60 * 60 * 1000L;
+
+    @BeforeClass
+    public static void init() {
+        // Per-peer INFO logging would dominate the run
+        Logger.getLogger("ra.networkmanager").setLevel(Level.WARNING);
+    }
+
+    private static NetworkSimulator simulator(long seed) {
+        return new NetworkSimulator(seed)
+                .add(new SimulatedNetwork(Network.Tor, "ra.tor.TORClientService").latency(3000, 4000).loss(0.05).churn(0.01).flap(0.02))
+                .add(new SimulatedNetwork(Network.I2P, "ra.i2p.I2PEmbeddedService").latency(5000, 6000).loss(0.08).churn(0.01).flap(0.02))
+                .add(new SimulatedNetwork(Network.Bluetooth, "ra.bluetooth.BluetoothService").latency(50, 100).loss(0.02).churn(0.05).flap(0.1))
+                .add(new SimulatedNetwork(Network.WiFi, "ra.wifi.WiFiService").latency(20, 50).loss(0.01).churn(0.02).flap(0.05))
+                .sendsPerSecond(2.0);
+    }
+
+    @Test
+    public void discoveryConverges() {
+        NetworkSimulator sim = simulator(42L);
+        Assert.assertTrue(sim.start(VIRTUAL_PEERS, new Properties()));
+        NetworkSimulator.Report report = sim.run(SIX_HOURS);
+        // The service ran on virtual time throughout
+        Assert.assertEquals(sim.getClock().now(), sim.getService().now());
+        sim.shutdown();
+        LOG.warning("Simulation report: "+report);
+        // Discovery learned a large share of the population from 3 seeds per network
+        Assert.assertTrue("knownPeers="+report.knownPeers(), report.knownPeers() * 10 >= report.population * 4);
+        Assert.assertEquals(SIX_HOURS / NetworkSimulator.TICK_MS, report.knownPeersSamples.size());
+        Assert.assertTrue(report.replies > 1000);
+        // One send every half second for six hours, nearly all delivered despite loss and flaps
+        Assert.assertEquals(SIX_HOURS / 500 - 1, report.sendsIssued);
+        Assert.assertTrue("delivered="+report.delivered(), report.delivered() * 100 >= report.sendsIssued * 85);
+        Assert.assertEquals(0, report.deadLettered);
+        long held = report.heldSamples.get(report.heldSamples.size() - 1);
+        Assert.assertTrue("held="+held, held * 100 <= report.sendsIssued);
+        for(SimulatedNetwork sn : sim.getNetworks()) {
+            // Sends only reach connected networks; the rest are held until they reconnect
+            Assert.assertEquals(sn.network.name(), 0, sn.rejected);
+            Assert.assertTrue(sn.network.name(), sn.delivered > 0);
+        }
+    }
+
+    @Test
+    public void sameSeedSameResult() {
+        NetworkSimulator first = simulator(7L);
+        Assert.assertTrue(first.start(VIRTUAL_PEERS, new Properties()));
+        NetworkSimulator.Report r1 = first.run(SIX_HOURS / 6);
+        first.shutdown();
+
+        NetworkSimulator second = simulator(7L);
+        Assert.assertTrue(second.start(VIRTUAL_PEERS, new Properties()));
+        NetworkSimulator.Report r2 = second.run(SIX_HOURS / 6);
+        second.shutdown();
+
+        Assert.assertEquals(r1.knownPeersSamples, r2.knownPeersSamples);
+        Assert.assertEquals(r1.sendsIssued, r2.sendsIssued);
+        Assert.assertEquals(r1.delivered(), r2.delivered());
+    }
+}
@@ -0,0 +1,342 @@
+package ra.networkmanager;
+
+import ra.common.Client;
+import ra.common.Envelope;
+import ra.common.messaging.EventMessage;
+import ra.common.messaging.MessageProducer;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+import ra.common.route.Route;
+
+import java.io.File;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Deterministic, in-process simulation harness for {@link NetworkManagerService}.
+ *
+ * Stands in as the service's {@link MessageProducer} routing each envelope to a {@link SimulatedNetwork}
+ * and drives discovery, the message hold and SEND traffic from a {@link VirtualClock} which is also
+ * the service's clock, so backoff, ack latency, breakers, rate limits and liveness run in virtual time.
+ * Everything random is drawn from one seeded Random so the same seed yields the same report.
+ */
+public class NetworkSimulator implements MessageProducer {
+
+    private static final Logger LOG = Logger.getLogger(NetworkSimulator.class.getName());
+
+    public static final long TICK_MS = 60 * 1000L;
+    // Virtual time starts at a fixed, realistic epoch as zero means never to the Peer DB
+    public static final long START_MS = 1600000000000L;
+
+    private final Random random;
+    private final long seed;
+    private final VirtualClock clock = new VirtualClock(START_MS);
+    private final Map<String, SimulatedNetwork> networksByService = new LinkedHashMap<>();
+    private final List<SimulatedNetwork> networks = new ArrayList<>();
+    private final Report report = new Report();
+
+    private NetworkManagerService service;
+    private int seedsPerNetwork = 3;
+    private double sendsPerSecond = 1.0;
+
+    public NetworkSimulator(long seed) {
+        this.seed = seed;
+        this.random = new Random(seed);
+    }
+
+    public NetworkSimulator add(SimulatedNetwork network) {
+        networks.add(network);
+        networksByService.put(network.serviceName, network);
+        return this;
+    }
+
+    public NetworkSimulator seedsPerNetwork(int seedsPerNetwork) {
+        this.seedsPerNetwork = seedsPerNetwork;
+        return this;
+    }
+
+    public NetworkSimulator sendsPerSecond(double sendsPerSecond) {
+        this.sendsPerSecond = sendsPerSecond;
+        return this;
+    }
+
+    /**
+     * Start a fresh Network Manager with the virtual peers spread evenly across the networks.
+     */
+    public boolean start(int numberVirtualPeers, Properties props) {
+        props.setProperty("ra.networkmanager.peerdb.randomSeed", String.valueOf(seed));
+        service = new NetworkManagerService(this, null);
+        service.setClock(clock::now);
+        if(!service.start(props)) {
+            return false;
+        }
+        clearHold();
+        int perNetwork = numberVirtualPeers / networks.size();
+        for(SimulatedNetwork sn : networks) {
+            sn.populate(perNetwork);
+            updateState(sn, sn.status);
+            service.peerDB.savePeer(sn.localPeer, true, RelType.fromNetwork(sn.network));
+            for(int i=0; i<seedsPerNetwork && i<sn.peers.size(); i++) {
+                service.peerDB.savePeer(sn.peers.get(random.nextInt(sn.peers.size())), false, RelType.Seed);
+            }
+        }
+        report.population = perNetwork * networks.size();
+        return true;
+    }
+
+    public NetworkManagerService getService() {
+        return service;
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Run the simulation for the supplied virtual duration.
+     */
+    public Report run(long durationMs) {
+        long wallStart = System.currentTimeMillis();
+        long end = clock.now() + durationMs;
+        scheduleTraffic(end);
+        while(clock.now() < end) {
+            long nextTick = Math.min(end, clock.now() + TICK_MS);
+            report.events += clock.runUntil(nextTick);
+            tick();
+        }
+        report.virtualMs += durationMs;
+        report.wallMs += System.currentTimeMillis() - wallStart;
+        return report;
+    }
+
+    public void shutdown() {
+        if(service!=null) {
+            service.gracefulShutdown();
+        }
+    }
+
+    private void tick() {
+        for(SimulatedNetwork sn : networks) {
+            sn.churn(random);
+            if(sn.status!=NetworkStatus.CONNECTED) {
+                updateState(sn, NetworkStatus.CONNECTED);
+            } else if(sn.flap > 0 && random.nextDouble() < sn.flap) {
+                sn.flaps++;
+                updateState(sn, NetworkStatus.DISCONNECTED);
+            }
+        }
+        service.delayedSend.execute();
+        service.discovery.execute();
+        report.heldSamples.add(holdSize());
+        long known = 0;
+        for(SimulatedNetwork sn : networks) {
+            known += service.peerDB.numberPeersByNetwork(sn.network);
+        }
+        report.knownPeersSamples.add(known);
+        if(report.halfConvergedMs < 0 && known * 2 >= report.population) {
+            report.halfConvergedMs = clock.now() - START_MS;
+        }
+        if(report.ninetyConvergedMs < 0 && known * 10 >= report.population * 9L) {
+            report.ninetyConvergedMs = clock.now() - START_MS;
+        }
+    }
+
+    private void scheduleTraffic(long end) {
+        if(sendsPerSecond <= 0) return;
+        long interval = (long)(1000 / sendsPerSecond);
+        for(long t = clock.now() + interval; t < end; t += interval) {
+            clock.schedule(t - clock.now(), this::sendRandom);
+        }
+    }
+
+    private void sendRandom() {
+        SimulatedNetwork sn = networks.get(random.nextInt(networks.size()));
+        NetworkPeer dest = service.peerDB.getRandomPeerByNetwork(sn.network);
+        if(dest==null) {
+            return;
+        }
+        Envelope e = Envelope.documentFactory();
+        e.addNVP(NetworkPeer.class.getName(), dest);
+        e.addNVP("sim.sentAt", clock.now());
+        e.addExternalRoute(sn.serviceName, "SEND", null, dest);
+        e.addRoute(NetworkManagerService.class, NetworkManagerService.OPERATION_SEND);
+        report.sendsIssued++;
+        service.handleDocument(e);
+    }
+
+    private void updateState(SimulatedNetwork sn, NetworkStatus status) {
+        sn.status = status;
+        NetworkState ns = new NetworkState();
+        ns.network = sn.network;
+        ns.networkStatus = status;
+        Envelope e = Envelope.eventFactory(EventMessage.Type.NETWORK_STATE);
+        ((EventMessage)e.getMessage()).setMessage(ns);
+        e.addRoute(NetworkManagerService.class, NetworkManagerService.OPERATION_UPDATE_NETWORK_STATE);
+        service.handleEvent(e);
+    }
+
+    private SimulatedNetwork networkOf(Envelope e) {
+        Route r = e.getRoute();
+        if(r!=null && networksByService.containsKey(r.getService())) {
+            return networksByService.get(r.getService());
+        }
+        r = e.getDynamicRoutingSlip().peekAtNextRoute();
+        if(r!=null && networksByService.containsKey(r.getService())) {
+            return networksByService.get(r.getService());
+        }
+        return null;
+    }
+
+    @Override
+    public boolean send(Envelope e) {
+        SimulatedNetwork sn = networkOf(e);
+        if(sn==null) {
+            // Notifications and other services
+            report.otherSends++;
+            return true;
+        }
+        if(sn.status!=NetworkStatus.CONNECTED) {
+            sn.rejected++;
+            return false;
+        }
+        sn.sent++;
+        if(sn.isLost(random)) {
+            sn.lost++;
+            return true;
+        }
+        final long latency = sn.nextLatency(random);
+        Object dest = e.getValue(NetworkPeer.class.getName());
+        if(dest instanceof NetworkPeer) {
+            final Object sentAt = e.getValue("sim.sentAt");
+            clock.schedule(latency, () -> deliver(sn, (NetworkPeer)dest, sentAt));
+        } else {
+            // Discovery probe: an online peer answers with a sample of its own view
+            sn.probes++;
+            clock.schedule(latency * 2, () -> reply(sn));
+        }
+        return true;
+    }
+
+    private void deliver(SimulatedNetwork sn, NetworkPeer dest, Object sentAt) {
+        int index = sn.peers.indexOf(dest);
+        if(index >= 0 && !sn.isOnline(index)) {
+            sn.lost++;
+            return;
+        }
+        sn.delivered++;
+        if(sentAt instanceof Long) {
+            sn.deliveryLatencyTotalMs += clock.now() - (Long)sentAt;
+        }
+    }
+
+    private void reply(SimulatedNetwork sn) {
+        NetworkPeer responder = sn.randomOnlinePeer(random);
+        if(responder==null) {
+            return;
+        }
+        List<Map<String,Object>> peerMaps = new ArrayList<>();
+        for(int i=0; i<8; i++) {
+            NetworkPeer np = sn.peers.get(random.nextInt(sn.peers.size()));
+            peerMaps.add(np.toMap());
+        }
+        Envelope reply = Envelope.documentFactory();
+        reply.addNVP("peers", peerMaps);
+        reply.addExternalRoute(NetworkManagerService.class.getName(),
+                NetworkManagerService.OPERATION_PEER_STATUS_REPLY,
+                responder,
+                sn.localPeer);
+        report.replies++;
+        service.handleDocument(reply);
+    }
+
+    private long holdSize() {
+        return service.hold.size();
+    }
+
+    private void clearHold() {
+        File[] held = service.messageHold.listFiles();
+        if(held!=null) {
+            for(File f : held) {
+                if(!f.delete()) {
+                    LOG.warning("Unable to clear held message: "+f.getAbsolutePath());
+                }
+            }
+        }
+        service.hold.load();
+    }
+
+    @Override
+    public boolean send(Envelope envelope, Client client) {
+        return send(envelope);
+    }
+
+    @Override
+    public boolean deadLetter(Envelope envelope) {
+        report.deadLettered++;
+        return true;
+    }
+
+    public List<SimulatedNetwork> getNetworks() {
+        return networks;
+    }
+
+    public class Report {
+        public long population;
+        public long virtualMs;
+        public long wallMs;
+        public long events;
+        public long sendsIssued;
+        public long otherSends;
+        public long deadLettered;
+        public long replies;
+        public long halfConvergedMs = -1;
+        public long ninetyConvergedMs = -1;
+        public final List<Long> knownPeersSamples = new ArrayList<>();
+        public final List<Long> heldSamples = new ArrayList<>();
+
+        public long knownPeers() {
+            return knownPeersSamples.isEmpty() ? 0 : knownPeersSamples.get(knownPeersSamples.size()-1);
+        }
+
+        public long delivered() {
+            long delivered = 0;
+            for(SimulatedNetwork sn : networks) delivered += sn.delivered;
+            return delivered;
+        }
+
+        public double routedPerWallSecond() {
+            return wallMs == 0 ? 0 : sendsIssued * 1000.0 / wallMs;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("population=").append(population)
+                    .append(" virtualMs=").append(virtualMs)
+                    .append(" wallMs=").append(wallMs)
+                    .append(" events=").append(events)
+                    .append(" knownPeers=").append(knownPeers())
+                    .append(" halfConvergedMs=").append(halfConvergedMs)
+                    .append(" ninetyConvergedMs=").append(ninetyConvergedMs)
+                    .append(" sendsIssued=").append(sendsIssued)
+                    .append(" delivered=").append(delivered())
+                    .append(" deadLettered=").append(deadLettered)
+                    .append(" replies=").append(replies)
+                    .append(" routedPerWallSecond=").append(String.format("%.1f", routedPerWallSecond()))
+                    .append(" held=").append(heldSamples.isEmpty() ? 0 : heldSamples.get(heldSamples.size()-1));
+            for(SimulatedNetwork sn : networks) {
+                sb.append("\n  ").append(sn.network.name())
+                        .append(": sent=").append(sn.sent)
+                        .append(" rejected=").append(sn.rejected)
+                        .append(" lost=").append(sn.lost)
+                        .append(" delivered=").append(sn.delivered)
+                        .append(" probes=").append(sn.probes)
+                        .append(" flaps=").append(sn.flaps)
+                        .append(" avgLatencyMs=").append(sn.delivered==0 ? 0 : sn.deliveryLatencyTotalMs / sn.delivered);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.network.Network;
+
+import java.util.Properties;
+
+public class PeerAffinityTest {
+
+    private static PeerAffinity affinity() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.affinity.maxPeers", "2");
+        p.setProperty("ra.networkmanager.affinity.healthyMs", "1000");
+        p.setProperty("ra.networkmanager.affinity.reprobeMs", "500");
+        return new PeerAffinity(p);
+    }
+
+    @Test
+    public void sticksWhileHealthy() {
+        PeerAffinity affinity = affinity();
+        Assert.assertNull(affinity.preferred("a", 0L));
+        affinity.sent("a", Network.Tor, 0L);
+        Assert.assertEquals(Network.Tor, affinity.preferred("a", 1000L));
+        Assert.assertNull(affinity.preferred("a", 1001L));
+        // A hand-off on another network does not move a healthy peer
+        affinity.sent("a", Network.Tor, 1000L);
+        affinity.sent("a", Network.I2P, 1500L);
+        Assert.assertEquals(Network.Tor, affinity.preferred("a", 1500L));
+        // Once the current network stops delivering it does
+        affinity.sent("a", Network.I2P, 2001L);
+        Assert.assertEquals(Network.I2P, affinity.preferred("a", 2001L));
+    }
+
+    @Test
+    public void fasterAckTakesOver() {
+        PeerAffinity affinity = affinity();
+        affinity.acked("a", Network.I2P, 400L, 0L);
+        Assert.assertEquals(400L, affinity.get("a").getLatencyMs());
+        // Slower alternative ignored while the current network is healthy
+        affinity.acked("a", Network.Tor, 500L, 100L);
+        Assert.assertEquals(Network.I2P, affinity.preferred("a", 100L));
+        affinity.acked("a", Network.Tor, 300L, 200L);
+        Assert.assertEquals(Network.Tor, affinity.preferred("a", 200L));
+        Assert.assertEquals(300L, affinity.get("a").getLatencyMs());
+    }
+
+    @Test
+    public void reprobeOncePerPeriod() {
+        PeerAffinity affinity = affinity();
+        Assert.assertFalse(affinity.reprobe("a", 0L));
+        affinity.sent("a", Network.Tor, 0L);
+        Assert.assertFalse(affinity.reprobe("a", 499L));
+        Assert.assertTrue(affinity.reprobe("a", 500L));
+        Assert.assertFalse(affinity.reprobe("a", 600L));
+        Assert.assertTrue(affinity.reprobe("a", 1000L));
+    }
+
+    @Test
+    public void failureForgetsAndTableIsBounded() {
+        PeerAffinity affinity = affinity();
+        affinity.sent("a", Network.Tor, 0L);
+        affinity.failed("a", Network.I2P);
+        Assert.assertEquals(Network.Tor, affinity.preferred("a", 0L));
+        affinity.failed("a", Network.Tor);
+        Assert.assertNull(affinity.get("a"));
+
+        affinity.sent("a", Network.Tor, 0L);
+        affinity.sent("b", Network.Tor, 0L);
+        // Touch a so b is least recently used
+        affinity.preferred("a", 0L);
+        affinity.sent("c", Network.Tor, 0L);
+        Assert.assertEquals(2, affinity.size());
+        Assert.assertNotNull(affinity.get("a"));
+        Assert.assertNull(affinity.get("b"));
+    }
+}
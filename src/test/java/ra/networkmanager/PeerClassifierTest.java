@@ -0,0 +1,125 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+public class PeerClassifierTest {
+
+    private static Stats stats;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        Properties p = new Properties();
+        try (InputStream in = PeerClassifierTest.class.getResourceAsStream("/ra-network-manager.config")) {
+            p.load(in);
+        }
+        // Defaults: Reliable takes 100 acks with 50 within 8s; LowLatency 10 acks averaging 500ms;
+        // Banned 20 timeouts with under 10% acked
+        stats = new Stats(p);
+    }
+
+    @Test
+    public void reliableOnceEnoughAcksWithinThresholds() {
+        PeerTable table = new PeerTable();
+        PeerClassifier classifier = new PeerClassifier(stats);
+        int slot = table.put(peer(Network.Tor, "a"), RelType.Tor);
+        for(int i=0; i<99; i++) {
+            ack(table, classifier, slot, 2000L);
+        }
+        Assert.assertFalse(table.hasClass(slot, RelType.Reliable));
+        ack(table, classifier, slot, 2000L);
+        Assert.assertTrue(table.hasClass(slot, RelType.Reliable));
+        Assert.assertFalse(table.hasClass(slot, RelType.LowLatency));
+        Assert.assertEquals(1, table.count(Network.Tor, RelType.Reliable));
+        // Median drifts past the threshold once most acks are slow
+        for(int i=0; i<101; i++) {
+            ack(table, classifier, slot, 9000L);
+        }
+        Assert.assertFalse(table.hasClass(slot, RelType.Reliable));
+        Assert.assertEquals(0, table.count(Network.Tor, RelType.Reliable));
+    }
+
+    @Test
+    public void lowLatencyOnFastAcks() {
+        PeerTable table = new PeerTable();
+        PeerClassifier classifier = new PeerClassifier(stats);
+        int slot = table.put(peer(Network.I2P, "b"), RelType.I2P);
+        for(int i=0; i<10; i++) {
+            ack(table, classifier, slot, 100L);
+        }
+        Assert.assertTrue(table.hasClass(slot, RelType.LowLatency));
+        Assert.assertEquals(slot, table.randomSlot(Network.I2P, RelType.LowLatency));
+        Assert.assertEquals(PeerTable.NO_SLOT, table.randomSlot(Network.Tor, RelType.LowLatency));
+    }
+
+    @Test
+    public void bannedOnTimeoutsAndNeverSampled() {
+        PeerTable table = new PeerTable();
+        PeerClassifier classifier = new PeerClassifier(stats);
+        int banned = table.put(peer(Network.Tor, "c"), RelType.Tor);
+        int good = table.put(peer(Network.Tor, "d"), RelType.Tor);
+        ack(table, classifier, banned, 100L);
+        for(int i=0; i<19; i++) {
+            timeout(table, classifier, banned);
+        }
+        Assert.assertFalse(table.hasClass(banned, RelType.Banned));
+        timeout(table, classifier, banned);
+        Assert.assertTrue(table.hasClass(banned, RelType.Banned));
+        Assert.assertEquals(0.0, table.weight(banned), 0.0);
+        for(int i=0; i<100; i++) {
+            Assert.assertEquals(good, table.weightedSlot(Network.Tor));
+        }
+        // Acks bring it back above 10%
+        for(int i=0; i<2; i++) {
+            ack(table, classifier, banned, 100L);
+        }
+        Assert.assertFalse(table.hasClass(banned, RelType.Banned));
+    }
+
+    @Test
+    public void relationshipThresholdsComeFromStats() {
+        P2PRelationship r = new P2PRelationship(peer(Network.Tor, "x"), peer(Network.Tor, "y"));
+        // No acks yet
+        Assert.assertFalse(r.isReliable(stats, Network.Tor));
+        Assert.assertFalse(r.isRealTime(stats));
+        for(int i=0; i<100; i++) {
+            r.addAck(i < 60 ? 3000L : 7000L);
+        }
+        Assert.assertTrue(r.isReliable(stats, Network.Tor));
+        Assert.assertFalse(r.isSuperReliable(stats, Network.Tor));
+        Assert.assertFalse(r.isRealTime(stats));
+
+        P2PRelationship fast = new P2PRelationship(peer(Network.I2P, "x"), peer(Network.I2P, "z"));
+        for(int i=0; i<1000; i++) {
+            fast.addAck(400L);
+        }
+        Assert.assertTrue(fast.isSuperReliable(stats, Network.I2P));
+        Assert.assertTrue(fast.isRealTime(stats));
+        fast.addAck(Long.MAX_VALUE);
+        // Huge outliers sort without overflowing the comparator
+        Assert.assertEquals(400L, (long)fast.getMedAckLatencyMS());
+    }
+
+    private static void ack(PeerTable table, PeerClassifier classifier, int slot, long latencyMs) {
+        table.acked(slot, 1L, latencyMs);
+        classifier.acked(table, slot, latencyMs);
+    }
+
+    private static void timeout(PeerTable table, PeerClassifier classifier, int slot) {
+        table.timedOut(slot);
+        classifier.timedOut(table, slot);
+    }
+
+    private static NetworkPeer peer(Network network, String id) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-address");
+        return np;
+    }
+}
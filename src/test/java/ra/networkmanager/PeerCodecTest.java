@@ -0,0 +1,65 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PeerCodecTest {
+
+    @Test
+    public void roundTrip() {
+        List<NetworkPeer> peers = new ArrayList<>();
+        for(int i=0; i<20; i++) {
+            peers.add(peer(i % 2 == 0 ? Network.Tor : Network.I2P, "peer-"+i));
+        }
+        List<NetworkPeer> decoded = PeerCodec.decodeBase64(PeerCodec.encodeBase64(peers));
+        Assert.assertEquals(peers.size(), decoded.size());
+        for(int i=0; i<peers.size(); i++) {
+            Assert.assertEquals(peers.get(i).getId(), decoded.get(i).getId());
+            Assert.assertEquals(peers.get(i).getNetwork(), decoded.get(i).getNetwork());
+            Assert.assertEquals(peers.get(i).getDid().getPublicKey().getAddress(), decoded.get(i).getDid().getPublicKey().getAddress());
+            Assert.assertEquals(peers.get(i).toMap(), decoded.get(i).toMap());
+        }
+        // Equal peers encode to equal bytes
+        Assert.assertArrayEquals(PeerCodec.encode(peers), PeerCodec.encode(decoded));
+        Assert.assertEquals("peer-3", PeerCodec.decodePeer(PeerCodec.encode(peers.get(3))).getId());
+        Assert.assertTrue(PeerCodec.decodeBase64(PeerCodec.encodeBase64(new ArrayList<>())).isEmpty());
+    }
+
+    @Test
+    public void rejectsMalformed() {
+        byte[] encoded = PeerCodec.encode(Arrays.asList(peer(Network.Tor, "alice"), peer(Network.I2P, "bob")));
+        assertRejected(Arrays.copyOf(encoded, encoded.length / 2));
+        byte[] version = encoded.clone();
+        version[0] = 99;
+        assertRejected(version);
+        assertRejected(new byte[0]);
+        try {
+            PeerCodec.decodeBase64("not base64!");
+            Assert.fail("Decoded invalid base64");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static void assertRejected(byte[] bytes) {
+        try {
+            PeerCodec.decode(bytes);
+            Assert.fail("Decoded malformed peer list");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static NetworkPeer peer(Network network, String id) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-"+network.name());
+        return np;
+    }
+}
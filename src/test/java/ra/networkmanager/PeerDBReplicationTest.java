@@ -0,0 +1,126 @@
+package ra.networkmanager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class PeerDBReplicationTest {
+
+    private final List<ReplicatedPeerDB> replicas = new ArrayList<>();
+    private String channel;
+
+    @Before
+    public void init() {
+        channel = "test-" + System.nanoTime();
+        for(int i=0; i<3; i++) {
+            replicas.add(replica("replica-"+i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for(ReplicatedPeerDB db : replicas) {
+            db.teardown();
+        }
+    }
+
+    @Test
+    public void converge() {
+        for(int i=0; i<replicas.size(); i++) {
+            for(int j=0; j<10; j++) {
+                replicas.get(i).savePeer(peer(Network.Tor, i+"-"+j, "addr"), false, RelType.Tor);
+            }
+        }
+        flushAll();
+        for(ReplicatedPeerDB db : replicas) {
+            Assert.assertEquals(30, db.numberPeersByNetwork(Network.Tor));
+        }
+    }
+
+    @Test
+    public void lastWriterWins() {
+        // Concurrent writes of the same peer: every replica settles on the same one
+        for(int i=0; i<replicas.size(); i++) {
+            replicas.get(i).savePeer(peer(Network.I2P, "shared", "address-"+i), false, RelType.I2P);
+        }
+        flushAll();
+        String address = replicas.get(0).findPeerByNetwork("shared", Network.I2P).getDid().getPublicKey().getAddress();
+        for(ReplicatedPeerDB db : replicas) {
+            Assert.assertEquals(address, db.findPeerByNetwork("shared", Network.I2P).getDid().getPublicKey().getAddress());
+        }
+        // A later write wins everywhere
+        replicas.get(1).savePeer(peer(Network.I2P, "shared", "address-latest"), false, RelType.I2P);
+        flushAll();
+        for(ReplicatedPeerDB db : replicas) {
+            Assert.assertEquals("address-latest", db.findPeerByNetwork("shared", Network.I2P).getDid().getPublicKey().getAddress());
+        }
+    }
+
+    @Test
+    public void seedsUnion() {
+        replicas.get(0).savePeer(peer(Network.Tor, "seed-a", "addr"), false, RelType.Seed);
+        replicas.get(2).savePeer(peer(Network.Tor, "seed-b", "addr"), false, RelType.Seed);
+        flushAll();
+        for(ReplicatedPeerDB db : replicas) {
+            Assert.assertEquals(2, db.numberSeedPeersByNetwork(Network.Tor));
+        }
+    }
+
+    @Test
+    public void lateJoinerCatchesUp() {
+        replicas.get(0).savePeer(peer(Network.Tor, "early", "addr"), false, RelType.Seed);
+        flushAll();
+        ReplicatedPeerDB late = replica("replica-late");
+        replicas.add(late);
+        Assert.assertNotNull(late.findPeerByNetwork("early", Network.Tor));
+        Assert.assertEquals(1, late.numberSeedPeersByNetwork(Network.Tor));
+    }
+
+    @Test
+    public void shutDownServiceLeavesChannel() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.replication.enabled", "true");
+        p.setProperty("ra.networkmanager.replication.channel", channel);
+        p.setProperty("ra.networkmanager.replication.flushMs", "0");
+        NetworkManagerService service = new NetworkManagerService(new MockProducer(), null);
+        Assert.assertTrue(service.start(p));
+        replicas.get(0).savePeer(peer(Network.Tor, "before", "addr"), false, RelType.Tor);
+        flushAll();
+        Assert.assertEquals(1, service.peerDB.numberPeersByNetwork(Network.Tor));
+
+        service.shutdown();
+        replicas.get(0).savePeer(peer(Network.Tor, "after", "addr"), false, RelType.Tor);
+        flushAll();
+        Assert.assertNull(service.peerDB.findPeerByNetwork("after", Network.Tor));
+    }
+
+    private ReplicatedPeerDB replica(String id) {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.replication.channel", channel);
+        p.setProperty("ra.networkmanager.replication.replicaId", id);
+        p.setProperty("ra.networkmanager.replication.flushMs", "0"); // Flushed by the test
+        ReplicatedPeerDB db = new ReplicatedPeerDB();
+        db.init(p);
+        return db;
+    }
+
+    private void flushAll() {
+        for(ReplicatedPeerDB db : replicas) {
+            db.flush();
+        }
+    }
+
+    private static NetworkPeer peer(Network network, String id, String address) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(address);
+        return np;
+    }
+}
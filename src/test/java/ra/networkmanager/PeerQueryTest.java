@@ -0,0 +1,178 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.*;
+
+public class PeerQueryTest {
+
+    private InMemoryPeerDB db;
+
+    @Before
+    public void init() {
+        db = new InMemoryPeerDB();
+        db.init(new Properties());
+        for(int i=0; i<250; i++) {
+            db.savePeer(peer(Network.Tor, "tor-"+i), false, RelType.Tor);
+        }
+        for(int i=0; i<30; i++) {
+            db.savePeer(peer(Network.I2P, "i2p-"+i), false, RelType.I2P);
+        }
+    }
+
+    @Test
+    public void cursorSurvivesRemovals() {
+        PeerQuery query = new PeerQuery().setNetwork(Network.Tor).setPageSize(100);
+        PeerPage first = db.findPeers(query);
+        Assert.assertEquals(100, first.getPeers().size());
+        Assert.assertTrue(first.hasMore());
+        Set<String> seen = ids(first);
+        // Peers already returned leave, swapping others into their positions
+        PeerTable table = db.peerTable();
+        for(int i=0; i<50; i++) {
+            table.remove(table.slotById(Network.Tor, first.getPeers().get(i).getId()));
+        }
+        String cursor = first.getNextCursor();
+        while(cursor!=null) {
+            PeerPage page = db.findPeers(query.setCursor(cursor));
+            for(NetworkPeer np : page.getPeers()) {
+                Assert.assertTrue("Returned twice: "+np.getId(), seen.add(np.getId()));
+            }
+            cursor = page.getNextCursor();
+        }
+        Assert.assertEquals(250, seen.size());
+    }
+
+    @Test
+    public void pagesAcrossNetworks() {
+        Set<String> seen = new HashSet<>();
+        PeerQuery query = new PeerQuery().setPageSize(64);
+        String cursor = null;
+        int pages = 0;
+        do {
+            PeerPage page = db.findPeers(query.setCursor(cursor));
+            Assert.assertTrue(page.getPeers().size() <= 64);
+            for(NetworkPeer np : page.getPeers()) {
+                Assert.assertTrue(seen.add(np.getNetwork().name()+np.getId()));
+            }
+            cursor = page.getNextCursor();
+            pages++;
+        } while(cursor!=null);
+        Assert.assertEquals(280, seen.size());
+        Assert.assertEquals(5, pages);
+    }
+
+    @Test
+    public void filtersByClassification() {
+        PeerTable table = db.peerTable();
+        Set<String> reliable = new HashSet<>();
+        for(int i=0; i<250; i+=7) {
+            table.setClass(table.slotById(Network.Tor, "tor-"+i), RelType.Reliable, true);
+            reliable.add("tor-"+i);
+        }
+        table.setClass(table.slotById(Network.Tor, "tor-1"), RelType.Banned, true);
+        Set<String> seen = new HashSet<>();
+        PeerQuery query = new PeerQuery().setReliableOnly(true).setPageSize(10);
+        String cursor = null;
+        do {
+            PeerPage page = db.findPeers(query.setCursor(cursor));
+            seen.addAll(ids(page));
+            cursor = page.getNextCursor();
+        } while(cursor!=null);
+        Assert.assertEquals(reliable, seen);
+        PeerPage banned = db.findPeers(new PeerQuery().setRelType(RelType.Banned));
+        Assert.assertEquals(Collections.singleton("tor-1"), ids(banned));
+        Assert.assertFalse(banned.hasMore());
+    }
+
+    @Test
+    public void pagesInFingerprintOrderAfterSlotReuse() {
+        PeerTable table = db.peerTable();
+        for(int i=0; i<250; i+=2) {
+            int slot = table.slotById(Network.Tor, "tor-"+i);
+            table.setClass(slot, RelType.Reliable, true);
+            table.remove(slot);
+        }
+        // New peers take the freed slots
+        for(int i=0; i<40; i++) {
+            db.savePeer(peer(Network.Tor, "new-"+i), false, RelType.Tor);
+        }
+        PeerQuery query = new PeerQuery().setNetwork(Network.Tor).setPageSize(16);
+        Set<String> seen = new HashSet<>();
+        long previous = Long.MIN_VALUE;
+        String cursor = null;
+        do {
+            PeerPage page = db.findPeers(query.setCursor(cursor));
+            for(NetworkPeer np : page.getPeers()) {
+                long fp = table.getIdFingerprint(table.slotById(Network.Tor, np.getId()));
+                Assert.assertTrue(fp > previous);
+                previous = fp;
+                Assert.assertTrue(seen.add(np.getId()));
+            }
+            cursor = page.getNextCursor();
+        } while(cursor!=null);
+        Assert.assertEquals(125 + 40, seen.size());
+        // Removed peers left the classification index too
+        Assert.assertTrue(db.findPeers(new PeerQuery().setRelType(RelType.Reliable)).getPeers().isEmpty());
+    }
+
+    @Test
+    public void rejectsBadCursor() {
+        try {
+            db.findPeers(new PeerQuery().setCursor("nonsense"));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void pagesPeersByService() {
+        for(int i=0; i<25; i++) {
+            db.savePeerService(peer(Network.Tor, "tor-"+i), "ra.chat.ChatService");
+        }
+        db.savePeerService(peer(Network.I2P, "i2p-0"), "ra.chat.ChatService");
+        // Unknown peers are not noted
+        db.savePeerService(peer(Network.Tor, "stranger"), "ra.chat.ChatService");
+        Assert.assertEquals(26, db.findPeersByService("ra.chat.ChatService").size());
+        Assert.assertNull(db.findPeersByService("ra.other.OtherService"));
+
+        PeerQuery query = new PeerQuery().setNetwork(Network.Tor).setPageSize(10);
+        PeerPage first = db.findPeersByService("ra.chat.ChatService", query);
+        Assert.assertEquals(10, first.getPeers().size());
+        PeerTable table = db.peerTable();
+        table.remove(table.slotById(Network.Tor, first.getPeers().get(0).getId()));
+        Set<String> seen = ids(first);
+        String cursor = first.getNextCursor();
+        while(cursor!=null) {
+            PeerPage page = db.findPeersByService("ra.chat.ChatService", query.setCursor(cursor));
+            for(NetworkPeer np : page.getPeers()) {
+                Assert.assertEquals(Network.Tor, np.getNetwork());
+                Assert.assertTrue(seen.add(np.getId()));
+            }
+            cursor = page.getNextCursor();
+        }
+        Assert.assertEquals(25, seen.size());
+        // The removed peer is gone from the service too
+        Assert.assertEquals(25, db.findPeersByService("ra.chat.ChatService").size());
+    }
+
+    private static Set<String> ids(PeerPage page) {
+        Set<String> ids = new HashSet<>();
+        for(NetworkPeer np : page.getPeers()) {
+            ids.add(np.getId());
+        }
+        return ids;
+    }
+
+    private static NetworkPeer peer(Network network, String id) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-address");
+        return np;
+    }
+}
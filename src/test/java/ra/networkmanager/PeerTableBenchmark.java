@@ -0,0 +1,53 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.logging.Logger;
+
+/**
+ * Retained heap of the {@link PeerTable} per stored peer, ids included.
+ *
+ * Run with: mvn -B test -Pbenchmark [-Dra.networkmanager.bench.peers=200000]
+ */
+public class PeerTableBenchmark {
+
+    private static final Logger LOG = Logger.getLogger(PeerTableBenchmark.class.getName());
+
+    @Test
+    public void heapPerPeer() {
+        int peers = Integer.parseInt(System.getProperty("ra.networkmanager.bench.peers", "200000"));
+        long before = usedHeap();
+        PeerTable table = new PeerTable();
+        long start = System.nanoTime();
+        for(int i=0; i<peers; i++) {
+            NetworkPeer np = new NetworkPeer(Network.Tor);
+            np.setId("peer-"+i);
+            np.getDid().getPublicKey().setAddress("address-"+i+".onion");
+            table.put(np, RelType.Tor);
+        }
+        long putMs = (System.nanoTime() - start) / 1000000;
+        long after = usedHeap();
+        Assert.assertEquals(peers, table.size());
+        Assert.assertEquals(0, table.getCollisions());
+        long bytesPerPeer = (after - before) / peers;
+        LOG.warning("PeerTable: peers="+peers+" putMs="+putMs+" heapBytesPerPeer="+bytesPerPeer);
+        // Keep the table reachable through the measurement
+        Assert.assertNotEquals(PeerTable.NO_SLOT, table.slotById(Network.Tor, "peer-0"));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i=0; i<4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,87 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+public class PeerTableTest {
+
+    /**
+     * Fingerprints only the first character so distinct ids and addresses collide.
+     */
+    private static class CollidingPeerTable extends PeerTable {
+        @Override
+        protected long fingerprint(int scope, String s) {
+            return super.fingerprint(scope, s.substring(0, 1));
+        }
+
+        @Override
+        protected long fingerprint(String s) {
+            return super.fingerprint(s.substring(0, 1));
+        }
+    }
+
+    @Test
+    public void putUpdatesAndRemoves() {
+        PeerTable table = new PeerTable(16);
+        for(int i=0; i<100; i++) {
+            Assert.assertNotEquals(PeerTable.NO_SLOT, table.put(peer(Network.Tor, "id"+i, "address"+i), RelType.Tor));
+        }
+        Assert.assertEquals(100, table.size());
+        Assert.assertEquals(100, table.count(Network.Tor));
+        int slot = table.slotById(Network.Tor, "id42");
+        Assert.assertEquals("id42", table.getId(slot));
+        Assert.assertEquals(slot, table.slotByAddress("address42"));
+        Assert.assertEquals(PeerTable.NO_SLOT, table.slotById(Network.I2P, "id42"));
+
+        // Unchanged put writes nothing; a new address re-indexes
+        Assert.assertEquals(slot, table.put(peer(Network.Tor, "id42", "address42"), RelType.Tor));
+        Assert.assertEquals(1, table.getUnchanged());
+        Assert.assertEquals(slot, table.put(peer(Network.Tor, "id42", "moved"), RelType.Tor));
+        Assert.assertEquals(PeerTable.NO_SLOT, table.slotByAddress("address42"));
+        Assert.assertEquals(slot, table.slotByAddress("moved"));
+
+        Assert.assertTrue(table.remove(slot));
+        Assert.assertFalse(table.remove(slot));
+        Assert.assertEquals(PeerTable.NO_SLOT, table.slotById(Network.Tor, "id42"));
+        Assert.assertEquals(PeerTable.NO_SLOT, table.slotByAddress("moved"));
+        Assert.assertEquals(99, table.count(Network.Tor));
+        // Freed slot is reused
+        Assert.assertEquals(slot, table.put(peer(Network.Tor, "new", "newAddress"), RelType.Tor));
+    }
+
+    @Test
+    public void idCollisionNeitherOverwritesNorMatches() {
+        PeerTable table = new CollidingPeerTable();
+        int alice = table.put(peer(Network.Tor, "alice", "a1"), RelType.Tor);
+        Assert.assertNotEquals(PeerTable.NO_SLOT, alice);
+        Assert.assertEquals(PeerTable.NO_SLOT, table.put(peer(Network.Tor, "anna", "b1"), RelType.Tor));
+        Assert.assertEquals(1, table.getCollisions());
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals("a1", table.get(alice).getDid().getPublicKey().getAddress());
+        Assert.assertEquals(alice, table.slotById(Network.Tor, "alice"));
+        Assert.assertEquals(PeerTable.NO_SLOT, table.slotById(Network.Tor, "anna"));
+    }
+
+    @Test
+    public void addressCollisionKeepsTheIndexedPeer() {
+        PeerTable table = new CollidingPeerTable();
+        int first = table.put(peer(Network.Tor, "x", "address-1"), RelType.Tor);
+        int second = table.put(peer(Network.Tor, "y", "address-2"), RelType.Tor);
+        Assert.assertNotEquals(PeerTable.NO_SLOT, second);
+        Assert.assertEquals(1, table.getCollisions());
+        Assert.assertEquals(first, table.slotByAddress("address-1"));
+        Assert.assertEquals(PeerTable.NO_SLOT, table.slotByAddress("address-2"));
+        // Same address on another peer takes over the index as before
+        int third = table.put(peer(Network.Tor, "z", "address-1"), RelType.Tor);
+        Assert.assertEquals(third, table.slotByAddress("address-1"));
+    }
+
+    private static NetworkPeer peer(Network network, String id, String address) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(address);
+        return np;
+    }
+}
@@ -0,0 +1,142 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.network.Network;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+public class RelationshipGraphTest {
+
+    @Test
+    public void twoHopRelay() {
+        RelationshipGraph graph = new RelationshipGraph(new Properties());
+        long now = System.currentTimeMillis();
+        graph.observe(RelationshipGraph.LOCAL, "neighbor", Network.Tor, 800, now);
+        graph.link("neighbor", "destination", Network.Bluetooth, now);
+        List<RelationshipGraph.Hop> path = graph.path(RelationshipGraph.LOCAL, "destination", null, now);
+        Assert.assertNotNull(path);
+        Assert.assertEquals(2, path.size());
+        Assert.assertEquals("neighbor", path.get(0).getPeerId());
+        Assert.assertEquals(Network.Tor, path.get(0).getNetwork());
+        Assert.assertEquals("destination", path.get(1).getPeerId());
+        Assert.assertEquals(Network.Bluetooth, path.get(1).getNetwork());
+        // First hop only over available networks
+        boolean[] firstHop = new boolean[Network.values().length];
+        firstHop[Network.I2P.ordinal()] = true;
+        Assert.assertNull(graph.path(RelationshipGraph.LOCAL, "destination", firstHop, now));
+    }
+
+    @Test
+    public void lowestLatency() {
+        RelationshipGraph graph = new RelationshipGraph(new Properties());
+        long now = System.currentTimeMillis();
+        graph.observe(RelationshipGraph.LOCAL, "slow", Network.Tor, 4000, now);
+        graph.observe("slow", "destination", Network.Tor, 100, now);
+        graph.observe(RelationshipGraph.LOCAL, "fast", Network.I2P, 500, now);
+        graph.observe("fast", "destination", Network.I2P, 500, now);
+        Assert.assertEquals("fast", graph.path(RelationshipGraph.LOCAL, "destination", null, now).get(0).getPeerId());
+    }
+
+    @Test
+    public void maxHopsAndPruning() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.relay.maxHops", "2");
+        RelationshipGraph graph = new RelationshipGraph(p);
+        long now = System.currentTimeMillis();
+        graph.link(RelationshipGraph.LOCAL, "a", Network.Tor, now);
+        graph.link("a", "b", Network.Tor, now);
+        graph.link("b", "c", Network.Tor, now);
+        Assert.assertNotNull(graph.path(RelationshipGraph.LOCAL, "b", null, now));
+        Assert.assertNull(graph.path(RelationshipGraph.LOCAL, "c", null, now));
+        graph.link("a", "b", Network.Tor, now + 10);
+        Assert.assertEquals(2, graph.prune(now + 1));
+        Assert.assertEquals(1, graph.size());
+    }
+
+    @Test
+    public void boundsAndReclaimsVertices() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.relay.maxEdges", "10");
+        RelationshipGraph graph = new RelationshipGraph(p);
+        long now = System.currentTimeMillis();
+        for(int i=0; i<1000; i++) {
+            graph.link("neighbor", "gossiped-"+i, Network.Tor, now);
+        }
+        // Full graph: peers that get no edge get no vertex
+        Assert.assertEquals(10, graph.size());
+        Assert.assertEquals(11, graph.getVertexCount());
+        Assert.assertEquals(10, graph.prune(now + 1));
+        Assert.assertEquals(0, graph.getVertexCount());
+        // Reclaimed vertices are reused and paths still found
+        graph.observe(RelationshipGraph.LOCAL, "neighbor", Network.Tor, 100, now);
+        graph.link("neighbor", "destination", Network.I2P, now);
+        Assert.assertEquals(3, graph.getVertexCount());
+        Assert.assertEquals(2, graph.path(RelationshipGraph.LOCAL, "destination", null, now).size());
+        Assert.assertNull(graph.path(RelationshipGraph.LOCAL, "gossiped-0", null, now));
+    }
+
+    @Test
+    public void largeGraph() {
+        RelationshipGraph graph = new RelationshipGraph(new Properties());
+        Random random = new Random(7);
+        long now = System.currentTimeMillis();
+        int peers = 20000;
+        // Edge "from>to>network" to its latency, weighted as the graph does
+        Map<String,Float> edges = new HashMap<>();
+        for(int i=0; i<100; i++) {
+            observe(graph, edges, RelationshipGraph.LOCAL, "peer-"+random.nextInt(peers), Network.Tor, 200 + random.nextInt(2000), now);
+        }
+        while(graph.size() < 100000) {
+            observe(graph, edges, "peer-"+random.nextInt(peers), "peer-"+random.nextInt(peers), Network.I2P, 200 + random.nextInt(2000), now);
+        }
+        Assert.assertEquals(edges.size(), graph.size());
+        // Lowest latency from the local node to each peer within the hop limit, by Bellman-Ford
+        Map<String,Double> best = new HashMap<>();
+        best.put(RelationshipGraph.LOCAL, 0.0);
+        for(int hop=0; hop<graph.getMaxHops(); hop++) {
+            Map<String,Double> next = new HashMap<>(best);
+            for(Map.Entry<String,Float> edge : edges.entrySet()) {
+                String[] parts = edge.getKey().split(">");
+                Double d = best.get(parts[0]);
+                if(d!=null && (!next.containsKey(parts[1]) || d + edge.getValue() < next.get(parts[1]))) {
+                    next.put(parts[1], d + edge.getValue());
+                }
+            }
+            best = next;
+        }
+        int found = 0;
+        for(int i=0; i<1000; i++) {
+            String target = "peer-"+random.nextInt(peers);
+            List<RelationshipGraph.Hop> path = graph.path(RelationshipGraph.LOCAL, target, null, now);
+            if(!best.containsKey(target)) {
+                Assert.assertNull(target, path);
+                continue;
+            }
+            Assert.assertNotNull(target, path);
+            Assert.assertTrue(path.size() <= graph.getMaxHops());
+            Assert.assertEquals(target, path.get(path.size() - 1).getPeerId());
+            // Every hop is an edge of the graph and the path is the lowest latency one
+            String from = RelationshipGraph.LOCAL;
+            double latency = 0;
+            for(RelationshipGraph.Hop hop : path) {
+                Float edge = edges.get(from+">"+hop.getPeerId()+">"+hop.getNetwork().name());
+                Assert.assertNotNull(from+" to "+hop.getPeerId(), edge);
+                latency += edge;
+                from = hop.getPeerId();
+            }
+            Assert.assertEquals(target, best.get(target), latency, 0.01);
+            found++;
+        }
+        Assert.assertTrue("Found "+found, found >= 10);
+    }
+
+    private static void observe(RelationshipGraph graph, Map<String,Float> edges, String start, String end, Network n, long latency, long now) {
+        graph.observe(start, end, n, latency, now);
+        edges.merge(start+">"+end+">"+n.name(), (float)latency, (current, l) -> 0.8f * current + 0.2f * l);
+    }
+}
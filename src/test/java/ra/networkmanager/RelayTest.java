@@ -0,0 +1,182 @@
+package ra.networkmanager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+import ra.common.route.ExternalRoute;
+import ra.common.route.Route;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class RelayTest {
+
+    private static class CapturingProducer extends MockProducer {
+        private final List<Envelope> envelopes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public boolean send(Envelope envelope) {
+            envelopes.add(envelope);
+            return super.send(envelope);
+        }
+    }
+
+    private NetworkManagerService alice;
+    private NetworkManagerService bob;
+    private CapturingProducer aliceProducer;
+    private CapturingProducer bobProducer;
+
+    @After
+    public void tearDown() {
+        alice.gracefulShutdown();
+        bob.gracefulShutdown();
+    }
+
+    @Test
+    public void disabledByDefault() {
+        start(new Properties());
+        Assert.assertNull(alice.graph);
+        Assert.assertEquals(ResponseCodes.UNABLE_TO_SELECT_PEER_NETWORK, alice.routeAndSend(peer(Network.I2P, "carol"), toCarol()));
+    }
+
+    @Test
+    public void relaysOnceForKnownPeer() {
+        start(relayProperties());
+        Envelope e = toCarol();
+        Assert.assertEquals(ResponseCodes.SENT, alice.routeAndSend(peer(Network.I2P, "carol"), e));
+        // Sent again as if retried from the hold
+        Assert.assertEquals(ResponseCodes.SENT, alice.routeAndSend(peer(Network.I2P, "carol"), e));
+        Assert.assertEquals(2, aliceProducer.envelopes.size());
+        // The envelope itself still heads for carol
+        Route next = e.getDynamicRoutingSlip().peekAtNextRoute();
+        Assert.assertTrue(next instanceof ExternalRoute);
+        Assert.assertEquals("carol", ((ExternalRoute)next).getDestination().getId());
+        for(Envelope relayed : aliceProducer.envelopes) {
+            bob.handleDocument(transmit(relayed));
+        }
+        Assert.assertFalse(bobProducer.deadLettered);
+        Assert.assertEquals(2, bobProducer.envelopes.size());
+        // Through bob's I2P service to carol's Network Manager, then on to her inbox
+        Envelope received = transmit(bobProducer.envelopes.get(0));
+        Route current = received.getDynamicRoutingSlip().getCurrentRoute();
+        Assert.assertEquals(NetworkManagerService.OPERATION_RELAY, current.getOperation());
+        Assert.assertEquals("carol", ((ExternalRoute)current).getDestination().getId());
+        Assert.assertTrue(((List<?>)received.getValue(NetworkManagerService.RELAY_PATH)).isEmpty());
+        CapturingProducer carolProducer = new CapturingProducer();
+        NetworkManagerService carol = new NetworkManagerService(carolProducer, null);
+        Assert.assertTrue(carol.start(relayProperties()));
+        try {
+            connect(carol, Network.I2P, "carol");
+            carol.handleDocument(received);
+            Assert.assertFalse(carolProducer.deadLettered);
+            Assert.assertEquals(1, carolProducer.envelopes.size());
+            Assert.assertEquals("ra.app.Inbox", carolProducer.envelopes.get(0).getDynamicRoutingSlip().nextRoute().getService());
+        } finally {
+            carol.gracefulShutdown();
+        }
+    }
+
+    @Test
+    public void refusesUnknownOrigin() {
+        start(relayProperties(), false);
+        Assert.assertEquals(ResponseCodes.SENT, alice.routeAndSend(peer(Network.I2P, "carol"), toCarol()));
+        bob.handleDocument(transmit(aliceProducer.envelopes.get(0)));
+        Assert.assertTrue(bobProducer.deadLettered);
+        Assert.assertTrue(bobProducer.envelopes.isEmpty());
+    }
+
+    @Test
+    public void limitsRelayRate() {
+        Properties p = relayProperties();
+        p.setProperty("ra.networkmanager.relay.perSecond", "0.001");
+        p.setProperty("ra.networkmanager.relay.burst", "2");
+        start(p);
+        for(int i=0; i<3; i++) {
+            Assert.assertEquals(ResponseCodes.SENT, alice.routeAndSend(peer(Network.I2P, "carol"), toCarol()));
+            bob.handleDocument(transmit(aliceProducer.envelopes.get(i)));
+        }
+        Assert.assertEquals(2, bobProducer.envelopes.size());
+        Assert.assertTrue(bobProducer.deadLettered);
+        Assert.assertEquals(1, bob.gossipGuard.getRelaysLimited());
+    }
+
+    private static Properties relayProperties() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.relay.enabled", "true");
+        return p;
+    }
+
+    private void start(Properties p) {
+        start(p, true);
+    }
+
+    private void start(Properties p, boolean bobKnowsAlice) {
+        Logger.getLogger("ra.networkmanager").setLevel(Level.SEVERE);
+        aliceProducer = new CapturingProducer();
+        alice = new NetworkManagerService(aliceProducer, null);
+        Assert.assertTrue(alice.start(p));
+        bobProducer = new CapturingProducer();
+        bob = new NetworkManagerService(bobProducer, null);
+        Assert.assertTrue(bob.start(p));
+        // Alice is on Tor only; bob on Tor and I2P, where carol is
+        connect(alice, Network.Tor, "alice");
+        alice.peerDB.savePeer(peer(Network.Tor, "bob"), false, RelType.fromNetwork(Network.Tor));
+        connect(bob, Network.Tor, "bob");
+        connect(bob, Network.I2P, "bob");
+        if(bobKnowsAlice) {
+            bob.peerDB.savePeer(peer(Network.Tor, "alice"), false, RelType.fromNetwork(Network.Tor));
+        }
+        bob.peerDB.savePeer(peer(Network.I2P, "carol"), false, RelType.fromNetwork(Network.I2P));
+        if(alice.graph!=null) {
+            alice.graph.observe(RelationshipGraph.LOCAL, "bob", Network.Tor, 500, alice.now());
+            alice.graph.link("bob", "carol", Network.I2P, alice.now());
+        }
+    }
+
+    /**
+     * @return envelope for carol's inbox that may be rerouted, as she is on a network alice is not
+     */
+    private static Envelope toCarol() {
+        NetworkPeer carol = peer(Network.I2P, "carol");
+        Envelope e = Envelope.documentFactory();
+        e.addNVP(NetworkPeer.class.getName(), carol);
+        e.addNVP(NetworkManagerService.REROUTE, "true");
+        e.addRoute("ra.app.Inbox", "RECEIVE");
+        e.addExternalRoute("ra.i2p.I2PEmbeddedService", "SEND", null, carol);
+        return e;
+    }
+
+    /**
+     * As the network services would: the sender's pops the route to it, the receiver's the next.
+     */
+    private static Envelope transmit(Envelope e) {
+        Envelope received = Envelope.documentFactory();
+        received.fromJSON(e.toJSON());
+        received.getDynamicRoutingSlip().nextRoute();
+        received.getDynamicRoutingSlip().nextRoute();
+        return received;
+    }
+
+    private static void connect(NetworkManagerService service, Network network, String localId) {
+        NetworkState ns = new NetworkState();
+        ns.network = network;
+        ns.networkStatus = NetworkStatus.CONNECTED;
+        service.networkStates.put(network.name(), ns);
+        service.peerDB.savePeer(peer(network, localId), true, RelType.fromNetwork(network));
+    }
+
+    private static NetworkPeer peer(Network network, String id) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-"+network.name());
+        return np;
+    }
+}
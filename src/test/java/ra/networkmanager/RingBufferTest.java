@@ -0,0 +1,113 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RingBufferTest {
+
+    @Test
+    public void fifoUntilFull() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(5);
+        Assert.assertEquals(8, buffer.capacity());
+        Assert.assertNull(buffer.poll());
+        for(int i=0; i<8; i++) {
+            Assert.assertTrue(buffer.offer(i));
+        }
+        Assert.assertFalse(buffer.offer(8));
+        Assert.assertEquals(8, buffer.size());
+        Assert.assertEquals(Integer.valueOf(0), buffer.poll());
+        Assert.assertTrue(buffer.offer(8));
+        List<Integer> batch = new ArrayList<>();
+        Assert.assertEquals(5, buffer.drainTo(batch, 5));
+        Assert.assertEquals(Integer.valueOf(1), batch.get(0));
+        Assert.assertEquals(Integer.valueOf(5), batch.get(4));
+        Assert.assertEquals(3, buffer.size());
+    }
+
+    @Test
+    public void timedPollWaitsThenTimesOut() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        long start = System.nanoTime();
+        Assert.assertNull(buffer.poll(50, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        Assert.assertEquals(0, buffer.getWaiting());
+
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+            buffer.offer(42);
+        });
+        producer.start();
+        Assert.assertEquals(Integer.valueOf(42), buffer.poll(10, TimeUnit.SECONDS));
+        producer.join();
+    }
+
+    @Test
+    public void timedOfferWaitsForSpace() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2);
+        Assert.assertTrue(buffer.offer(1));
+        Assert.assertTrue(buffer.offer(2));
+        Assert.assertFalse(buffer.offer(3, 20, TimeUnit.MILLISECONDS));
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+            buffer.poll();
+        });
+        consumer.start();
+        Assert.assertTrue(buffer.offer(3, 10, TimeUnit.SECONDS));
+        consumer.join();
+    }
+
+    @Test
+    public void concurrentProducersAndConsumers() throws Exception {
+        RingBuffer<Long> buffer = new RingBuffer<>(64);
+        int producers = 4;
+        int consumers = 4;
+        long perProducer = 50000;
+        AtomicLong sum = new AtomicLong();
+        AtomicLong count = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for(int p=0; p<producers; p++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for(long i=1; i<=perProducer; i++) {
+                        while(!buffer.offer(i, 1, TimeUnit.SECONDS)) {}
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for(int c=0; c<consumers; c++) {
+            threads.add(new Thread(() -> {
+                try {
+                    while(count.get() < producers * perProducer) {
+                        Long l = buffer.poll(10, TimeUnit.MILLISECONDS);
+                        if(l!=null) {
+                            sum.addAndGet(l);
+                            count.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        for(Thread t : threads) t.start();
+        for(Thread t : threads) t.join(30000);
+        Assert.assertEquals(producers * perProducer, count.get());
+        Assert.assertEquals(producers * perProducer * (perProducer + 1) / 2, sum.get());
+        Assert.assertTrue(buffer.isEmpty());
+    }
+}
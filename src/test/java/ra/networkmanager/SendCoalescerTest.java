@@ -0,0 +1,254 @@
+package ra.networkmanager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+import ra.common.route.ExternalRoute;
+import ra.common.route.Route;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class SendCoalescerTest {
+
+    private static class CapturingProducer extends MockProducer {
+        private final List<Envelope> envelopes = new CopyOnWriteArrayList<>();
+        private volatile boolean fail = false;
+
+        @Override
+        public boolean send(Envelope envelope) {
+            if(fail) return false;
+            envelopes.add(envelope);
+            return super.send(envelope);
+        }
+    }
+
+    private NetworkManagerService alice;
+    private NetworkManagerService bob;
+    private CapturingProducer aliceProducer;
+    private CapturingProducer bobProducer;
+
+    @After
+    public void tearDown() {
+        alice.gracefulShutdown();
+        bob.gracefulShutdown();
+    }
+
+    @Test
+    public void flushesWhenWindowCloses() throws Exception {
+        start(true);
+        send(2, 100);
+        Assert.assertTrue(aliceProducer.envelopes.isEmpty());
+        await(1);
+        Assert.assertEquals(1, alice.coalescer.getBundles());
+        Assert.assertEquals(2, alice.coalescer.getBundled());
+        Assert.assertEquals(2, ((List<?>)aliceProducer.envelopes.get(0).getValue(SendCoalescer.BUNDLE)).size());
+    }
+
+    @Test
+    public void flushesAtMaxMessages() {
+        start(true);
+        send(3, 10);
+        // Sent on the third without waiting for the window
+        Assert.assertEquals(1, aliceProducer.envelopes.size());
+        Assert.assertEquals(3, alice.coalescer.getBundled());
+    }
+
+    @Test
+    public void flushesAtMaxBytes() {
+        start(true);
+        send(1, 600);
+        Assert.assertTrue(aliceProducer.envelopes.isEmpty());
+        send(1, 600);
+        Assert.assertEquals(1, aliceProducer.envelopes.size());
+        Assert.assertEquals(2, alice.coalescer.getBundled());
+        // Too large to hold at all
+        send(1, 1000);
+        Assert.assertEquals(2, aliceProducer.envelopes.size());
+        Assert.assertEquals(1, alice.coalescer.getBundles());
+    }
+
+    @Test
+    public void sendsSingleMemberAsIs() throws Exception {
+        start(true);
+        send(1, 100);
+        await(1);
+        Envelope e = aliceProducer.envelopes.get(0);
+        Assert.assertNull(e.getValue(SendCoalescer.BUNDLE));
+        Assert.assertEquals(1, alice.coalescer.getSingle());
+        Assert.assertEquals(0, alice.coalescer.getBundles());
+    }
+
+    @Test
+    public void holdsMembersOfFailedBundle() {
+        start(true);
+        aliceProducer.fail = true;
+        send(3, 10);
+        Assert.assertTrue(aliceProducer.envelopes.isEmpty());
+        Assert.assertEquals(3, alice.hold.size());
+        Assert.assertFalse(aliceProducer.deadLettered);
+    }
+
+    @Test
+    public void countsAttemptsOfHeldMembersInFailedBundle() {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.hold.maxAttempts", "3");
+        start(true, p);
+        aliceProducer.fail = true;
+        // Resent from the hold for the second time
+        send(3, 10, "2");
+        List<MessageHold.HeldMessage> held = alice.hold.due(Long.MAX_VALUE, Collections.singletonList(Network.Tor), 0);
+        Assert.assertEquals(3, held.size());
+        for(MessageHold.HeldMessage m : held) {
+            Assert.assertEquals(2, m.getAttempts());
+            alice.hold.delivered(m);
+        }
+        // Third and last attempt fails in a bundle too
+        send(3, 10, "3");
+        Assert.assertEquals(0, alice.hold.size());
+        Assert.assertEquals(3, aliceProducer.deadLetters.get());
+    }
+
+    @Test
+    public void sendsNowOnceSchedulerIsShutDown() {
+        start(true);
+        alice.scheduler.shutdownNow();
+        send(1, 100);
+        Assert.assertEquals(1, aliceProducer.envelopes.size());
+        Assert.assertEquals(0, alice.coalescer.getSingle());
+    }
+
+    @Test
+    public void unbundlesToLocalPeer() {
+        start(true);
+        send(3, 10);
+        bob.handleDocument(transmit(aliceProducer.envelopes.get(0)));
+        Assert.assertFalse(bobProducer.deadLettered);
+        Assert.assertEquals(3, bobProducer.envelopes.size());
+        for(Envelope m : bobProducer.envelopes) {
+            Assert.assertEquals("ra.app.Inbox", m.getDynamicRoutingSlip().nextRoute().getService());
+        }
+    }
+
+    @Test
+    public void refusesBundleFromUnknownPeer() {
+        start(false);
+        send(3, 10);
+        bob.handleDocument(transmit(aliceProducer.envelopes.get(0)));
+        Assert.assertTrue(bobProducer.deadLettered);
+        Assert.assertTrue(bobProducer.envelopes.isEmpty());
+    }
+
+    @Test
+    public void refusesMemberForAnotherPeer() {
+        start(true);
+        send(3, 10);
+        Envelope bundle = transmit(aliceProducer.envelopes.get(0));
+        // Redirect the first member to carol
+        Map<String,Object> member = (Map<String,Object>)((List<?>)bundle.getValue(SendCoalescer.BUNDLE)).get(0);
+        Envelope m = Envelope.documentFactory();
+        m.fromMap(member);
+        m.getDynamicRoutingSlip().nextRoute();
+        m.addExternalRoute("ra.tor.TORClientService", "SEND", peer(Network.Tor, "alice"), peer(Network.Tor, "carol"));
+        ((List<Object>)bundle.getValue(SendCoalescer.BUNDLE)).set(0, m.toMap());
+        bob.handleDocument(bundle);
+        Assert.assertEquals(1, bobProducer.deadLetters.get());
+        Assert.assertEquals(2, bobProducer.envelopes.size());
+    }
+
+    private void start(boolean bobKnowsAlice) {
+        start(bobKnowsAlice, new Properties());
+    }
+
+    private void start(boolean bobKnowsAlice, Properties p) {
+        Logger.getLogger("ra.networkmanager").setLevel(Level.SEVERE);
+        p.setProperty("ra.networkmanager.coalesce.enabled", "true");
+        p.setProperty("ra.networkmanager.coalesce.windowMs", "100");
+        p.setProperty("ra.networkmanager.coalesce.maxBytes", "1000");
+        p.setProperty("ra.networkmanager.coalesce.maxMessages", "3");
+        aliceProducer = new CapturingProducer();
+        alice = new NetworkManagerService(aliceProducer, null);
+        Assert.assertTrue(alice.start(p));
+        bobProducer = new CapturingProducer();
+        bob = new NetworkManagerService(bobProducer, null);
+        Assert.assertTrue(bob.start(new Properties()));
+        connect(alice, "alice");
+        connect(bob, "bob");
+        alice.peerDB.savePeer(peer(Network.Tor, "bob"), false, RelType.fromNetwork(Network.Tor));
+        if(bobKnowsAlice) {
+            bob.peerDB.savePeer(peer(Network.Tor, "alice"), false, RelType.fromNetwork(Network.Tor));
+        }
+    }
+
+    /**
+     * Route envelopes of the size for bob's inbox.
+     */
+    private void send(int count, long size) {
+        send(count, size, null);
+    }
+
+    /**
+     * @param attempts attempts so far as stamped on envelopes resent from the hold, null if not held
+     */
+    private void send(int count, long size, String attempts) {
+        for(int i=0; i<count; i++) {
+            NetworkPeer bob = peer(Network.Tor, "bob");
+            Envelope e = Envelope.documentFactory();
+            e.addNVP(NetworkManagerService.SLA, 3);
+            e.addNVP(NetworkManagerService.SIZE, size);
+            if(attempts!=null) {
+                e.addNVP(NetworkManagerService.HOLD_ATTEMPTS, attempts);
+            }
+            e.addRoute("ra.app.Inbox", "RECEIVE");
+            e.addExternalRoute("ra.tor.TORClientService", "SEND", null, bob);
+            Assert.assertEquals(ResponseCodes.SENT, alice.routeAndSend(bob, e));
+        }
+    }
+
+    private void await(int sent) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(aliceProducer.envelopes.size() < sent && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(sent, aliceProducer.envelopes.size());
+    }
+
+    /**
+     * As the network services would: the sender's pops the route to it, the receiver's the next.
+     */
+    private static Envelope transmit(Envelope e) {
+        Envelope received = Envelope.documentFactory();
+        received.fromJSON(e.toJSON());
+        received.getDynamicRoutingSlip().nextRoute();
+        received.getDynamicRoutingSlip().nextRoute();
+        Route current = received.getDynamicRoutingSlip().getCurrentRoute();
+        Assert.assertEquals(NetworkManagerService.OPERATION_UNBUNDLE, current.getOperation());
+        Assert.assertTrue(current instanceof ExternalRoute);
+        return received;
+    }
+
+    private static void connect(NetworkManagerService service, String localId) {
+        NetworkState ns = new NetworkState();
+        ns.network = Network.Tor;
+        ns.networkStatus = NetworkStatus.CONNECTED;
+        service.networkStates.put(Network.Tor.name(), ns);
+        service.peerDB.savePeer(peer(Network.Tor, localId), true, RelType.fromNetwork(Network.Tor));
+    }
+
+    private static NetworkPeer peer(Network network, String id) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-"+network.name());
+        return np;
+    }
+}
@@ -0,0 +1,170 @@
+package ra.networkmanager;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class SendPipelineTest {
+
+    private static NetworkManagerService service;
+    private static MockProducer producer;
+
+    private static class SlowProducer extends MockProducer {
+        private final List<String> sequence = new CopyOnWriteArrayList<>();
+        private volatile long delayMs;
+
+        @Override
+        public boolean send(Envelope envelope) {
+            sequence.add(envelope.getValue(NetworkPeer.class.getName()) instanceof NetworkPeer
+                    ? ((NetworkPeer)envelope.getValue(NetworkPeer.class.getName())).getId()+":"+envelope.getValue("seq")
+                    : String.valueOf(envelope.getValue("seq")));
+            if(delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.send(envelope);
+        }
+    }
+
+    @BeforeClass
+    public static void init() {
+        Logger.getLogger("ra.networkmanager").setLevel(Level.WARNING);
+        producer = new MockProducer();
+        service = start(producer, 2);
+    }
+
+    private static NetworkManagerService start(MockProducer producer, int dispatchers) {
+        Properties props = new Properties();
+        props.setProperty("ra.networkmanager.pipeline.enabled", "true");
+        props.setProperty("ra.networkmanager.pipeline.dispatchers", String.valueOf(dispatchers));
+        props.setProperty("ra.networkmanager.pipeline.batchSize", "16");
+        NetworkManagerService service = new NetworkManagerService(producer, null);
+        Assert.assertTrue(service.start(props));
+        NetworkState ns = new NetworkState();
+        ns.network = Network.Tor;
+        ns.networkStatus = NetworkStatus.CONNECTED;
+        service.networkStates.put(Network.Tor.name(), ns);
+        NetworkPeer local = new NetworkPeer(Network.Tor);
+        local.setId("local");
+        local.getDid().getPublicKey().setAddress("local-address");
+        service.peerDB.savePeer(local, true, RelType.Tor);
+        return service;
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        service.gracefulShutdown();
+    }
+
+    @Test
+    public void dispatchesInBatchesAndParksWhenIdle() throws Exception {
+        int sends = 500;
+        long sentBefore = producer.sent.get();
+        for(int i=0; i<sends; i++) {
+            service.handleDocument(send(i % 10, i));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while(service.sendPipeline.getSent() + service.sendPipeline.getFailed() < sends && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(sends, service.sendPipeline.getSubmitted());
+        Assert.assertEquals(sends, service.sendPipeline.getSent());
+        Assert.assertEquals(sends, producer.sent.get() - sentBefore);
+        Assert.assertTrue(service.sendPipeline.getBatches() > 0);
+        Assert.assertTrue(service.sendPipeline.getBatches() <= sends);
+
+        // Idle stages block rather than spin
+        Thread.sleep(200);
+        int stages = 0;
+        for(Thread t : Thread.getAllStackTraces().keySet()) {
+            if(t.getName().startsWith("NetworkManager-Resolve") || t.getName().startsWith("NetworkManager-Dispatch")) {
+                stages++;
+                Assert.assertNotEquals(t.getName(), Thread.State.RUNNABLE, t.getState());
+            }
+        }
+        Assert.assertEquals(3, stages);
+    }
+
+    @Test
+    public void keepsOrderPerPeer() throws Exception {
+        SlowProducer slow = new SlowProducer();
+        NetworkManagerService ordered = start(slow, 4);
+        try {
+            int sends = 400;
+            for(int i=0; i<sends; i++) {
+                ordered.handleDocument(send(i % 8, i));
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while(slow.sequence.size() < sends && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(sends, slow.sequence.size());
+            Map<String,Integer> last = new HashMap<>();
+            for(String sent : slow.sequence) {
+                String[] peerAndSeq = sent.split(":");
+                int seq = Integer.parseInt(peerAndSeq[1]);
+                Integer previous = last.put(peerAndSeq[0], seq);
+                Assert.assertTrue(sent+" after "+previous, previous==null || previous < seq);
+            }
+        } finally {
+            ordered.gracefulShutdown();
+        }
+    }
+
+    @Test
+    public void holdsWhatIsQueuedAtShutdown() throws Exception {
+        SlowProducer slow = new SlowProducer();
+        slow.delayMs = 50;
+        NetworkManagerService stopping = start(slow, 1);
+        try {
+            int sends = 100;
+            for(int i=0; i<sends; i++) {
+                stopping.handleDocument(send(i % 10, i));
+            }
+            SendPipeline pipeline = stopping.sendPipeline;
+            pipeline.shutdown();
+            Assert.assertEquals(0, pipeline.getBacklog());
+            // A dispatcher outliving the join still completes the batch it took
+            long deadline = System.currentTimeMillis() + 5000;
+            while(pipeline.getSent() + pipeline.getFailed() < sends && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(sends, pipeline.getSent() + pipeline.getFailed());
+            Assert.assertTrue(pipeline.getFailed() > 0);
+            Assert.assertEquals(pipeline.getFailed(), stopping.hold.size());
+            // Intake is closed; the caller handles the envelope inline
+            Assert.assertFalse(pipeline.submit(send(0, sends)));
+        } finally {
+            stopping.gracefulShutdown();
+        }
+    }
+
+    private static Envelope send(int peer, int seq) {
+        NetworkPeer dest = new NetworkPeer(Network.Tor);
+        dest.setId("peer-"+peer);
+        dest.getDid().getPublicKey().setAddress("peer-address-"+peer);
+        Envelope e = Envelope.documentFactory();
+        e.addNVP(NetworkPeer.class.getName(), dest);
+        e.addNVP("seq", seq);
+        e.addExternalRoute("ra.tor.TORClientService", "SEND", null, dest);
+        e.addRoute(NetworkManagerService.class, NetworkManagerService.OPERATION_SEND);
+        return e;
+    }
+}
@@ -0,0 +1,115 @@
+package ra.networkmanager;
+
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+import ra.common.network.NetworkStatus;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fake network service (Tor, I2P, Bluetooth, WiFi...) with a population of virtual peers.
+ *
+ * Latency, loss, churn and status flapping are configurable; all randomness is drawn from the
+ * simulator's seeded Random so runs are reproducible.
+ */
+public class SimulatedNetwork {
+
+    final Network network;
+    final String serviceName;
+
+    // Configuration
+    long latencyMs = 1000L;
+    long jitterMs = 500L;
+    double loss = 0.0;
+    // Fraction of peers toggling between online and offline per tick
+    double churn = 0.0;
+    // Probability per tick of the network dropping to DISCONNECTED (and recovering the next tick)
+    double flap = 0.0;
+
+    // State
+    final List<NetworkPeer> peers = new ArrayList<>();
+    final BitSet offline = new BitSet();
+    NetworkPeer localPeer;
+    NetworkStatus status = NetworkStatus.CONNECTED;
+
+    // Measurements
+    long sent;
+    long rejected;
+    long lost;
+    long delivered;
+    long probes;
+    long flaps;
+    long deliveryLatencyTotalMs;
+
+    public SimulatedNetwork(Network network, String serviceName) {
+        this.network = network;
+        this.serviceName = serviceName;
+    }
+
+    public SimulatedNetwork latency(long latencyMs, long jitterMs) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        return this;
+    }
+
+    public SimulatedNetwork loss(double loss) {
+        this.loss = loss;
+        return this;
+    }
+
+    public SimulatedNetwork churn(double churn) {
+        this.churn = churn;
+        return this;
+    }
+
+    public SimulatedNetwork flap(double flap) {
+        this.flap = flap;
+        return this;
+    }
+
+    void populate(int numberPeers) {
+        localPeer = newPeer("local");
+        for(int i=0; i<numberPeers; i++) {
+            peers.add(newPeer(String.valueOf(i)));
+        }
+    }
+
+    long nextLatency(Random random) {
+        return latencyMs + (jitterMs > 0 ? (long)(random.nextDouble() * jitterMs) : 0L);
+    }
+
+    boolean isLost(Random random) {
+        return loss > 0 && random.nextDouble() < loss;
+    }
+
+    boolean isOnline(int index) {
+        return !offline.get(index);
+    }
+
+    NetworkPeer randomOnlinePeer(Random random) {
+        for(int i=0; i<10; i++) {
+            int index = random.nextInt(peers.size());
+            if(isOnline(index))
+                return peers.get(index);
+        }
+        return null;
+    }
+
+    void churn(Random random) {
+        if(churn <= 0) return;
+        int toggles = (int)(peers.size() * churn);
+        for(int i=0; i<toggles; i++) {
+            offline.flip(random.nextInt(peers.size()));
+        }
+    }
+
+    private NetworkPeer newPeer(String suffix) {
+        NetworkPeer np = new NetworkPeer(network);
+        np.setId(network.name()+"-"+suffix);
+        np.getDid().getPublicKey().setAddress(network.name().toLowerCase()+"-address-"+suffix);
+        return np;
+    }
+}
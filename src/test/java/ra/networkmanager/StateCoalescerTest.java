@@ -0,0 +1,109 @@
+package ra.networkmanager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.messaging.EventMessage;
+import ra.common.network.Network;
+import ra.common.network.NetworkState;
+import ra.common.network.NetworkStatus;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class StateCoalescerTest {
+
+    private ScheduledExecutorService scheduler;
+    private List<Envelope> published;
+
+    @Before
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        published = new CopyOnWriteArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void queuesFlapsIntoNextNotification() throws Exception {
+        StateCoalescer coalescer = coalescer(null);
+        flap(coalescer);
+        Thread.sleep(300);
+        // Back where subscribers already are: nothing more published
+        Assert.assertEquals(1, published.size());
+        Assert.assertEquals(1, coalescer.getFlapped());
+        submit(coalescer, NetworkStatus.DISCONNECTED);
+        Assert.assertEquals(2, published.size());
+        // The flap's transitions arrive with the next change
+        Assert.assertEquals(3, transitions(published.get(1)).size());
+    }
+
+    @Test
+    public void publishesFlapsWhenAsked() throws Exception {
+        StateCoalescer coalescer = coalescer(StateCoalescer.FLAPS_PUBLISH);
+        flap(coalescer);
+        Thread.sleep(300);
+        Assert.assertEquals(2, published.size());
+        Assert.assertEquals(Boolean.TRUE, published.get(1).getValue(StateCoalescer.FLAPPED));
+        Assert.assertEquals(2, transitions(published.get(1)).size());
+    }
+
+    @Test
+    public void dropsFlapsWhenAsked() throws Exception {
+        StateCoalescer coalescer = coalescer(StateCoalescer.FLAPS_DROP);
+        flap(coalescer);
+        Thread.sleep(300);
+        Assert.assertEquals(1, published.size());
+        submit(coalescer, NetworkStatus.DISCONNECTED);
+        Assert.assertEquals(1, transitions(published.get(1)).size());
+    }
+
+    @Test
+    public void publishesAtOnceAfterSchedulerShutdown() {
+        StateCoalescer coalescer = coalescer(null);
+        scheduler.shutdown();
+        submit(coalescer, NetworkStatus.CONNECTED);
+        submit(coalescer, NetworkStatus.DISCONNECTED);
+        Assert.assertEquals(2, published.size());
+    }
+
+    private StateCoalescer coalescer(String flaps) {
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.stateCoalesce.windowMs", "100");
+        if(flaps!=null) {
+            p.setProperty("ra.networkmanager.stateCoalesce.flaps", flaps);
+        }
+        return new StateCoalescer(scheduler, published::add, System::currentTimeMillis, p);
+    }
+
+    /**
+     * Connected and published at once, then down and back within the window.
+     */
+    private void flap(StateCoalescer coalescer) {
+        submit(coalescer, NetworkStatus.CONNECTED);
+        submit(coalescer, NetworkStatus.DISCONNECTED);
+        submit(coalescer, NetworkStatus.CONNECTED);
+        Assert.assertEquals(1, published.size());
+    }
+
+    private static void submit(StateCoalescer coalescer, NetworkStatus status) {
+        NetworkState ns = new NetworkState();
+        ns.network = Network.Tor;
+        ns.networkStatus = status;
+        Envelope e = Envelope.eventFactory(EventMessage.Type.NETWORK_STATE);
+        ((EventMessage)e.getMessage()).setMessage(ns);
+        coalescer.submit(e, ns);
+    }
+
+    private static List<?> transitions(Envelope e) {
+        return (List<?>)e.getValue(StateCoalescer.TRANSITIONS);
+    }
+}
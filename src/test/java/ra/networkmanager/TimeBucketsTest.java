@@ -0,0 +1,87 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ra.common.network.Network;
+import ra.common.network.NetworkPeer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TimeBucketsTest {
+
+    @Test
+    public void visitsAndExpiresWholeBucketsOldestFirst() {
+        TimeBuckets buckets = new TimeBuckets(100L);
+        buckets.add(250L, 3);
+        buckets.add(10L, 1);
+        buckets.add(120L, 2);
+        buckets.add(199L, 4);
+        Assert.assertEquals(3, buckets.buckets());
+
+        List<Integer> visited = new ArrayList<>();
+        // Bucket 2 holds times up to 299 so is not entirely before 250
+        long last = buckets.visit(Long.MIN_VALUE, 250L, (key, slot) -> visited.add(slot));
+        Assert.assertEquals(1L, last);
+        Assert.assertEquals(3, visited.size());
+        Assert.assertEquals(Integer.valueOf(1), visited.get(0));
+        // Visiting resumes after the last bucket visited and leaves entries in place
+        visited.clear();
+        Assert.assertEquals(1L, buckets.visit(last, 250L, (key, slot) -> visited.add(slot)));
+        Assert.assertTrue(visited.isEmpty());
+        Assert.assertEquals(3, buckets.buckets());
+
+        visited.clear();
+        buckets.expire(200L, (key, slot) -> visited.add(slot));
+        Assert.assertEquals(3, visited.size());
+        Assert.assertEquals(1, buckets.buckets());
+    }
+
+    @Test
+    public void sweepDemotesThenExpiresExceptSeeds() {
+        AtomicLong now = new AtomicLong(1000000L);
+        InMemoryPeerDB db = new InMemoryPeerDB();
+        db.setClock(now::get);
+        Properties p = new Properties();
+        p.setProperty("ra.networkmanager.peerdb.liveness.bucketMs", "1000");
+        p.setProperty("ra.networkmanager.peerdb.liveness.demoteMs", "10000");
+        p.setProperty("ra.networkmanager.peerdb.liveness.expireMs", "60000");
+        Assert.assertTrue(db.init(p));
+        NetworkPeer stale = peer("stale");
+        NetworkPeer live = peer("live");
+        NetworkPeer seed = peer("seed");
+        db.savePeer(stale, false, RelType.Tor);
+        db.savePeer(live, false, RelType.Tor);
+        db.savePeer(seed, false, RelType.Seed);
+        PeerTable table = db.peerTable();
+
+        now.addAndGet(20000L);
+        db.peerSeen(live);
+        // Demoted only; none expired yet
+        Assert.assertEquals(0, db.sweep(now.get()));
+        Assert.assertTrue(table.isStale(table.slotById(Network.Tor, "stale")));
+        Assert.assertTrue(table.isStale(table.slotById(Network.Tor, "seed")));
+        Assert.assertFalse(table.isStale(table.slotById(Network.Tor, "live")));
+
+        // Seen again revives the peer, refiled under its new time
+        db.peerSeen(stale);
+        Assert.assertFalse(table.isStale(table.slotById(Network.Tor, "stale")));
+
+        now.addAndGet(70000L);
+        Assert.assertEquals(2, db.sweep(now.get()));
+        Assert.assertEquals(PeerTable.NO_SLOT, table.slotById(Network.Tor, "live"));
+        Assert.assertEquals(PeerTable.NO_SLOT, table.slotById(Network.Tor, "stale"));
+        // Seeds are only ever demoted
+        Assert.assertTrue(table.isStale(table.slotById(Network.Tor, "seed")));
+        Assert.assertEquals(1, db.numberPeersByNetwork(Network.Tor));
+    }
+
+    private static NetworkPeer peer(String id) {
+        NetworkPeer np = new NetworkPeer(Network.Tor);
+        np.setId(id);
+        np.getDid().getPublicKey().setAddress(id+"-address");
+        return np;
+    }
+}
@@ -0,0 +1,63 @@
+package ra.networkmanager;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ra.common.Envelope;
+import ra.common.network.Network;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class TrafficReplayTest {
+
+    private static NetworkManagerService service;
+    private static MockProducer producer;
+
+    @BeforeClass
+    public static void init() {
+        Logger.getLogger("ra.networkmanager").setLevel(Level.WARNING);
+        producer = new MockProducer();
+        service = new NetworkManagerService(producer, null);
+        Assert.assertTrue(service.start(new Properties()));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        service.gracefulShutdown();
+    }
+
+    @Test
+    public void recordAndReplay() throws Exception {
+        File trace = File.createTempFile("traffic", ".trace");
+        trace.deleteOnExit();
+        TrafficRecorder recorder = new TrafficRecorder(trace, new Properties());
+        for(int i=0; i<10; i++) {
+            recorder.record(TrafficRecorder.DOCUMENT, peersByNetwork());
+        }
+        recorder.record(Arrays.asList(peersByNetwork(), peersByNetwork()));
+        Thread.sleep(20);
+        recorder.record(TrafficRecorder.DOCUMENT, peersByNetwork());
+        recorder.close();
+        Assert.assertEquals(12, recorder.getRecorded());
+        Assert.assertEquals(0, recorder.getDropped());
+
+        TrafficReplayer.Report report = new TrafficReplayer(trace).speed(0).replay(service, producer);
+        Assert.assertEquals(12, report.records);
+        Assert.assertEquals(13, report.envelopes);
+        Assert.assertEquals(11, report.documents);
+        Assert.assertEquals(1, report.batches);
+        Assert.assertTrue(report.traceMs >= 20);
+    }
+
+    private static Envelope peersByNetwork() {
+        Envelope e = Envelope.documentFactory();
+        e.addNVP(Network.class.getName(), Network.Tor.name());
+        e.addRoute(NetworkManagerService.class, NetworkManagerService.OPERATION_NUMBER_PEERS_BY_NETWORK);
+        return e;
+    }
+}
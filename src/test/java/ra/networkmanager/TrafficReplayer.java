@@ -0,0 +1,177 @@
+package ra.networkmanager;
+
+import ra.common.Envelope;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays a {@link TrafficRecorder} trace into a Network Manager, at the recorded pace, accelerated, or
+ * as fast as it will go, reporting throughput, time spent handling each input and how far behind the
+ * recorded schedule the service fell.
+ *
+ * Run against a fresh service and {@link MockProducer} with:
+ * java -cp target/test-classes:target/classes:... ra.networkmanager.TrafficReplayer trace [speed]
+ * where speed is 1 for the recorded pace, 10 for ten times faster and 0 for no waiting.
+ */
+public class TrafficReplayer {
+
+    private static final Logger LOG = Logger.getLogger(TrafficReplayer.class.getName());
+
+    private final File trace;
+    private double speed = 1.0;
+
+    public TrafficReplayer(File trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * @param speed multiple of the recorded pace, 0 to replay without waiting
+     */
+    public TrafficReplayer speed(double speed) {
+        this.speed = speed;
+        return this;
+    }
+
+    public Report replay(NetworkManagerService service, MockProducer producer) throws IOException {
+        Report report = new Report();
+        long sentBefore = producer.sent.get();
+        long deadLettersBefore = producer.deadLetters.get();
+        long[] handleNanos = new long[1024];
+        long start = System.nanoTime();
+        long lastOffsetMicros = 0L;
+        try (TrafficRecorder.Reader reader = new TrafficRecorder.Reader(trace)) {
+            TrafficRecorder.Record r;
+            while((r = reader.next())!=null) {
+                lastOffsetMicros = r.getOffsetMicros();
+                if(speed > 0) {
+                    long due = start + (long)(r.getOffsetMicros() * 1000 / speed);
+                    long wait = due - System.nanoTime();
+                    if(wait > 0) {
+                        sleepNanos(wait);
+                    } else {
+                        report.maxLagMs = Math.max(report.maxLagMs, -wait / 1000000);
+                    }
+                }
+                List<Envelope> envelopes = new ArrayList<>(r.getEnvelopes().size());
+                for(String json : r.getEnvelopes()) {
+                    Envelope e = Envelope.documentFactory();
+                    e.fromJSON(json);
+                    envelopes.add(e);
+                }
+                long handleStart = System.nanoTime();
+                switch (r.getKind()) {
+                    case TrafficRecorder.EVENT: {
+                        service.handleEvent(envelopes.get(0));
+                        report.events++;
+                        break;
+                    }
+                    case TrafficRecorder.DOCUMENT: {
+                        service.handleDocument(envelopes.get(0));
+                        report.documents++;
+                        break;
+                    }
+                    case TrafficRecorder.BATCH: {
+                        service.handleDocuments(envelopes);
+                        report.batches++;
+                        break;
+                    }
+                    default: {
+                        LOG.warning("Skipping unknown record kind "+r.getKind());
+                        continue;
+                    }
+                }
+                if(report.records == handleNanos.length) {
+                    handleNanos = Arrays.copyOf(handleNanos, report.records * 2);
+                }
+                handleNanos[report.records++] = System.nanoTime() - handleStart;
+                report.envelopes += envelopes.size();
+            }
+        }
+        report.wallMs = (System.nanoTime() - start) / 1000000;
+        report.traceMs = lastOffsetMicros / 1000;
+        report.sent = producer.sent.get() - sentBefore;
+        report.deadLettered = producer.deadLetters.get() - deadLettersBefore;
+        long[] sorted = Arrays.copyOf(handleNanos, report.records);
+        Arrays.sort(sorted);
+        report.p50HandleMicros = percentile(sorted, 0.5) / 1000;
+        report.p99HandleMicros = percentile(sorted, 0.99) / 1000;
+        report.maxHandleMicros = sorted.length==0 ? 0 : sorted[sorted.length - 1] / 1000;
+        return report;
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if(sorted.length==0) return 0;
+        return sorted[Math.min(sorted.length - 1, Math.max(0, (int)Math.ceil(p * sorted.length) - 1))];
+    }
+
+    public static class Report {
+        public int records;
+        public long envelopes;
+        public long events;
+        public long documents;
+        public long batches;
+        public long traceMs;
+        public long wallMs;
+        public long maxLagMs;
+        public long p50HandleMicros;
+        public long p99HandleMicros;
+        public long maxHandleMicros;
+        public long sent;
+        public long deadLettered;
+
+        @Override
+        public String toString() {
+            return "records="+records
+                    +" envelopes="+envelopes
+                    +" events="+events
+                    +" documents="+documents
+                    +" batches="+batches
+                    +" traceMs="+traceMs
+                    +" wallMs="+wallMs
+                    +" envelopesPerSecond="+(wallMs==0 ? 0 : envelopes * 1000L / wallMs)
+                    +" p50HandleMicros="+p50HandleMicros
+                    +" p99HandleMicros="+p99HandleMicros
+                    +" maxHandleMicros="+maxHandleMicros
+                    +" maxLagMs="+maxLagMs
+                    +" sent="+sent
+                    +" deadLettered="+deadLettered;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.out.println("Usage: TrafficReplayer trace [speed]");
+            return;
+        }
+        Logger.getLogger("ra.networkmanager").setLevel(Level.WARNING);
+        MockProducer producer = new MockProducer();
+        NetworkManagerService service = new NetworkManagerService(producer, null);
+        if(!service.start(new Properties())) {
+            System.out.println("Unable to start Network Manager.");
+            return;
+        }
+        try {
+            Report report = new TrafficReplayer(new File(args[0]))
+                    .speed(args.length > 1 ? Double.parseDouble(args[1]) : 1.0)
+                    .replay(service, producer);
+            System.out.println(report);
+        } finally {
+            service.gracefulShutdown();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ra.networkmanager;
+
+import java.util.PriorityQueue;
+
+/**
+ * Discrete-event clock for simulations. Events scheduled for the same time run in scheduling order.
+ */
+public class VirtualClock {
+
+    private long now;
+    private long seq = 0L;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+
+    private static class Event implements Comparable<Event> {
+        private final long at;
+        private final long seq;
+        private final Runnable task;
+
+        private Event(long at, long seq, Runnable task) {
+            this.at = at;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            if(at != o.at) return Long.compare(at, o.at);
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    public VirtualClock() {
+        this(0L);
+    }
+
+    /**
+     * @param start time in ms the clock starts at
+     */
+    public VirtualClock(long start) {
+        this.now = start;
+    }
+
+    public long now() {
+        return now;
+    }
+
+    public void schedule(long delayMs, Runnable task) {
+        events.add(new Event(now + Math.max(0, delayMs), seq++, task));
+    }
+
+    /**
+     * Run all events due up to and including the supplied time then advance the clock to it.
+     * @return number of events run
+     */
+    public int runUntil(long until) {
+        int count = 0;
+        while(!events.isEmpty() && events.peek().at <= until) {
+            Event event = events.poll();
+            now = event.at;
+            event.task.run();
+            count++;
+        }
+        now = until;
+        return count;
+    }
+
+    public int pending() {
+        return events.size();
+    }
+}
@@ -0,0 +1,91 @@
+package ra.networkmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class WeightedSamplerTest {
+
+    private static final double EPSILON = 1e-9;
+
+    @Test
+    public void totalsFollowUpdatesGrowthAndRemoval() {
+        WeightedSampler sampler = new WeightedSampler(2);
+        double expected = 0.0;
+        for(int i=0; i<100; i++) {
+            sampler.append(i);
+            expected += i;
+        }
+        Assert.assertEquals(100, sampler.size());
+        Assert.assertEquals(expected, sampler.total(), EPSILON);
+        sampler.set(10, 1000.0);
+        expected += 1000.0 - 10;
+        Assert.assertEquals(expected, sampler.total(), EPSILON);
+        // Last weight moves into the removed position
+        sampler.swapRemove(10);
+        expected -= 1000.0;
+        Assert.assertEquals(99, sampler.size());
+        Assert.assertEquals(99.0, sampler.get(10), EPSILON);
+        Assert.assertEquals(expected, sampler.total(), EPSILON);
+        sampler.swapRemove(98);
+        Assert.assertEquals(expected - 98.0, sampler.total(), EPSILON);
+    }
+
+    @Test
+    public void sampleFindsTheContainingRange() {
+        WeightedSampler sampler = new WeightedSampler();
+        sampler.append(1.0);
+        sampler.append(0.0);
+        sampler.append(2.0);
+        sampler.append(3.0);
+        Assert.assertEquals(0, sampler.sample(0.0));
+        Assert.assertEquals(0, sampler.sample(0.99));
+        // Zero weight position is never chosen
+        Assert.assertEquals(2, sampler.sample(1.0));
+        Assert.assertEquals(2, sampler.sample(2.99));
+        Assert.assertEquals(3, sampler.sample(3.0));
+        Assert.assertEquals(3, sampler.sample(5.99));
+        // Rounding past the total stays within the list
+        Assert.assertEquals(3, sampler.sample(6.0));
+    }
+
+    @Test
+    public void samplesInProportionToWeight() {
+        WeightedSampler sampler = new WeightedSampler();
+        double[] weights = {1.0, 2.0, 3.0, 4.0, 0.0, 10.0};
+        for(double w : weights) {
+            sampler.append(w);
+        }
+        int draws = 200000;
+        int[] counts = new int[weights.length];
+        Random random = new Random(3);
+        for(int i=0; i<draws; i++) {
+            counts[sampler.sample(random.nextDouble() * sampler.total())]++;
+        }
+        for(int i=0; i<weights.length; i++) {
+            double share = counts[i] / (double)draws;
+            Assert.assertEquals("position "+i, weights[i] / 20.0, share, 0.01);
+        }
+        Assert.assertEquals(0, counts[4]);
+    }
+
+    @Test
+    public void rebuildShedsDrift() {
+        WeightedSampler sampler = new WeightedSampler();
+        Random random = new Random(5);
+        for(int i=0; i<1000; i++) {
+            sampler.append(random.nextDouble());
+        }
+        for(int i=0; i<100000; i++) {
+            sampler.set(random.nextInt(1000), random.nextDouble() * 1e6);
+        }
+        double sum = 0.0;
+        for(int i=0; i<sampler.size(); i++) {
+            sampler.set(i, 1.0);
+            sum += 1.0;
+        }
+        sampler.rebuild();
+        Assert.assertEquals(sum, sampler.total(), EPSILON);
+    }
+}